@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+/**
+ * Callback receiving the results of an {@link RTree} query one by one, so
+ * that no result collection needs to be allocated.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public interface BoundingBoxVisitor<E> {
+
+    /**
+     * @param element
+     *            the element matching the query
+     * @param minX
+     *            the minimum x of the element bounding box
+     * @param minY
+     *            the minimum y of the element bounding box
+     * @param maxX
+     *            the maximum x of the element bounding box
+     * @param maxY
+     *            the maximum y of the element bounding box
+     * @return true if the query should go on, false to stop it
+     */
+    boolean visit(E element, double minX, double minY, double maxX, double maxY);
+
+}
@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.awt.geom.Rectangle2D;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A thread-safe {@link SpatialIndex}. The indexed space is split in a grid of
+ * regions, each one a {@link FlatQuadTree} guarded by its own read/write lock
+ * (lock striping). Any number of readers can query concurrently, and writers
+ * working on different regions never contend. An operation locks all the
+ * regions it touches at once, always in ascending order, so that it is atomic
+ * and deadlock free: a query never misses or duplicates an element moving
+ * between two regions.
+ *
+ * Visitors are called while read locks are held: they must not modify the
+ * index.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public class ConcurrentQuadTree<E> implements SpatialIndex<E>, Serializable {
+
+    /**
+     * Default number of regions per side.
+     */
+    public static final int DEFAULT_STRIPES = 8;
+    private static final long serialVersionUID = -1848274329508391775L;
+
+    private final int stripes;
+    private final double[] xBounds;
+    private final double[] yBounds;
+    private final List<FlatQuadTree<E>> regions;
+    private final ReadWriteLock[] locks;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Builds a tree with {@link #DEFAULT_STRIPES} regions per side.
+     *
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param elemPerQuad
+     *            maximum number of elements per quad
+     */
+    public ConcurrentQuadTree(final double x, final double y, final double mx, final double my, final int elemPerQuad) {
+        this(x, y, mx, my, elemPerQuad, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param elemPerQuad
+     *            maximum number of elements per quad
+     * @param stripesPerSide
+     *            number of independently locked regions per side
+     */
+    public ConcurrentQuadTree(final double x, final double y, final double mx, final double my,
+            final int elemPerQuad, final int stripesPerSide) {
+        if (stripesPerSide < 1) {
+            throw new IllegalArgumentException("At least one stripe per side is required, " + stripesPerSide + " given.");
+        }
+        stripes = stripesPerSide;
+        xBounds = splits(Math.min(x, mx), Math.max(x, mx), stripes);
+        yBounds = splits(Math.min(y, my), Math.max(y, my), stripes);
+        regions = new ArrayList<>(stripes * stripes);
+        locks = new ReadWriteLock[stripes * stripes];
+        for (int row = 0; row < stripes; row++) {
+            for (int col = 0; col < stripes; col++) {
+                regions.add(new FlatQuadTree<E>(xBounds[col], yBounds[row], xBounds[col + 1], yBounds[row + 1], elemPerQuad));
+                locks[row * stripes + col] = new ReentrantReadWriteLock();
+            }
+        }
+    }
+
+    private static void checkRadius(final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("The radius must be non negative, " + radius + " given.");
+        }
+    }
+
+    private static double[] splits(final double min, final double max, final int n) {
+        final double[] result = new double[n + 1];
+        for (int i = 0; i < n; i++) {
+            result[i] = min + (max - min) * i / n;
+        }
+        result[n] = max;
+        return result;
+    }
+
+    @Override
+    public boolean delete(final E e, final double x, final double y) {
+        final int region = region(x, y);
+        if (region < 0) {
+            return false;
+        }
+        locks[region].writeLock().lock();
+        try {
+            if (regions.get(region).delete(e, x, y)) {
+                size.decrementAndGet();
+                return true;
+            }
+            return false;
+        } finally {
+            locks[region].writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean insert(final E e, final double x, final double y) {
+        final int region = region(x, y);
+        if (region < 0) {
+            return false;
+        }
+        locks[region].writeLock().lock();
+        try {
+            regions.get(region).insert(e, x, y);
+            size.incrementAndGet();
+            return true;
+        } finally {
+            locks[region].writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
+        final int from = region(sx, sy);
+        final int to = region(fx, fy);
+        if (from < 0 || to < 0) {
+            return false;
+        }
+        if (from == to) {
+            locks[from].writeLock().lock();
+            try {
+                return regions.get(from).move(e, sx, sy, fx, fy);
+            } finally {
+                locks[from].writeLock().unlock();
+            }
+        }
+        final int first = Math.min(from, to);
+        final int second = Math.max(from, to);
+        locks[first].writeLock().lock();
+        try {
+            locks[second].writeLock().lock();
+            try {
+                return regions.get(from).delete(e, sx, sy) && regions.get(to).insert(e, fx, fy);
+            } finally {
+                locks[second].writeLock().unlock();
+            }
+        } finally {
+            locks[first].writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<E> query(final Rectangle2D range) {
+        final List<E> result = new ArrayList<>();
+        query(range.getMinX(), range.getMinY(), range.getMaxX(), range.getMaxY(), result);
+        return result;
+    }
+
+    @Override
+    public void query(final double minX, final double minY, final double maxX, final double maxY,
+            final Collection<? super E> buffer) {
+        final int c0 = column(Math.min(minX, maxX));
+        final int c1 = column(Math.max(minX, maxX));
+        final int r0 = row(Math.min(minY, maxY));
+        final int r1 = row(Math.max(minY, maxY));
+        readLock(c0, c1, r0, r1);
+        try {
+            for (int row = r0; row <= r1; row++) {
+                for (int col = c0; col <= c1; col++) {
+                    regions.get(row * stripes + col).query(minX, minY, maxX, maxY, buffer);
+                }
+            }
+        } finally {
+            readUnlock(c0, c1, r0, r1);
+        }
+    }
+
+    @Override
+    public boolean query(final double minX, final double minY, final double maxX, final double maxY,
+            final SpatialVisitor<? super E> visitor) {
+        final int c0 = column(Math.min(minX, maxX));
+        final int c1 = column(Math.max(minX, maxX));
+        final int r0 = row(Math.min(minY, maxY));
+        final int r1 = row(Math.max(minY, maxY));
+        readLock(c0, c1, r0, r1);
+        try {
+            for (int row = r0; row <= r1; row++) {
+                for (int col = c0; col <= c1; col++) {
+                    if (!regions.get(row * stripes + col).query(minX, minY, maxX, maxY, visitor)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            readUnlock(c0, c1, r0, r1);
+        }
+    }
+
+    @Override
+    public void queryRadius(final double cx, final double cy, final double r, final Collection<? super E> buffer) {
+        checkRadius(r);
+        final int c0 = column(cx - r);
+        final int c1 = column(cx + r);
+        final int r0 = row(cy - r);
+        final int r1 = row(cy + r);
+        readLock(c0, c1, r0, r1);
+        try {
+            for (int row = r0; row <= r1; row++) {
+                for (int col = c0; col <= c1; col++) {
+                    regions.get(row * stripes + col).queryRadius(cx, cy, r, buffer);
+                }
+            }
+        } finally {
+            readUnlock(c0, c1, r0, r1);
+        }
+    }
+
+    @Override
+    public boolean queryRadius(final double cx, final double cy, final double r, final SpatialVisitor<? super E> visitor) {
+        checkRadius(r);
+        final int c0 = column(cx - r);
+        final int c1 = column(cx + r);
+        final int r0 = row(cy - r);
+        final int r1 = row(cy + r);
+        readLock(c0, c1, r0, r1);
+        try {
+            for (int row = r0; row <= r1; row++) {
+                for (int col = c0; col <= c1; col++) {
+                    if (!regions.get(row * stripes + col).queryRadius(cx, cy, r, visitor)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            readUnlock(c0, c1, r0, r1);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of regions per side
+     */
+    public int getStripes() {
+        return stripes;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + xBounds[0] + ", " + yBounds[0] + " - " + xBounds[stripes] + ", "
+                + yBounds[stripes] + "] with " + size + " elements in " + stripes * stripes + " regions";
+    }
+
+    private void readLock(final int c0, final int c1, final int r0, final int r1) {
+        for (int row = r0; row <= r1; row++) {
+            for (int col = c0; col <= c1; col++) {
+                locks[row * stripes + col].readLock().lock();
+            }
+        }
+    }
+
+    private void readUnlock(final int c0, final int c1, final int r0, final int r1) {
+        for (int row = r1; row >= r0; row--) {
+            for (int col = c1; col >= c0; col--) {
+                locks[row * stripes + col].readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the region containing the point, or -1 if out of bounds
+     */
+    private int region(final double x, final double y) {
+        if (x < xBounds[0] || x > xBounds[stripes] || y < yBounds[0] || y > yBounds[stripes]) {
+            return -1;
+        }
+        return row(y) * stripes + column(x);
+    }
+
+    private int column(final double x) {
+        return slot(xBounds, x);
+    }
+
+    private int row(final double y) {
+        return slot(yBounds, y);
+    }
+
+    /**
+     * Index of the slot containing the value, clamped to the valid slots. The
+     * estimate is corrected against the actual bounds, so that the returned
+     * slot always contains in-bounds values despite rounding.
+     */
+    private int slot(final double[] bounds, final double v) {
+        final int n = bounds.length - 1;
+        final double estimate = (v - bounds[0]) / (bounds[n] - bounds[0]) * n;
+        int slot = estimate >= n ? n - 1 : estimate > 0 ? (int) estimate : 0;
+        while (slot > 0 && v < bounds[slot]) {
+            slot--;
+        }
+        while (slot < n - 1 && v >= bounds[slot + 1]) {
+            slot++;
+        }
+        return slot;
+    }
+
+}
@@ -0,0 +1,3662 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.RecursiveAction;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * A point QuadTree whose nodes and entries are not objects, but slots in
+ * primitive array pools. Nodes are allocated in blocks of four siblings, and
+ * store their bounds, their parent and their first child. Entries are kept in
+ * a singly linked list per leaf, and their slots are recycled through a free
+ * list. Compared to {@link QuadTree}, no object is allocated per node or per
+ * entry, which reduces GC pressure when millions of points are indexed. An
+ * entry takes 28 bytes of the pools (36 once values are set), a node 48 (56
+ * with aggregates). The pools grow by half their capacity at a time: once
+ * trimmed (see {@link #trimToSize()}), the tree retains less heap than a
+ * {@link QuadTree} with the same content, while the spare capacity of a
+ * growing tree may offset the difference.
+ *
+ * Rectangular ranges are normalized if their corners are swapped.
+ *
+ * Elements are only stored in leaves. A point lying on the split lines of a
+ * node is routed to the top and/or right child. Leaves are not split below a
+ * maximum depth (32 unless specified): there, they act as overflow buckets,
+ * and hold any number of elements. Above the maximum depth, a leaf may hold
+ * more elements than its capacity too, until its next insertion: a split
+ * creates a single level, and may leave all the elements in one child.
+ *
+ * In loose mode (see {@link #setLooseness(double)}), an element stays in its
+ * leaf as long as it lies within the bounds of the leaf enlarged by a margin
+ * proportional to the size of the leaf, and queries prune nodes by their
+ * enlarged bounds. Elements moving a little at each step then rarely change
+ * leaf, at the cost of slightly less selective queries.
+ *
+ * In toroidal mode (see {@link #setToroidal(boolean)}), the space wraps
+ * around the bounds given to the constructor: positions are taken modulo the
+ * size of the space, and queries reach across the borders.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public class FlatQuadTree<E> implements SpatialIndex<E>, Serializable {
+
+    private static final long serialVersionUID = 2375937483294592049L;
+    private static final int NONE = -1;
+    private static final int ROOT = 0;
+    private static final int CHILDREN = 4;
+    private static final int RIGHT = 1;
+    private static final int TOP = 2;
+    private static final int MIN_X = 0;
+    private static final int MIN_Y = 1;
+    private static final int MAX_X = 2;
+    private static final int MAX_Y = 3;
+    private static final int BOUNDS = 4;
+    private static final int INITIAL_NODES = 1 + CHILDREN * CHILDREN;
+    /*
+     * Footprint of the pool cells, assuming compressed references
+     */
+    private static final int INT_BYTES = 4;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int INITIAL_ENTRIES = 64;
+    private static final int INDEX_BITS = 31;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+    private static final long DIGIT_MASK = CHILDREN - 1;
+    private static final long NO_KEY = -1;
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+    private static final byte FAILED = 0;
+    private static final byte MOVED = 1;
+    private static final byte CROSSING = 2;
+    private static final byte REPEATED = 3;
+    private static final int FORK_DEPTH = 4;
+    private static final int INITIAL_PAIRS = 64;
+    private static final long MAX_PAIRS = (Integer.MAX_VALUE - 8) / 2;
+    private static final long MAX_RESULTS = Integer.MAX_VALUE - 8;
+    private static final int QUERY_BLOCK = 64;
+    private static final int INITIAL_RESULTS = 256;
+    private static final int DEFAULT_MAX_DEPTH = 32;
+
+    private final int elems;
+    private final int depthCap;
+    private boolean autoCollapse;
+    private boolean autoExpand;
+    private double looseness;
+    private boolean toroidal;
+    private Aggregation aggregation;
+    /*
+     * Node pool. The pools are not serialized as they are: see writeObject.
+     * The size of a leaf is the length of its list, the one of an internal
+     * node is the number of entries in its subtree. Aggregates are only
+     * allocated and maintained while an aggregation is set.
+     */
+    private transient double[] nodeBounds;
+    private transient int[] nodeChild;
+    private transient int[] nodeParent;
+    private transient int[] nodeHead;
+    private transient int[] nodeSize;
+    private transient double[] nodeAggregate;
+    private transient int nodeTop;
+    private transient int freeBlock = NONE;
+    private transient int freeBlocks;
+    /*
+     * Entry pool. Values are only allocated once a value is set or an
+     * aggregation is requested: until then, they are all 0.
+     */
+    private transient double[] entryX;
+    private transient double[] entryY;
+    private transient double[] entryValue;
+    private transient Object[] entryElement;
+    private transient int[] entryNode;
+    private transient int[] entryNext;
+    private transient int entryTop;
+    private transient int freeEntry = NONE;
+    private transient int size;
+
+    /**
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param elemPerQuad
+     *            maximum number of elements per quad
+     */
+    public FlatQuadTree(final double x, final double y, final double mx, final double my, final int elemPerQuad) {
+        this(x, y, mx, my, elemPerQuad, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Builds a QuadTree whose leaves are not split below the given depth.
+     * Leaves at the maximum depth hold any number of elements, so that
+     * heavily duplicated points, which no split could separate, do not make
+     * the tree grow without bounds. Leaves above the maximum depth are split
+     * when an insertion brings them over the capacity, one level at a time,
+     * hence they may also exceed the capacity until their next insertion.
+     *
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param elemPerQuad
+     *            number of elements per quad above which an insertion splits
+     *            it, unless it is at the maximum depth
+     * @param maxDepth
+     *            the maximum depth of the leaves, the root being at depth 0
+     */
+    public FlatQuadTree(final double x, final double y, final double mx, final double my, final int elemPerQuad,
+            final int maxDepth) {
+        if (elemPerQuad < 1) {
+            throw new IllegalArgumentException("At least one element per quad is required, " + elemPerQuad + " given.");
+        }
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("The maximum depth can not be negative, " + maxDepth + " given.");
+        }
+        elems = elemPerQuad;
+        depthCap = maxDepth;
+        nodeBounds = new double[INITIAL_NODES * BOUNDS];
+        nodeChild = new int[INITIAL_NODES];
+        nodeParent = new int[INITIAL_NODES];
+        nodeHead = new int[INITIAL_NODES];
+        nodeSize = new int[INITIAL_NODES];
+        entryX = new double[INITIAL_ENTRIES];
+        entryY = new double[INITIAL_ENTRIES];
+        entryElement = new Object[INITIAL_ENTRIES];
+        entryNode = new int[INITIAL_ENTRIES];
+        entryNext = new int[INITIAL_ENTRIES];
+        initNode(ROOT, NONE, Math.min(x, mx), Math.min(y, my), Math.max(x, mx), Math.max(y, my));
+        nodeTop = 1;
+    }
+
+    /**
+     * Builds a QuadTree from a snapshot of positions, much faster than
+     * inserting the elements one by one. Points are radix sorted by their
+     * Z-order (Morton) code, computed with the same splits used by the tree,
+     * so that each subtree is a contiguous run of the sorted array: the tree
+     * is then laid down in a single pass, without any incremental subdivision,
+     * and the entries of each leaf end up contiguous in memory. Elements out
+     * of the bounds are skipped.
+     *
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param elemPerQuad
+     *            maximum number of elements per quad
+     * @param xs
+     *            the x coordinates of the elements
+     * @param ys
+     *            the y coordinates of the elements
+     * @param elements
+     *            the elements
+     * @param parallel
+     *            if true, Morton codes are computed and sorted using
+     *            fork/join
+     * @param <E>
+     *            the type of the indexed elements
+     * @return a new QuadTree containing the elements
+     */
+    public static <E> FlatQuadTree<E> bulkLoad(final double x, final double y, final double mx, final double my,
+            final int elemPerQuad, final double[] xs, final double[] ys, final E[] elements, final boolean parallel) {
+        if (xs.length != ys.length || xs.length != elements.length) {
+            throw new IllegalArgumentException("Coordinates and elements must have the same length.");
+        }
+        final FlatQuadTree<E> tree = new FlatQuadTree<>(x, y, mx, my, elemPerQuad);
+        final long[] keys = new long[xs.length];
+        new MortonKeys(tree, xs, ys, keys, 0, keys.length).run(parallel);
+        int valid = 0;
+        for (final long key : keys) {
+            if (key != NO_KEY) {
+                keys[valid++] = key;
+            }
+        }
+        LongArrays.radixSort(keys, valid, INDEX_BITS, Morton.BITS, parallel);
+        tree.ensureEntryCapacity(valid);
+        new Gather(tree, keys, xs, ys, elements, 0, valid).run(parallel);
+        tree.entryTop = valid;
+        tree.size = valid;
+        tree.build(ROOT, 0, keys, 0, valid);
+        for (int entry = 0; entry < valid; entry++) {
+            if (tree.entryNode[entry] == NONE) {
+                tree.link(entry, tree.locate(ROOT, tree.entryX[entry], tree.entryY[entry]));
+            }
+        }
+        tree.summarizeAll(ROOT);
+        return tree;
+    }
+
+    @Override
+    public boolean delete(final E e, final double x, final double y) {
+        return delete(findEntry(ROOT, e, wrapX(x), wrapY(y)));
+    }
+
+    @Override
+    public boolean insert(final E e, final double x, final double y) {
+        return insertWithHandle(e, x, y) != NONE;
+    }
+
+    /**
+     * Inserts an element in the QuadTree, and returns a handle that can be
+     * used to move or delete it without searching the tree. The handle stays
+     * valid until the element is deleted, after which it may be reused for
+     * another element.
+     *
+     * @param e
+     *            The element to add
+     * @param x
+     *            the x position of the element
+     * @param y
+     *            the y position of the element
+     * @return the handle of the inserted element, or -1 if the element is out
+     *         of the indexed space
+     */
+    public int insertWithHandle(final E e, final double x, final double y) {
+        return insertEntry(e, x, y, 0);
+    }
+
+    /**
+     * Inserts an element along with a value, which is summarized by
+     * {@link #aggregate(double, double, double, double)}.
+     *
+     * @param e
+     *            The element to add
+     * @param x
+     *            the x position of the element
+     * @param y
+     *            the y position of the element
+     * @param value
+     *            the value associated to the element
+     * @return the handle of the inserted element, or -1 if the element is out
+     *         of the indexed space
+     */
+    public int insertWithHandle(final E e, final double x, final double y, final double value) {
+        ensureValues();
+        return insertEntry(e, x, y, value);
+    }
+
+    private int insertEntry(final E e, final double x, final double y, final double value) {
+        final double wx = wrapX(x);
+        final double wy = wrapY(y);
+        if (!reach(wx, wy)) {
+            return NONE;
+        }
+        final int entry = allocateEntry();
+        entryElement[entry] = e;
+        entryX[entry] = wx;
+        entryY[entry] = wy;
+        if (entryValue != null) {
+            entryValue[entry] = value;
+        }
+        final int leaf = locate(ROOT, wx, wy);
+        resize(leaf, NONE, 1);
+        link(entry, leaf);
+        size++;
+        refresh(entryNode[entry], NONE);
+        return entry;
+    }
+
+    /**
+     * Deletes the element associated to a handle, without searching the tree:
+     * only the list of its leaf is scanned.
+     *
+     * @param handle
+     *            the handle returned by
+     *            {@link #insertWithHandle(Object, double, double)}
+     * @return true if the handle referred to an element, which has been
+     *         removed
+     */
+    public boolean delete(final int handle) {
+        if (!isValid(handle)) {
+            return false;
+        }
+        final int leaf = entryNode[handle];
+        unlink(handle);
+        resize(leaf, NONE, -1);
+        releaseEntry(handle);
+        refresh(leaf, NONE);
+        if (autoCollapse) {
+            collapseFrom(leaf);
+        }
+        return true;
+    }
+
+    /**
+     * Moves the element associated to a handle. If the element does not leave
+     * its leaf (or its loose bounds, in loose mode), this is a constant time
+     * update of its coordinates. Otherwise, the element is re-routed starting
+     * from the smallest ancestor of its leaf containing the destination.
+     *
+     * @param handle
+     *            the handle returned by
+     *            {@link #insertWithHandle(Object, double, double)}
+     * @param x
+     *            the final x
+     * @param y
+     *            the final y
+     * @return true if the handle referred to an element and the destination
+     *         is in the indexed space (or the space could be expanded)
+     */
+    public boolean move(final int handle, final double x, final double y) {
+        final double wx = wrapX(x);
+        final double wy = wrapY(y);
+        if (!isValid(handle) || !reach(wx, wy)) {
+            return false;
+        }
+        relocate(handle, wx, wy);
+        return true;
+    }
+
+    /**
+     * Moves a batch of elements at once, e.g. all the elements updated in a
+     * simulation step. Elements that stay in their leaf are updated in place,
+     * in parallel if requested, since they do not alter the structure. The
+     * ones crossing a node boundary are then grouped by their leaf and
+     * re-routed from the smallest ancestor containing the destination. If a
+     * handle is repeated, its last destination wins, as if the elements were
+     * moved one by one.
+     *
+     * @param handles
+     *            the handles returned by
+     *            {@link #insertWithHandle(Object, double, double)}
+     * @param xs
+     *            the final x coordinates
+     * @param ys
+     *            the final y coordinates
+     * @param parallel
+     *            if true, the in-place updates are performed using fork/join
+     * @return the number of elements actually moved, namely those with a
+     *         valid handle and a destination in the indexed space
+     */
+    public int moveAll(final int[] handles, final double[] xs, final double[] ys, final boolean parallel) {
+        if (handles.length != xs.length || handles.length != ys.length) {
+            throw new IllegalArgumentException("Handles and coordinates must have the same length.");
+        }
+        final double[] wxs = wrapX(xs);
+        final double[] wys = wrapY(ys);
+        final byte[] status = moveBatch(handles, wxs, wys, parallel);
+        int moved = 0;
+        for (int i = 0; i < status.length; i++) {
+            if (status[i] == MOVED || status[i] == REPEATED && move(handles[i], wxs[i], wys[i])) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Moves a batch of elements at once, as {@link #moveAll(int[], double[],
+     * double[], boolean)}. The elements are first searched in the tree, in
+     * parallel if requested.
+     *
+     * @param elements
+     *            the elements
+     * @param sx
+     *            the start x coordinates
+     * @param sy
+     *            the start y coordinates
+     * @param fx
+     *            the final x coordinates
+     * @param fy
+     *            the final y coordinates
+     * @param parallel
+     *            if true, the search and the in-place updates are performed
+     *            using fork/join
+     * @return the number of elements found and moved
+     */
+    public int moveAll(final E[] elements, final double[] sx, final double[] sy, final double[] fx, final double[] fy,
+            final boolean parallel) {
+        final int n = elements.length;
+        if (sx.length != n || sy.length != n || fx.length != n || fy.length != n) {
+            throw new IllegalArgumentException("Coordinates and elements must have the same length.");
+        }
+        final int[] handles = new int[n];
+        new Search<>(this, elements, wrapX(sx), wrapY(sy), handles, 0, n).run(parallel);
+        final byte[] status = moveBatch(handles, wrapX(fx), wrapY(fy), parallel);
+        int moved = 0;
+        for (int i = 0; i < n; i++) {
+            /*
+             * The same element at the same position is found twice: search it
+             * again once the first copy is gone
+             */
+            if (status[i] == MOVED || status[i] == REPEATED && move(elements[i], sx[i], sy[i], fx[i], fy[i])) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return the element associated to the handle
+     */
+    @SuppressWarnings("unchecked")
+    public E getElement(final int handle) {
+        checkHandle(handle);
+        return (E) entryElement[handle];
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return the x coordinate of the element associated to the handle
+     */
+    public double getX(final int handle) {
+        checkHandle(handle);
+        return entryX[handle];
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return the y coordinate of the element associated to the handle
+     */
+    public double getY(final int handle) {
+        checkHandle(handle);
+        return entryY[handle];
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return the value associated to the element
+     */
+    public double getValue(final int handle) {
+        checkHandle(handle);
+        return entryValue == null ? 0 : entryValue[handle];
+    }
+
+    /**
+     * Changes the value associated to an element. If an aggregation is set,
+     * the aggregates of the ancestors of the element are updated.
+     *
+     * @param handle
+     *            the handle
+     * @param value
+     *            the new value
+     */
+    public void setValue(final int handle, final double value) {
+        checkHandle(handle);
+        ensureValues();
+        entryValue[handle] = value;
+        refresh(entryNode[handle], NONE);
+    }
+
+    /**
+     * @return the maximum number of elements per node
+     */
+    public int getMaxElementsNumber() {
+        return elems;
+    }
+
+    /**
+     * @return the depth below which leaves are not split, and hold any number
+     *         of elements
+     */
+    public int getMaxDepth() {
+        return depthCap;
+    }
+
+    @Override
+    public boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
+        return move(findEntry(ROOT, e, wrapX(sx), wrapY(sy)), fx, fy);
+    }
+
+    @Override
+    public List<E> query(final Rectangle2D range) {
+        final List<E> result = new ArrayList<>();
+        query(range.getMinX(), range.getMinY(), range.getMaxX(), range.getMaxY(), result);
+        return result;
+    }
+
+    @Override
+    public void query(final double minX, final double minY, final double maxX, final double maxY,
+            final Collection<? super E> buffer) {
+        collect(ROOT, lowerX(minX, maxX), lowerY(minY, maxY), upperX(minX, maxX), upperY(minY, maxY), buffer);
+    }
+
+    @Override
+    public boolean query(final double minX, final double minY, final double maxX, final double maxY,
+            final SpatialVisitor<? super E> visitor) {
+        return visit(ROOT, lowerX(minX, maxX), lowerY(minY, maxY), upperX(minX, maxX), upperY(minY, maxY), visitor);
+    }
+
+    @Override
+    public void queryRadius(final double cx, final double cy, final double r, final Collection<? super E> buffer) {
+        collect(ROOT, wrapX(cx), wrapY(cy), squared(r), buffer);
+    }
+
+    @Override
+    public boolean queryRadius(final double cx, final double cy, final double r, final SpatialVisitor<? super E> visitor) {
+        return visit(ROOT, wrapX(cx), wrapY(cy), squared(r), visitor);
+    }
+
+    /**
+     * Counts the elements in a rectangle, without collecting them. Every node
+     * keeps the size of its subtree, so nodes lying entirely within the range
+     * are counted in constant time: only the leaves crossing the border of
+     * the range are scanned.
+     *
+     * @param minX
+     *            minimum x of the range
+     * @param minY
+     *            minimum y of the range
+     * @param maxX
+     *            maximum x of the range
+     * @param maxY
+     *            maximum y of the range
+     * @return the number of elements in the range
+     */
+    public int count(final double minX, final double minY, final double maxX, final double maxY) {
+        return count(ROOT, lowerX(minX, maxX), lowerY(minY, maxY), upperX(minX, maxX), upperY(minY, maxY));
+    }
+
+    /**
+     * Counts the elements within a distance from a point, as
+     * {@link #count(double, double, double, double)}.
+     *
+     * @param cx
+     *            the x coordinate of the center
+     * @param cy
+     *            the y coordinate of the center
+     * @param r
+     *            the radius
+     * @return the number of elements in the circle
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    public int countRadius(final double cx, final double cy, final double r) {
+        return count(ROOT, wrapX(cx), wrapY(cy), squared(r));
+    }
+
+    /**
+     * Combines the values of the elements in a rectangle with the current
+     * aggregation. As with {@link #count(double, double, double, double)},
+     * nodes lying entirely within the range contribute their stored
+     * aggregate, and only the leaves crossing the border are scanned.
+     *
+     * @param minX
+     *            minimum x of the range
+     * @param minY
+     *            minimum y of the range
+     * @param maxX
+     *            maximum x of the range
+     * @param maxY
+     *            maximum y of the range
+     * @return the aggregate of the values in the range, or the identity of
+     *         the aggregation if the range holds no element
+     * @throws IllegalStateException
+     *             if no aggregation is set
+     */
+    public double aggregate(final double minX, final double minY, final double maxX, final double maxY) {
+        checkAggregation();
+        return aggregate(ROOT, lowerX(minX, maxX), lowerY(minY, maxY), upperX(minX, maxX), upperY(minY, maxY));
+    }
+
+    /**
+     * Combines the values of the elements within a distance from a point, as
+     * {@link #aggregate(double, double, double, double)}.
+     *
+     * @param cx
+     *            the x coordinate of the center
+     * @param cy
+     *            the y coordinate of the center
+     * @param r
+     *            the radius
+     * @return the aggregate of the values in the circle, or the identity of
+     *         the aggregation if the circle holds no element
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     * @throws IllegalStateException
+     *             if no aggregation is set
+     */
+    public double aggregateRadius(final double cx, final double cy, final double r) {
+        checkAggregation();
+        return aggregate(ROOT, wrapX(cx), wrapY(cy), squared(r));
+    }
+
+    /**
+     * Lazily iterates over the elements in a rectangle. The tree is walked
+     * incrementally with an explicit stack, one match ahead of the caller, so
+     * that no result collection is built and work stops as soon as the
+     * iterator is abandoned. The tree must not be modified while iterating.
+     *
+     * @param minX
+     *            minimum x of the range
+     * @param minY
+     *            minimum y of the range
+     * @param maxX
+     *            maximum x of the range
+     * @param maxY
+     *            maximum y of the range
+     * @return an iterator over the elements in the range
+     */
+    public QueryIterator<E> queryIterator(final double minX, final double minY, final double maxX, final double maxY) {
+        return new QueryIterator<>(this, lowerX(minX, maxX), lowerY(minY, maxY), upperX(minX, maxX),
+                upperY(minY, maxY), Double.NaN, Double.NaN, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Lazily iterates over the elements in a circle, as
+     * {@link #queryIterator(double, double, double, double)}.
+     *
+     * @param cx
+     *            the x coordinate of the center
+     * @param cy
+     *            the y coordinate of the center
+     * @param r
+     *            the radius
+     * @return an iterator over the elements in the circle
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    public QueryIterator<E> queryRadiusIterator(final double cx, final double cy, final double r) {
+        final double x = wrapX(cx);
+        final double y = wrapY(cy);
+        return new QueryIterator<>(this, lowerX(x - r, x + r), lowerY(y - r, y + r), upperX(x - r, x + r),
+                upperY(y - r, y + r), x, y, squared(r));
+    }
+
+    /**
+     * @param x
+     *            the x coordinate of the reference point
+     * @param y
+     *            the y coordinate of the reference point
+     * @return the element closest to the given point, or null if the tree is
+     *         empty
+     */
+    public E nearest(final double x, final double y) {
+        return nearest(x, y, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param x
+     *            the x coordinate of the reference point
+     * @param y
+     *            the y coordinate of the reference point
+     * @param maxRadius
+     *            the maximum distance from the reference point
+     * @return the element closest to the given point, or null if no element is
+     *         within maxRadius
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    public E nearest(final double x, final double y, final double maxRadius) {
+        final List<E> result = kNearest(x, y, 1, maxRadius);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * @param x
+     *            the x coordinate of the reference point
+     * @param y
+     *            the y coordinate of the reference point
+     * @param k
+     *            the maximum number of elements to retrieve
+     * @return the k elements closest to the given point, sorted by increasing
+     *         distance
+     */
+    public List<E> kNearest(final double x, final double y, final int k) {
+        return kNearest(x, y, k, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Best-first search of the k nearest neighbours: nodes and entries are
+     * visited by increasing distance from the reference point, and any node
+     * farther than maxRadius is never expanded.
+     *
+     * @param x
+     *            the x coordinate of the reference point
+     * @param y
+     *            the y coordinate of the reference point
+     * @param k
+     *            the maximum number of elements to retrieve
+     * @param maxRadius
+     *            the maximum distance from the reference point
+     * @return at most k elements within maxRadius from the given point, sorted
+     *         by increasing distance
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    @SuppressWarnings("unchecked")
+    public List<E> kNearest(final double x, final double y, final int k, final double maxRadius) {
+        final List<E> result = new ArrayList<>(Math.max(0, Math.min(k, size)));
+        final double wx = wrapX(x);
+        final double wy = wrapY(y);
+        final double maxDistSq = squared(maxRadius);
+        final DoubleIntMinHeap queue = new DoubleIntMinHeap();
+        queue.push(minDistanceSq(ROOT, wx, wy), ROOT);
+        while (result.size() < k && !queue.isEmpty() && queue.peekKey() <= maxDistSq) {
+            final int item = queue.peekValue();
+            queue.pop();
+            if (item < 0) {
+                result.add((E) entryElement[~item]);
+            } else if (isLeaf(item)) {
+                for (int entry = nodeHead[item]; entry != NONE; entry = entryNext[entry]) {
+                    final double distSq = distanceSq(entryX[entry], entryY[entry], wx, wy);
+                    if (distSq <= maxDistSq) {
+                        queue.push(distSq, ~entry);
+                    }
+                }
+            } else {
+                final int block = nodeChild[item];
+                for (int child = block; child < block + CHILDREN; child++) {
+                    final double distSq = minDistanceSq(child, wx, wy);
+                    if (distSq <= maxDistSq) {
+                        queue.push(distSq, child);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Visits the elements closer than width to the segment from (x1, y1) to
+     * (x2, y2), by increasing position of their projection along the
+     * segment, starting from (x1, y1). Only the nodes whose bounds, enlarged
+     * by width, are crossed by the segment are expanded, so long diagonal
+     * segments do not pay for their bounding box. Stopping the visitor at
+     * the first element makes for a cheap occlusion test.
+     *
+     * @param x1
+     *            the x coordinate of the start of the segment
+     * @param y1
+     *            the y coordinate of the start of the segment
+     * @param x2
+     *            the x coordinate of the end of the segment
+     * @param y2
+     *            the y coordinate of the end of the segment
+     * @param width
+     *            the maximum distance of the elements from the segment
+     * @param visitor
+     *            the visitor receiving the elements
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalStateException
+     *             if the tree is toroidal
+     */
+    public boolean querySegment(final double x1, final double y1, final double x2, final double y2,
+            final double width, final SpatialVisitor<? super E> visitor) {
+        return trace(x1, y1, x2 - x1, y2 - y1, 1, width, Objects.requireNonNull(visitor)) == NONE;
+    }
+
+    /**
+     * Collects the elements closer than width to the segment from (x1, y1) to
+     * (x2, y2), ordered by increasing position of their projection along the
+     * segment. See
+     * {@link #querySegment(double, double, double, double, double, SpatialVisitor)}.
+     *
+     * @param x1
+     *            the x coordinate of the start of the segment
+     * @param y1
+     *            the y coordinate of the start of the segment
+     * @param x2
+     *            the x coordinate of the end of the segment
+     * @param y2
+     *            the y coordinate of the end of the segment
+     * @param width
+     *            the maximum distance of the elements from the segment
+     * @param buffer
+     *            the collection receiving the elements
+     * @throws IllegalStateException
+     *             if the tree is toroidal
+     */
+    public void querySegment(final double x1, final double y1, final double x2, final double y2,
+            final double width, final Collection<? super E> buffer) {
+        querySegment(x1, y1, x2, y2, width, new SpatialVisitor<E>() {
+            @Override
+            public boolean visit(final E element, final double x, final double y) {
+                buffer.add(element);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Visits the elements closer than width to the ray starting in (x, y)
+     * with the given direction, by increasing position of their projection
+     * along the ray. See
+     * {@link #querySegment(double, double, double, double, double, SpatialVisitor)}.
+     *
+     * @param x
+     *            the x coordinate of the origin of the ray
+     * @param y
+     *            the y coordinate of the origin of the ray
+     * @param dx
+     *            the x component of the direction of the ray
+     * @param dy
+     *            the y component of the direction of the ray
+     * @param width
+     *            the maximum distance of the elements from the ray
+     * @param visitor
+     *            the visitor receiving the elements
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalStateException
+     *             if the tree is toroidal
+     */
+    public boolean queryRay(final double x, final double y, final double dx, final double dy, final double width,
+            final SpatialVisitor<? super E> visitor) {
+        return trace(x, y, dx, dy, Double.POSITIVE_INFINITY, width, Objects.requireNonNull(visitor)) == NONE;
+    }
+
+    /**
+     * @param x1
+     *            the x coordinate of the start of the segment
+     * @param y1
+     *            the y coordinate of the start of the segment
+     * @param x2
+     *            the x coordinate of the end of the segment
+     * @param y2
+     *            the y coordinate of the end of the segment
+     * @param width
+     *            the maximum distance of the element from the segment
+     * @return the element closer than width to the segment whose projection
+     *         is the closest to (x1, y1), or null if there is none
+     * @throws IllegalStateException
+     *             if the tree is toroidal
+     */
+    @SuppressWarnings("unchecked")
+    public E firstOnSegment(final double x1, final double y1, final double x2, final double y2,
+            final double width) {
+        final int entry = trace(x1, y1, x2 - x1, y2 - y1, 1, width, null);
+        return entry == NONE ? null : (E) entryElement[entry];
+    }
+
+    /**
+     * @param x
+     *            the x coordinate of the origin of the ray
+     * @param y
+     *            the y coordinate of the origin of the ray
+     * @param dx
+     *            the x component of the direction of the ray
+     * @param dy
+     *            the y component of the direction of the ray
+     * @param width
+     *            the maximum distance of the element from the ray
+     * @return the element closer than width to the ray whose projection is
+     *         the closest to the origin, or null if there is none
+     * @throws IllegalStateException
+     *             if the tree is toroidal
+     */
+    @SuppressWarnings("unchecked")
+    public E firstOnRay(final double x, final double y, final double dx, final double dy, final double width) {
+        final int entry = trace(x, y, dx, dy, Double.POSITIVE_INFINITY, width, null);
+        return entry == NONE ? null : (E) entryElement[entry];
+    }
+
+    /**
+     * Finds all the pairs of elements closer than the given radius, by
+     * traversing the tree against itself: two subtrees are only compared if
+     * their bounds are close enough, so the descent is shared by all the
+     * elements of a subtree rather than repeated with a query per element.
+     * Each unordered pair is reported once. When run in parallel, pairs of
+     * subtrees are joined by separate fork/join tasks, and the visitor must be
+     * thread safe. The tree must not be modified during the join.
+     *
+     * @param radius
+     *            the maximum distance between the elements of a pair
+     * @param visitor
+     *            the visitor receiving the pairs
+     * @param parallel
+     *            if true, the join is performed using fork/join
+     */
+    public void pairsWithin(final double radius, final PairVisitor<? super E> visitor, final boolean parallel) {
+        join(radius, Objects.requireNonNull(visitor), parallel);
+    }
+
+    /**
+     * Finds, for each element, the elements closer than the given radius, with
+     * the same dual tree traversal of
+     * {@link #pairsWithin(double, PairVisitor, boolean)}. The result is a
+     * primitive adjacency structure indexed by handle, so that no object is
+     * allocated per pair.
+     *
+     * @param radius
+     *            the maximum distance between neighbours
+     * @param parallel
+     *            if true, the join is performed using fork/join
+     * @return the neighbourhoods of all the elements
+     */
+    public Neighbourhoods neighbourhoods(final double radius, final boolean parallel) {
+        final Join<E> root = join(radius, null, parallel);
+        final List<Join<E>> leaves = new ArrayList<>();
+        root.gather(leaves);
+        long pairs = 0;
+        for (final Join<E> task : leaves) {
+            pairs += task.count;
+        }
+        if (pairs > MAX_PAIRS) {
+            throw new IllegalStateException(pairs + " pairs found, adjacency arrays can hold at most " + MAX_PAIRS);
+        }
+        final int[] offsets = new int[entryTop + 1];
+        for (final Join<E> task : leaves) {
+            for (int i = 0; i < task.count; i++) {
+                final long pair = task.pairs[i];
+                offsets[(int) (pair >>> Integer.SIZE) + 1]++;
+                offsets[(int) pair + 1]++;
+            }
+        }
+        for (int i = 0; i < entryTop; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        final int[] next = Arrays.copyOf(offsets, entryTop);
+        final int[] neighbours = new int[offsets[entryTop]];
+        for (final Join<E> task : leaves) {
+            for (int i = 0; i < task.count; i++) {
+                final long pair = task.pairs[i];
+                final int a = (int) (pair >>> Integer.SIZE);
+                final int b = (int) pair;
+                neighbours[next[a]++] = b;
+                neighbours[next[b]++] = a;
+            }
+        }
+        return new Neighbourhoods(offsets, neighbours);
+    }
+
+    /**
+     * Runs a batch of independent rectangular queries. The queries are sorted
+     * along a Z-order curve of their centers, so that spatially close queries
+     * run one after the other and find the same nodes in cache; blocks of
+     * consecutive queries are then run by separate fork/join tasks, each
+     * collecting handles in its own buffer. The results are returned as
+     * handles, stored contiguously in a single array in the order of the
+     * queries, and can be resolved with {@link #getElement(int)}. The tree
+     * must not be modified while the batch runs.
+     *
+     * @param boxes
+     *            the query boxes, four values for each query: minimum x,
+     *            minimum y, maximum x and maximum y
+     * @param parallel
+     *            if true, the queries are run using fork/join
+     * @return the handles found by each query
+     * @throws IllegalArgumentException
+     *             if the length of boxes is not a multiple of four
+     */
+    public BatchResults queryBatch(final double[] boxes, final boolean parallel) {
+        if (boxes.length % BOUNDS != 0) {
+            throw new IllegalArgumentException("Each query needs " + BOUNDS + " values, " + boxes.length + " given.");
+        }
+        final int n = boxes.length / BOUNDS;
+        final long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            final int b = i * BOUNDS;
+            final double x = wrapX((boxes[b + MIN_X] + boxes[b + MAX_X]) / 2);
+            final double y = wrapY((boxes[b + MIN_Y] + boxes[b + MAX_Y]) / 2);
+            keys[i] = Morton.encode(Morton.quantize(x, minX(ROOT), maxX(ROOT)),
+                    Morton.quantize(y, minY(ROOT), maxY(ROOT))) << INDEX_BITS | i;
+        }
+        LongArrays.radixSort(keys, n, INDEX_BITS, Morton.BITS, parallel);
+        final int[] counts = new int[n];
+        final int[][] found = new int[(n + QUERY_BLOCK - 1) / QUERY_BLOCK][];
+        new BatchQueries(this, boxes, keys, counts, found, 0, found.length).run(parallel);
+        final int[] offsets = new int[n + 1];
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            total += counts[i];
+            if (total > MAX_RESULTS) {
+                throw new IllegalStateException("More than " + MAX_RESULTS + " results found.");
+            }
+            offsets[i + 1] = (int) total;
+        }
+        final int[] handles = new int[(int) total];
+        new BatchScatter(keys, counts, found, offsets, handles, 0, found.length).run(parallel);
+        return new BatchResults(offsets, handles);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of nodes currently in the tree
+     */
+    public int getNodeCount() {
+        return nodeTop - freeBlocks * CHILDREN;
+    }
+
+    /**
+     * Walks the whole tree and measures its shape: depth, number of leaves
+     * and their occupancy. The walk is iterative and allocates only its
+     * stacks, but it takes time linear in the number of nodes, so it is meant
+     * for tuning and diagnostics rather than for every step.
+     *
+     * @return the statistics of the tree as it is now
+     */
+    public Statistics getStatistics() {
+        final int[] occupancy = new int[elems + 1];
+        int[] nodes = new int[INITIAL_NODES];
+        int[] depths = new int[INITIAL_NODES];
+        int top = 0;
+        nodes[top] = ROOT;
+        depths[top++] = 0;
+        int leaves = 0;
+        int overflowing = 0;
+        int capped = 0;
+        int depth = 0;
+        long elementDepths = 0;
+        while (top > 0) {
+            final int node = nodes[--top];
+            final int level = depths[top];
+            if (isLeaf(node)) {
+                final int count = nodeSize[node];
+                leaves++;
+                depth = Math.max(depth, level);
+                elementDepths += (long) count * level;
+                if (count > elems) {
+                    overflowing++;
+                    if (level >= depthCap) {
+                        capped++;
+                    }
+                } else {
+                    occupancy[count]++;
+                }
+            } else {
+                if (top + CHILDREN > nodes.length) {
+                    nodes = Arrays.copyOf(nodes, grow(nodes.length));
+                    depths = Arrays.copyOf(depths, nodes.length);
+                }
+                final int block = nodeChild[node];
+                for (int child = block; child < block + CHILDREN; child++) {
+                    nodes[top] = child;
+                    depths[top++] = level + 1;
+                }
+            }
+        }
+        return new Statistics(getNodeCount(), leaves, overflowing, capped, depth,
+                size == 0 ? 0 : (double) elementDepths / size, occupancy, size);
+    }
+
+    /**
+     * @return true if underfull sibling leaves are merged back into their
+     *         parent as soon as elements are deleted or moved away
+     */
+    public boolean isAutoCollapse() {
+        return autoCollapse;
+    }
+
+    /**
+     * Enables or disables the eager collapse of underfull nodes. When enabled,
+     * whenever an element leaves a leaf, the four siblings are merged back
+     * into their parent if they are all leaves holding at most half of the
+     * maximum elements per quad (the margin avoids split/merge thrashing).
+     * Merging proceeds upwards as long as possible. Freed node blocks are
+     * recycled by later subdivisions; use {@link #compact()} to give memory
+     * back.
+     *
+     * @param collapse
+     *            true to enable the eager collapse
+     */
+    public void setAutoCollapse(final boolean collapse) {
+        autoCollapse = collapse;
+    }
+
+    /**
+     * @return true if the root grows to accommodate points out of its bounds
+     */
+    public boolean isAutoExpand() {
+        return autoExpand;
+    }
+
+    /**
+     * Enables or disables the growth of the root. When enabled, inserting or
+     * moving an element out of the bounds does not fail: instead, the current
+     * root is re-parented under a new root twice as large in each dimension,
+     * extending toward the point, until the point is covered. Only the new
+     * root and its three new children are created, the existing nodes and
+     * entries are untouched. Use {@link #shrink()} to tighten the tree again.
+     *
+     * @param expand
+     *            true to enable the growth of the root
+     */
+    public void setAutoExpand(final boolean expand) {
+        if (expand && (maxX(ROOT) <= minX(ROOT) || maxY(ROOT) <= minY(ROOT))) {
+            throw new IllegalStateException("Auto expansion requires bounds with a positive area.");
+        }
+        if (expand && toroidal) {
+            throw new IllegalStateException("Toroidal trees can not expand.");
+        }
+        autoExpand = expand;
+    }
+
+    /**
+     * @return true if the space wraps around the bounds of the tree
+     */
+    public boolean isToroidal() {
+        return toroidal;
+    }
+
+    /**
+     * Enables or disables the toroidal mode. In toroidal mode, the space
+     * wraps around the bounds of the tree, as in simulations with periodic
+     * boundaries. Positions are brought within the bounds when elements are
+     * inserted, moved or searched, so that, e.g., an element moved past the
+     * right border reappears on the left one: the upper bounds themselves are
+     * mapped to the lower ones. Rectangular queries crossing a border
+     * continue from the opposite one, radius and nearest neighbour queries
+     * measure the distance to the nearest image of each element, and so does
+     * the self-join. Each element is reported once, in a single traversal.
+     *
+     * @param wrap
+     *            true to enable the toroidal mode
+     * @throws IllegalStateException
+     *             if auto expansion is enabled, or the bounds have no area
+     */
+    public void setToroidal(final boolean wrap) {
+        if (wrap && (maxX(ROOT) <= minX(ROOT) || maxY(ROOT) <= minY(ROOT))) {
+            throw new IllegalStateException("Toroidal mode requires bounds with a positive area.");
+        }
+        if (wrap && autoExpand) {
+            throw new IllegalStateException("Auto expanding trees can not be toroidal.");
+        }
+        toroidal = wrap;
+        for (int entry = 0; entry < entryTop; entry++) {
+            if (isValid(entry)) {
+                relocate(entry, wrapX(entryX[entry]), wrapY(entryY[entry]));
+            }
+        }
+    }
+
+    /**
+     * @return the margin, as a fraction of the size of a node, by which the
+     *         bounds of the nodes are enlarged on each side
+     */
+    public double getLooseness() {
+        return looseness;
+    }
+
+    /**
+     * Switches the tree to loose mode, or back. In loose mode, the bounds of
+     * each node are enlarged on every side by the given fraction of its size
+     * (so that, e.g., 0.5 doubles the side of the nodes): an element is
+     * re-routed only when it leaves the enlarged bounds of its leaf, which
+     * makes small moves constant time updates even across the split lines.
+     * Elements are still routed by the strict bounds when inserted or
+     * re-routed. Queries prune nodes by their enlarged bounds, thus they
+     * visit more nodes as the looseness grows. Reducing the looseness
+     * re-routes the elements lying out of the new bounds of their leaf.
+     *
+     * @param factor
+     *            the margin as a fraction of the size of a node, 0 to disable
+     *            loose mode
+     */
+    public void setLooseness(final double factor) {
+        if (!(factor >= 0) || Double.isInfinite(factor)) {
+            throw new IllegalArgumentException("The looseness must be finite and non negative, " + factor + " given.");
+        }
+        final boolean tighter = factor < looseness;
+        looseness = factor;
+        if (tighter) {
+            for (int entry = 0; entry < entryTop; entry++) {
+                if (isValid(entry)) {
+                    relocate(entry, entryX[entry], entryY[entry]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the aggregation of the element values maintained by the nodes,
+     *         or null if none is
+     */
+    public Aggregation getAggregation() {
+        return aggregation;
+    }
+
+    /**
+     * Sets the aggregation of the element values maintained by the nodes.
+     * The aggregates of the whole tree are computed at once; from then on,
+     * every insertion, deletion, move across leaves and value change updates
+     * the aggregates of the ancestors of the touched leaves. Setting null
+     * releases the aggregates.
+     *
+     * @param a
+     *            the aggregation, or null to disable aggregates
+     */
+    public void setAggregation(final Aggregation a) {
+        aggregation = a;
+        if (a != null) {
+            ensureValues();
+        }
+        nodeAggregate = a == null ? null : new double[nodeChild.length];
+        summarizeAll(ROOT);
+    }
+
+    /**
+     * Tightens an auto-expanding tree around the data: as long as three of
+     * the children of the root hold no elements, the fourth one becomes the
+     * new root, and the empty subtrees are released. A tree without elements
+     * is not shrunk.
+     *
+     * @return the number of levels removed
+     * @throws IllegalStateException
+     *             if auto expansion is disabled, since elements out of the
+     *             new bounds could no longer be inserted
+     */
+    public int shrink() {
+        if (!autoExpand) {
+            throw new IllegalStateException("Only auto-expanding trees can shrink.");
+        }
+        int levels = 0;
+        final double[] extent = looseness > 0 ? entryExtent() : null;
+        for (int heir = soleNonEmptyChild(); heir != NONE && (extent == null
+                || contains(heir, extent[MIN_X], extent[MIN_Y]) && contains(heir, extent[MAX_X], extent[MAX_Y]));
+                heir = soleNonEmptyChild()) {
+            final int block = nodeChild[ROOT];
+            for (int child = block; child < block + CHILDREN; child++) {
+                if (child != heir) {
+                    releaseDescendants(child);
+                }
+            }
+            System.arraycopy(nodeBounds, heir * BOUNDS, nodeBounds, ROOT * BOUNDS, BOUNDS);
+            adopt(heir, ROOT);
+            releaseBlock(block);
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * Merges back into their parent all the groups of sibling leaves holding
+     * no more than the maximum number of elements per quad, then renumbers
+     * the nodes breadth first (so that siblings and subtrees are close in
+     * memory) and shrinks the pools to the slots actually in use. Handles are
+     * preserved.
+     *
+     * @return a report of the reclaimed nodes and bytes
+     */
+    public Compaction compact() {
+        final int before = getNodeCount();
+        final long capacityBefore = footprint();
+        collapseAll(ROOT);
+        final int collapsed = before - getNodeCount();
+        renumber();
+        trimToSize();
+        final long capacityAfter = footprint();
+        return new Compaction(collapsed, capacityBefore - capacityAfter);
+    }
+
+    /**
+     * Trims the capacity of the node and entry pools to the slots actually in
+     * use, releasing the memory reserved for future growth.
+     */
+    public void trimToSize() {
+        if (nodeTop < nodeChild.length) {
+            nodeBounds = Arrays.copyOf(nodeBounds, nodeTop * BOUNDS);
+            nodeChild = Arrays.copyOf(nodeChild, nodeTop);
+            nodeParent = Arrays.copyOf(nodeParent, nodeTop);
+            nodeHead = Arrays.copyOf(nodeHead, nodeTop);
+            nodeSize = Arrays.copyOf(nodeSize, nodeTop);
+            if (nodeAggregate != null) {
+                nodeAggregate = Arrays.copyOf(nodeAggregate, nodeTop);
+            }
+        }
+        if (entryTop < entryX.length) {
+            entryX = Arrays.copyOf(entryX, Math.max(1, entryTop));
+            entryY = Arrays.copyOf(entryY, Math.max(1, entryTop));
+            if (entryValue != null) {
+                entryValue = Arrays.copyOf(entryValue, Math.max(1, entryTop));
+            }
+            entryElement = Arrays.copyOf(entryElement, Math.max(1, entryTop));
+            entryNode = Arrays.copyOf(entryNode, Math.max(1, entryTop));
+            entryNext = Arrays.copyOf(entryNext, Math.max(1, entryTop));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + minX(ROOT) + ", " + minY(ROOT) + " - " + maxX(ROOT) + ", " + maxY(ROOT)
+                + "] with " + size + " elements in " + getNodeCount() + " nodes";
+    }
+
+    /*
+     * Serialization
+     */
+
+    /**
+     * The serialized form is a breadth first dump of the live nodes, written
+     * iteratively, so that the depth of the tree does not matter. Internal
+     * nodes are written as their split point, leaves as the handles and
+     * coordinates of their entries. The elements follow in a single run,
+     * which keeps the primitive data in large blocks. Free slots and spare
+     * capacity are not written.
+     *
+     * @serialData the bounds of the root, the number of live nodes, of handle
+     *             slots and of elements; then, for each node in breadth first
+     *             order, either -1 followed by the x and y of the split, or
+     *             the number of entries followed by the handle (int), x and
+     *             y (double) of each of them, plus its value (double) if the
+     *             tree holds values; finally, the elements (Object) in the
+     *             same order as the entries
+     */
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeDouble(minX(ROOT));
+        out.writeDouble(minY(ROOT));
+        out.writeDouble(maxX(ROOT));
+        out.writeDouble(maxY(ROOT));
+        final int live = getNodeCount();
+        out.writeInt(live);
+        out.writeInt(entryTop);
+        out.writeInt(size);
+        out.writeBoolean(entryValue != null);
+        final int[] order = new int[live];
+        final int[] entries = new int[size];
+        int next = 1;
+        int written = 0;
+        order[0] = ROOT;
+        for (int i = 0; i < live; i++) {
+            final int node = order[i];
+            if (isLeaf(node)) {
+                out.writeInt(nodeSize[node]);
+                for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                    out.writeInt(entry);
+                    out.writeDouble(entryX[entry]);
+                    out.writeDouble(entryY[entry]);
+                    if (entryValue != null) {
+                        out.writeDouble(entryValue[entry]);
+                    }
+                    entries[written++] = entry;
+                }
+            } else {
+                final int block = nodeChild[node];
+                out.writeInt(NONE);
+                out.writeDouble(minX(block + RIGHT));
+                out.writeDouble(minY(block + TOP));
+                for (int child = block; child < block + CHILDREN; child++) {
+                    order[next++] = child;
+                }
+            }
+        }
+        for (final int entry : entries) {
+            out.writeObject(entryElement[entry]);
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        final double x = in.readDouble();
+        final double y = in.readDouble();
+        final double mx = in.readDouble();
+        final double my = in.readDouble();
+        final int live = in.readInt();
+        entryTop = in.readInt();
+        final int elements = in.readInt();
+        final boolean values = in.readBoolean();
+        if (live < 1 || (live - 1) % CHILDREN != 0 || elements < 0 || entryTop < elements) {
+            throw new IOException("Corrupted QuadTree stream.");
+        }
+        nodeBounds = new double[live * BOUNDS];
+        nodeChild = new int[live];
+        nodeParent = new int[live];
+        nodeHead = new int[live];
+        nodeSize = new int[live];
+        final int capacity = Math.max(1, entryTop);
+        entryX = new double[capacity];
+        entryY = new double[capacity];
+        entryValue = values ? new double[capacity] : null;
+        entryElement = new Object[capacity];
+        entryNode = new int[capacity];
+        entryNext = new int[capacity];
+        Arrays.fill(entryNode, NONE);
+        initNode(ROOT, NONE, x, y, mx, my);
+        nodeTop = 1;
+        freeBlock = NONE;
+        final int[] entries = new int[elements];
+        for (int node = 0; node < nodeTop; node++) {
+            final int count = in.readInt();
+            if (count == NONE) {
+                if (nodeTop + CHILDREN > live) {
+                    throw new IOException("Corrupted QuadTree stream.");
+                }
+                final int block = nodeTop;
+                nodeTop += CHILDREN;
+                final double sx = in.readDouble();
+                final double sy = in.readDouble();
+                initNode(block, node, minX(node), minY(node), sx, sy);
+                initNode(block + RIGHT, node, sx, minY(node), maxX(node), sy);
+                initNode(block + TOP, node, minX(node), sy, sx, maxY(node));
+                initNode(block + (TOP | RIGHT), node, sx, sy, maxX(node), maxY(node));
+                nodeChild[node] = block;
+            } else {
+                for (int i = 0; i < count; i++) {
+                    final int entry = in.readInt();
+                    if (size == elements || entry < 0 || entry >= entryTop || entryNode[entry] != NONE) {
+                        throw new IOException("Corrupted QuadTree stream.");
+                    }
+                    entryX[entry] = in.readDouble();
+                    entryY[entry] = in.readDouble();
+                    if (values) {
+                        entryValue[entry] = in.readDouble();
+                    }
+                    append(entry, node);
+                    entries[size++] = entry;
+                }
+            }
+        }
+        if (nodeTop != live || size != elements) {
+            throw new IOException("Corrupted QuadTree stream.");
+        }
+        for (final int entry : entries) {
+            entryElement[entry] = in.readObject();
+        }
+        if (aggregation != null) {
+            nodeAggregate = new double[live];
+        }
+        summarizeAll(ROOT);
+        freeEntry = NONE;
+        for (int entry = entryTop - 1; entry >= 0; entry--) {
+            if (entryNode[entry] == NONE) {
+                entryNext[entry] = freeEntry;
+                freeEntry = entry;
+            }
+        }
+    }
+
+    /*
+     * Node pool management
+     */
+
+    private void initNode(final int node, final int parent, final double x, final double y, final double mx, final double my) {
+        final int base = node * BOUNDS;
+        nodeBounds[base + MIN_X] = x;
+        nodeBounds[base + MIN_Y] = y;
+        nodeBounds[base + MAX_X] = mx;
+        nodeBounds[base + MAX_Y] = my;
+        nodeChild[node] = NONE;
+        nodeParent[node] = parent;
+        nodeHead[node] = NONE;
+        nodeSize[node] = 0;
+        if (nodeAggregate != null) {
+            nodeAggregate[node] = aggregation.identity();
+        }
+    }
+
+    private int allocateBlock() {
+        if (freeBlock != NONE) {
+            final int block = freeBlock;
+            freeBlock = nodeChild[block];
+            freeBlocks--;
+            return block;
+        }
+        final int block = nodeTop;
+        nodeTop += CHILDREN;
+        if (nodeTop > nodeChild.length) {
+            final int capacity = Math.max(nodeTop, grow(nodeChild.length));
+            nodeBounds = Arrays.copyOf(nodeBounds, capacity * BOUNDS);
+            nodeChild = Arrays.copyOf(nodeChild, capacity);
+            nodeParent = Arrays.copyOf(nodeParent, capacity);
+            nodeHead = Arrays.copyOf(nodeHead, capacity);
+            nodeSize = Arrays.copyOf(nodeSize, capacity);
+            if (nodeAggregate != null) {
+                nodeAggregate = Arrays.copyOf(nodeAggregate, capacity);
+            }
+        }
+        return block;
+    }
+
+    private void releaseBlock(final int block) {
+        nodeChild[block] = freeBlock;
+        freeBlock = block;
+        freeBlocks++;
+    }
+
+    private static int grow(final int capacity) {
+        return capacity + Math.max(1, capacity >> 1);
+    }
+
+    private double minX(final int node) {
+        return nodeBounds[node * BOUNDS + MIN_X];
+    }
+
+    private double minY(final int node) {
+        return nodeBounds[node * BOUNDS + MIN_Y];
+    }
+
+    private double maxX(final int node) {
+        return nodeBounds[node * BOUNDS + MAX_X];
+    }
+
+    private double maxY(final int node) {
+        return nodeBounds[node * BOUNDS + MAX_Y];
+    }
+
+    private double centerX(final int node) {
+        return (minX(node) + maxX(node)) / 2;
+    }
+
+    private double centerY(final int node) {
+        return (minY(node) + maxY(node)) / 2;
+    }
+
+    private boolean isLeaf(final int node) {
+        return nodeChild[node] == NONE;
+    }
+
+    private boolean contains(final int node, final double x, final double y) {
+        final int base = node * BOUNDS;
+        return x >= nodeBounds[base + MIN_X] && x <= nodeBounds[base + MAX_X]
+                && y >= nodeBounds[base + MIN_Y] && y <= nodeBounds[base + MAX_Y];
+    }
+
+    /*
+     * The loose bounds of a node are its bounds enlarged on each side by the
+     * looseness times its size. They coincide with the bounds when the
+     * looseness is 0. The entries in a subtree lie within the loose bounds of
+     * its root, and the loose bounds of the children lie within the ones of
+     * the parent, thus all the pruning tests use them.
+     */
+
+    private double looseMinX(final int node) {
+        return minX(node) - looseness * (maxX(node) - minX(node));
+    }
+
+    private double looseMinY(final int node) {
+        return minY(node) - looseness * (maxY(node) - minY(node));
+    }
+
+    private double looseMaxX(final int node) {
+        return maxX(node) + looseness * (maxX(node) - minX(node));
+    }
+
+    private double looseMaxY(final int node) {
+        return maxY(node) + looseness * (maxY(node) - minY(node));
+    }
+
+    /**
+     * @return true if the point may be held by the node, namely if it lies
+     *         within its loose bounds
+     */
+    private boolean holds(final int node, final double x, final double y) {
+        return x >= looseMinX(node) && x <= looseMaxX(node) && y >= looseMinY(node) && y <= looseMaxY(node);
+    }
+
+    /*
+     * In toroidal mode, the ranges are normalized so that their lower end
+     * lies within the bounds (see lowerX and upperX): a range then matches a
+     * point or a node either directly or shifted by one period. Circles are
+     * centered within the bounds, and distances are taken to the nearest image.
+     */
+
+    private boolean intersects(final int node, final double x, final double y, final double mx, final double my) {
+        final double nx = looseMinX(node);
+        final double ny = looseMinY(node);
+        return (x <= looseMaxX(node) && mx >= nx || toroidal && nx + periodX() <= mx)
+                && (y <= looseMaxY(node) && my >= ny || toroidal && ny + periodY() <= my);
+    }
+
+    private boolean inRange(final double ex, final double ey, final double x, final double y, final double mx,
+            final double my) {
+        return (ex >= x && ex <= mx || toroidal && ex + periodX() <= mx)
+                && (ey >= y && ey <= my || toroidal && ey + periodY() <= my);
+    }
+
+    private double minDistanceSq(final int node, final double x, final double y) {
+        double dx = gap(x, x, looseMinX(node), looseMaxX(node));
+        double dy = gap(y, y, looseMinY(node), looseMaxY(node));
+        if (toroidal) {
+            final double px = periodX();
+            final double py = periodY();
+            dx = Math.min(dx, Math.min(gap(x + px, x + px, looseMinX(node), looseMaxX(node)),
+                    gap(x - px, x - px, looseMinX(node), looseMaxX(node))));
+            dy = Math.min(dy, Math.min(gap(y + py, y + py, looseMinY(node), looseMaxY(node)),
+                    gap(y - py, y - py, looseMinY(node), looseMaxY(node))));
+        }
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * @return the distance between two intervals, 0 if they overlap
+     */
+    private static double gap(final double min1, final double max1, final double min2, final double max2) {
+        return Math.max(0, Math.max(min2 - max1, min1 - max2));
+    }
+
+    private double distanceSq(final double x1, final double y1, final double x2, final double y2) {
+        double dx = Math.abs(x1 - x2);
+        double dy = Math.abs(y1 - y2);
+        if (toroidal) {
+            dx = Math.min(dx, periodX() - dx);
+            dy = Math.min(dy, periodY() - dy);
+        }
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * @return the square of a radius
+     * @throws IllegalArgumentException
+     *             if the radius is negative or NaN
+     */
+    private static double squared(final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("The radius must be non negative, " + radius + " given.");
+        }
+        return radius * radius;
+    }
+
+    private double periodX() {
+        return maxX(ROOT) - minX(ROOT);
+    }
+
+    private double periodY() {
+        return maxY(ROOT) - minY(ROOT);
+    }
+
+    private double wrapX(final double x) {
+        return toroidal ? wrap(x, minX(ROOT), periodX()) : x;
+    }
+
+    private double wrapY(final double y) {
+        return toroidal ? wrap(y, minY(ROOT), periodY()) : y;
+    }
+
+    private double[] wrapX(final double[] xs) {
+        if (!toroidal) {
+            return xs;
+        }
+        final double[] result = new double[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            result[i] = wrapX(xs[i]);
+        }
+        return result;
+    }
+
+    private double[] wrapY(final double[] ys) {
+        if (!toroidal) {
+            return ys;
+        }
+        final double[] result = new double[ys.length];
+        for (int i = 0; i < ys.length; i++) {
+            result[i] = wrapY(ys[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return the value brought within [origin, origin + period), NaN if it
+     *         is not finite
+     */
+    private static double wrap(final double v, final double origin, final double period) {
+        final double offset = (v - origin) % period;
+        final double result = origin + (offset < 0 ? offset + period : offset);
+        /*
+         * Adding the period to a tiny negative offset may round to the period
+         */
+        return result == origin + period ? origin : result;
+    }
+
+    /*
+     * Ends of a range along an axis, whose ends may be given in any order.
+     * In toroidal mode, the lower end is wrapped within the bounds, and the
+     * upper end keeps the extent of the range, thus exceeding the bounds if
+     * the range wraps; ranges larger than the space cover the whole axis.
+     */
+    private double lowerX(final double a, final double b) {
+        return !toroidal ? Math.min(a, b) : Math.abs(b - a) >= periodX() ? minX(ROOT) : wrapX(Math.min(a, b));
+    }
+
+    private double upperX(final double a, final double b) {
+        final double extent = Math.abs(b - a);
+        return !toroidal ? Math.max(a, b) : extent >= periodX() ? maxX(ROOT) : wrapX(Math.min(a, b)) + extent;
+    }
+
+    private double lowerY(final double a, final double b) {
+        return !toroidal ? Math.min(a, b) : Math.abs(b - a) >= periodY() ? minY(ROOT) : wrapY(Math.min(a, b));
+    }
+
+    private double upperY(final double a, final double b) {
+        final double extent = Math.abs(b - a);
+        return !toroidal ? Math.max(a, b) : extent >= periodY() ? maxY(ROOT) : wrapY(Math.min(a, b)) + extent;
+    }
+
+    /**
+     * The split lines are read from the children bounds rather than computed,
+     * so that routing is exact even for roots grown by re-parenting.
+     */
+    private int quadrant(final int node, final double x, final double y) {
+        final int block = nodeChild[node];
+        return (x >= minX(block + RIGHT) ? RIGHT : 0) | (y >= minY(block + TOP) ? TOP : 0);
+    }
+
+    private int locate(final int start, final double x, final double y) {
+        int node = start;
+        while (!isLeaf(node)) {
+            node = nodeChild[node] + quadrant(node, x, y);
+        }
+        return node;
+    }
+
+    private int createChildren(final int node) {
+        final int block = allocateBlock();
+        final double x = minX(node);
+        final double y = minY(node);
+        final double mx = maxX(node);
+        final double my = maxY(node);
+        final double cx = centerX(node);
+        final double cy = centerY(node);
+        initNode(block, node, x, y, cx, cy);
+        initNode(block + RIGHT, node, cx, y, mx, cy);
+        initNode(block + TOP, node, x, cy, cx, my);
+        initNode(block + (TOP | RIGHT), node, cx, cy, mx, my);
+        nodeChild[node] = block;
+        return block;
+    }
+
+    /**
+     * Nodes do not store their depth, as growing the root would change it for
+     * all of them: it is only needed when a full leaf may be split.
+     */
+    private int depth(final int node) {
+        int depth = 0;
+        for (int n = nodeParent[node]; n != NONE; n = nodeParent[n]) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Splits a leaf in four children, and distributes its entries among them.
+     * Only one level is created per call: children that still exceed the
+     * capacity get split when they receive a further entry.
+     */
+    private void subdivide(final int node) {
+        int entry = nodeHead[node];
+        nodeHead[node] = NONE;
+        final int block = createChildren(node);
+        int evicted = NONE;
+        while (entry != NONE) {
+            final int next = entryNext[entry];
+            if (contains(node, entryX[entry], entryY[entry])) {
+                append(entry, block + quadrant(node, entryX[entry], entryY[entry]));
+            } else {
+                /*
+                 * In loose mode, entries out of the strict bounds may be out
+                 * of the loose bounds of every child: they are re-routed
+                 */
+                entryNext[entry] = evicted;
+                evicted = entry;
+            }
+            entry = next;
+        }
+        if (nodeAggregate != null) {
+            for (int child = block; child < block + CHILDREN; child++) {
+                summarize(child);
+            }
+        }
+        while (evicted != NONE) {
+            final int next = entryNext[evicted];
+            nodeSize[node]--;
+            reroute(evicted, node);
+            evicted = next;
+        }
+    }
+
+    /*
+     * Root growth and shrinking
+     */
+
+    private static boolean isFinite(final double v) {
+        return !Double.isNaN(v) && !Double.isInfinite(v);
+    }
+
+    /**
+     * @return true if the point is within the root, possibly after growing it
+     */
+    private boolean reach(final double x, final double y) {
+        if (contains(ROOT, x, y)) {
+            return true;
+        }
+        if (!autoExpand || !isFinite(x) || !isFinite(y)) {
+            return false;
+        }
+        while (!contains(ROOT, x, y)) {
+            growToward(x, y);
+        }
+        return true;
+    }
+
+    private void growToward(final double x, final double y) {
+        final double x0 = minX(ROOT);
+        final double y0 = minY(ROOT);
+        final double x1 = maxX(ROOT);
+        final double y1 = maxY(ROOT);
+        final boolean left = x < x0;
+        final boolean down = y < y0;
+        final double nx0 = left ? x0 - (x1 - x0) : x0;
+        final double nx1 = left ? x1 : x1 + (x1 - x0);
+        final double ny0 = down ? y0 - (y1 - y0) : y0;
+        final double ny1 = down ? y1 : y1 + (y1 - y0);
+        final double sx = left ? x0 : x1;
+        final double sy = down ? y0 : y1;
+        final int block = allocateBlock();
+        initNode(block, ROOT, nx0, ny0, sx, sy);
+        initNode(block + RIGHT, ROOT, sx, ny0, nx1, sy);
+        initNode(block + TOP, ROOT, nx0, sy, sx, ny1);
+        initNode(block + (TOP | RIGHT), ROOT, sx, sy, nx1, ny1);
+        /*
+         * The old root becomes the child on the opposite side of the point
+         */
+        final int heir = block + (left ? RIGHT : 0) + (down ? TOP : 0);
+        adopt(ROOT, heir);
+        final int base = ROOT * BOUNDS;
+        nodeBounds[base + MIN_X] = nx0;
+        nodeBounds[base + MIN_Y] = ny0;
+        nodeBounds[base + MAX_X] = nx1;
+        nodeBounds[base + MAX_Y] = ny1;
+        nodeChild[ROOT] = block;
+        nodeHead[ROOT] = NONE;
+    }
+
+    /**
+     * Moves children and entries of a node to another node, whose bounds and
+     * parent are left untouched.
+     */
+    private void adopt(final int from, final int to) {
+        nodeChild[to] = nodeChild[from];
+        nodeHead[to] = nodeHead[from];
+        nodeSize[to] = nodeSize[from];
+        if (nodeAggregate != null) {
+            nodeAggregate[to] = nodeAggregate[from];
+        }
+        if (isLeaf(to)) {
+            for (int entry = nodeHead[to]; entry != NONE; entry = entryNext[entry]) {
+                entryNode[entry] = to;
+            }
+        } else {
+            final int block = nodeChild[to];
+            for (int child = block; child < block + CHILDREN; child++) {
+                nodeParent[child] = to;
+            }
+        }
+    }
+
+    /**
+     * In loose mode, elements may lie out of the strict bounds of the only
+     * non empty child of the root: it can not become the root if they do.
+     *
+     * @return the bounding box of the elements
+     */
+    private double[] entryExtent() {
+        final double[] result = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        for (int entry = 0; entry < entryTop; entry++) {
+            if (isValid(entry)) {
+                result[MIN_X] = Math.min(result[MIN_X], entryX[entry]);
+                result[MIN_Y] = Math.min(result[MIN_Y], entryY[entry]);
+                result[MAX_X] = Math.max(result[MAX_X], entryX[entry]);
+                result[MAX_Y] = Math.max(result[MAX_Y], entryY[entry]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the only child of the root holding elements, or NONE
+     */
+    private int soleNonEmptyChild() {
+        if (isLeaf(ROOT)) {
+            return NONE;
+        }
+        final int block = nodeChild[ROOT];
+        int result = NONE;
+        for (int child = block; child < block + CHILDREN; child++) {
+            if (!isEmpty(child)) {
+                if (result != NONE) {
+                    return NONE;
+                }
+                result = child;
+            }
+        }
+        return result;
+    }
+
+    private boolean isEmpty(final int node) {
+        return nodeSize[node] == 0;
+    }
+
+    private void releaseDescendants(final int node) {
+        if (!isLeaf(node)) {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                releaseDescendants(child);
+            }
+            nodeChild[node] = NONE;
+            releaseBlock(block);
+        }
+    }
+
+    /*
+     * Collapse and compaction
+     */
+
+    private int childrenSize(final int node) {
+        final int block = nodeChild[node];
+        int total = 0;
+        for (int child = block; child < block + CHILDREN; child++) {
+            if (!isLeaf(child)) {
+                return Integer.MAX_VALUE;
+            }
+            total += nodeSize[child];
+        }
+        return total;
+    }
+
+    /**
+     * Moves the entries of the four leaf children into the node, and releases
+     * their block.
+     */
+    private void collapse(final int node) {
+        final int block = nodeChild[node];
+        nodeSize[node] = 0;
+        for (int child = block; child < block + CHILDREN; child++) {
+            int entry = nodeHead[child];
+            while (entry != NONE) {
+                final int next = entryNext[entry];
+                append(entry, node);
+                entry = next;
+            }
+        }
+        nodeChild[node] = NONE;
+        releaseBlock(block);
+    }
+
+    private void collapseFrom(final int leaf) {
+        int node = nodeParent[leaf];
+        while (node != NONE && childrenSize(node) <= elems / 2) {
+            collapse(node);
+            node = nodeParent[node];
+        }
+    }
+
+    private void collapseAll(final int node) {
+        if (isLeaf(node)) {
+            return;
+        }
+        final int block = nodeChild[node];
+        for (int child = block; child < block + CHILDREN; child++) {
+            collapseAll(child);
+        }
+        if (childrenSize(node) <= elems) {
+            collapse(node);
+        }
+    }
+
+    /**
+     * Rewrites the node pool breadth first, dropping the free blocks.
+     */
+    private void renumber() {
+        final int live = getNodeCount();
+        final int[] order = new int[live];
+        final double[] bounds = new double[live * BOUNDS];
+        final int[] child = new int[live];
+        final int[] parent = new int[live];
+        final int[] head = new int[live];
+        final int[] sizes = new int[live];
+        final double[] aggregates = nodeAggregate == null ? null : new double[live];
+        int next = 1;
+        order[ROOT] = ROOT;
+        parent[ROOT] = NONE;
+        for (int node = 0; node < live; node++) {
+            final int old = order[node];
+            System.arraycopy(nodeBounds, old * BOUNDS, bounds, node * BOUNDS, BOUNDS);
+            head[node] = nodeHead[old];
+            sizes[node] = nodeSize[old];
+            if (aggregates != null) {
+                aggregates[node] = nodeAggregate[old];
+            }
+            if (isLeaf(old)) {
+                child[node] = NONE;
+                for (int entry = nodeHead[old]; entry != NONE; entry = entryNext[entry]) {
+                    entryNode[entry] = node;
+                }
+            } else {
+                child[node] = next;
+                for (int i = 0; i < CHILDREN; i++) {
+                    order[next] = nodeChild[old] + i;
+                    parent[next] = node;
+                    next++;
+                }
+            }
+        }
+        nodeBounds = bounds;
+        nodeChild = child;
+        nodeParent = parent;
+        nodeHead = head;
+        nodeSize = sizes;
+        nodeAggregate = aggregates;
+        nodeTop = live;
+        freeBlock = NONE;
+        freeBlocks = 0;
+    }
+
+    /**
+     * Operation combining the values of the elements, see
+     * {@link FlatQuadTree#setAggregation(Aggregation)}. Implementations must
+     * be associative and commutative, and {@link #identity()} must be
+     * neutral for {@link #combine(double, double)}: the nodes combine the
+     * values of their entries and children in no particular order.
+     */
+    public interface Aggregation extends Serializable {
+        /**
+         * Sum of the values.
+         */
+        Aggregation SUM = ProvidedAggregation.SUM;
+        /**
+         * Minimum value.
+         */
+        Aggregation MIN = ProvidedAggregation.MIN;
+        /**
+         * Maximum value.
+         */
+        Aggregation MAX = ProvidedAggregation.MAX;
+
+        /**
+         * @return the aggregate of no values
+         */
+        double identity();
+
+        /**
+         * @param a
+         *            the first value
+         * @param b
+         *            the second value
+         * @return the aggregate of the two values
+         */
+        double combine(double a, double b);
+    }
+
+    private enum ProvidedAggregation implements Aggregation {
+        SUM {
+            @Override
+            public double identity() {
+                return 0;
+            }
+
+            @Override
+            public double combine(final double a, final double b) {
+                return a + b;
+            }
+        },
+        MIN {
+            @Override
+            public double identity() {
+                return Double.POSITIVE_INFINITY;
+            }
+
+            @Override
+            public double combine(final double a, final double b) {
+                return Math.min(a, b);
+            }
+        },
+        MAX {
+            @Override
+            public double identity() {
+                return Double.NEGATIVE_INFINITY;
+            }
+
+            @Override
+            public double combine(final double a, final double b) {
+                return Math.max(a, b);
+            }
+        }
+    }
+
+    /**
+     * Outcome of {@link FlatQuadTree#compact()}.
+     */
+    public static final class Compaction implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int nodes;
+        private final long bytes;
+
+        private Compaction(final int collapsedNodes, final long freedBytes) {
+            nodes = collapsedNodes;
+            bytes = freedBytes;
+        }
+
+        /**
+         * @return the number of nodes removed from the tree
+         */
+        public int getReclaimedNodes() {
+            return nodes;
+        }
+
+        /**
+         * @return the bytes released by shrinking the node and entry pools,
+         *         including the values and aggregates if present, assuming
+         *         compressed references
+         */
+        public long getReclaimedBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return nodes + " nodes, " + bytes + " bytes reclaimed";
+        }
+    }
+
+    /**
+     * Shape of the tree, computed by {@link FlatQuadTree#getStatistics()}. A
+     * healthy tree has most of its leaves reasonably full: many empty or
+     * sparse leaves suggest a larger capacity, overflowing leaves at the
+     * maximum depth reveal heavily duplicated points.
+     */
+    public static final class Statistics implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int nodes;
+        private final int leaves;
+        private final int overflowing;
+        private final int capped;
+        private final int depth;
+        private final double elementDepth;
+        private final int[] occupancy;
+        private final int elements;
+
+        private Statistics(final int nodeCount, final int leafCount, final int overflowLeaves,
+                final int cappedLeaves, final int maxDepth, final double meanElementDepth, final int[] leavesBySize,
+                final int size) {
+            nodes = nodeCount;
+            leaves = leafCount;
+            overflowing = overflowLeaves;
+            capped = cappedLeaves;
+            depth = maxDepth;
+            elementDepth = meanElementDepth;
+            occupancy = leavesBySize;
+            elements = size;
+        }
+
+        /**
+         * @return the number of nodes, internal ones included
+         */
+        public int getNodeCount() {
+            return nodes;
+        }
+
+        /**
+         * @return the number of leaves
+         */
+        public int getLeafCount() {
+            return leaves;
+        }
+
+        /**
+         * @param count
+         *            a number of elements, between 0 and the capacity of the
+         *            nodes (both included)
+         * @return the number of leaves holding exactly count elements
+         */
+        public int getLeafCount(final int count) {
+            return occupancy[count];
+        }
+
+        /**
+         * @return the number of leaves holding more elements than the
+         *         capacity. They are either at the maximum depth (see
+         *         {@link #getCappedOverflowLeafCount()}), or above it, waiting
+         *         to be split at their next insertion: a split creates a
+         *         single level, and bulk loads build at most 16 levels
+         */
+        public int getOverflowLeafCount() {
+            return overflowing;
+        }
+
+        /**
+         * @return the number of leaves at the maximum depth holding more
+         *         elements than the capacity, which are never split
+         */
+        public int getCappedOverflowLeafCount() {
+            return capped;
+        }
+
+        /**
+         * @return the depth of the deepest leaf, the root being at depth 0
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return the mean depth of the leaves holding the elements, weighted
+         *         by their number of elements
+         */
+        public double getMeanElementDepth() {
+            return elementDepth;
+        }
+
+        /**
+         * @return the mean number of elements per non empty leaf
+         */
+        public double getMeanOccupancy() {
+            final int nonEmpty = leaves - occupancy[0];
+            return nonEmpty == 0 ? 0 : (double) elements / nonEmpty;
+        }
+
+        @Override
+        public String toString() {
+            return nodes + " nodes, " + leaves + " leaves (" + occupancy[0] + " empty, " + overflowing
+                    + " overflowing, " + capped + " at the maximum depth), depth " + depth + ", mean element depth " + elementDepth
+                    + ", mean occupancy " + getMeanOccupancy() + ", occupancy histogram " + Arrays.toString(occupancy);
+        }
+    }
+
+    /**
+     * Outcome of {@link FlatQuadTree#neighbourhoods(double, boolean)}: the
+     * neighbours of each handle, stored contiguously in a single array.
+     */
+    public static final class Neighbourhoods implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int[] offsets;
+        private final int[] neighbours;
+
+        private Neighbourhoods(final int[] first, final int[] all) {
+            offsets = first;
+            neighbours = all;
+        }
+
+        /**
+         * @param handle
+         *            the handle of an element
+         * @return the number of neighbours of the element, 0 for handles not
+         *         in use when the neighbourhoods were computed
+         */
+        public int degree(final int handle) {
+            return handle >= 0 && handle < offsets.length - 1 ? offsets[handle + 1] - offsets[handle] : 0;
+        }
+
+        /**
+         * @param handle
+         *            the handle of an element
+         * @param index
+         *            the index of the neighbour, between 0 (included) and
+         *            {@link #degree(int)} (excluded)
+         * @return the handle of the neighbour
+         */
+        public int neighbour(final int handle, final int index) {
+            if (index < 0 || index >= degree(handle)) {
+                throw new IndexOutOfBoundsException("Neighbour " + index + " of " + handle + " does not exist.");
+            }
+            return neighbours[offsets[handle] + index];
+        }
+
+        /**
+         * @return the number of pairs of neighbours
+         */
+        public int getPairCount() {
+            return neighbours.length / 2;
+        }
+
+        @Override
+        public String toString() {
+            return getPairCount() + " pairs";
+        }
+    }
+
+    /**
+     * Outcome of {@link FlatQuadTree#queryBatch(double[], boolean)}: the
+     * handles found by each query, stored contiguously in a single array.
+     */
+    public static final class BatchResults implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int[] offsets;
+        private final int[] handles;
+
+        private BatchResults(final int[] first, final int[] all) {
+            offsets = first;
+            handles = all;
+        }
+
+        /**
+         * @return the number of queries in the batch
+         */
+        public int getQueryCount() {
+            return offsets.length - 1;
+        }
+
+        /**
+         * @param query
+         *            the index of a query
+         * @return the number of elements found by the query
+         */
+        public int count(final int query) {
+            if (query < 0 || query >= getQueryCount()) {
+                throw new IndexOutOfBoundsException("Query " + query + " does not exist.");
+            }
+            return offsets[query + 1] - offsets[query];
+        }
+
+        /**
+         * @param query
+         *            the index of a query
+         * @param index
+         *            the index of the result, between 0 (included) and
+         *            {@link #count(int)} (excluded)
+         * @return the handle of the element
+         */
+        public int handle(final int query, final int index) {
+            if (index < 0 || index >= count(query)) {
+                throw new IndexOutOfBoundsException("Result " + index + " of query " + query + " does not exist.");
+            }
+            return handles[offsets[query] + index];
+        }
+
+        /**
+         * @return the number of results of all the queries
+         */
+        public int getTotalCount() {
+            return handles.length;
+        }
+
+        @Override
+        public String toString() {
+            return getTotalCount() + " results of " + getQueryCount() + " queries";
+        }
+    }
+
+    /**
+     * Lazy iterator over the results of a query, returned by
+     * {@link FlatQuadTree#queryIterator(double, double, double, double)} and
+     * {@link FlatQuadTree#queryRadiusIterator(double, double, double)}. Besides
+     * the element, the position and the handle of the last returned entry are
+     * available without further lookups. The iterator also counts the nodes
+     * and entries it examined, which measures the cost of the query without
+     * slowing down the other query methods.
+     *
+     * @param <E>
+     *            the type of the indexed elements
+     */
+    public static final class QueryIterator<E> implements Iterator<E> {
+        private static final int INITIAL_STACK = 64;
+        private final FlatQuadTree<E> tree;
+        private final double minX;
+        private final double minY;
+        private final double maxX;
+        private final double maxY;
+        private final double cx;
+        private final double cy;
+        private final double rSq;
+        private final boolean circle;
+        private int[] stack = new int[INITIAL_STACK];
+        private int depth;
+        private int candidate = NONE;
+        private int next;
+        private int last = NONE;
+        private int visitedNodes;
+        private int testedEntries;
+
+        private QueryIterator(final FlatQuadTree<E> t, final double x, final double y, final double mx,
+                final double my, final double centerX, final double centerY, final double radiusSq) {
+            tree = t;
+            minX = x;
+            minY = y;
+            maxX = mx;
+            maxY = my;
+            cx = centerX;
+            cy = centerY;
+            rSq = radiusSq;
+            circle = radiusSq < Double.POSITIVE_INFINITY;
+            stack[depth++] = ROOT;
+            next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != NONE;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (next == NONE) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = advance();
+            return (E) tree.entryElement[last];
+        }
+
+        /**
+         * @return the x coordinate of the last returned element
+         */
+        public double getX() {
+            return tree.entryX[checkLast()];
+        }
+
+        /**
+         * @return the y coordinate of the last returned element
+         */
+        public double getY() {
+            return tree.entryY[checkLast()];
+        }
+
+        /**
+         * @return the handle of the last returned element
+         */
+        public int getHandle() {
+            return checkLast();
+        }
+
+        /**
+         * @return the number of nodes whose bounds have been checked so far
+         */
+        public int getVisitedNodes() {
+            return visitedNodes;
+        }
+
+        /**
+         * @return the number of entries whose position has been checked so
+         *         far: the ratio between this and the number of elements
+         *         returned measures how selective the visited leaves are
+         */
+        public int getTestedEntries() {
+            return testedEntries;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("The tree can not be modified while iterating.");
+        }
+
+        private int checkLast() {
+            if (last == NONE) {
+                throw new IllegalStateException("next() has not been called yet.");
+            }
+            return last;
+        }
+
+        /**
+         * @return the next matching entry, or NONE
+         */
+        private int advance() {
+            while (true) {
+                while (candidate != NONE) {
+                    final int entry = candidate;
+                    candidate = tree.entryNext[entry];
+                    testedEntries++;
+                    if (matches(tree.entryX[entry], tree.entryY[entry])) {
+                        return entry;
+                    }
+                }
+                if (depth == 0) {
+                    return NONE;
+                }
+                final int node = stack[--depth];
+                visitedNodes++;
+                if (tree.intersects(node, minX, minY, maxX, maxY)
+                        && (!circle || tree.minDistanceSq(node, cx, cy) <= rSq)) {
+                    if (tree.isLeaf(node)) {
+                        candidate = tree.nodeHead[node];
+                    } else {
+                        if (depth + CHILDREN > stack.length) {
+                            stack = Arrays.copyOf(stack, grow(stack.length));
+                        }
+                        /*
+                         * Pushed in reverse, so that children are visited in
+                         * the same order of the visitor queries
+                         */
+                        final int block = tree.nodeChild[node];
+                        for (int child = block + CHILDREN - 1; child >= block; child--) {
+                            stack[depth++] = child;
+                        }
+                    }
+                }
+            }
+        }
+
+        private boolean matches(final double x, final double y) {
+            if (circle) {
+                return tree.distanceSq(x, y, cx, cy) <= rSq;
+            }
+            return tree.inRange(x, y, minX, minY, maxX, maxY);
+        }
+    }
+
+    /*
+     * Bulk loading
+     */
+
+    /**
+     * Computes the Morton code of a point, by quantizing its coordinates on a
+     * 2^16 x 2^16 grid and interleaving their bits, and packs it with the
+     * index of the point. Out of bounds points get NO_KEY. Because of
+     * rounding, a point lying on a split line may get the code of the
+     * neighbouring cell: such points are detected and re-routed when building.
+     */
+    private long mortonKey(final double x, final double y, final int index) {
+        if (!contains(ROOT, x, y)) {
+            return NO_KEY;
+        }
+        final long code = Morton.encode(Morton.quantize(x, minX(ROOT), maxX(ROOT)),
+                Morton.quantize(y, minY(ROOT), maxY(ROOT)));
+        return code << INDEX_BITS | index;
+    }
+
+    /**
+     * Links the entries in [lo, hi), which are sorted by Morton code, to the
+     * subtree rooted in node. Entries whose code does not match their actual
+     * position are marked with no node, to be re-routed later.
+     */
+    private void build(final int node, final int depth, final long[] keys, final int lo, final int hi) {
+        if (hi - lo <= elems || depth == Math.min(Morton.LEVELS, depthCap)) {
+            /*
+             * Backwards, since append() pushes in front of the list
+             */
+            for (int entry = hi - 1; entry >= lo; entry--) {
+                if (contains(node, entryX[entry], entryY[entry])) {
+                    append(entry, node);
+                } else {
+                    entryNode[entry] = NONE;
+                }
+            }
+            return;
+        }
+        final int block = createChildren(node);
+        final int shift = 2 * (Morton.LEVELS - 1 - depth) + INDEX_BITS;
+        int start = lo;
+        for (int quadrant = 0; quadrant < CHILDREN; quadrant++) {
+            final int end = quadrant == CHILDREN - 1 ? hi : firstAbove(keys, start, hi, shift, quadrant);
+            build(block + quadrant, depth + 1, keys, start, end);
+            start = end;
+        }
+    }
+
+    private static int firstAbove(final long[] keys, final int lo, final int hi, final int shift, final int digit) {
+        int low = lo;
+        int high = hi;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if ((keys[mid] >>> shift & DIGIT_MASK) <= digit) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static final class MortonKeys extends ParallelRange {
+        private static final long serialVersionUID = 1L;
+        private final FlatQuadTree<?> tree;
+        private final double[] xs;
+        private final double[] ys;
+        private final long[] keys;
+
+        MortonKeys(final FlatQuadTree<?> t, final double[] x, final double[] y, final long[] k, final int lo, final int hi) {
+            super(lo, hi, PARALLEL_THRESHOLD);
+            tree = t;
+            xs = x;
+            ys = y;
+            keys = k;
+        }
+
+        @Override
+        protected ParallelRange split(final int lo, final int hi) {
+            return new MortonKeys(tree, xs, ys, keys, lo, hi);
+        }
+
+        @Override
+        protected void compute(final int lo, final int hi) {
+            for (int i = lo; i < hi; i++) {
+                keys[i] = tree.mortonKey(xs[i], ys[i], i);
+            }
+        }
+    }
+
+    /**
+     * Copies the positions and elements into the entry slots, in Morton order.
+     */
+    private static final class Gather extends ParallelRange {
+        private static final long serialVersionUID = 1L;
+        private final FlatQuadTree<?> tree;
+        private final long[] keys;
+        private final double[] xs;
+        private final double[] ys;
+        private final Object[] elements;
+
+        Gather(final FlatQuadTree<?> t, final long[] k, final double[] x, final double[] y, final Object[] e,
+                final int lo, final int hi) {
+            super(lo, hi, PARALLEL_THRESHOLD);
+            tree = t;
+            keys = k;
+            xs = x;
+            ys = y;
+            elements = e;
+        }
+
+        @Override
+        protected ParallelRange split(final int lo, final int hi) {
+            return new Gather(tree, keys, xs, ys, elements, lo, hi);
+        }
+
+        @Override
+        protected void compute(final int lo, final int hi) {
+            for (int i = lo; i < hi; i++) {
+                final int index = (int) (keys[i] & INDEX_MASK);
+                tree.entryX[i] = xs[index];
+                tree.entryY[i] = ys[index];
+                tree.entryElement[i] = elements[index];
+            }
+        }
+    }
+
+    /*
+     * Spatial self-join
+     */
+
+    /**
+     * Runs the join, and returns its root task. Without a visitor, the pairs
+     * are recorded by the tasks.
+     */
+    private Join<E> join(final double radius, final PairVisitor<? super E> visitor, final boolean parallel) {
+        final Join<E> root = new Join<>(this, ROOT, ROOT, squared(radius), visitor, parallel ? FORK_DEPTH : 0);
+        if (parallel) {
+            SharedForkJoinPool.get().invoke(root);
+        } else {
+            root.compute();
+        }
+        return root;
+    }
+
+    private double distanceSq(final int a, final int b) {
+        double dx = gap(looseMinX(a), looseMaxX(a), looseMinX(b), looseMaxX(b));
+        double dy = gap(looseMinY(a), looseMaxY(a), looseMinY(b), looseMaxY(b));
+        if (toroidal) {
+            final double px = periodX();
+            final double py = periodY();
+            dx = Math.min(dx, Math.min(gap(looseMinX(a) + px, looseMaxX(a) + px, looseMinX(b), looseMaxX(b)),
+                    gap(looseMinX(a) - px, looseMaxX(a) - px, looseMinX(b), looseMaxX(b))));
+            dy = Math.min(dy, Math.min(gap(looseMinY(a) + py, looseMaxY(a) + py, looseMinY(b), looseMaxY(b)),
+                    gap(looseMinY(a) - py, looseMaxY(a) - py, looseMinY(b), looseMaxY(b))));
+        }
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Joins two subtrees, or a subtree with itself. Pairs of nodes are
+     * enumerated so that each pair of leaves is reached exactly once.
+     */
+    private void join(final int a, final int b, final double rSq, final Join<E> sink) {
+        if (distanceSq(a, b) > rSq) {
+            return;
+        }
+        if (isLeaf(a) && isLeaf(b)) {
+            joinLeaves(a, b, rSq, sink);
+        } else if (a == b) {
+            final int block = nodeChild[a];
+            for (int i = block; i < block + CHILDREN; i++) {
+                for (int j = i; j < block + CHILDREN; j++) {
+                    join(i, j, rSq, sink);
+                }
+            }
+        } else if (isLeaf(a)) {
+            final int block = nodeChild[b];
+            for (int child = block; child < block + CHILDREN; child++) {
+                join(a, child, rSq, sink);
+            }
+        } else {
+            final int block = nodeChild[a];
+            for (int child = block; child < block + CHILDREN; child++) {
+                join(child, b, rSq, sink);
+            }
+        }
+    }
+
+    private void joinLeaves(final int a, final int b, final double rSq, final Join<E> sink) {
+        for (int entry = nodeHead[a]; entry != NONE; entry = entryNext[entry]) {
+            final double x = entryX[entry];
+            final double y = entryY[entry];
+            if (a == b || minDistanceSq(b, x, y) <= rSq) {
+                for (int other = a == b ? entryNext[entry] : nodeHead[b]; other != NONE; other = entryNext[other]) {
+                    if (distanceSq(entryX[other], entryY[other], x, y) <= rSq) {
+                        sink.emit(entry, other);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Joins a pair of subtrees. In the first levels, the pairs of children are
+     * forked as separate tasks; below, the join is sequential. Each task owns
+     * its pair buffer, so no synchronization is needed when recording.
+     */
+    private static final class Join<E> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final FlatQuadTree<E> tree;
+        private final int a;
+        private final int b;
+        private final double rSq;
+        private final PairVisitor<? super E> visitor;
+        private final int forks;
+        private List<Join<E>> subtasks;
+        private long[] pairs;
+        private int count;
+
+        Join(final FlatQuadTree<E> t, final int first, final int second, final double radiusSq,
+                final PairVisitor<? super E> v, final int forkDepth) {
+            tree = t;
+            a = first;
+            b = second;
+            rSq = radiusSq;
+            visitor = v;
+            forks = forkDepth;
+        }
+
+        @Override
+        protected void compute() {
+            if (forks == 0 || tree.isLeaf(a) && tree.isLeaf(b) || tree.distanceSq(a, b) > rSq) {
+                tree.join(a, b, rSq, this);
+                return;
+            }
+            subtasks = new ArrayList<>(CHILDREN * CHILDREN);
+            final int blockA = tree.isLeaf(a) ? NONE : tree.nodeChild[a];
+            final int blockB = tree.isLeaf(b) ? NONE : tree.nodeChild[b];
+            if (a == b) {
+                for (int i = blockA; i < blockA + CHILDREN; i++) {
+                    for (int j = i; j < blockA + CHILDREN; j++) {
+                        fork(i, j);
+                    }
+                }
+            } else if (blockA == NONE) {
+                for (int child = blockB; child < blockB + CHILDREN; child++) {
+                    fork(a, child);
+                }
+            } else if (blockB == NONE) {
+                for (int child = blockA; child < blockA + CHILDREN; child++) {
+                    fork(child, b);
+                }
+            } else {
+                for (int i = blockA; i < blockA + CHILDREN; i++) {
+                    for (int j = blockB; j < blockB + CHILDREN; j++) {
+                        fork(i, j);
+                    }
+                }
+            }
+            invokeAll(subtasks);
+        }
+
+        private void fork(final int first, final int second) {
+            if (tree.distanceSq(first, second) <= rSq) {
+                subtasks.add(new Join<>(tree, first, second, rSq, visitor, forks - 1));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void emit(final int first, final int second) {
+            if (visitor == null) {
+                if (pairs == null) {
+                    pairs = new long[INITIAL_PAIRS];
+                } else if (count == pairs.length) {
+                    pairs = Arrays.copyOf(pairs, grow(count));
+                }
+                pairs[count++] = (long) first << Integer.SIZE | second;
+            } else {
+                visitor.visit((E) tree.entryElement[first], (E) tree.entryElement[second]);
+            }
+        }
+
+        /**
+         * Collects, in order, the tasks that recorded pairs.
+         */
+        void gather(final List<Join<E>> result) {
+            if (count > 0) {
+                result.add(this);
+            }
+            if (subtasks != null) {
+                for (final Join<E> task : subtasks) {
+                    task.gather(result);
+                }
+            }
+        }
+    }
+
+    /*
+     * Segment and ray queries. The traced line is x + t * dx, y + t * dy, with
+     * t between 0 and tMax. Nodes and entries are visited best-first, by the
+     * smallest t at which they can be reached: for nodes, the t at which the
+     * line enters their bounds enlarged by the width; for entries, the t of
+     * their projection. An entry within width of the line has its projection
+     * within the enlarged bounds of its node, hence the order is consistent.
+     */
+
+    /**
+     * @return the entry the visitor stopped at, or NONE if it never stopped.
+     *         Without a visitor, the first entry found is returned.
+     */
+    @SuppressWarnings("unchecked")
+    private int trace(final double x, final double y, final double dx, final double dy, final double tMax,
+            final double width, final SpatialVisitor<? super E> visitor) {
+        if (!(width >= 0)) {
+            throw new IllegalArgumentException("The width must be non negative, " + width + " given.");
+        }
+        if (toroidal) {
+            throw new IllegalStateException("Segment and ray queries are not supported in toroidal mode.");
+        }
+        final double widthSq = width * width;
+        final double lengthSq = dx * dx + dy * dy;
+        final DoubleIntMinHeap queue = new DoubleIntMinHeap();
+        final double start = enter(ROOT, x, y, dx, dy, tMax, width);
+        if (start <= tMax) {
+            queue.push(start, ROOT);
+        }
+        while (!queue.isEmpty()) {
+            final int item = queue.peekValue();
+            queue.pop();
+            if (item < 0) {
+                final int entry = ~item;
+                if (visitor == null || !visitor.visit((E) entryElement[entry], entryX[entry], entryY[entry])) {
+                    return entry;
+                }
+            } else if (isLeaf(item)) {
+                for (int entry = nodeHead[item]; entry != NONE; entry = entryNext[entry]) {
+                    final double ex = entryX[entry] - x;
+                    final double ey = entryY[entry] - y;
+                    final double t = lengthSq > 0 ? Math.max(0, Math.min(tMax, (ex * dx + ey * dy) / lengthSq)) : 0;
+                    final double ox = ex - t * dx;
+                    final double oy = ey - t * dy;
+                    if (ox * ox + oy * oy <= widthSq) {
+                        queue.push(t, ~entry);
+                    }
+                }
+            } else {
+                final int block = nodeChild[item];
+                for (int child = block; child < block + CHILDREN; child++) {
+                    final double t = enter(child, x, y, dx, dy, tMax, width);
+                    if (t <= tMax) {
+                        queue.push(t, child);
+                    }
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Slab test: the line is clipped against the loose bounds of the node
+     * enlarged by width, one axis at a time.
+     *
+     * @return the smallest t at which the line is within the enlarged bounds,
+     *         or infinity if it never is
+     */
+    private double enter(final int node, final double x, final double y, final double dx, final double dy,
+            final double tMax, final double width) {
+        double lo = 0;
+        double hi = tMax;
+        final double minX = looseMinX(node) - width;
+        final double maxX = looseMaxX(node) + width;
+        if (dx == 0) {
+            if (x < minX || x > maxX) {
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            final double t1 = (minX - x) / dx;
+            final double t2 = (maxX - x) / dx;
+            lo = Math.max(lo, Math.min(t1, t2));
+            hi = Math.min(hi, Math.max(t1, t2));
+        }
+        final double minY = looseMinY(node) - width;
+        final double maxY = looseMaxY(node) + width;
+        if (dy == 0) {
+            if (y < minY || y > maxY) {
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            final double t1 = (minY - y) / dy;
+            final double t2 = (maxY - y) / dy;
+            lo = Math.max(lo, Math.min(t1, t2));
+            hi = Math.min(hi, Math.max(t1, t2));
+        }
+        return lo <= hi ? lo : Double.POSITIVE_INFINITY;
+    }
+
+    /*
+     * Batch queries
+     */
+
+    private void collect(final int node, final double x, final double y, final double mx, final double my,
+            final BatchQueries sink) {
+        if (!intersects(node, x, y, mx, my)) {
+            return;
+        }
+        if (within(node, x, y, mx, my)) {
+            collectAll(node, sink);
+        } else if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                if (inRange(entryX[entry], entryY[entry], x, y, mx, my)) {
+                    sink.add(entry);
+                }
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                collect(child, x, y, mx, my, sink);
+            }
+        }
+    }
+
+    private void collectAll(final int node, final BatchQueries sink) {
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                sink.add(entry);
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                collectAll(child, sink);
+            }
+        }
+    }
+
+    /**
+     * Runs blocks of queries, in the order of their keys, and records the
+     * handles found by each block in its own buffer. The tree is only read.
+     */
+    private static final class BatchQueries extends ParallelRange {
+        private static final long serialVersionUID = 1L;
+        private final FlatQuadTree<?> tree;
+        private final double[] boxes;
+        private final long[] keys;
+        private final int[] counts;
+        private final int[][] found;
+        private int[] buffer;
+        private int size;
+
+        BatchQueries(final FlatQuadTree<?> t, final double[] b, final long[] k, final int[] c, final int[][] f,
+                final int lo, final int hi) {
+            super(lo, hi, 1);
+            tree = t;
+            boxes = b;
+            keys = k;
+            counts = c;
+            found = f;
+        }
+
+        @Override
+        protected ParallelRange split(final int lo, final int hi) {
+            return new BatchQueries(tree, boxes, keys, counts, found, lo, hi);
+        }
+
+        @Override
+        protected void compute(final int lo, final int hi) {
+            for (int block = lo; block < hi; block++) {
+                buffer = new int[INITIAL_RESULTS];
+                size = 0;
+                final int end = Math.min(keys.length, (block + 1) * QUERY_BLOCK);
+                for (int i = block * QUERY_BLOCK; i < end; i++) {
+                    final int query = (int) (keys[i] & INDEX_MASK);
+                    final int b = query * BOUNDS;
+                    final double x = boxes[b + MIN_X];
+                    final double y = boxes[b + MIN_Y];
+                    final double mx = boxes[b + MAX_X];
+                    final double my = boxes[b + MAX_Y];
+                    final int start = size;
+                    tree.collect(ROOT, tree.lowerX(x, mx), tree.lowerY(y, my), tree.upperX(x, mx), tree.upperY(y, my),
+                            this);
+                    counts[query] = size - start;
+                }
+                found[block] = buffer;
+            }
+        }
+
+        void add(final int entry) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, grow(size));
+            }
+            buffer[size++] = entry;
+        }
+    }
+
+    /**
+     * Copies the handles found by each block of queries to their final
+     * position.
+     */
+    private static final class BatchScatter extends ParallelRange {
+        private static final long serialVersionUID = 1L;
+        private final long[] keys;
+        private final int[] counts;
+        private final int[][] found;
+        private final int[] offsets;
+        private final int[] handles;
+
+        BatchScatter(final long[] k, final int[] c, final int[][] f, final int[] o, final int[] h, final int lo,
+                final int hi) {
+            super(lo, hi, 1);
+            keys = k;
+            counts = c;
+            found = f;
+            offsets = o;
+            handles = h;
+        }
+
+        @Override
+        protected ParallelRange split(final int lo, final int hi) {
+            return new BatchScatter(keys, counts, found, offsets, handles, lo, hi);
+        }
+
+        @Override
+        protected void compute(final int lo, final int hi) {
+            for (int block = lo; block < hi; block++) {
+                int position = 0;
+                final int end = Math.min(keys.length, (block + 1) * QUERY_BLOCK);
+                for (int i = block * QUERY_BLOCK; i < end; i++) {
+                    final int query = (int) (keys[i] & INDEX_MASK);
+                    System.arraycopy(found[block], position, handles, offsets[query], counts[query]);
+                    position += counts[query];
+                }
+                found[block] = null;
+            }
+        }
+    }
+
+    /*
+     * Batch updates
+     */
+
+    /**
+     * Applies all the moves but the repeated ones.
+     *
+     * @return the status of each move: the crossing ones are reported as
+     *         {@link #MOVED} once re-routed
+     */
+    private byte[] moveBatch(final int[] handles, final double[] xs, final double[] ys, final boolean parallel) {
+        final int n = handles.length;
+        final byte[] status = new byte[n];
+        final BitSet seen = new BitSet(entryTop);
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            final int handle = handles[i];
+            if (isValid(handle)) {
+                if (seen.get(handle)) {
+                    status[i] = REPEATED;
+                } else {
+                    seen.set(handle);
+                    status[i] = MOVED;
+                    if (autoExpand && isFinite(xs[i]) && isFinite(ys[i])) {
+                        minX = Math.min(minX, xs[i]);
+                        minY = Math.min(minY, ys[i]);
+                        maxX = Math.max(maxX, xs[i]);
+                        maxY = Math.max(maxY, ys[i]);
+                    }
+                }
+            }
+        }
+        /*
+         * Growing changes the structure: it must happen before the parallel
+         * phase
+         */
+        if (minX <= maxX && minY <= maxY) {
+            reach(minX, minY);
+            reach(maxX, maxY);
+        }
+        new InPlaceMoves(this, handles, xs, ys, status, 0, n).run(parallel);
+        int crossing = 0;
+        for (final byte s : status) {
+            if (s == CROSSING) {
+                crossing++;
+            }
+        }
+        if (crossing > 0) {
+            final long[] byLeaf = new long[crossing];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                if (status[i] == CROSSING) {
+                    byLeaf[k++] = (long) entryNode[handles[i]] << Integer.SIZE | i;
+                }
+            }
+            LongArrays.radixSort(byLeaf, crossing, Integer.SIZE, Integer.SIZE, parallel);
+            for (final long key : byLeaf) {
+                final int i = (int) key;
+                relocate(handles[i], xs[i], ys[i]);
+                status[i] = MOVED;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Resolves elements into handles, in a read-only pass over the tree.
+     */
+    private static final class Search<E> extends ParallelRange {
+        private static final long serialVersionUID = 1L;
+        private final FlatQuadTree<E> tree;
+        private final E[] elements;
+        private final double[] xs;
+        private final double[] ys;
+        private final int[] handles;
+
+        Search(final FlatQuadTree<E> t, final E[] e, final double[] x, final double[] y, final int[] h,
+                final int lo, final int hi) {
+            super(lo, hi, PARALLEL_THRESHOLD);
+            tree = t;
+            elements = e;
+            xs = x;
+            ys = y;
+            handles = h;
+        }
+
+        @Override
+        protected ParallelRange split(final int lo, final int hi) {
+            return new Search<>(tree, elements, xs, ys, handles, lo, hi);
+        }
+
+        @Override
+        protected void compute(final int lo, final int hi) {
+            for (int i = lo; i < hi; i++) {
+                handles[i] = tree.findEntry(ROOT, elements[i], xs[i], ys[i]);
+            }
+        }
+    }
+
+    /**
+     * Updates in place the entries that do not leave their leaf, and marks
+     * the others as crossing. Each entry is touched by a single move, and the
+     * structure is only read, so ranges can proceed in parallel.
+     */
+    private static final class InPlaceMoves extends ParallelRange {
+        private static final long serialVersionUID = 1L;
+        private final FlatQuadTree<?> tree;
+        private final int[] handles;
+        private final double[] xs;
+        private final double[] ys;
+        private final byte[] status;
+
+        InPlaceMoves(final FlatQuadTree<?> t, final int[] h, final double[] x, final double[] y, final byte[] s,
+                final int lo, final int hi) {
+            super(lo, hi, PARALLEL_THRESHOLD);
+            tree = t;
+            handles = h;
+            xs = x;
+            ys = y;
+            status = s;
+        }
+
+        @Override
+        protected ParallelRange split(final int lo, final int hi) {
+            return new InPlaceMoves(tree, handles, xs, ys, status, lo, hi);
+        }
+
+        @Override
+        protected void compute(final int lo, final int hi) {
+            for (int i = lo; i < hi; i++) {
+                if (status[i] == MOVED) {
+                    final int entry = handles[i];
+                    final double x = xs[i];
+                    final double y = ys[i];
+                    if (!tree.contains(ROOT, x, y)) {
+                        status[i] = FAILED;
+                    } else if (tree.holds(tree.entryNode[entry], x, y)) {
+                        tree.entryX[entry] = x;
+                        tree.entryY[entry] = y;
+                    } else {
+                        status[i] = CROSSING;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Subtree sizes and aggregates
+     */
+
+    /**
+     * Adds delta to the sizes of the ancestors of a node, up to stop
+     * (excluded). The size of the node itself is updated by append and
+     * unlink.
+     */
+    private void resize(final int node, final int stop, final int delta) {
+        for (int n = nodeParent[node]; n != stop; n = nodeParent[n]) {
+            nodeSize[n] += delta;
+        }
+    }
+
+    /**
+     * Recomputes the aggregates from a node up to stop (excluded).
+     */
+    private void refresh(final int node, final int stop) {
+        if (nodeAggregate != null) {
+            for (int n = node; n != stop; n = nodeParent[n]) {
+                summarize(n);
+            }
+        }
+    }
+
+    private void summarize(final int node) {
+        double result = aggregation.identity();
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                result = aggregation.combine(result, entryValue[entry]);
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                result = aggregation.combine(result, nodeAggregate[child]);
+            }
+        }
+        nodeAggregate[node] = result;
+    }
+
+    /**
+     * Recomputes sizes and aggregates of a whole subtree, from the leaves.
+     */
+    private void summarizeAll(final int node) {
+        if (!isLeaf(node)) {
+            final int block = nodeChild[node];
+            int total = 0;
+            for (int child = block; child < block + CHILDREN; child++) {
+                summarizeAll(child);
+                total += nodeSize[child];
+            }
+            nodeSize[node] = total;
+        }
+        if (nodeAggregate != null) {
+            summarize(node);
+        }
+    }
+
+    private void checkAggregation() {
+        if (aggregation == null) {
+            throw new IllegalStateException("No aggregation is set.");
+        }
+    }
+
+    private boolean within(final int node, final double x, final double y, final double mx, final double my) {
+        final double nx = looseMinX(node);
+        final double ny = looseMinY(node);
+        final double nmx = looseMaxX(node);
+        final double nmy = looseMaxY(node);
+        return (nx >= x && nmx <= mx || toroidal && nx + periodX() >= x && nmx + periodX() <= mx)
+                && (ny >= y && nmy <= my || toroidal && ny + periodY() >= y && nmy + periodY() <= my);
+    }
+
+    private double maxDistanceSq(final int node, final double x, final double y) {
+        final double dx = Math.max(x - looseMinX(node), looseMaxX(node) - x);
+        final double dy = Math.max(y - looseMinY(node), looseMaxY(node) - y);
+        return dx * dx + dy * dy;
+    }
+
+    private int count(final int node, final double x, final double y, final double mx, final double my) {
+        if (!intersects(node, x, y, mx, my)) {
+            return 0;
+        }
+        if (within(node, x, y, mx, my)) {
+            return nodeSize[node];
+        }
+        int result = 0;
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                final double ex = entryX[entry];
+                final double ey = entryY[entry];
+                if (inRange(ex, ey, x, y, mx, my)) {
+                    result++;
+                }
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                result += count(child, x, y, mx, my);
+            }
+        }
+        return result;
+    }
+
+    private int count(final int node, final double cx, final double cy, final double rSq) {
+        if (minDistanceSq(node, cx, cy) > rSq) {
+            return 0;
+        }
+        if (maxDistanceSq(node, cx, cy) <= rSq) {
+            return nodeSize[node];
+        }
+        int result = 0;
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                if (distanceSq(entryX[entry], entryY[entry], cx, cy) <= rSq) {
+                    result++;
+                }
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                result += count(child, cx, cy, rSq);
+            }
+        }
+        return result;
+    }
+
+    private double aggregate(final int node, final double x, final double y, final double mx, final double my) {
+        if (!intersects(node, x, y, mx, my)) {
+            return aggregation.identity();
+        }
+        if (within(node, x, y, mx, my)) {
+            return nodeAggregate[node];
+        }
+        double result = aggregation.identity();
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                final double ex = entryX[entry];
+                final double ey = entryY[entry];
+                if (inRange(ex, ey, x, y, mx, my)) {
+                    result = aggregation.combine(result, entryValue[entry]);
+                }
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                result = aggregation.combine(result, aggregate(child, x, y, mx, my));
+            }
+        }
+        return result;
+    }
+
+    private double aggregate(final int node, final double cx, final double cy, final double rSq) {
+        if (minDistanceSq(node, cx, cy) > rSq) {
+            return aggregation.identity();
+        }
+        if (maxDistanceSq(node, cx, cy) <= rSq) {
+            return nodeAggregate[node];
+        }
+        double result = aggregation.identity();
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                if (distanceSq(entryX[entry], entryY[entry], cx, cy) <= rSq) {
+                    result = aggregation.combine(result, entryValue[entry]);
+                }
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                result = aggregation.combine(result, aggregate(child, cx, cy, rSq));
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Entry pool management
+     */
+
+    private void ensureEntryCapacity(final int capacity) {
+        if (capacity > entryX.length) {
+            entryX = Arrays.copyOf(entryX, capacity);
+            entryY = Arrays.copyOf(entryY, capacity);
+            if (entryValue != null) {
+                entryValue = Arrays.copyOf(entryValue, capacity);
+            }
+            entryElement = Arrays.copyOf(entryElement, capacity);
+            entryNode = Arrays.copyOf(entryNode, capacity);
+            entryNext = Arrays.copyOf(entryNext, capacity);
+        }
+    }
+
+    /*
+     * Bytes taken by the pools, optional ones included, excluding array
+     * headers and the elements themselves.
+     */
+    private long footprint() {
+        long bytes = (long) Constants.DOUBLE_SIZE * (nodeBounds.length + entryX.length + entryY.length);
+        bytes += (long) INT_BYTES * (nodeChild.length + nodeParent.length + nodeHead.length + nodeSize.length
+                + entryNode.length + entryNext.length);
+        bytes += (long) REFERENCE_BYTES * entryElement.length;
+        if (nodeAggregate != null) {
+            bytes += (long) Constants.DOUBLE_SIZE * nodeAggregate.length;
+        }
+        if (entryValue != null) {
+            bytes += (long) Constants.DOUBLE_SIZE * entryValue.length;
+        }
+        return bytes;
+    }
+
+    private void ensureValues() {
+        if (entryValue == null) {
+            entryValue = new double[entryX.length];
+        }
+    }
+
+    private boolean isValid(final int handle) {
+        return handle >= 0 && handle < entryTop && entryNode[handle] != NONE;
+    }
+
+    private void checkHandle(final int handle) {
+        if (!isValid(handle)) {
+            throw new IllegalArgumentException("Invalid handle: " + handle);
+        }
+    }
+
+    private int allocateEntry() {
+        if (freeEntry != NONE) {
+            final int entry = freeEntry;
+            freeEntry = entryNext[entry];
+            return entry;
+        }
+        if (entryTop == entryX.length) {
+            ensureEntryCapacity(grow(entryTop));
+        }
+        return entryTop++;
+    }
+
+    private void releaseEntry(final int entry) {
+        entryElement[entry] = null;
+        entryNode[entry] = NONE;
+        entryNext[entry] = freeEntry;
+        freeEntry = entry;
+        size--;
+    }
+
+    private void append(final int entry, final int leaf) {
+        final int head = nodeHead[leaf];
+        entryNode[entry] = leaf;
+        entryNext[entry] = head;
+        nodeHead[leaf] = entry;
+        nodeSize[leaf]++;
+    }
+
+    private void link(final int entry, final int leaf) {
+        append(entry, leaf);
+        if (nodeSize[leaf] > elems && depth(leaf) < depthCap) {
+            subdivide(leaf);
+        }
+    }
+
+    /*
+     * Leaf lists are singly linked, which saves an int per entry: leaves are
+     * short, so finding the predecessor is cheap.
+     */
+    private void unlink(final int entry) {
+        final int leaf = entryNode[entry];
+        final int next = entryNext[entry];
+        if (nodeHead[leaf] == entry) {
+            nodeHead[leaf] = next;
+        } else {
+            int prev = nodeHead[leaf];
+            while (entryNext[prev] != entry) {
+                prev = entryNext[prev];
+            }
+            entryNext[prev] = next;
+        }
+        nodeSize[leaf]--;
+    }
+
+    private void relocate(final int entry, final double x, final double y) {
+        entryX[entry] = x;
+        entryY[entry] = y;
+        final int leaf = entryNode[entry];
+        if (!holds(leaf, x, y)) {
+            unlink(entry);
+            reroute(entry, leaf);
+            if (autoCollapse) {
+                collapseFrom(leaf);
+            }
+        }
+    }
+
+    /**
+     * Links an entry out of any list starting from the smallest ancestor of
+     * a node containing the entry. The entry must be counted in the sizes of
+     * the ancestors of the node, but not in the one of the node itself.
+     */
+    private void reroute(final int entry, final int node) {
+        final double x = entryX[entry];
+        final double y = entryY[entry];
+        int ancestor = node;
+        while (!contains(ancestor, x, y)) {
+            ancestor = nodeParent[ancestor];
+        }
+        resize(node, ancestor, -1);
+        final int target = locate(ancestor, x, y);
+        resize(target, ancestor, 1);
+        link(entry, target);
+        refresh(node, ancestor);
+        refresh(entryNode[entry], NONE);
+    }
+
+    @SuppressFBWarnings("FE_FLOATING_POINT_EQUALITY")
+    private int findEntry(final int node, final E e, final double x, final double y) {
+        if (!holds(node, x, y)) {
+            return NONE;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                if (entryX[entry] == x && entryY[entry] == y && Objects.equals(e, entryElement[entry])) {
+                    return entry;
+                }
+            }
+            return NONE;
+        }
+        /*
+         * Points on the split lines may belong to any of the adjacent children
+         */
+        final int block = nodeChild[node];
+        for (int child = block; child < block + CHILDREN; child++) {
+            final int found = findEntry(child, e, x, y);
+            if (found != NONE) {
+                return found;
+            }
+        }
+        return NONE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void collect(final int node, final double x, final double y, final double mx, final double my,
+            final Collection<? super E> results) {
+        if (!intersects(node, x, y, mx, my)) {
+            return;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                final double ex = entryX[entry];
+                final double ey = entryY[entry];
+                if (inRange(ex, ey, x, y, mx, my)) {
+                    results.add((E) entryElement[entry]);
+                }
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                collect(child, x, y, mx, my, results);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean visit(final int node, final double x, final double y, final double mx, final double my,
+            final SpatialVisitor<? super E> visitor) {
+        if (!intersects(node, x, y, mx, my)) {
+            return true;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                final double ex = entryX[entry];
+                final double ey = entryY[entry];
+                if (inRange(ex, ey, x, y, mx, my) && !visitor.visit((E) entryElement[entry], ex, ey)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        final int block = nodeChild[node];
+        for (int child = block; child < block + CHILDREN; child++) {
+            if (!visit(child, x, y, mx, my, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void collect(final int node, final double cx, final double cy, final double rSq,
+            final Collection<? super E> results) {
+        if (minDistanceSq(node, cx, cy) > rSq) {
+            return;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                if (distanceSq(entryX[entry], entryY[entry], cx, cy) <= rSq) {
+                    results.add((E) entryElement[entry]);
+                }
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                collect(child, cx, cy, rSq, results);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean visit(final int node, final double cx, final double cy, final double rSq,
+            final SpatialVisitor<? super E> visitor) {
+        if (minDistanceSq(node, cx, cy) > rSq) {
+            return true;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                final double ex = entryX[entry];
+                final double ey = entryY[entry];
+                if (distanceSq(ex, ey, cx, cy) <= rSq && !visitor.visit((E) entryElement[entry], ex, ey)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        final int block = nodeChild[node];
+        for (int child = block; child < block + CHILDREN; child++) {
+            if (!visit(child, cx, cy, rSq, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,672 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.awt.geom.Rectangle2D;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * A single precision variant of {@link FlatQuadTree}, for indexes so large
+ * that memory and cache footprint matter more than coordinate precision.
+ * Positions and node bounds are stored as floats, and entries are kept in a
+ * singly linked list per leaf: an entry takes 20 bytes and a node 32, far
+ * less than in {@link FlatQuadTree}.
+ *
+ * Coordinates are rounded to the nearest float when elements are inserted or
+ * moved, and all the operations work on the rounded positions: queries
+ * compare them with the (double precision) query bounds, visitors receive
+ * them, and elements are found for deletion by rounding the given position in
+ * the same way. As rounding is monotonic, the elements in the indexed space
+ * stay in it once rounded. Deleting an element costs a scan of its leaf.
+ *
+ * Elements are only stored in leaves. A point lying on the split lines of a
+ * node is routed to the top and/or right child. Leaves are not split below a
+ * maximum depth (32 unless specified), where they hold any number of
+ * elements.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public class FloatQuadTree<E> implements SpatialIndex<E>, Serializable {
+
+    private static final long serialVersionUID = -4154180233947862071L;
+    private static final int NONE = -1;
+    private static final int ROOT = 0;
+    private static final int CHILDREN = 4;
+    private static final int RIGHT = 1;
+    private static final int TOP = 2;
+    private static final int MIN_X = 0;
+    private static final int MIN_Y = 1;
+    private static final int MAX_X = 2;
+    private static final int MAX_Y = 3;
+    private static final int BOUNDS = 4;
+    private static final int INITIAL_NODES = 1 + CHILDREN * CHILDREN;
+    private static final int INITIAL_ENTRIES = 64;
+    private static final int DEFAULT_MAX_DEPTH = 32;
+
+    private final int elems;
+    private final int depthCap;
+    /*
+     * Node pool: children are allocated in blocks of four consecutive slots.
+     * Only leaves hold entries.
+     */
+    private float[] nodeBounds;
+    private int[] nodeChild;
+    private int[] nodeParent;
+    private int[] nodeHead;
+    private int[] nodeSize;
+    private int nodeTop;
+    /*
+     * Entry pool: each leaf holds a singly linked list of entries. Free
+     * entries are chained through entryNext.
+     */
+    private float[] entryX;
+    private float[] entryY;
+    private Object[] entryElement;
+    private int[] entryNode;
+    private int[] entryNext;
+    private int entryTop;
+    private int freeEntry = NONE;
+    private int size;
+
+    /**
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param elemPerQuad
+     *            maximum number of elements per quad
+     */
+    public FloatQuadTree(final double x, final double y, final double mx, final double my, final int elemPerQuad) {
+        this(x, y, mx, my, elemPerQuad, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Builds a QuadTree whose leaves are not split below the given depth, as
+     * {@link FlatQuadTree#FlatQuadTree(double, double, double, double, int, int)}.
+     *
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param elemPerQuad
+     *            number of elements per quad above which an insertion splits
+     *            it, unless it is at the maximum depth
+     * @param maxDepth
+     *            the maximum depth of the leaves, the root being at depth 0
+     */
+    public FloatQuadTree(final double x, final double y, final double mx, final double my, final int elemPerQuad,
+            final int maxDepth) {
+        if (elemPerQuad < 1) {
+            throw new IllegalArgumentException("At least one element per quad is required, " + elemPerQuad + " given.");
+        }
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("The maximum depth can not be negative, " + maxDepth + " given.");
+        }
+        elems = elemPerQuad;
+        depthCap = maxDepth;
+        nodeBounds = new float[INITIAL_NODES * BOUNDS];
+        nodeChild = new int[INITIAL_NODES];
+        nodeParent = new int[INITIAL_NODES];
+        nodeHead = new int[INITIAL_NODES];
+        nodeSize = new int[INITIAL_NODES];
+        entryX = new float[INITIAL_ENTRIES];
+        entryY = new float[INITIAL_ENTRIES];
+        entryElement = new Object[INITIAL_ENTRIES];
+        entryNode = new int[INITIAL_ENTRIES];
+        entryNext = new int[INITIAL_ENTRIES];
+        initNode(ROOT, NONE, (float) Math.min(x, mx), (float) Math.min(y, my),
+                (float) Math.max(x, mx), (float) Math.max(y, my));
+        nodeTop = 1;
+    }
+
+    @Override
+    public boolean delete(final E e, final double x, final double y) {
+        return delete(findEntry(ROOT, e, (float) x, (float) y));
+    }
+
+    @Override
+    public boolean insert(final E e, final double x, final double y) {
+        return insertWithHandle(e, x, y) != NONE;
+    }
+
+    /**
+     * Inserts an element, and returns a handle that can be used to move or
+     * delete it without searching the tree, as
+     * {@link FlatQuadTree#insertWithHandle(Object, double, double)}.
+     *
+     * @param e
+     *            The element to add
+     * @param x
+     *            the x position of the element
+     * @param y
+     *            the y position of the element
+     * @return the handle of the inserted element, or -1 if the element is out
+     *         of the indexed space
+     */
+    public int insertWithHandle(final E e, final double x, final double y) {
+        final float fx = (float) x;
+        final float fy = (float) y;
+        if (!contains(ROOT, fx, fy)) {
+            return NONE;
+        }
+        final int entry = allocateEntry();
+        entryElement[entry] = e;
+        entryX[entry] = fx;
+        entryY[entry] = fy;
+        link(entry, locate(ROOT, fx, fy));
+        size++;
+        return entry;
+    }
+
+    /**
+     * Deletes the element associated to a handle.
+     *
+     * @param handle
+     *            the handle returned by
+     *            {@link #insertWithHandle(Object, double, double)}
+     * @return true if the handle referred to an element, which has been
+     *         removed
+     */
+    public boolean delete(final int handle) {
+        if (!isValid(handle)) {
+            return false;
+        }
+        unlink(handle);
+        releaseEntry(handle);
+        return true;
+    }
+
+    @Override
+    public boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
+        return move(findEntry(ROOT, e, (float) sx, (float) sy), fx, fy);
+    }
+
+    /**
+     * Moves the element associated to a handle. If the element does not leave
+     * its leaf, only its coordinates are updated. Otherwise, it is re-routed
+     * starting from the smallest ancestor of its leaf containing the
+     * destination.
+     *
+     * @param handle
+     *            the handle returned by
+     *            {@link #insertWithHandle(Object, double, double)}
+     * @param x
+     *            the final x
+     * @param y
+     *            the final y
+     * @return true if the handle referred to an element and the destination
+     *         is in the indexed space
+     */
+    public boolean move(final int handle, final double x, final double y) {
+        final float fx = (float) x;
+        final float fy = (float) y;
+        if (!isValid(handle) || !contains(ROOT, fx, fy)) {
+            return false;
+        }
+        entryX[handle] = fx;
+        entryY[handle] = fy;
+        final int leaf = entryNode[handle];
+        if (!contains(leaf, fx, fy)) {
+            unlink(handle);
+            int ancestor = nodeParent[leaf];
+            while (!contains(ancestor, fx, fy)) {
+                ancestor = nodeParent[ancestor];
+            }
+            link(handle, locate(ancestor, fx, fy));
+        }
+        return true;
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return the element associated to the handle
+     */
+    @SuppressWarnings("unchecked")
+    public E getElement(final int handle) {
+        checkHandle(handle);
+        return (E) entryElement[handle];
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return the current x coordinate of the element, as rounded when stored
+     */
+    public double getX(final int handle) {
+        checkHandle(handle);
+        return entryX[handle];
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return the current y coordinate of the element, as rounded when stored
+     */
+    public double getY(final int handle) {
+        checkHandle(handle);
+        return entryY[handle];
+    }
+
+    @Override
+    public List<E> query(final Rectangle2D range) {
+        final List<E> result = new ArrayList<>();
+        query(range.getMinX(), range.getMinY(), range.getMaxX(), range.getMaxY(), result);
+        return result;
+    }
+
+    @Override
+    public void query(final double minX, final double minY, final double maxX, final double maxY,
+            final Collection<? super E> buffer) {
+        collect(ROOT, Math.min(minX, maxX), Math.min(minY, maxY), Math.max(minX, maxX), Math.max(minY, maxY), buffer);
+    }
+
+    @Override
+    public boolean query(final double minX, final double minY, final double maxX, final double maxY,
+            final SpatialVisitor<? super E> visitor) {
+        return visit(ROOT, Math.min(minX, maxX), Math.min(minY, maxY), Math.max(minX, maxX), Math.max(minY, maxY),
+                visitor);
+    }
+
+    @Override
+    public void queryRadius(final double cx, final double cy, final double r, final Collection<? super E> buffer) {
+        collect(ROOT, cx, cy, squared(r), buffer);
+    }
+
+    @Override
+    public boolean queryRadius(final double cx, final double cy, final double r, final SpatialVisitor<? super E> visitor) {
+        return visit(ROOT, cx, cy, squared(r), visitor);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the maximum number of elements per node
+     */
+    public int getMaxElementsNumber() {
+        return elems;
+    }
+
+    /**
+     * @return the depth below which leaves are not split, and hold any number
+     *         of elements
+     */
+    public int getMaxDepth() {
+        return depthCap;
+    }
+
+    /**
+     * @return the number of nodes currently in use
+     */
+    public int getNodeCount() {
+        return nodeTop;
+    }
+
+    /**
+     * Trims the capacity of the node and entry pools to the slots actually in
+     * use, releasing the memory reserved for future growth.
+     */
+    public void trimToSize() {
+        if (nodeTop < nodeChild.length) {
+            nodeBounds = Arrays.copyOf(nodeBounds, nodeTop * BOUNDS);
+            nodeChild = Arrays.copyOf(nodeChild, nodeTop);
+            nodeParent = Arrays.copyOf(nodeParent, nodeTop);
+            nodeHead = Arrays.copyOf(nodeHead, nodeTop);
+            nodeSize = Arrays.copyOf(nodeSize, nodeTop);
+        }
+        if (entryTop < entryX.length) {
+            entryX = Arrays.copyOf(entryX, Math.max(1, entryTop));
+            entryY = Arrays.copyOf(entryY, Math.max(1, entryTop));
+            entryElement = Arrays.copyOf(entryElement, Math.max(1, entryTop));
+            entryNode = Arrays.copyOf(entryNode, Math.max(1, entryTop));
+            entryNext = Arrays.copyOf(entryNext, Math.max(1, entryTop));
+        }
+    }
+
+    @Override
+    public String toString() {
+        final int base = ROOT * BOUNDS;
+        return getClass().getSimpleName() + "[" + nodeBounds[base + MIN_X] + ", " + nodeBounds[base + MIN_Y] + " - "
+                + nodeBounds[base + MAX_X] + ", " + nodeBounds[base + MAX_Y] + "] with " + size + " elements in "
+                + nodeTop + " nodes";
+    }
+
+    /*
+     * Nodes
+     */
+
+    private void initNode(final int node, final int parent, final float x, final float y, final float mx,
+            final float my) {
+        final int base = node * BOUNDS;
+        nodeBounds[base + MIN_X] = x;
+        nodeBounds[base + MIN_Y] = y;
+        nodeBounds[base + MAX_X] = mx;
+        nodeBounds[base + MAX_Y] = my;
+        nodeChild[node] = NONE;
+        nodeParent[node] = parent;
+        nodeHead[node] = NONE;
+        nodeSize[node] = 0;
+    }
+
+    private int allocateBlock() {
+        final int block = nodeTop;
+        nodeTop += CHILDREN;
+        if (nodeTop > nodeChild.length) {
+            final int capacity = Math.max(nodeTop, grow(nodeChild.length));
+            nodeBounds = Arrays.copyOf(nodeBounds, capacity * BOUNDS);
+            nodeChild = Arrays.copyOf(nodeChild, capacity);
+            nodeParent = Arrays.copyOf(nodeParent, capacity);
+            nodeHead = Arrays.copyOf(nodeHead, capacity);
+            nodeSize = Arrays.copyOf(nodeSize, capacity);
+        }
+        return block;
+    }
+
+    private static int grow(final int capacity) {
+        return capacity + Math.max(1, capacity >> 1);
+    }
+
+    private static double squared(final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("The radius must be non negative, " + radius + " given.");
+        }
+        return radius * radius;
+    }
+
+    private float bound(final int node, final int which) {
+        return nodeBounds[node * BOUNDS + which];
+    }
+
+    private boolean isLeaf(final int node) {
+        return nodeChild[node] == NONE;
+    }
+
+    private boolean contains(final int node, final float x, final float y) {
+        final int base = node * BOUNDS;
+        return x >= nodeBounds[base + MIN_X] && x <= nodeBounds[base + MAX_X]
+                && y >= nodeBounds[base + MIN_Y] && y <= nodeBounds[base + MAX_Y];
+    }
+
+    private boolean intersects(final int node, final double x, final double y, final double mx, final double my) {
+        final int base = node * BOUNDS;
+        return x <= nodeBounds[base + MAX_X] && mx >= nodeBounds[base + MIN_X]
+                && y <= nodeBounds[base + MAX_Y] && my >= nodeBounds[base + MIN_Y];
+    }
+
+    private double minDistanceSq(final int node, final double x, final double y) {
+        final double dx = Math.max(0, Math.max(bound(node, MIN_X) - x, x - bound(node, MAX_X)));
+        final double dy = Math.max(0, Math.max(bound(node, MIN_Y) - y, y - bound(node, MAX_Y)));
+        return dx * dx + dy * dy;
+    }
+
+    private int quadrant(final int node, final float x, final float y) {
+        final int block = nodeChild[node];
+        return (x >= bound(block + RIGHT, MIN_X) ? RIGHT : 0) | (y >= bound(block + TOP, MIN_Y) ? TOP : 0);
+    }
+
+    private int locate(final int start, final float x, final float y) {
+        int node = start;
+        while (!isLeaf(node)) {
+            node = nodeChild[node] + quadrant(node, x, y);
+        }
+        return node;
+    }
+
+    private int depth(final int node) {
+        int depth = 0;
+        for (int n = nodeParent[node]; n != NONE; n = nodeParent[n]) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Splits a leaf in four children, and distributes its entries among them.
+     * Only one level is created per call: children that still exceed the
+     * capacity get split when they receive a further entry. The center is
+     * computed in double precision, so that huge bounds do not overflow.
+     */
+    private void subdivide(final int node) {
+        final int block = allocateBlock();
+        final float x = bound(node, MIN_X);
+        final float y = bound(node, MIN_Y);
+        final float mx = bound(node, MAX_X);
+        final float my = bound(node, MAX_Y);
+        final float cx = (float) (((double) x + mx) / 2);
+        final float cy = (float) (((double) y + my) / 2);
+        initNode(block, node, x, y, cx, cy);
+        initNode(block + RIGHT, node, cx, y, mx, cy);
+        initNode(block + TOP, node, x, cy, cx, my);
+        initNode(block + (TOP | RIGHT), node, cx, cy, mx, my);
+        int entry = nodeHead[node];
+        nodeHead[node] = NONE;
+        nodeSize[node] = 0;
+        nodeChild[node] = block;
+        while (entry != NONE) {
+            final int next = entryNext[entry];
+            append(entry, block + quadrant(node, entryX[entry], entryY[entry]));
+            entry = next;
+        }
+    }
+
+    /*
+     * Entries
+     */
+
+    private boolean isValid(final int handle) {
+        return handle >= 0 && handle < entryTop && entryNode[handle] != NONE;
+    }
+
+    private void checkHandle(final int handle) {
+        if (!isValid(handle)) {
+            throw new IllegalArgumentException("Invalid handle: " + handle);
+        }
+    }
+
+    private int allocateEntry() {
+        if (freeEntry != NONE) {
+            final int entry = freeEntry;
+            freeEntry = entryNext[entry];
+            return entry;
+        }
+        if (entryTop == entryX.length) {
+            final int capacity = grow(entryTop);
+            entryX = Arrays.copyOf(entryX, capacity);
+            entryY = Arrays.copyOf(entryY, capacity);
+            entryElement = Arrays.copyOf(entryElement, capacity);
+            entryNode = Arrays.copyOf(entryNode, capacity);
+            entryNext = Arrays.copyOf(entryNext, capacity);
+        }
+        return entryTop++;
+    }
+
+    private void releaseEntry(final int entry) {
+        entryElement[entry] = null;
+        entryNode[entry] = NONE;
+        entryNext[entry] = freeEntry;
+        freeEntry = entry;
+        size--;
+    }
+
+    private void append(final int entry, final int leaf) {
+        entryNode[entry] = leaf;
+        entryNext[entry] = nodeHead[leaf];
+        nodeHead[leaf] = entry;
+        nodeSize[leaf]++;
+    }
+
+    private void link(final int entry, final int leaf) {
+        append(entry, leaf);
+        if (nodeSize[leaf] > elems && depth(leaf) < depthCap) {
+            subdivide(leaf);
+        }
+    }
+
+    /**
+     * Without back links, the predecessor is found by scanning the leaf.
+     */
+    private void unlink(final int entry) {
+        final int leaf = entryNode[entry];
+        final int next = entryNext[entry];
+        if (nodeHead[leaf] == entry) {
+            nodeHead[leaf] = next;
+        } else {
+            int prev = nodeHead[leaf];
+            while (entryNext[prev] != entry) {
+                prev = entryNext[prev];
+            }
+            entryNext[prev] = next;
+        }
+        nodeSize[leaf]--;
+    }
+
+    @SuppressFBWarnings("FE_FLOATING_POINT_EQUALITY")
+    private int findEntry(final int node, final E e, final float x, final float y) {
+        if (!contains(node, x, y)) {
+            return NONE;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                if (entryX[entry] == x && entryY[entry] == y && Objects.equals(e, entryElement[entry])) {
+                    return entry;
+                }
+            }
+            return NONE;
+        }
+        /*
+         * Points on the split lines may belong to any of the adjacent children
+         */
+        final int block = nodeChild[node];
+        for (int child = block; child < block + CHILDREN; child++) {
+            final int found = findEntry(child, e, x, y);
+            if (found != NONE) {
+                return found;
+            }
+        }
+        return NONE;
+    }
+
+    /*
+     * Queries
+     */
+
+    @SuppressWarnings("unchecked")
+    private void collect(final int node, final double x, final double y, final double mx, final double my,
+            final Collection<? super E> results) {
+        if (!intersects(node, x, y, mx, my)) {
+            return;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                final float ex = entryX[entry];
+                final float ey = entryY[entry];
+                if (ex >= x && ex <= mx && ey >= y && ey <= my) {
+                    results.add((E) entryElement[entry]);
+                }
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                collect(child, x, y, mx, my, results);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean visit(final int node, final double x, final double y, final double mx, final double my,
+            final SpatialVisitor<? super E> visitor) {
+        if (!intersects(node, x, y, mx, my)) {
+            return true;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                final float ex = entryX[entry];
+                final float ey = entryY[entry];
+                if (ex >= x && ex <= mx && ey >= y && ey <= my && !visitor.visit((E) entryElement[entry], ex, ey)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        final int block = nodeChild[node];
+        for (int child = block; child < block + CHILDREN; child++) {
+            if (!visit(child, x, y, mx, my, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void collect(final int node, final double cx, final double cy, final double rSq,
+            final Collection<? super E> results) {
+        if (minDistanceSq(node, cx, cy) > rSq) {
+            return;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                final double dx = entryX[entry] - cx;
+                final double dy = entryY[entry] - cy;
+                if (dx * dx + dy * dy <= rSq) {
+                    results.add((E) entryElement[entry]);
+                }
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                collect(child, cx, cy, rSq, results);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean visit(final int node, final double cx, final double cy, final double rSq,
+            final SpatialVisitor<? super E> visitor) {
+        if (minDistanceSq(node, cx, cy) > rSq) {
+            return true;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                final float ex = entryX[entry];
+                final float ey = entryY[entry];
+                final double dx = ex - cx;
+                final double dy = ey - cy;
+                if (dx * dx + dy * dy <= rSq && !visitor.visit((E) entryElement[entry], ex, ey)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        final int block = nodeChild[node];
+        for (int child = block; child < block + CHILDREN; child++) {
+            if (!visit(child, cx, cy, rSq, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
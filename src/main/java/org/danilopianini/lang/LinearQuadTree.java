@@ -0,0 +1,460 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.awt.geom.Rectangle2D;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * A linear quadtree: there are no nodes, the elements are kept in primitive
+ * arrays sorted by the Z-order (Morton) code of their position, quantized on
+ * a 2^16 x 2^16 grid. Each cell of the implicit quadtree is a contiguous run
+ * of the arrays, located by binary search. Queries descend the implicit tree
+ * only as long as the cells intersecting the range hold more than a few
+ * elements, then scan the runs sequentially.
+ *
+ * Lookups are cache friendly and the whole structure is a handful of arrays,
+ * but insertions and deletions shift the arrays: this index is meant for
+ * read-heavy workloads. Use
+ * {@link #bulkLoad(double, double, double, double, double[], double[], Object[], boolean)}
+ * to build it from a snapshot.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public class LinearQuadTree<E> implements SpatialIndex<E>, Serializable {
+
+    private static final long serialVersionUID = -6453011829616359218L;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int SCAN_THRESHOLD = 32;
+    private static final int QUADRANTS = 4;
+    private static final int INDEX_BITS = 31;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+    private long[] keys;
+    private double[] xs;
+    private double[] ys;
+    private Object[] elements;
+    private int size;
+
+    /**
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     */
+    public LinearQuadTree(final double x, final double y, final double mx, final double my) {
+        this(x, y, mx, my, INITIAL_CAPACITY);
+    }
+
+    private LinearQuadTree(final double x, final double y, final double mx, final double my, final int capacity) {
+        minX = Math.min(x, mx);
+        minY = Math.min(y, my);
+        maxX = Math.max(x, mx);
+        maxY = Math.max(y, my);
+        keys = new long[capacity];
+        xs = new double[capacity];
+        ys = new double[capacity];
+        elements = new Object[capacity];
+    }
+
+    /**
+     * Builds a LinearQuadTree from a snapshot of positions, sorting them once
+     * instead of inserting them one by one. Elements out of the bounds are
+     * skipped.
+     *
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param xs
+     *            the x coordinates of the elements
+     * @param ys
+     *            the y coordinates of the elements
+     * @param elements
+     *            the elements
+     * @param parallel
+     *            if true, the Morton codes are sorted using fork/join
+     * @param <E>
+     *            the type of the indexed elements
+     * @return a new LinearQuadTree containing the elements
+     */
+    public static <E> LinearQuadTree<E> bulkLoad(final double x, final double y, final double mx, final double my,
+            final double[] xs, final double[] ys, final E[] elements, final boolean parallel) {
+        if (xs.length != ys.length || xs.length != elements.length) {
+            throw new IllegalArgumentException("Coordinates and elements must have the same length.");
+        }
+        final LinearQuadTree<E> tree = new LinearQuadTree<>(x, y, mx, my, Math.max(1, xs.length));
+        final long[] sorted = new long[xs.length];
+        int valid = 0;
+        for (int i = 0; i < xs.length; i++) {
+            if (tree.contains(xs[i], ys[i])) {
+                sorted[valid++] = tree.code(xs[i], ys[i]) << INDEX_BITS | i;
+            }
+        }
+        LongArrays.radixSort(sorted, valid, INDEX_BITS, Morton.BITS, parallel);
+        new Gather(tree, sorted, xs, ys, elements, 0, valid).run(parallel);
+        tree.size = valid;
+        return tree;
+    }
+
+    @Override
+    public boolean delete(final E e, final double x, final double y) {
+        final int index = find(e, x, y);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    public boolean insert(final E e, final double x, final double y) {
+        if (!contains(x, y)) {
+            return false;
+        }
+        final long code = code(x, y);
+        final int index = firstAbove(0, size, code);
+        if (size == keys.length) {
+            final int capacity = size + Math.max(1, size >> 1);
+            keys = Arrays.copyOf(keys, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            elements = Arrays.copyOf(elements, capacity);
+        }
+        final int tail = size - index;
+        System.arraycopy(keys, index, keys, index + 1, tail);
+        System.arraycopy(xs, index, xs, index + 1, tail);
+        System.arraycopy(ys, index, ys, index + 1, tail);
+        System.arraycopy(elements, index, elements, index + 1, tail);
+        keys[index] = code;
+        xs[index] = x;
+        ys[index] = y;
+        elements[index] = e;
+        size++;
+        return true;
+    }
+
+    @Override
+    public boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
+        if (!contains(fx, fy)) {
+            return false;
+        }
+        final int index = find(e, sx, sy);
+        if (index < 0) {
+            return false;
+        }
+        if (keys[index] == code(fx, fy)) {
+            /*
+             * Same cell: the order is preserved
+             */
+            xs[index] = fx;
+            ys[index] = fy;
+        } else {
+            remove(index);
+            insert(e, fx, fy);
+        }
+        return true;
+    }
+
+    @Override
+    public List<E> query(final Rectangle2D range) {
+        final List<E> result = new ArrayList<>();
+        query(range.getMinX(), range.getMinY(), range.getMaxX(), range.getMaxY(), result);
+        return result;
+    }
+
+    @Override
+    public void query(final double x1, final double y1, final double x2, final double y2,
+            final Collection<? super E> buffer) {
+        final double x = Math.min(x1, x2);
+        final double y = Math.min(y1, y2);
+        final double mx = Math.max(x1, x2);
+        final double my = Math.max(y1, y2);
+        new Query(x, y, mx, my) {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected boolean accept(final int i) {
+                if (xs[i] >= x && xs[i] <= mx && ys[i] >= y && ys[i] <= my) {
+                    buffer.add((E) elements[i]);
+                }
+                return true;
+            }
+        }.run();
+    }
+
+    @Override
+    public boolean query(final double x1, final double y1, final double x2, final double y2,
+            final SpatialVisitor<? super E> visitor) {
+        final double x = Math.min(x1, x2);
+        final double y = Math.min(y1, y2);
+        final double mx = Math.max(x1, x2);
+        final double my = Math.max(y1, y2);
+        return new Query(x, y, mx, my) {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected boolean accept(final int i) {
+                return xs[i] < x || xs[i] > mx || ys[i] < y || ys[i] > my || visitor.visit((E) elements[i], xs[i], ys[i]);
+            }
+        }.run();
+    }
+
+    @Override
+    public void queryRadius(final double cx, final double cy, final double r, final Collection<? super E> buffer) {
+        final double rSq = squared(r);
+        new Query(cx - r, cy - r, cx + r, cy + r) {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected boolean accept(final int i) {
+                if (distanceSq(i, cx, cy) <= rSq) {
+                    buffer.add((E) elements[i]);
+                }
+                return true;
+            }
+        }.run();
+    }
+
+    @Override
+    public boolean queryRadius(final double cx, final double cy, final double r, final SpatialVisitor<? super E> visitor) {
+        final double rSq = squared(r);
+        return new Query(cx - r, cy - r, cx + r, cy + r) {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected boolean accept(final int i) {
+                return distanceSq(i, cx, cy) > rSq || visitor.visit((E) elements[i], xs[i], ys[i]);
+            }
+        }.run();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Shrinks the arrays to the number of elements.
+     */
+    public void trimToSize() {
+        keys = Arrays.copyOf(keys, size);
+        xs = Arrays.copyOf(xs, size);
+        ys = Arrays.copyOf(ys, size);
+        elements = Arrays.copyOf(elements, size);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + minX + ", " + minY + " - " + maxX + ", " + maxY + "] with " + size
+                + " elements";
+    }
+
+    private boolean contains(final double x, final double y) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY;
+    }
+
+    private long code(final double x, final double y) {
+        return Morton.encode(Morton.quantize(x, minX, maxX), Morton.quantize(y, minY, maxY));
+    }
+
+    private static double squared(final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("The radius must be non negative, " + radius + " given.");
+        }
+        return radius * radius;
+    }
+
+    private double distanceSq(final int i, final double x, final double y) {
+        final double dx = xs[i] - x;
+        final double dy = ys[i] - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * @return the first index in [lo, hi) whose key is greater than or equal
+     *         to the given one, or hi
+     */
+    private int firstNotBelow(final int lo, final int hi, final long key) {
+        int low = lo;
+        int high = hi;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the first index in [lo, hi) whose key is greater than the given
+     *         one, or hi
+     */
+    private int firstAbove(final int lo, final int hi, final long key) {
+        return firstNotBelow(lo, hi, key + 1);
+    }
+
+    @SuppressFBWarnings("FE_FLOATING_POINT_EQUALITY")
+    private int find(final E e, final double x, final double y) {
+        if (!contains(x, y)) {
+            return -1;
+        }
+        final long code = code(x, y);
+        for (int i = firstNotBelow(0, size, code); i < size && keys[i] == code; i++) {
+            if (xs[i] == x && ys[i] == y && Objects.equals(e, elements[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void remove(final int index) {
+        final int tail = size - index - 1;
+        System.arraycopy(keys, index + 1, keys, index, tail);
+        System.arraycopy(xs, index + 1, xs, index, tail);
+        System.arraycopy(ys, index + 1, ys, index, tail);
+        System.arraycopy(elements, index + 1, elements, index, tail);
+        size--;
+        elements[size] = null;
+    }
+
+    /**
+     * A range query over the implicit tree. Subclasses filter the candidate
+     * elements exactly.
+     */
+    private abstract class Query {
+        private final int qx0;
+        private final int qy0;
+        private final int qx1;
+        private final int qy1;
+
+        Query(final double x, final double y, final double mx, final double my) {
+            qx0 = Morton.quantize(x, minX, maxX);
+            qy0 = Morton.quantize(y, minY, maxY);
+            qx1 = Morton.quantize(mx, minX, maxX);
+            qy1 = Morton.quantize(my, minY, maxY);
+        }
+
+        /**
+         * @param i
+         *            the index of a candidate element
+         * @return false to stop the query
+         */
+        protected abstract boolean accept(int i);
+
+        final boolean run() {
+            return size == 0 || descend(Morton.LEVELS, 0, 0, 0, size);
+        }
+
+        /**
+         * @param level
+         *            log2 of the side of the cell
+         * @param cx
+         *            the first column of the cell
+         * @param cy
+         *            the first row of the cell
+         * @param lo
+         *            the first index of the run of the cell
+         * @param hi
+         *            the last index of the run of the cell (excluded)
+         */
+        private boolean descend(final int level, final int cx, final int cy, final int lo, final int hi) {
+            final int last = (1 << level) - 1;
+            if (cx > qx1 || cy > qy1 || cx + last < qx0 || cy + last < qy0) {
+                return true;
+            }
+            final boolean inside = cx >= qx0 && cy >= qy0 && cx + last <= qx1 && cy + last <= qy1;
+            if (inside || level == 0 || hi - lo <= SCAN_THRESHOLD) {
+                for (int i = lo; i < hi; i++) {
+                    if (!accept(i)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            final int half = 1 << (level - 1);
+            final long base = Morton.encode(cx, cy);
+            final long quadrant = 1L << 2 * (level - 1);
+            int start = lo;
+            for (int q = 0; q < QUADRANTS && start < hi; q++) {
+                final int qx = cx + (q & 1) * half;
+                final int qy = cy + (q >> 1) * half;
+                /*
+                 * Runs are searched only for the quadrants crossing the range
+                 */
+                if (qx <= qx1 && qy <= qy1 && qx + half > qx0 && qy + half > qy0) {
+                    start = firstNotBelow(start, hi, base + q * quadrant);
+                    final int end = firstNotBelow(start, hi, base + (q + 1) * quadrant);
+                    if (start < end && !descend(level - 1, qx, qy, start, end)) {
+                        return false;
+                    }
+                    start = end;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copies the sorted snapshot into the arrays.
+     */
+    private static final class Gather extends ParallelRange {
+        private static final long serialVersionUID = 1L;
+        private final LinearQuadTree<?> tree;
+        private final long[] sorted;
+        private final double[] xs;
+        private final double[] ys;
+        private final Object[] elements;
+
+        Gather(final LinearQuadTree<?> t, final long[] s, final double[] x, final double[] y, final Object[] e,
+                final int lo, final int hi) {
+            super(lo, hi, PARALLEL_THRESHOLD);
+            tree = t;
+            sorted = s;
+            xs = x;
+            ys = y;
+            elements = e;
+        }
+
+        @Override
+        protected ParallelRange split(final int lo, final int hi) {
+            return new Gather(tree, sorted, xs, ys, elements, lo, hi);
+        }
+
+        @Override
+        protected void compute(final int lo, final int hi) {
+            for (int i = lo; i < hi; i++) {
+                final int index = (int) (sorted[i] & INDEX_MASK);
+                tree.keys[i] = sorted[i] >>> INDEX_BITS;
+                tree.xs[i] = xs[index];
+                tree.ys[i] = ys[index];
+                tree.elements[i] = elements[index];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.util.Arrays;
+
+/**
+ * Linear time radix sorting of long keys, optionally using fork/join (Java 7
+ * has no parallel sort).
+ */
+final class LongArrays {
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int DIGIT_MASK = RADIX - 1;
+    private static final int BUCKETS_PER_TASK = 8;
+
+    private LongArrays() {
+    }
+
+    /**
+     * Sorts an array of keys by a range of their bits, which must be a
+     * multiple of eight. The sort is stable: keys with the same bits in the
+     * range keep their relative order. Keys are first partitioned by their
+     * most significant byte, then each partition is sorted least significant
+     * byte first, in parallel if requested.
+     *
+     * @param a
+     *            the keys
+     * @param length
+     *            the number of keys to sort, starting from the first
+     * @param shift
+     *            the first bit of the range
+     * @param bits
+     *            the number of bits, multiple of eight
+     * @param parallel
+     *            whether to sort the partitions in parallel
+     */
+    static void radixSort(final long[] a, final int length, final int shift, final int bits, final boolean parallel) {
+        if (bits <= 0 || bits % RADIX_BITS != 0) {
+            throw new IllegalArgumentException("The number of bits must be a positive multiple of " + RADIX_BITS);
+        }
+        final long[] tmp = new long[length];
+        final int topShift = shift + bits - RADIX_BITS;
+        final int[] start = new int[RADIX + 1];
+        for (int i = 0; i < length; i++) {
+            start[digit(a[i], topShift) + 1]++;
+        }
+        for (int i = 0; i < RADIX; i++) {
+            start[i + 1] += start[i];
+        }
+        final int[] next = start.clone();
+        for (int i = 0; i < length; i++) {
+            tmp[next[digit(a[i], topShift)]++] = a[i];
+        }
+        new BucketSort(a, tmp, start, shift, bits - RADIX_BITS, 0, RADIX).run(parallel);
+    }
+
+    private static int digit(final long key, final int shift) {
+        return (int) (key >>> shift) & DIGIT_MASK;
+    }
+
+    /**
+     * LSD passes over the partitions. Data starts in tmp and must end up in a:
+     * with an even number of passes, a final copy is required.
+     */
+    private static final class BucketSort extends ParallelRange {
+        private static final long serialVersionUID = 1L;
+        private final long[] a;
+        private final long[] tmp;
+        private final int[] start;
+        private final int shift;
+        private final int bits;
+
+        BucketSort(final long[] array, final long[] buffer, final int[] bucketStart, final int firstBit,
+                final int nbits, final int lo, final int hi) {
+            super(lo, hi, BUCKETS_PER_TASK);
+            a = array;
+            tmp = buffer;
+            start = bucketStart;
+            shift = firstBit;
+            bits = nbits;
+        }
+
+        @Override
+        protected ParallelRange split(final int lo, final int hi) {
+            return new BucketSort(a, tmp, start, shift, bits, lo, hi);
+        }
+
+        @Override
+        protected void compute(final int lo, final int hi) {
+            final int[] count = new int[RADIX];
+            for (int bucket = lo; bucket < hi; bucket++) {
+                final int from = start[bucket];
+                final int to = start[bucket + 1];
+                long[] src = tmp;
+                long[] dst = a;
+                for (int pass = shift; pass < shift + bits; pass += RADIX_BITS) {
+                    Arrays.fill(count, 0);
+                    for (int i = from; i < to; i++) {
+                        count[digit(src[i], pass)]++;
+                    }
+                    int sum = from;
+                    for (int d = 0; d < RADIX; d++) {
+                        final int c = count[d];
+                        count[d] = sum;
+                        sum += c;
+                    }
+                    for (int i = from; i < to; i++) {
+                        dst[count[digit(src[i], pass)]++] = src[i];
+                    }
+                    final long[] swap = src;
+                    src = dst;
+                    dst = swap;
+                }
+                if (src != a) {
+                    System.arraycopy(src, from, a, from, to - from);
+                }
+            }
+        }
+    }
+
+}
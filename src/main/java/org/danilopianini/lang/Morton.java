@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+/**
+ * Z-order (Morton) codes of bidimensional points, quantized on a 2^16 x 2^16
+ * grid. The x bit of each level precedes the y bit, so the four quadrants of
+ * a cell are ordered bottom-left, bottom-right, top-left, top-right.
+ */
+final class Morton {
+
+    /**
+     * Number of bits per coordinate.
+     */
+    static final int LEVELS = 16;
+    /**
+     * Number of cells per side.
+     */
+    static final int CELLS = 1 << LEVELS;
+    /**
+     * Number of bits of a code.
+     */
+    static final int BITS = 2 * LEVELS;
+    private static final long[] SPREAD_MASKS = { 0x00FF00FFL, 0x0F0F0F0FL, 0x33333333L, 0x55555555L };
+
+    private Morton() {
+    }
+
+    /**
+     * @param v
+     *            the value
+     * @param min
+     *            the lower bound of the range
+     * @param max
+     *            the upper bound of the range
+     * @return the cell of the value, clamped to the valid cells. The mapping
+     *         is monotonic, so ranges of values map to ranges of cells.
+     */
+    static int quantize(final double v, final double min, final double max) {
+        final double width = max - min;
+        if (width <= 0 || !(v > min)) {
+            return 0;
+        }
+        return (int) Math.min(CELLS - 1, (v - min) / width * CELLS);
+    }
+
+    /**
+     * @param qx
+     *            the x cell
+     * @param qy
+     *            the y cell
+     * @return the Morton code of the cell
+     */
+    static long encode(final int qx, final int qy) {
+        return spread(qx) | spread(qy) << 1;
+    }
+
+    /**
+     * Interleaves the 16 lower bits of a value with zeros.
+     */
+    private static long spread(final int value) {
+        long v = value & (CELLS - 1);
+        int shift = LEVELS / 2;
+        for (final long mask : SPREAD_MASKS) {
+            v = (v | v << shift) & mask;
+            shift /= 2;
+        }
+        return v;
+    }
+
+}
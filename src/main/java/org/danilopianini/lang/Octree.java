@@ -0,0 +1,823 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * The tridimensional counterpart of {@link FlatQuadTree}: nodes and entries
+ * are stored in primitive array pools, each node is split in eight octants
+ * when it exceeds the maximum number of elements, and entries live in the
+ * leaves. Offers box and sphere queries, both into buffers and visitors, and
+ * nearest neighbour searches. Leaves are not split below a maximum depth (32
+ * unless specified), where they hold any number of elements.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public class Octree<E> implements Serializable {
+
+    private static final long serialVersionUID = -2620317541453934719L;
+    private static final int NONE = -1;
+    private static final int ROOT = 0;
+    private static final int CHILDREN = 8;
+    private static final int RIGHT = 1;
+    private static final int TOP = 2;
+    private static final int FRONT = 4;
+    private static final int MIN_X = 0;
+    private static final int MIN_Y = 1;
+    private static final int MIN_Z = 2;
+    private static final int MAX_X = 3;
+    private static final int MAX_Y = 4;
+    private static final int MAX_Z = 5;
+    private static final int BOUNDS = 6;
+    private static final int INITIAL_NODES = 1 + CHILDREN;
+    private static final int INITIAL_ENTRIES = 64;
+    private static final int DEFAULT_MAX_DEPTH = 32;
+
+    private final int elems;
+    private final int depthCap;
+    /*
+     * Node pool: children are allocated in blocks of eight consecutive slots.
+     * Only leaves hold entries.
+     */
+    private double[] nodeBounds;
+    private int[] nodeChild;
+    private int[] nodeParent;
+    private int[] nodeHead;
+    private int[] nodeSize;
+    private int nodeTop;
+    /*
+     * Entry pool: each leaf holds a doubly linked list of entries. Free
+     * entries are chained through entryNext.
+     */
+    private double[] entryX;
+    private double[] entryY;
+    private double[] entryZ;
+    private Object[] entryElement;
+    private int[] entryNode;
+    private int[] entryNext;
+    private int[] entryPrev;
+    private int entryTop;
+    private int freeEntry = NONE;
+    private int size;
+
+    /**
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param z
+     *            minimum z
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param mz
+     *            maximum z
+     * @param elemPerOctant
+     *            maximum number of elements per octant
+     */
+    public Octree(final double x, final double y, final double z, final double mx, final double my, final double mz,
+            final int elemPerOctant) {
+        this(x, y, z, mx, my, mz, elemPerOctant, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Builds an Octree whose leaves are not split below the given depth, so
+     * that heavily duplicated points do not make it grow without bounds.
+     *
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param z
+     *            minimum z
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param mz
+     *            maximum z
+     * @param elemPerOctant
+     *            maximum number of elements per octant, except for the leaves
+     *            at the maximum depth
+     * @param maxDepth
+     *            the maximum depth of the leaves, the root being at depth 0
+     */
+    public Octree(final double x, final double y, final double z, final double mx, final double my, final double mz,
+            final int elemPerOctant, final int maxDepth) {
+        if (elemPerOctant < 1) {
+            throw new IllegalArgumentException("At least one element per octant is required, " + elemPerOctant + " given.");
+        }
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("The maximum depth can not be negative, " + maxDepth + " given.");
+        }
+        elems = elemPerOctant;
+        depthCap = maxDepth;
+        nodeBounds = new double[INITIAL_NODES * BOUNDS];
+        nodeChild = new int[INITIAL_NODES];
+        nodeParent = new int[INITIAL_NODES];
+        nodeHead = new int[INITIAL_NODES];
+        nodeSize = new int[INITIAL_NODES];
+        entryX = new double[INITIAL_ENTRIES];
+        entryY = new double[INITIAL_ENTRIES];
+        entryZ = new double[INITIAL_ENTRIES];
+        entryElement = new Object[INITIAL_ENTRIES];
+        entryNode = new int[INITIAL_ENTRIES];
+        entryNext = new int[INITIAL_ENTRIES];
+        entryPrev = new int[INITIAL_ENTRIES];
+        initNode(ROOT, NONE, Math.min(x, mx), Math.min(y, my), Math.min(z, mz),
+                Math.max(x, mx), Math.max(y, my), Math.max(z, mz));
+        nodeTop = 1;
+    }
+
+    /**
+     * Deletes an element from the tree.
+     *
+     * @param e
+     *            The element to delete
+     * @param x
+     *            the x position of the element
+     * @param y
+     *            the y position of the element
+     * @param z
+     *            the z position of the element
+     * @return true if the element is found and removed
+     */
+    public boolean delete(final E e, final double x, final double y, final double z) {
+        final int entry = findEntry(ROOT, e, x, y, z);
+        if (entry == NONE) {
+            return false;
+        }
+        unlink(entry);
+        releaseEntry(entry);
+        return true;
+    }
+
+    /**
+     * Inserts an element in the tree.
+     *
+     * @param e
+     *            The element to add
+     * @param x
+     *            the x position of the element
+     * @param y
+     *            the y position of the element
+     * @param z
+     *            the z position of the element
+     * @return true if the element is correctly inserted, false if it is out of
+     *         the indexed space
+     */
+    public boolean insert(final E e, final double x, final double y, final double z) {
+        if (!contains(ROOT, x, y, z)) {
+            return false;
+        }
+        final int entry = allocateEntry();
+        entryElement[entry] = e;
+        entryX[entry] = x;
+        entryY[entry] = y;
+        entryZ[entry] = z;
+        link(entry, locate(ROOT, x, y, z));
+        size++;
+        return true;
+    }
+
+    /**
+     * If an element is moved, updates the tree accordingly. If the element
+     * does not leave its leaf, only its coordinates are updated. Otherwise, it
+     * is re-routed starting from the smallest ancestor of its leaf containing
+     * the destination.
+     *
+     * @param e
+     *            the element
+     * @param sx
+     *            the start x
+     * @param sy
+     *            the start y
+     * @param sz
+     *            the start z
+     * @param fx
+     *            the final x
+     * @param fy
+     *            the final y
+     * @param fz
+     *            the final z
+     * @return true if the element is found and the destination is in the
+     *         indexed space
+     */
+    public boolean move(final E e, final double sx, final double sy, final double sz,
+            final double fx, final double fy, final double fz) {
+        if (!contains(ROOT, fx, fy, fz)) {
+            return false;
+        }
+        final int entry = findEntry(ROOT, e, sx, sy, sz);
+        if (entry == NONE) {
+            return false;
+        }
+        entryX[entry] = fx;
+        entryY[entry] = fy;
+        entryZ[entry] = fz;
+        final int leaf = entryNode[entry];
+        if (!contains(leaf, fx, fy, fz)) {
+            unlink(entry);
+            int ancestor = nodeParent[leaf];
+            while (!contains(ancestor, fx, fy, fz)) {
+                ancestor = nodeParent[ancestor];
+            }
+            link(entry, locate(ancestor, fx, fy, fz));
+        }
+        return true;
+    }
+
+    /**
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param z
+     *            minimum z
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param mz
+     *            maximum z
+     * @return a list of the elements within the box (bounds included)
+     */
+    public List<E> query(final double x, final double y, final double z, final double mx, final double my, final double mz) {
+        final List<E> result = new ArrayList<>();
+        query(x, y, z, mx, my, mz, result);
+        return result;
+    }
+
+    /**
+     * Collects the elements within the given box (bounds included) into a
+     * caller supplied buffer, which can be reused across queries.
+     *
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param z
+     *            minimum z
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param mz
+     *            maximum z
+     * @param buffer
+     *            the collection where the results are added
+     */
+    public void query(final double x, final double y, final double z, final double mx, final double my, final double mz,
+            final Collection<? super E> buffer) {
+        collect(ROOT, x, y, z, mx, my, mz, buffer);
+    }
+
+    /**
+     * Feeds the elements within the given box (bounds included) to a visitor.
+     *
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param z
+     *            minimum z
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param mz
+     *            maximum z
+     * @param visitor
+     *            the visitor
+     * @return false if the visitor stopped the query, true otherwise
+     */
+    public boolean query(final double x, final double y, final double z, final double mx, final double my, final double mz,
+            final SpatialVisitor3D<? super E> visitor) {
+        return visit(ROOT, x, y, z, mx, my, mz, visitor);
+    }
+
+    /**
+     * Collects the elements within the given distance (included) from a
+     * point into a caller supplied buffer.
+     *
+     * @param cx
+     *            the x coordinate of the center
+     * @param cy
+     *            the y coordinate of the center
+     * @param cz
+     *            the z coordinate of the center
+     * @param r
+     *            the radius
+     * @param buffer
+     *            the collection where the results are added
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    public void querySphere(final double cx, final double cy, final double cz, final double r,
+            final Collection<? super E> buffer) {
+        collect(ROOT, cx, cy, cz, squared(r), buffer);
+    }
+
+    /**
+     * Feeds the elements within the given distance (included) from a point to
+     * a visitor.
+     *
+     * @param cx
+     *            the x coordinate of the center
+     * @param cy
+     *            the y coordinate of the center
+     * @param cz
+     *            the z coordinate of the center
+     * @param r
+     *            the radius
+     * @param visitor
+     *            the visitor
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    public boolean querySphere(final double cx, final double cy, final double cz, final double r,
+            final SpatialVisitor3D<? super E> visitor) {
+        return visit(ROOT, cx, cy, cz, squared(r), visitor);
+    }
+
+    /**
+     * @param x
+     *            the x coordinate of the reference point
+     * @param y
+     *            the y coordinate of the reference point
+     * @param z
+     *            the z coordinate of the reference point
+     * @return the element closest to the given point, or null if the tree is
+     *         empty
+     */
+    public E nearest(final double x, final double y, final double z) {
+        return nearest(x, y, z, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param x
+     *            the x coordinate of the reference point
+     * @param y
+     *            the y coordinate of the reference point
+     * @param z
+     *            the z coordinate of the reference point
+     * @param maxRadius
+     *            the maximum distance from the reference point
+     * @return the element closest to the given point, or null if no element is
+     *         within maxRadius
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    public E nearest(final double x, final double y, final double z, final double maxRadius) {
+        final List<E> result = kNearest(x, y, z, 1, maxRadius);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * @param x
+     *            the x coordinate of the reference point
+     * @param y
+     *            the y coordinate of the reference point
+     * @param z
+     *            the z coordinate of the reference point
+     * @param k
+     *            the maximum number of elements to retrieve
+     * @return the k elements closest to the given point, sorted by increasing
+     *         distance
+     */
+    public List<E> kNearest(final double x, final double y, final double z, final int k) {
+        return kNearest(x, y, z, k, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Best-first search of the k nearest neighbours, as
+     * {@link FlatQuadTree#kNearest(double, double, int, double)}.
+     *
+     * @param x
+     *            the x coordinate of the reference point
+     * @param y
+     *            the y coordinate of the reference point
+     * @param z
+     *            the z coordinate of the reference point
+     * @param k
+     *            the maximum number of elements to retrieve
+     * @param maxRadius
+     *            the maximum distance from the reference point
+     * @return at most k elements within maxRadius from the given point, sorted
+     *         by increasing distance
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    @SuppressWarnings("unchecked")
+    public List<E> kNearest(final double x, final double y, final double z, final int k, final double maxRadius) {
+        final List<E> result = new ArrayList<>(Math.max(0, Math.min(k, size)));
+        final double maxDistSq = squared(maxRadius);
+        final DoubleIntMinHeap queue = new DoubleIntMinHeap();
+        queue.push(minDistanceSq(ROOT, x, y, z), ROOT);
+        while (result.size() < k && !queue.isEmpty() && queue.peekKey() <= maxDistSq) {
+            final int item = queue.peekValue();
+            queue.pop();
+            if (item < 0) {
+                result.add((E) entryElement[~item]);
+            } else if (isLeaf(item)) {
+                for (int entry = nodeHead[item]; entry != NONE; entry = entryNext[entry]) {
+                    final double distSq = distanceSq(entry, x, y, z);
+                    if (distSq <= maxDistSq) {
+                        queue.push(distSq, ~entry);
+                    }
+                }
+            } else {
+                final int block = nodeChild[item];
+                for (int child = block; child < block + CHILDREN; child++) {
+                    final double distSq = minDistanceSq(child, x, y, z);
+                    if (distSq <= maxDistSq) {
+                        queue.push(distSq, child);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the maximum number of elements per node
+     */
+    public int getMaxElementsNumber() {
+        return elems;
+    }
+
+    /**
+     * @return the depth below which leaves are not split, and hold any number
+     *         of elements
+     */
+    public int getMaxDepth() {
+        return depthCap;
+    }
+
+    /**
+     * @return the number of nodes currently in use
+     */
+    public int getNodeCount() {
+        return nodeTop;
+    }
+
+    /**
+     * @return the number of elements currently indexed
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        final int base = ROOT * BOUNDS;
+        return getClass().getSimpleName() + "[" + nodeBounds[base + MIN_X] + ", " + nodeBounds[base + MIN_Y] + ", "
+                + nodeBounds[base + MIN_Z] + " - " + nodeBounds[base + MAX_X] + ", " + nodeBounds[base + MAX_Y] + ", "
+                + nodeBounds[base + MAX_Z] + "] with " + size + " elements in " + nodeTop + " nodes";
+    }
+
+    /*
+     * Nodes
+     */
+
+    private void initNode(final int node, final int parent, final double x, final double y, final double z,
+            final double mx, final double my, final double mz) {
+        final int base = node * BOUNDS;
+        nodeBounds[base + MIN_X] = x;
+        nodeBounds[base + MIN_Y] = y;
+        nodeBounds[base + MIN_Z] = z;
+        nodeBounds[base + MAX_X] = mx;
+        nodeBounds[base + MAX_Y] = my;
+        nodeBounds[base + MAX_Z] = mz;
+        nodeChild[node] = NONE;
+        nodeParent[node] = parent;
+        nodeHead[node] = NONE;
+        nodeSize[node] = 0;
+    }
+
+    private int allocateBlock() {
+        final int block = nodeTop;
+        nodeTop += CHILDREN;
+        if (nodeTop > nodeChild.length) {
+            final int capacity = Math.max(nodeTop, grow(nodeChild.length));
+            nodeBounds = Arrays.copyOf(nodeBounds, capacity * BOUNDS);
+            nodeChild = Arrays.copyOf(nodeChild, capacity);
+            nodeParent = Arrays.copyOf(nodeParent, capacity);
+            nodeHead = Arrays.copyOf(nodeHead, capacity);
+            nodeSize = Arrays.copyOf(nodeSize, capacity);
+        }
+        return block;
+    }
+
+    private static int grow(final int capacity) {
+        return capacity + Math.max(1, capacity >> 1);
+    }
+
+    private static double squared(final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("The radius must be non negative, " + radius + " given.");
+        }
+        return radius * radius;
+    }
+
+    private double bound(final int node, final int which) {
+        return nodeBounds[node * BOUNDS + which];
+    }
+
+    private boolean isLeaf(final int node) {
+        return nodeChild[node] == NONE;
+    }
+
+    private boolean contains(final int node, final double x, final double y, final double z) {
+        final int base = node * BOUNDS;
+        return x >= nodeBounds[base + MIN_X] && x <= nodeBounds[base + MAX_X]
+                && y >= nodeBounds[base + MIN_Y] && y <= nodeBounds[base + MAX_Y]
+                && z >= nodeBounds[base + MIN_Z] && z <= nodeBounds[base + MAX_Z];
+    }
+
+    private boolean intersects(final int node, final double x, final double y, final double z,
+            final double mx, final double my, final double mz) {
+        final int base = node * BOUNDS;
+        return x <= nodeBounds[base + MAX_X] && mx >= nodeBounds[base + MIN_X]
+                && y <= nodeBounds[base + MAX_Y] && my >= nodeBounds[base + MIN_Y]
+                && z <= nodeBounds[base + MAX_Z] && mz >= nodeBounds[base + MIN_Z];
+    }
+
+    private double minDistanceSq(final int node, final double x, final double y, final double z) {
+        final double dx = Math.max(0, Math.max(bound(node, MIN_X) - x, x - bound(node, MAX_X)));
+        final double dy = Math.max(0, Math.max(bound(node, MIN_Y) - y, y - bound(node, MAX_Y)));
+        final double dz = Math.max(0, Math.max(bound(node, MIN_Z) - z, z - bound(node, MAX_Z)));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private int octant(final int node, final double x, final double y, final double z) {
+        final int block = nodeChild[node];
+        return (x >= bound(block + RIGHT, MIN_X) ? RIGHT : 0)
+                | (y >= bound(block + TOP, MIN_Y) ? TOP : 0)
+                | (z >= bound(block + FRONT, MIN_Z) ? FRONT : 0);
+    }
+
+    private int locate(final int start, final double x, final double y, final double z) {
+        int node = start;
+        while (!isLeaf(node)) {
+            node = nodeChild[node] + octant(node, x, y, z);
+        }
+        return node;
+    }
+
+    private int depth(final int node) {
+        int depth = 0;
+        for (int n = nodeParent[node]; n != NONE; n = nodeParent[n]) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Splits a leaf in eight children, and distributes its entries among
+     * them. Only one level is created per call: children that still exceed
+     * the capacity get split when they receive a further entry.
+     */
+    private void subdivide(final int node) {
+        final int block = allocateBlock();
+        final double x = bound(node, MIN_X);
+        final double y = bound(node, MIN_Y);
+        final double z = bound(node, MIN_Z);
+        final double mx = bound(node, MAX_X);
+        final double my = bound(node, MAX_Y);
+        final double mz = bound(node, MAX_Z);
+        final double cx = (x + mx) / 2;
+        final double cy = (y + my) / 2;
+        final double cz = (z + mz) / 2;
+        for (int octant = 0; octant < CHILDREN; octant++) {
+            final boolean right = (octant & RIGHT) != 0;
+            final boolean top = (octant & TOP) != 0;
+            final boolean front = (octant & FRONT) != 0;
+            initNode(block + octant, node, right ? cx : x, top ? cy : y, front ? cz : z,
+                    right ? mx : cx, top ? my : cy, front ? mz : cz);
+        }
+        int entry = nodeHead[node];
+        nodeHead[node] = NONE;
+        nodeSize[node] = 0;
+        nodeChild[node] = block;
+        while (entry != NONE) {
+            final int next = entryNext[entry];
+            append(entry, block + octant(node, entryX[entry], entryY[entry], entryZ[entry]));
+            entry = next;
+        }
+    }
+
+    /*
+     * Entries
+     */
+
+    private int allocateEntry() {
+        if (freeEntry != NONE) {
+            final int entry = freeEntry;
+            freeEntry = entryNext[entry];
+            return entry;
+        }
+        if (entryTop == entryX.length) {
+            final int capacity = grow(entryTop);
+            entryX = Arrays.copyOf(entryX, capacity);
+            entryY = Arrays.copyOf(entryY, capacity);
+            entryZ = Arrays.copyOf(entryZ, capacity);
+            entryElement = Arrays.copyOf(entryElement, capacity);
+            entryNode = Arrays.copyOf(entryNode, capacity);
+            entryNext = Arrays.copyOf(entryNext, capacity);
+            entryPrev = Arrays.copyOf(entryPrev, capacity);
+        }
+        return entryTop++;
+    }
+
+    private void releaseEntry(final int entry) {
+        entryElement[entry] = null;
+        entryNode[entry] = NONE;
+        entryNext[entry] = freeEntry;
+        freeEntry = entry;
+        size--;
+    }
+
+    private void append(final int entry, final int leaf) {
+        final int head = nodeHead[leaf];
+        entryNode[entry] = leaf;
+        entryPrev[entry] = NONE;
+        entryNext[entry] = head;
+        if (head != NONE) {
+            entryPrev[head] = entry;
+        }
+        nodeHead[leaf] = entry;
+        nodeSize[leaf]++;
+    }
+
+    private void link(final int entry, final int leaf) {
+        append(entry, leaf);
+        if (nodeSize[leaf] > elems && depth(leaf) < depthCap) {
+            subdivide(leaf);
+        }
+    }
+
+    private void unlink(final int entry) {
+        final int leaf = entryNode[entry];
+        final int prev = entryPrev[entry];
+        final int next = entryNext[entry];
+        if (prev == NONE) {
+            nodeHead[leaf] = next;
+        } else {
+            entryNext[prev] = next;
+        }
+        if (next != NONE) {
+            entryPrev[next] = prev;
+        }
+        nodeSize[leaf]--;
+    }
+
+    private double distanceSq(final int entry, final double x, final double y, final double z) {
+        final double dx = entryX[entry] - x;
+        final double dy = entryY[entry] - y;
+        final double dz = entryZ[entry] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    @SuppressFBWarnings("FE_FLOATING_POINT_EQUALITY")
+    private int findEntry(final int node, final E e, final double x, final double y, final double z) {
+        if (!contains(node, x, y, z)) {
+            return NONE;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                if (entryX[entry] == x && entryY[entry] == y && entryZ[entry] == z
+                        && Objects.equals(e, entryElement[entry])) {
+                    return entry;
+                }
+            }
+            return NONE;
+        }
+        /*
+         * Points on the split planes may belong to any of the adjacent children
+         */
+        final int block = nodeChild[node];
+        for (int child = block; child < block + CHILDREN; child++) {
+            final int found = findEntry(child, e, x, y, z);
+            if (found != NONE) {
+                return found;
+            }
+        }
+        return NONE;
+    }
+
+    /*
+     * Queries
+     */
+
+    private boolean inBox(final int entry, final double x, final double y, final double z,
+            final double mx, final double my, final double mz) {
+        return entryX[entry] >= x && entryX[entry] <= mx
+                && entryY[entry] >= y && entryY[entry] <= my
+                && entryZ[entry] >= z && entryZ[entry] <= mz;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void collect(final int node, final double x, final double y, final double z,
+            final double mx, final double my, final double mz, final Collection<? super E> results) {
+        if (!intersects(node, x, y, z, mx, my, mz)) {
+            return;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                if (inBox(entry, x, y, z, mx, my, mz)) {
+                    results.add((E) entryElement[entry]);
+                }
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                collect(child, x, y, z, mx, my, mz, results);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean visit(final int node, final double x, final double y, final double z,
+            final double mx, final double my, final double mz, final SpatialVisitor3D<? super E> visitor) {
+        if (!intersects(node, x, y, z, mx, my, mz)) {
+            return true;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                if (inBox(entry, x, y, z, mx, my, mz)
+                        && !visitor.visit((E) entryElement[entry], entryX[entry], entryY[entry], entryZ[entry])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        final int block = nodeChild[node];
+        for (int child = block; child < block + CHILDREN; child++) {
+            if (!visit(child, x, y, z, mx, my, mz, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void collect(final int node, final double cx, final double cy, final double cz, final double rSq,
+            final Collection<? super E> results) {
+        if (minDistanceSq(node, cx, cy, cz) > rSq) {
+            return;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                if (distanceSq(entry, cx, cy, cz) <= rSq) {
+                    results.add((E) entryElement[entry]);
+                }
+            }
+        } else {
+            final int block = nodeChild[node];
+            for (int child = block; child < block + CHILDREN; child++) {
+                collect(child, cx, cy, cz, rSq, results);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean visit(final int node, final double cx, final double cy, final double cz, final double rSq,
+            final SpatialVisitor3D<? super E> visitor) {
+        if (minDistanceSq(node, cx, cy, cz) > rSq) {
+            return true;
+        }
+        if (isLeaf(node)) {
+            for (int entry = nodeHead[node]; entry != NONE; entry = entryNext[entry]) {
+                if (distanceSq(entry, cx, cy, cz) <= rSq
+                        && !visitor.visit((E) entryElement[entry], entryX[entry], entryY[entry], entryZ[entry])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        final int block = nodeChild[node];
+        for (int child = block; child < block + CHILDREN; child++) {
+            if (!visit(child, cx, cy, cz, rSq, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
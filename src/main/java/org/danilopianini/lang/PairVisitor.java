@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+/**
+ * Callback receiving the pairs found by a spatial join, such as
+ * {@link FlatQuadTree#pairsWithin(double, PairVisitor, boolean)}. Each
+ * unordered pair is reported once. When the join runs in parallel, the
+ * visitor is called concurrently from several threads.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public interface PairVisitor<E> {
+
+    /**
+     * @param first
+     *            an element of the pair
+     * @param second
+     *            the other element of the pair
+     */
+    void visit(E first, E second);
+
+}
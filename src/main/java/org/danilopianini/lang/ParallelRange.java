@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A fork/join action over a range of indexes, which is split in halves until
+ * it gets smaller than a threshold.
+ */
+abstract class ParallelRange extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private final int from;
+    private final int to;
+    private final int threshold;
+
+    /**
+     * @param lo
+     *            first index (included)
+     * @param hi
+     *            last index (excluded)
+     * @param sequentialThreshold
+     *            ranges smaller than this are not split any further
+     */
+    ParallelRange(final int lo, final int hi, final int sequentialThreshold) {
+        from = lo;
+        to = hi;
+        threshold = Math.max(1, sequentialThreshold);
+    }
+
+    /**
+     * Runs this action on the shared pool, or in the calling thread if the
+     * parallel execution is not requested.
+     *
+     * @param parallel
+     *            whether to use the fork/join pool
+     */
+    final void run(final boolean parallel) {
+        if (parallel) {
+            SharedForkJoinPool.get().invoke(this);
+        } else {
+            compute(from, to);
+        }
+    }
+
+    @Override
+    protected final void compute() {
+        if (to - from <= threshold) {
+            compute(from, to);
+        } else {
+            final int mid = (from + to) >>> 1;
+            invokeAll(split(from, mid), split(mid, to));
+        }
+    }
+
+    /**
+     * @param lo
+     *            first index (included)
+     * @param hi
+     *            last index (excluded)
+     * @return a copy of this action working on the given range
+     */
+    protected abstract ParallelRange split(int lo, int hi);
+
+    /**
+     * Sequential computation.
+     *
+     * @param lo
+     *            first index (included)
+     * @param hi
+     *            last index (excluded)
+     */
+    protected abstract void compute(int lo, int hi);
+
+}
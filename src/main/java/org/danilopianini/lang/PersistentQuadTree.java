@@ -0,0 +1,603 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.awt.geom.Rectangle2D;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * A persistent QuadTree: nodes are immutable, and every write copies only the
+ * path from the root to the leaf it changes, sharing all the other nodes with
+ * the previous version. As a consequence, {@link #snapshot()} is a constant
+ * time operation, and a snapshot costs memory only in proportion to the
+ * writes performed after it was taken. Leaves are not split below a maximum
+ * depth (32 unless specified), where they hold any number of elements in a
+ * chain of buckets of the leaf capacity: inserting there only copies the
+ * first bucket, so heavily duplicated points do not cost quadratic time.
+ *
+ * Writes must be performed by a single thread at a time. Any number of
+ * threads can query the tree or its snapshots concurrently without locks:
+ * each query works on the version current when it started, and new versions
+ * are published through a volatile reference.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public class PersistentQuadTree<E> implements SpatialIndex<E>, Serializable {
+
+    private static final long serialVersionUID = 3327012417612869412L;
+    private static final int CHILDREN = 4;
+    private static final int RIGHT = 1;
+    private static final int TOP = 2;
+    private static final int DEFAULT_MAX_DEPTH = 32;
+    private static final Leaf EMPTY = new Leaf(new double[0], new double[0], new Object[0]);
+
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+    private final int elems;
+    private final int depthCap;
+    private volatile Node root;
+
+    /**
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param elemPerQuad
+     *            maximum number of elements per quad
+     */
+    public PersistentQuadTree(final double x, final double y, final double mx, final double my, final int elemPerQuad) {
+        this(x, y, mx, my, elemPerQuad, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Builds a QuadTree whose leaves are not split below the given depth, so
+     * that heavily duplicated points do not make it grow without bounds.
+     *
+     * @param x
+     *            minimum x
+     * @param y
+     *            minimum y
+     * @param mx
+     *            maximum x
+     * @param my
+     *            maximum y
+     * @param elemPerQuad
+     *            maximum number of elements per quad, except for the leaves at
+     *            the maximum depth
+     * @param maxDepth
+     *            the maximum depth of the leaves, the root being at depth 0
+     */
+    public PersistentQuadTree(final double x, final double y, final double mx, final double my, final int elemPerQuad,
+            final int maxDepth) {
+        this(Math.min(x, mx), Math.min(y, my), Math.max(x, mx), Math.max(y, my), elemPerQuad, maxDepth, EMPTY);
+        if (elemPerQuad < 1) {
+            throw new IllegalArgumentException("At least one element per quad is required, " + elemPerQuad + " given.");
+        }
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("The maximum depth can not be negative, " + maxDepth + " given.");
+        }
+    }
+
+    private PersistentQuadTree(final double x, final double y, final double mx, final double my, final int elemPerQuad,
+            final int maxDepth, final Node rootNode) {
+        minX = x;
+        minY = y;
+        maxX = mx;
+        maxY = my;
+        elems = elemPerQuad;
+        depthCap = maxDepth;
+        root = rootNode;
+    }
+
+    /**
+     * Takes a snapshot of the tree in constant time. The snapshot and this
+     * tree share their nodes, but are otherwise independent: writes to any of
+     * them are not visible to the other.
+     *
+     * @return an independent copy of this tree
+     */
+    public PersistentQuadTree<E> snapshot() {
+        return new PersistentQuadTree<>(minX, minY, maxX, maxY, elems, depthCap, root);
+    }
+
+    @Override
+    public boolean delete(final E e, final double x, final double y) {
+        if (!contains(x, y)) {
+            return false;
+        }
+        final Node current = root;
+        final Node updated = delete(current, minX, minY, maxX, maxY, e, x, y);
+        if (updated == current) {
+            return false;
+        }
+        root = updated;
+        return true;
+    }
+
+    @Override
+    public boolean insert(final E e, final double x, final double y) {
+        if (!contains(x, y)) {
+            return false;
+        }
+        root = insert(root, 0, minX, minY, maxX, maxY, e, x, y);
+        return true;
+    }
+
+    @Override
+    public boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
+        if (!contains(sx, sy) || !contains(fx, fy)) {
+            return false;
+        }
+        final Node current = root;
+        final Node deleted = delete(current, minX, minY, maxX, maxY, e, sx, sy);
+        if (deleted == current) {
+            return false;
+        }
+        /*
+         * Published once, so that readers never miss the element
+         */
+        root = insert(deleted, 0, minX, minY, maxX, maxY, e, fx, fy);
+        return true;
+    }
+
+    @Override
+    public List<E> query(final Rectangle2D range) {
+        final List<E> result = new ArrayList<>();
+        query(range.getMinX(), range.getMinY(), range.getMaxX(), range.getMaxY(), result);
+        return result;
+    }
+
+    @Override
+    public void query(final double x, final double y, final double mx, final double my,
+            final Collection<? super E> buffer) {
+        collect(root, minX, minY, maxX, maxY, Math.min(x, mx), Math.min(y, my), Math.max(x, mx), Math.max(y, my),
+                buffer);
+    }
+
+    @Override
+    public boolean query(final double x, final double y, final double mx, final double my,
+            final SpatialVisitor<? super E> visitor) {
+        return visit(root, minX, minY, maxX, maxY, Math.min(x, mx), Math.min(y, my), Math.max(x, mx), Math.max(y, my),
+                visitor);
+    }
+
+    @Override
+    public void queryRadius(final double cx, final double cy, final double r, final Collection<? super E> buffer) {
+        collect(root, minX, minY, maxX, maxY, cx, cy, squared(r), buffer);
+    }
+
+    @Override
+    public boolean queryRadius(final double cx, final double cy, final double r, final SpatialVisitor<? super E> visitor) {
+        return visit(root, minX, minY, maxX, maxY, cx, cy, squared(r), visitor);
+    }
+
+    @Override
+    public int size() {
+        return root.size;
+    }
+
+    /**
+     * @return the maximum number of elements per node
+     */
+    public int getMaxElementsNumber() {
+        return elems;
+    }
+
+    /**
+     * @return the depth below which leaves are not split, and hold any number
+     *         of elements
+     */
+    public int getMaxDepth() {
+        return depthCap;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + minX + ", " + minY + " - " + maxX + ", " + maxY + "] with "
+                + size() + " elements";
+    }
+
+    private boolean contains(final double x, final double y) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY;
+    }
+
+    private static double squared(final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("The radius must be non negative, " + radius + " given.");
+        }
+        return radius * radius;
+    }
+
+    private static int quadrant(final double cx, final double cy, final double x, final double y) {
+        return (x >= cx ? RIGHT : 0) | (y >= cy ? TOP : 0);
+    }
+
+    /*
+     * Path copying writes. Child bounds are computed on the way down, so
+     * nodes do not store them.
+     */
+
+    private Node insert(final Node node, final int depth, final double x, final double y, final double mx,
+            final double my, final E e, final double px, final double py) {
+        final double cx = (x + mx) / 2;
+        final double cy = (y + my) / 2;
+        if (node instanceof Leaf) {
+            final Leaf leaf = ((Leaf) node).with(e, px, py, elems);
+            return leaf.size > elems && depth < depthCap ? leaf.split(cx, cy) : leaf;
+        }
+        final Inner inner = (Inner) node;
+        final int q = quadrant(cx, cy, px, py);
+        return inner.with(q, insert(inner.children[q], depth + 1, childMin(q, RIGHT, x, cx), childMin(q, TOP, y, cy),
+                childMax(q, RIGHT, cx, mx), childMax(q, TOP, cy, my), e, px, py));
+    }
+
+    /**
+     * @return the updated node, or the same node if the element is not found
+     */
+    private Node delete(final Node node, final double x, final double y, final double mx, final double my,
+            final E e, final double px, final double py) {
+        if (node instanceof Leaf) {
+            return ((Leaf) node).without(e, px, py);
+        }
+        final Inner inner = (Inner) node;
+        final double cx = (x + mx) / 2;
+        final double cy = (y + my) / 2;
+        final int q = quadrant(cx, cy, px, py);
+        final Node child = inner.children[q];
+        final Node updated = delete(child, childMin(q, RIGHT, x, cx), childMin(q, TOP, y, cy),
+                childMax(q, RIGHT, cx, mx), childMax(q, TOP, cy, my), e, px, py);
+        if (updated == child) {
+            return node;
+        }
+        final Inner result = inner.with(q, updated);
+        /*
+         * Underfull subtrees are merged back, so that memory follows the data
+         */
+        return result.size <= elems / 2 ? result.flatten() : result;
+    }
+
+    private static double childMin(final int quadrant, final int side, final double min, final double center) {
+        return (quadrant & side) == 0 ? min : center;
+    }
+
+    private static double childMax(final int quadrant, final int side, final double center, final double max) {
+        return (quadrant & side) == 0 ? center : max;
+    }
+
+    /*
+     * Queries
+     */
+
+    @SuppressWarnings("unchecked")
+    private void collect(final Node node, final double x, final double y, final double mx, final double my,
+            final double qx, final double qy, final double qmx, final double qmy, final Collection<? super E> results) {
+        if (node.size == 0 || qx > mx || qmx < x || qy > my || qmy < y) {
+            return;
+        }
+        if (node instanceof Leaf) {
+            for (Leaf leaf = (Leaf) node; leaf != null; leaf = leaf.next) {
+                for (int i = 0; i < leaf.elements.length; i++) {
+                    if (leaf.xs[i] >= qx && leaf.xs[i] <= qmx && leaf.ys[i] >= qy && leaf.ys[i] <= qmy) {
+                        results.add((E) leaf.elements[i]);
+                    }
+                }
+            }
+            return;
+        }
+        final Node[] children = ((Inner) node).children;
+        final double cx = (x + mx) / 2;
+        final double cy = (y + my) / 2;
+        for (int q = 0; q < CHILDREN; q++) {
+            collect(children[q], childMin(q, RIGHT, x, cx), childMin(q, TOP, y, cy),
+                    childMax(q, RIGHT, cx, mx), childMax(q, TOP, cy, my), qx, qy, qmx, qmy, results);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean visit(final Node node, final double x, final double y, final double mx, final double my,
+            final double qx, final double qy, final double qmx, final double qmy, final SpatialVisitor<? super E> visitor) {
+        if (node.size == 0 || qx > mx || qmx < x || qy > my || qmy < y) {
+            return true;
+        }
+        if (node instanceof Leaf) {
+            for (Leaf leaf = (Leaf) node; leaf != null; leaf = leaf.next) {
+                for (int i = 0; i < leaf.elements.length; i++) {
+                    final double ex = leaf.xs[i];
+                    final double ey = leaf.ys[i];
+                    if (ex >= qx && ex <= qmx && ey >= qy && ey <= qmy
+                            && !visitor.visit((E) leaf.elements[i], ex, ey)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        final Node[] children = ((Inner) node).children;
+        final double cx = (x + mx) / 2;
+        final double cy = (y + my) / 2;
+        for (int q = 0; q < CHILDREN; q++) {
+            if (!visit(children[q], childMin(q, RIGHT, x, cx), childMin(q, TOP, y, cy),
+                    childMax(q, RIGHT, cx, mx), childMax(q, TOP, cy, my), qx, qy, qmx, qmy, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double minDistanceSq(final double x, final double y, final double mx, final double my,
+            final double px, final double py) {
+        final double dx = Math.max(0, Math.max(x - px, px - mx));
+        final double dy = Math.max(0, Math.max(y - py, py - my));
+        return dx * dx + dy * dy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void collect(final Node node, final double x, final double y, final double mx, final double my,
+            final double px, final double py, final double rSq, final Collection<? super E> results) {
+        if (node.size == 0 || minDistanceSq(x, y, mx, my, px, py) > rSq) {
+            return;
+        }
+        if (node instanceof Leaf) {
+            for (Leaf leaf = (Leaf) node; leaf != null; leaf = leaf.next) {
+                for (int i = 0; i < leaf.elements.length; i++) {
+                    final double dx = leaf.xs[i] - px;
+                    final double dy = leaf.ys[i] - py;
+                    if (dx * dx + dy * dy <= rSq) {
+                        results.add((E) leaf.elements[i]);
+                    }
+                }
+            }
+            return;
+        }
+        final Node[] children = ((Inner) node).children;
+        final double cx = (x + mx) / 2;
+        final double cy = (y + my) / 2;
+        for (int q = 0; q < CHILDREN; q++) {
+            collect(children[q], childMin(q, RIGHT, x, cx), childMin(q, TOP, y, cy),
+                    childMax(q, RIGHT, cx, mx), childMax(q, TOP, cy, my), px, py, rSq, results);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean visit(final Node node, final double x, final double y, final double mx, final double my,
+            final double px, final double py, final double rSq, final SpatialVisitor<? super E> visitor) {
+        if (node.size == 0 || minDistanceSq(x, y, mx, my, px, py) > rSq) {
+            return true;
+        }
+        if (node instanceof Leaf) {
+            for (Leaf leaf = (Leaf) node; leaf != null; leaf = leaf.next) {
+                for (int i = 0; i < leaf.elements.length; i++) {
+                    final double ex = leaf.xs[i];
+                    final double ey = leaf.ys[i];
+                    final double dx = ex - px;
+                    final double dy = ey - py;
+                    if (dx * dx + dy * dy <= rSq && !visitor.visit((E) leaf.elements[i], ex, ey)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        final Node[] children = ((Inner) node).children;
+        final double cx = (x + mx) / 2;
+        final double cy = (y + my) / 2;
+        for (int q = 0; q < CHILDREN; q++) {
+            if (!visit(children[q], childMin(q, RIGHT, x, cx), childMin(q, TOP, y, cy),
+                    childMax(q, RIGHT, cx, mx), childMax(q, TOP, cy, my), px, py, rSq, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Immutable nodes
+     */
+
+    private abstract static class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+        protected final int size;
+
+        Node(final int elements) {
+            size = elements;
+        }
+    }
+
+    /**
+     * A bucket of elements, followed by a chain of further buckets when the
+     * leaf holds more elements than its capacity at the maximum depth. The
+     * size of a bucket counts the whole chain.
+     */
+    private static final class Leaf extends Node {
+        private static final long serialVersionUID = 1L;
+        private final double[] xs;
+        private final double[] ys;
+        private final Object[] elements;
+        private final Leaf next;
+
+        Leaf(final double[] x, final double[] y, final Object[] e) {
+            this(x, y, e, null);
+        }
+
+        Leaf(final double[] x, final double[] y, final Object[] e, final Leaf overflow) {
+            super(e.length + (overflow == null ? 0 : overflow.size));
+            xs = x;
+            ys = y;
+            elements = e;
+            next = overflow;
+        }
+
+        /**
+         * @return a leaf with the element added to the first bucket, or to a
+         *         new bucket chained in front of this one if the first bucket
+         *         is full
+         */
+        Leaf with(final Object e, final double x, final double y, final int capacity) {
+            if (elements.length >= capacity) {
+                return new Leaf(new double[] { x }, new double[] { y }, new Object[] { e }, this);
+            }
+            final int length = elements.length;
+            final double[] nx = Arrays.copyOf(xs, length + 1);
+            final double[] ny = Arrays.copyOf(ys, length + 1);
+            final Object[] ne = Arrays.copyOf(elements, length + 1);
+            nx[length] = x;
+            ny[length] = y;
+            ne[length] = e;
+            return new Leaf(nx, ny, ne, next);
+        }
+
+        /**
+         * @return a copy without the element, or this leaf if it is not found.
+         *         Only the buckets up to the one holding the element are
+         *         copied.
+         */
+        @SuppressFBWarnings("FE_FLOATING_POINT_EQUALITY")
+        Node without(final Object e, final double x, final double y) {
+            final List<Leaf> path = new ArrayList<>();
+            for (Leaf bucket = this; bucket != null; bucket = bucket.next) {
+                final int length = bucket.elements.length;
+                for (int i = 0; i < length; i++) {
+                    if (bucket.xs[i] == x && bucket.ys[i] == y && Objects.equals(e, bucket.elements[i])) {
+                        Leaf result = bucket.next;
+                        if (length > 1) {
+                            final double[] nx = new double[length - 1];
+                            final double[] ny = new double[length - 1];
+                            final Object[] ne = new Object[length - 1];
+                            System.arraycopy(bucket.xs, 0, nx, 0, i);
+                            System.arraycopy(bucket.ys, 0, ny, 0, i);
+                            System.arraycopy(bucket.elements, 0, ne, 0, i);
+                            System.arraycopy(bucket.xs, i + 1, nx, i, length - i - 1);
+                            System.arraycopy(bucket.ys, i + 1, ny, i, length - i - 1);
+                            System.arraycopy(bucket.elements, i + 1, ne, i, length - i - 1);
+                            result = new Leaf(nx, ny, ne, result);
+                        }
+                        for (int p = path.size() - 1; p >= 0; p--) {
+                            final Leaf previous = path.get(p);
+                            result = new Leaf(previous.xs, previous.ys, previous.elements, result);
+                        }
+                        return result == null ? EMPTY : result;
+                    }
+                }
+                path.add(bucket);
+            }
+            return this;
+        }
+
+        /**
+         * Splits in four leaves. Only one level is created: children that
+         * still exceed the capacity get split when they receive a further
+         * element.
+         */
+        Inner split(final double cx, final double cy) {
+            final int[] counts = new int[CHILDREN];
+            for (Leaf bucket = this; bucket != null; bucket = bucket.next) {
+                for (int i = 0; i < bucket.elements.length; i++) {
+                    counts[quadrant(cx, cy, bucket.xs[i], bucket.ys[i])]++;
+                }
+            }
+            final double[][] cxs = new double[CHILDREN][];
+            final double[][] cys = new double[CHILDREN][];
+            final Object[][] ces = new Object[CHILDREN][];
+            for (int q = 0; q < CHILDREN; q++) {
+                cxs[q] = new double[counts[q]];
+                cys[q] = new double[counts[q]];
+                ces[q] = new Object[counts[q]];
+                counts[q] = 0;
+            }
+            for (Leaf bucket = this; bucket != null; bucket = bucket.next) {
+                for (int i = 0; i < bucket.elements.length; i++) {
+                    final int q = quadrant(cx, cy, bucket.xs[i], bucket.ys[i]);
+                    cxs[q][counts[q]] = bucket.xs[i];
+                    cys[q][counts[q]] = bucket.ys[i];
+                    ces[q][counts[q]++] = bucket.elements[i];
+                }
+            }
+            final Node[] children = new Node[CHILDREN];
+            for (int q = 0; q < CHILDREN; q++) {
+                children[q] = ces[q].length == 0 ? EMPTY : new Leaf(cxs[q], cys[q], ces[q]);
+            }
+            return new Inner(children, size);
+        }
+
+        /**
+         * Chains are serialized as a single bucket, so that long ones do not
+         * exhaust the stack.
+         */
+        private Object writeReplace() {
+            if (next == null) {
+                return this;
+            }
+            final double[] nx = new double[size];
+            final double[] ny = new double[size];
+            final Object[] ne = new Object[size];
+            Inner.gather(this, nx, ny, ne, 0);
+            return new Leaf(nx, ny, ne);
+        }
+    }
+
+    private static final class Inner extends Node {
+        private static final long serialVersionUID = 1L;
+        private final Node[] children;
+
+        Inner(final Node[] nodes, final int elements) {
+            super(elements);
+            children = nodes;
+        }
+
+        Inner with(final int quadrant, final Node child) {
+            final Node[] copy = children.clone();
+            copy[quadrant] = child;
+            return new Inner(copy, size - children[quadrant].size + child.size);
+        }
+
+        /**
+         * @return a single leaf with all the elements of the subtree
+         */
+        Leaf flatten() {
+            final double[] xs = new double[size];
+            final double[] ys = new double[size];
+            final Object[] elements = new Object[size];
+            gather(this, xs, ys, elements, 0);
+            return size == 0 ? EMPTY : new Leaf(xs, ys, elements);
+        }
+
+        private static int gather(final Node node, final double[] xs, final double[] ys, final Object[] elements,
+                final int from) {
+            if (node instanceof Leaf) {
+                int next = from;
+                for (Leaf leaf = (Leaf) node; leaf != null; leaf = leaf.next) {
+                    final int length = leaf.elements.length;
+                    System.arraycopy(leaf.xs, 0, xs, next, length);
+                    System.arraycopy(leaf.ys, 0, ys, next, length);
+                    System.arraycopy(leaf.elements, 0, elements, next, length);
+                    next += length;
+                }
+                return next;
+            }
+            int next = from;
+            for (final Node child : ((Inner) node).children) {
+                next = gather(child, xs, ys, elements, next);
+            }
+            return next;
+        }
+    }
+
+}
@@ -0,0 +1,1133 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.awt.geom.Rectangle2D;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * An R-tree indexing elements with an extent, by their axis aligned bounding
+ * boxes. Nodes and entries are slots of primitive array pools, as in
+ * {@link FlatQuadTree}: each node stores its bounding box and a fixed number
+ * of child slots, holding entry handles in leaves and child nodes elsewhere.
+ *
+ * Insertions follow the R*-tree heuristics: the subtree is chosen by least
+ * overlap enlargement just above the leaves and by least area enlargement
+ * elsewhere, and overflowing nodes are split along the axis with the least
+ * margin, at the distribution with the least overlap. Nodes left underfull by
+ * a deletion are dissolved and their entries inserted again. Static data sets
+ * are better loaded with {@link #bulkLoad(double[], Object[], int)}, which
+ * packs the boxes in Hilbert order.
+ *
+ * Boxes, of both elements and queries, are given as minimum and maximum
+ * corners, and are normalized if the corners are swapped. All the queries
+ * include the boundaries.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public class RTree<E> implements Serializable {
+
+    private static final long serialVersionUID = 5106271392461203744L;
+    private static final int NONE = -1;
+    private static final int LEAF = 0;
+    private static final int MIN_X = 0;
+    private static final int MIN_Y = 1;
+    private static final int MAX_X = 2;
+    private static final int MAX_Y = 3;
+    private static final int BOUNDS = 4;
+    private static final int DEFAULT_MAX_ENTRIES = 16;
+    private static final int MIN_MAX_ENTRIES = 4;
+    /*
+     * Nodes are kept at least 40% full, as suggested for the R*-tree
+     */
+    private static final double MIN_FILL = 0.4;
+    private static final int INITIAL_NODES = 16;
+    private static final int INITIAL_ENTRIES = 64;
+    private static final int INDEX_BITS = 31;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+    private static final int INTERSECTING = 0;
+    private static final int WITHIN = 1;
+    private static final int CONTAINING = 2;
+
+    private final int maxEntries;
+    private final int minEntries;
+    /*
+     * Node pool. Leaves are at level 0. Free nodes are chained through
+     * nodeParent.
+     */
+    private double[] nodeBounds;
+    private int[] nodeSlots;
+    private int[] nodeCount;
+    private int[] nodeLevel;
+    private int[] nodeParent;
+    private int nodeTop;
+    private int freeNode = NONE;
+    private int freeNodes;
+    private int root;
+    /*
+     * Entry pool. Free entries are chained through entryNext.
+     */
+    private double[] entryBounds;
+    private Object[] entryElement;
+    private int[] entryNode;
+    private int[] entryNext;
+    private int entryTop;
+    private int freeEntry = NONE;
+    private int size;
+
+    /**
+     * Builds an R-tree with 16 entries per node.
+     */
+    public RTree() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntriesPerNode
+     *            maximum number of entries (or children) per node, at least 4
+     */
+    public RTree(final int maxEntriesPerNode) {
+        if (maxEntriesPerNode < MIN_MAX_ENTRIES) {
+            throw new IllegalArgumentException("At least " + MIN_MAX_ENTRIES + " entries per node are required, "
+                    + maxEntriesPerNode + " given.");
+        }
+        maxEntries = maxEntriesPerNode;
+        minEntries = Math.max(2, (int) (maxEntriesPerNode * MIN_FILL));
+        nodeBounds = new double[INITIAL_NODES * BOUNDS];
+        nodeSlots = new int[INITIAL_NODES * maxEntries];
+        nodeCount = new int[INITIAL_NODES];
+        nodeLevel = new int[INITIAL_NODES];
+        nodeParent = new int[INITIAL_NODES];
+        entryBounds = new double[INITIAL_ENTRIES * BOUNDS];
+        entryElement = new Object[INITIAL_ENTRIES];
+        entryNode = new int[INITIAL_ENTRIES];
+        entryNext = new int[INITIAL_ENTRIES];
+        root = allocateNode(LEAF);
+    }
+
+    /**
+     * Builds an R-tree from a set of boxes, much faster than inserting them
+     * one by one and with much less overlap between nodes. The boxes are radix
+     * sorted by the Hilbert code of their centers, and consecutive runs are
+     * packed into full nodes, level by level. The i-th element gets handle i.
+     *
+     * @param bounds
+     *            the boxes of the elements, four values per element: minimum
+     *            x, minimum y, maximum x, maximum y
+     * @param elements
+     *            the elements
+     * @param maxEntriesPerNode
+     *            maximum number of entries (or children) per node, at least 4
+     * @param <E>
+     *            the type of the indexed elements
+     * @return a new R-tree containing the elements
+     */
+    public static <E> RTree<E> bulkLoad(final double[] bounds, final E[] elements, final int maxEntriesPerNode) {
+        final int n = elements.length;
+        if (bounds.length != n * BOUNDS) {
+            throw new IllegalArgumentException("Four bounds per element are required.");
+        }
+        final RTree<E> tree = new RTree<>(maxEntriesPerNode);
+        if (n == 0) {
+            return tree;
+        }
+        tree.ensureEntryCapacity(n);
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            final int base = i * BOUNDS;
+            if (!tree.store(i, elements[i], bounds[base + MIN_X], bounds[base + MIN_Y], bounds[base + MAX_X],
+                    bounds[base + MAX_Y])) {
+                throw new IllegalArgumentException("The box of element " + i + " is not valid.");
+            }
+            final double cx = tree.centerX(i);
+            final double cy = tree.centerY(i);
+            minX = Math.min(minX, cx);
+            minY = Math.min(minY, cy);
+            maxX = Math.max(maxX, cx);
+            maxY = Math.max(maxY, cy);
+        }
+        tree.entryTop = n;
+        tree.size = n;
+        final long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            final int qx = Morton.quantize(tree.centerX(i), minX, maxX);
+            final int qy = Morton.quantize(tree.centerY(i), minY, maxY);
+            keys[i] = hilbert(qx, qy) << INDEX_BITS | i;
+        }
+        LongArrays.radixSort(keys, n, INDEX_BITS, Morton.BITS, false);
+        int[] items = new int[n];
+        for (int i = 0; i < n; i++) {
+            items[i] = (int) (keys[i] & INDEX_MASK);
+        }
+        /*
+         * The root allocated by the constructor becomes the first leaf
+         */
+        tree.releaseNode(tree.root);
+        int level = LEAF;
+        int count = n;
+        do {
+            final int nodes = (count + tree.maxEntries - 1) / tree.maxEntries;
+            final int[] parents = new int[nodes];
+            int next = 0;
+            for (int i = 0; i < nodes; i++) {
+                /*
+                 * Runs are balanced, so that the last node is not underfull
+                 */
+                final int end = (int) ((long) count * (i + 1) / nodes);
+                final int node = tree.allocateNode(level);
+                while (next < end) {
+                    tree.append(node, items[next++]);
+                }
+                tree.refit(node);
+                parents[i] = node;
+            }
+            items = parents;
+            count = nodes;
+            level++;
+        } while (count > 1);
+        tree.root = items[0];
+        return tree;
+    }
+
+    /**
+     * Inserts an element.
+     *
+     * @param e
+     *            the element to add
+     * @param minX
+     *            the minimum x of the element bounding box
+     * @param minY
+     *            the minimum y of the element bounding box
+     * @param maxX
+     *            the maximum x of the element bounding box
+     * @param maxY
+     *            the maximum y of the element bounding box
+     * @return the handle of the element, which can be used to move or delete
+     *         it without searching the tree, or -1 if the box has NaN
+     *         coordinates. The handle stays valid until the element is
+     *         deleted, after which it may be reused for another element.
+     */
+    public int insert(final E e, final double minX, final double minY, final double maxX, final double maxY) {
+        final int entry = allocateEntry();
+        if (!store(entry, e, minX, minY, maxX, maxY)) {
+            releaseEntry(entry);
+            return NONE;
+        }
+        size++;
+        insertEntry(entry);
+        return entry;
+    }
+
+    /**
+     * Deletes the element associated to a handle.
+     *
+     * @param handle
+     *            the handle returned by
+     *            {@link #insert(Object, double, double, double, double)}
+     * @return true if the handle referred to an element, which has been
+     *         removed
+     */
+    public boolean delete(final int handle) {
+        if (!isValid(handle)) {
+            return false;
+        }
+        final int leaf = entryNode[handle];
+        removeSlot(leaf, handle);
+        releaseEntry(handle);
+        size--;
+        condense(leaf);
+        return true;
+    }
+
+    /**
+     * Deletes an element, searching it by its bounding box.
+     *
+     * @param e
+     *            the element to delete
+     * @param minX
+     *            the minimum x of the element bounding box
+     * @param minY
+     *            the minimum y of the element bounding box
+     * @param maxX
+     *            the maximum x of the element bounding box
+     * @param maxY
+     *            the maximum y of the element bounding box
+     * @return true if the element is found and removed
+     */
+    public boolean delete(final E e, final double minX, final double minY, final double maxX, final double maxY) {
+        return delete(findEntry(root, e, Math.min(minX, maxX), Math.min(minY, maxY),
+                Math.max(minX, maxX), Math.max(minY, maxY)));
+    }
+
+    /**
+     * Changes the bounding box of the element associated to a handle. If the
+     * new box lies within the one of the leaf, this is a constant time
+     * update; otherwise the element is removed and inserted again.
+     *
+     * @param handle
+     *            the handle returned by
+     *            {@link #insert(Object, double, double, double, double)}
+     * @param minX
+     *            the new minimum x
+     * @param minY
+     *            the new minimum y
+     * @param maxX
+     *            the new maximum x
+     * @param maxY
+     *            the new maximum y
+     * @return true if the handle referred to an element and the box is valid
+     */
+    @SuppressWarnings("unchecked")
+    public boolean move(final int handle, final double minX, final double minY, final double maxX, final double maxY) {
+        if (!isValid(handle) || Double.isNaN(minX + minY + maxX + maxY)) {
+            return false;
+        }
+        final int leaf = entryNode[handle];
+        store(handle, (E) entryElement[handle], minX, minY, maxX, maxY);
+        final int base = handle * BOUNDS;
+        if (!contains(nodeBounds, leaf, entryBounds[base + MIN_X], entryBounds[base + MIN_Y],
+                entryBounds[base + MAX_X], entryBounds[base + MAX_Y])) {
+            removeSlot(leaf, handle);
+            condense(leaf);
+            insertEntry(handle);
+        }
+        return true;
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return the element associated to the handle
+     */
+    @SuppressWarnings("unchecked")
+    public E getElement(final int handle) {
+        checkHandle(handle);
+        return (E) entryElement[handle];
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return a copy of the bounding box of the element
+     */
+    public Rectangle2D getBounds(final int handle) {
+        checkHandle(handle);
+        final int base = handle * BOUNDS;
+        final Rectangle2D result = new Rectangle2D.Double();
+        result.setFrameFromDiagonal(entryBounds[base + MIN_X], entryBounds[base + MIN_Y],
+                entryBounds[base + MAX_X], entryBounds[base + MAX_Y]);
+        return result;
+    }
+
+    /**
+     * @param range
+     *            the range
+     * @return the elements whose box intersects the range
+     */
+    public List<E> query(final Rectangle2D range) {
+        final List<E> result = new ArrayList<>();
+        query(range.getMinX(), range.getMinY(), range.getMaxX(), range.getMaxY(), result);
+        return result;
+    }
+
+    /**
+     * Collects the elements whose box intersects the given range.
+     *
+     * @param minX
+     *            minimum x of the range
+     * @param minY
+     *            minimum y of the range
+     * @param maxX
+     *            maximum x of the range
+     * @param maxY
+     *            maximum y of the range
+     * @param buffer
+     *            the collection where the results are added
+     */
+    public void query(final double minX, final double minY, final double maxX, final double maxY,
+            final Collection<? super E> buffer) {
+        search(root, INTERSECTING, Math.min(minX, maxX), Math.min(minY, maxY), Math.max(minX, maxX),
+                Math.max(minY, maxY), buffer, null);
+    }
+
+    /**
+     * Feeds the elements whose box intersects the given range to a visitor.
+     *
+     * @param minX
+     *            minimum x of the range
+     * @param minY
+     *            minimum y of the range
+     * @param maxX
+     *            maximum x of the range
+     * @param maxY
+     *            maximum y of the range
+     * @param visitor
+     *            the visitor
+     * @return false if the visitor stopped the query, true otherwise
+     */
+    public boolean query(final double minX, final double minY, final double maxX, final double maxY,
+            final BoundingBoxVisitor<? super E> visitor) {
+        return search(root, INTERSECTING, Math.min(minX, maxX), Math.min(minY, maxY), Math.max(minX, maxX),
+                Math.max(minY, maxY), null, Objects.requireNonNull(visitor));
+    }
+
+    /**
+     * Collects the elements whose box lies entirely within the given range.
+     *
+     * @param minX
+     *            minimum x of the range
+     * @param minY
+     *            minimum y of the range
+     * @param maxX
+     *            maximum x of the range
+     * @param maxY
+     *            maximum y of the range
+     * @param buffer
+     *            the collection where the results are added
+     */
+    public void queryWithin(final double minX, final double minY, final double maxX, final double maxY,
+            final Collection<? super E> buffer) {
+        search(root, WITHIN, Math.min(minX, maxX), Math.min(minY, maxY), Math.max(minX, maxX),
+                Math.max(minY, maxY), buffer, null);
+    }
+
+    /**
+     * Collects the elements whose box entirely contains the given range. With
+     * a degenerate range, this is a point location query: for instance, the
+     * regions a point lies in.
+     *
+     * @param minX
+     *            minimum x of the range
+     * @param minY
+     *            minimum y of the range
+     * @param maxX
+     *            maximum x of the range
+     * @param maxY
+     *            maximum y of the range
+     * @param buffer
+     *            the collection where the results are added
+     */
+    public void queryContaining(final double minX, final double minY, final double maxX, final double maxY,
+            final Collection<? super E> buffer) {
+        search(root, CONTAINING, Math.min(minX, maxX), Math.min(minY, maxY), Math.max(minX, maxX),
+                Math.max(minY, maxY), buffer, null);
+    }
+
+    /**
+     * @param x
+     *            the x coordinate of the reference point
+     * @param y
+     *            the y coordinate of the reference point
+     * @return the element whose box is closest to the given point (boxes
+     *         containing the point being at distance 0), or null if the tree
+     *         is empty
+     */
+    public E nearest(final double x, final double y) {
+        final List<E> result = kNearest(x, y, 1, Double.POSITIVE_INFINITY);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Best-first search of the k elements whose boxes are closest to a point,
+     * as {@link FlatQuadTree#kNearest(double, double, int, double)}.
+     *
+     * @param x
+     *            the x coordinate of the reference point
+     * @param y
+     *            the y coordinate of the reference point
+     * @param k
+     *            the maximum number of elements to retrieve
+     * @param maxRadius
+     *            the maximum distance from the reference point
+     * @return at most k elements within maxRadius from the given point, sorted
+     *         by increasing distance
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    @SuppressWarnings("unchecked")
+    public List<E> kNearest(final double x, final double y, final int k, final double maxRadius) {
+        final double maxDistSq = squared(maxRadius);
+        final List<E> result = new ArrayList<>(Math.max(0, Math.min(k, size)));
+        if (size == 0) {
+            return result;
+        }
+        final DoubleIntMinHeap queue = new DoubleIntMinHeap();
+        queue.push(distanceSq(nodeBounds, root, x, y), root);
+        while (result.size() < k && !queue.isEmpty() && queue.peekKey() <= maxDistSq) {
+            final int item = queue.peekValue();
+            queue.pop();
+            if (item < 0) {
+                result.add((E) entryElement[~item]);
+            } else {
+                final boolean leaf = nodeLevel[item] == LEAF;
+                final double[] bounds = leaf ? entryBounds : nodeBounds;
+                for (int i = 0; i < nodeCount[item]; i++) {
+                    final int child = nodeSlots[item * maxEntries + i];
+                    final double distSq = distanceSq(bounds, child, x, y);
+                    if (distSq <= maxDistSq) {
+                        queue.push(distSq, leaf ? ~child : child);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of elements currently indexed
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of nodes currently in the tree
+     */
+    public int getNodeCount() {
+        return nodeTop - freeNodes;
+    }
+
+    /**
+     * @return the number of levels of the tree, 1 if the root is a leaf
+     */
+    public int getHeight() {
+        return nodeLevel[root] + 1;
+    }
+
+    /**
+     * @return the maximum number of entries (or children) per node
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " with " + size + " elements in " + getNodeCount() + " nodes, height "
+                + getHeight();
+    }
+
+    /*
+     * Boxes
+     */
+
+    private static boolean intersects(final double[] bounds, final int item, final double x, final double y,
+            final double mx, final double my) {
+        final int base = item * BOUNDS;
+        return x <= bounds[base + MAX_X] && mx >= bounds[base + MIN_X]
+                && y <= bounds[base + MAX_Y] && my >= bounds[base + MIN_Y];
+    }
+
+    private static boolean contains(final double[] bounds, final int item, final double x, final double y,
+            final double mx, final double my) {
+        final int base = item * BOUNDS;
+        return x >= bounds[base + MIN_X] && mx <= bounds[base + MAX_X]
+                && y >= bounds[base + MIN_Y] && my <= bounds[base + MAX_Y];
+    }
+
+    private static boolean within(final double[] bounds, final int item, final double x, final double y,
+            final double mx, final double my) {
+        final int base = item * BOUNDS;
+        return bounds[base + MIN_X] >= x && bounds[base + MAX_X] <= mx
+                && bounds[base + MIN_Y] >= y && bounds[base + MAX_Y] <= my;
+    }
+
+    private static double squared(final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("The radius must be non negative, " + radius + " given.");
+        }
+        return radius * radius;
+    }
+
+    private static double distanceSq(final double[] bounds, final int item, final double x, final double y) {
+        final int base = item * BOUNDS;
+        final double dx = Math.max(0, Math.max(bounds[base + MIN_X] - x, x - bounds[base + MAX_X]));
+        final double dy = Math.max(0, Math.max(bounds[base + MIN_Y] - y, y - bounds[base + MAX_Y]));
+        return dx * dx + dy * dy;
+    }
+
+    private static double area(final double x, final double y, final double mx, final double my) {
+        return (mx - x) * (my - y);
+    }
+
+    private static double area(final double[] bounds, final int item) {
+        final int base = item * BOUNDS;
+        return area(bounds[base + MIN_X], bounds[base + MIN_Y], bounds[base + MAX_X], bounds[base + MAX_Y]);
+    }
+
+    private static double overlap(final double x, final double y, final double mx, final double my,
+            final double[] bounds, final int item) {
+        final int base = item * BOUNDS;
+        final double w = Math.min(mx, bounds[base + MAX_X]) - Math.max(x, bounds[base + MIN_X]);
+        final double h = Math.min(my, bounds[base + MAX_Y]) - Math.max(y, bounds[base + MIN_Y]);
+        return w > 0 && h > 0 ? w * h : 0;
+    }
+
+    private double centerX(final int entry) {
+        return (entryBounds[entry * BOUNDS + MIN_X] + entryBounds[entry * BOUNDS + MAX_X]) / 2;
+    }
+
+    private double centerY(final int entry) {
+        return (entryBounds[entry * BOUNDS + MIN_Y] + entryBounds[entry * BOUNDS + MAX_Y]) / 2;
+    }
+
+    /**
+     * Position of a cell along the Hilbert curve filling the 2^16 x 2^16 grid.
+     * Unlike the Z-order, consecutive cells are always adjacent, which makes
+     * tighter packed nodes.
+     */
+    private static long hilbert(final int qx, final int qy) {
+        int x = qx;
+        int y = qy;
+        long d = 0;
+        for (int s = Morton.CELLS / 2; s > 0; s /= 2) {
+            final int rx = (x & s) == 0 ? 0 : 1;
+            final int ry = (y & s) == 0 ? 0 : 1;
+            d += (long) s * s * (3 * rx ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = Morton.CELLS - 1 - x;
+                    y = Morton.CELLS - 1 - y;
+                }
+                final int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /*
+     * Node pool management
+     */
+
+    private int allocateNode(final int level) {
+        final int node;
+        if (freeNode == NONE) {
+            node = nodeTop++;
+            if (node == nodeCount.length) {
+                final int capacity = grow(node);
+                nodeBounds = Arrays.copyOf(nodeBounds, capacity * BOUNDS);
+                nodeSlots = Arrays.copyOf(nodeSlots, capacity * maxEntries);
+                nodeCount = Arrays.copyOf(nodeCount, capacity);
+                nodeLevel = Arrays.copyOf(nodeLevel, capacity);
+                nodeParent = Arrays.copyOf(nodeParent, capacity);
+            }
+        } else {
+            node = freeNode;
+            freeNode = nodeParent[node];
+            freeNodes--;
+        }
+        nodeCount[node] = 0;
+        nodeLevel[node] = level;
+        nodeParent[node] = NONE;
+        Arrays.fill(nodeBounds, node * BOUNDS, node * BOUNDS + BOUNDS, Double.NaN);
+        return node;
+    }
+
+    private void releaseNode(final int node) {
+        nodeCount[node] = 0;
+        nodeParent[node] = freeNode;
+        freeNode = node;
+        freeNodes++;
+    }
+
+    private static int grow(final int capacity) {
+        return capacity + Math.max(1, capacity >> 1);
+    }
+
+    /**
+     * Adds an item to a node with room for it, without updating the bounds.
+     */
+    private void append(final int node, final int item) {
+        nodeSlots[node * maxEntries + nodeCount[node]++] = item;
+        if (nodeLevel[node] == LEAF) {
+            entryNode[item] = node;
+        } else {
+            nodeParent[item] = node;
+        }
+    }
+
+    private void removeSlot(final int node, final int item) {
+        final int base = node * maxEntries;
+        final int last = base + --nodeCount[node];
+        for (int i = base; i <= last; i++) {
+            if (nodeSlots[i] == item) {
+                nodeSlots[i] = nodeSlots[last];
+                return;
+            }
+        }
+        throw new IllegalStateException("Corrupted tree: " + item + " not found in node " + node);
+    }
+
+    /**
+     * Recomputes the bounds of a node from its items; NaN if it is empty.
+     */
+    private void refit(final int node) {
+        final double[] bounds = nodeLevel[node] == LEAF ? entryBounds : nodeBounds;
+        double x = Double.NaN;
+        double y = Double.NaN;
+        double mx = Double.NaN;
+        double my = Double.NaN;
+        for (int i = 0; i < nodeCount[node]; i++) {
+            final int base = nodeSlots[node * maxEntries + i] * BOUNDS;
+            if (i == 0) {
+                x = bounds[base + MIN_X];
+                y = bounds[base + MIN_Y];
+                mx = bounds[base + MAX_X];
+                my = bounds[base + MAX_Y];
+            } else {
+                x = Math.min(x, bounds[base + MIN_X]);
+                y = Math.min(y, bounds[base + MIN_Y]);
+                mx = Math.max(mx, bounds[base + MAX_X]);
+                my = Math.max(my, bounds[base + MAX_Y]);
+            }
+        }
+        final int base = node * BOUNDS;
+        nodeBounds[base + MIN_X] = x;
+        nodeBounds[base + MIN_Y] = y;
+        nodeBounds[base + MAX_X] = mx;
+        nodeBounds[base + MAX_Y] = my;
+    }
+
+    /**
+     * Enlarges a node and its ancestors to include a box, stopping as soon as
+     * an ancestor already contains it.
+     */
+    private void extend(final int node, final double x, final double y, final double mx, final double my) {
+        for (int n = node; n != NONE && !contains(nodeBounds, n, x, y, mx, my); n = nodeParent[n]) {
+            final int base = n * BOUNDS;
+            if (Double.isNaN(nodeBounds[base + MIN_X])) {
+                nodeBounds[base + MIN_X] = x;
+                nodeBounds[base + MIN_Y] = y;
+                nodeBounds[base + MAX_X] = mx;
+                nodeBounds[base + MAX_Y] = my;
+            } else {
+                nodeBounds[base + MIN_X] = Math.min(x, nodeBounds[base + MIN_X]);
+                nodeBounds[base + MIN_Y] = Math.min(y, nodeBounds[base + MIN_Y]);
+                nodeBounds[base + MAX_X] = Math.max(mx, nodeBounds[base + MAX_X]);
+                nodeBounds[base + MAX_Y] = Math.max(my, nodeBounds[base + MAX_Y]);
+            }
+        }
+    }
+
+    /*
+     * Insertion
+     */
+
+    private void insertEntry(final int entry) {
+        final int base = entry * BOUNDS;
+        final double x = entryBounds[base + MIN_X];
+        final double y = entryBounds[base + MIN_Y];
+        final double mx = entryBounds[base + MAX_X];
+        final double my = entryBounds[base + MAX_Y];
+        int node = root;
+        while (nodeLevel[node] != LEAF) {
+            node = chooseSubtree(node, x, y, mx, my);
+        }
+        add(node, entry, x, y, mx, my);
+    }
+
+    private void add(final int node, final int item, final double x, final double y, final double mx,
+            final double my) {
+        if (nodeCount[node] < maxEntries) {
+            append(node, item);
+            extend(node, x, y, mx, my);
+        } else {
+            split(node, item);
+        }
+    }
+
+    private int chooseSubtree(final int node, final double x, final double y, final double mx, final double my) {
+        final boolean aboveLeaves = nodeLevel[node] == LEAF + 1;
+        final int base = node * maxEntries;
+        final int count = nodeCount[node];
+        int best = NONE;
+        double bestOverlap = Double.POSITIVE_INFINITY;
+        double bestEnlargement = Double.POSITIVE_INFINITY;
+        double bestArea = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            final int child = nodeSlots[base + i];
+            final int cb = child * BOUNDS;
+            final double ux = Math.min(x, nodeBounds[cb + MIN_X]);
+            final double uy = Math.min(y, nodeBounds[cb + MIN_Y]);
+            final double umx = Math.max(mx, nodeBounds[cb + MAX_X]);
+            final double umy = Math.max(my, nodeBounds[cb + MAX_Y]);
+            final double area = area(nodeBounds, child);
+            final double enlargement = area(ux, uy, umx, umy) - area;
+            double overlap = 0;
+            if (aboveLeaves && enlargement > 0) {
+                for (int j = 0; j < count; j++) {
+                    if (j != i) {
+                        final int other = nodeSlots[base + j];
+                        overlap += overlap(ux, uy, umx, umy, nodeBounds, other)
+                                - overlap(nodeBounds[cb + MIN_X], nodeBounds[cb + MIN_Y], nodeBounds[cb + MAX_X],
+                                        nodeBounds[cb + MAX_Y], nodeBounds, other);
+                    }
+                }
+            }
+            if (overlap < bestOverlap
+                    || overlap == bestOverlap && (enlargement < bestEnlargement
+                            || enlargement == bestEnlargement && area < bestArea)) {
+                best = child;
+                bestOverlap = overlap;
+                bestEnlargement = enlargement;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Splits a full node receiving a further item, R*-tree style. The split
+     * axis is the one minimizing the sum of the margins of all the legal
+     * distributions, and along it the distribution with the least overlap
+     * (then the least area) is taken. The new sibling is added to the parent,
+     * possibly splitting it in turn; a split root gets a new parent.
+     */
+    private void split(final int node, final int extra) {
+        final int level = nodeLevel[node];
+        final double[] bounds = level == LEAF ? entryBounds : nodeBounds;
+        final int n = maxEntries + 1;
+        final int[] items = new int[n];
+        System.arraycopy(nodeSlots, node * maxEntries, items, 0, maxEntries);
+        items[maxEntries] = extra;
+        final int[][] orders = new int[BOUNDS][];
+        for (int which = 0; which < BOUNDS; which++) {
+            orders[which] = sortedBy(items, bounds, which);
+        }
+        /*
+         * The orders by MIN_X and MAX_X are along x, the others along y
+         */
+        final double marginX = margins(orders[MIN_X], bounds) + margins(orders[MAX_X], bounds);
+        final double marginY = margins(orders[MIN_Y], bounds) + margins(orders[MAX_Y], bounds);
+        final int[][] candidates = marginX <= marginY
+                ? new int[][] { orders[MIN_X], orders[MAX_X] }
+                : new int[][] { orders[MIN_Y], orders[MAX_Y] };
+        int[] bestOrder = null;
+        int bestSplit = NONE;
+        double bestOverlap = Double.POSITIVE_INFINITY;
+        double bestArea = Double.POSITIVE_INFINITY;
+        for (final int[] order : candidates) {
+            final double[] prefix = cumulate(order, bounds, false);
+            final double[] suffix = cumulate(order, bounds, true);
+            for (int k = minEntries; k <= n - minEntries; k++) {
+                final int pb = (k - 1) * BOUNDS;
+                final int sb = k * BOUNDS;
+                final double w = Math.min(prefix[pb + MAX_X], suffix[sb + MAX_X])
+                        - Math.max(prefix[pb + MIN_X], suffix[sb + MIN_X]);
+                final double h = Math.min(prefix[pb + MAX_Y], suffix[sb + MAX_Y])
+                        - Math.max(prefix[pb + MIN_Y], suffix[sb + MIN_Y]);
+                final double overlap = w > 0 && h > 0 ? w * h : 0;
+                final double area = area(prefix[pb + MIN_X], prefix[pb + MIN_Y], prefix[pb + MAX_X], prefix[pb + MAX_Y])
+                        + area(suffix[sb + MIN_X], suffix[sb + MIN_Y], suffix[sb + MAX_X], suffix[sb + MAX_Y]);
+                if (overlap < bestOverlap || overlap == bestOverlap && area < bestArea) {
+                    bestOrder = order;
+                    bestSplit = k;
+                    bestOverlap = overlap;
+                    bestArea = area;
+                }
+            }
+        }
+        final int sibling = allocateNode(level);
+        nodeCount[node] = 0;
+        for (int i = 0; i < n; i++) {
+            append(i < bestSplit ? node : sibling, bestOrder[i]);
+        }
+        refit(node);
+        refit(sibling);
+        final int parent = nodeParent[node];
+        if (parent == NONE) {
+            final int newRoot = allocateNode(level + 1);
+            append(newRoot, node);
+            append(newRoot, sibling);
+            refit(newRoot);
+            root = newRoot;
+        } else {
+            final int nb = node * BOUNDS;
+            extend(parent, nodeBounds[nb + MIN_X], nodeBounds[nb + MIN_Y], nodeBounds[nb + MAX_X],
+                    nodeBounds[nb + MAX_Y]);
+            final int sb = sibling * BOUNDS;
+            add(parent, sibling, nodeBounds[sb + MIN_X], nodeBounds[sb + MIN_Y], nodeBounds[sb + MAX_X],
+                    nodeBounds[sb + MAX_Y]);
+        }
+    }
+
+    /**
+     * Insertion sort, items are at most a few tens.
+     */
+    private static int[] sortedBy(final int[] items, final double[] bounds, final int which) {
+        final int[] order = items.clone();
+        for (int i = 1; i < order.length; i++) {
+            final int item = order[i];
+            final double key = bounds[item * BOUNDS + which];
+            int j = i - 1;
+            while (j >= 0 && bounds[order[j] * BOUNDS + which] > key) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = item;
+        }
+        return order;
+    }
+
+    /**
+     * @return the bounding boxes of the first (or last) i + 1 items, for each
+     *         i
+     */
+    private static double[] cumulate(final int[] order, final double[] bounds, final boolean fromEnd) {
+        final int n = order.length;
+        final double[] result = new double[n * BOUNDS];
+        for (int step = 0; step < n; step++) {
+            final int i = fromEnd ? n - 1 - step : step;
+            final int base = order[i] * BOUNDS;
+            final int out = i * BOUNDS;
+            if (step == 0) {
+                System.arraycopy(bounds, base, result, out, BOUNDS);
+            } else {
+                final int previous = (fromEnd ? i + 1 : i - 1) * BOUNDS;
+                result[out + MIN_X] = Math.min(result[previous + MIN_X], bounds[base + MIN_X]);
+                result[out + MIN_Y] = Math.min(result[previous + MIN_Y], bounds[base + MIN_Y]);
+                result[out + MAX_X] = Math.max(result[previous + MAX_X], bounds[base + MAX_X]);
+                result[out + MAX_Y] = Math.max(result[previous + MAX_Y], bounds[base + MAX_Y]);
+            }
+        }
+        return result;
+    }
+
+    private double margins(final int[] order, final double[] bounds) {
+        final double[] prefix = cumulate(order, bounds, false);
+        final double[] suffix = cumulate(order, bounds, true);
+        double sum = 0;
+        for (int k = minEntries; k <= order.length - minEntries; k++) {
+            final int pb = (k - 1) * BOUNDS;
+            final int sb = k * BOUNDS;
+            sum += prefix[pb + MAX_X] - prefix[pb + MIN_X] + prefix[pb + MAX_Y] - prefix[pb + MIN_Y]
+                    + suffix[sb + MAX_X] - suffix[sb + MIN_X] + suffix[sb + MAX_Y] - suffix[sb + MIN_Y];
+        }
+        return sum;
+    }
+
+    /*
+     * Deletion
+     */
+
+    /**
+     * Walks up from a leaf that lost an item: underfull nodes are detached
+     * and their entries inserted again, the others are refitted. Then, a root
+     * with a single child is replaced by the child.
+     */
+    private void condense(final int leaf) {
+        int[] orphans = new int[0];
+        int orphanCount = 0;
+        int node = leaf;
+        while (node != root) {
+            final int parent = nodeParent[node];
+            if (nodeCount[node] < minEntries) {
+                removeSlot(parent, node);
+                final int subtree = countEntries(node);
+                if (orphanCount + subtree > orphans.length) {
+                    orphans = Arrays.copyOf(orphans, Math.max(orphanCount + subtree, grow(orphans.length)));
+                }
+                orphanCount = dissolve(node, orphans, orphanCount);
+            } else {
+                refit(node);
+            }
+            node = parent;
+        }
+        refit(root);
+        while (nodeLevel[root] != LEAF && nodeCount[root] == 1) {
+            final int old = root;
+            root = nodeSlots[old * maxEntries];
+            nodeParent[root] = NONE;
+            releaseNode(old);
+        }
+        if (nodeCount[root] == 0) {
+            nodeLevel[root] = LEAF;
+        }
+        for (int i = 0; i < orphanCount; i++) {
+            insertEntry(orphans[i]);
+        }
+    }
+
+    private int countEntries(final int node) {
+        if (nodeLevel[node] == LEAF) {
+            return nodeCount[node];
+        }
+        int total = 0;
+        for (int i = 0; i < nodeCount[node]; i++) {
+            total += countEntries(nodeSlots[node * maxEntries + i]);
+        }
+        return total;
+    }
+
+    /**
+     * Releases a subtree, collecting its entries.
+     *
+     * @return the new number of collected entries
+     */
+    private int dissolve(final int node, final int[] entries, final int count) {
+        int result = count;
+        for (int i = 0; i < nodeCount[node]; i++) {
+            final int item = nodeSlots[node * maxEntries + i];
+            if (nodeLevel[node] == LEAF) {
+                entries[result++] = item;
+            } else {
+                result = dissolve(item, entries, result);
+            }
+        }
+        releaseNode(node);
+        return result;
+    }
+
+    /*
+     * Entry pool management
+     */
+
+    private void ensureEntryCapacity(final int capacity) {
+        if (capacity > entryElement.length) {
+            entryBounds = Arrays.copyOf(entryBounds, capacity * BOUNDS);
+            entryElement = Arrays.copyOf(entryElement, capacity);
+            entryNode = Arrays.copyOf(entryNode, capacity);
+            entryNext = Arrays.copyOf(entryNext, capacity);
+        }
+    }
+
+    private int allocateEntry() {
+        if (freeEntry != NONE) {
+            final int entry = freeEntry;
+            freeEntry = entryNext[entry];
+            return entry;
+        }
+        if (entryTop == entryElement.length) {
+            ensureEntryCapacity(grow(entryTop));
+        }
+        return entryTop++;
+    }
+
+    private void releaseEntry(final int entry) {
+        entryElement[entry] = null;
+        entryNode[entry] = NONE;
+        entryNext[entry] = freeEntry;
+        freeEntry = entry;
+    }
+
+    /**
+     * Writes the element and its normalized box in an entry slot.
+     *
+     * @return false if the box has NaN coordinates
+     */
+    private boolean store(final int entry, final E e, final double x, final double y, final double mx,
+            final double my) {
+        if (Double.isNaN(x + y + mx + my)) {
+            return false;
+        }
+        final int base = entry * BOUNDS;
+        entryBounds[base + MIN_X] = Math.min(x, mx);
+        entryBounds[base + MIN_Y] = Math.min(y, my);
+        entryBounds[base + MAX_X] = Math.max(x, mx);
+        entryBounds[base + MAX_Y] = Math.max(y, my);
+        entryElement[entry] = e;
+        return true;
+    }
+
+    private boolean isValid(final int handle) {
+        return handle >= 0 && handle < entryTop && entryNode[handle] != NONE;
+    }
+
+    private void checkHandle(final int handle) {
+        if (!isValid(handle)) {
+            throw new IllegalArgumentException("Invalid handle: " + handle);
+        }
+    }
+
+    @SuppressFBWarnings("FE_FLOATING_POINT_EQUALITY")
+    private int findEntry(final int node, final E e, final double x, final double y, final double mx,
+            final double my) {
+        if (!contains(nodeBounds, node, x, y, mx, my)) {
+            return NONE;
+        }
+        for (int i = 0; i < nodeCount[node]; i++) {
+            final int item = nodeSlots[node * maxEntries + i];
+            if (nodeLevel[node] == LEAF) {
+                final int base = item * BOUNDS;
+                if (entryBounds[base + MIN_X] == x && entryBounds[base + MIN_Y] == y
+                        && entryBounds[base + MAX_X] == mx && entryBounds[base + MAX_Y] == my
+                        && Objects.equals(e, entryElement[item])) {
+                    return item;
+                }
+            } else {
+                final int found = findEntry(item, e, x, y, mx, my);
+                if (found != NONE) {
+                    return found;
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /*
+     * Queries
+     */
+
+    /**
+     * Shared traversal of the window queries. Results go to the collection
+     * if not null, to the visitor otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean search(final int node, final int mode, final double x, final double y, final double mx,
+            final double my, final Collection<? super E> results, final BoundingBoxVisitor<? super E> visitor) {
+        if (mode == CONTAINING ? !contains(nodeBounds, node, x, y, mx, my)
+                : !intersects(nodeBounds, node, x, y, mx, my)) {
+            return true;
+        }
+        final int base = node * maxEntries;
+        if (nodeLevel[node] == LEAF) {
+            for (int i = 0; i < nodeCount[node]; i++) {
+                final int entry = nodeSlots[base + i];
+                final boolean match;
+                if (mode == INTERSECTING) {
+                    match = intersects(entryBounds, entry, x, y, mx, my);
+                } else if (mode == WITHIN) {
+                    match = within(entryBounds, entry, x, y, mx, my);
+                } else {
+                    match = contains(entryBounds, entry, x, y, mx, my);
+                }
+                if (match) {
+                    if (results == null) {
+                        final int eb = entry * BOUNDS;
+                        if (!visitor.visit((E) entryElement[entry], entryBounds[eb + MIN_X], entryBounds[eb + MIN_Y],
+                                entryBounds[eb + MAX_X], entryBounds[eb + MAX_Y])) {
+                            return false;
+                        }
+                    } else {
+                        results.add((E) entryElement[entry]);
+                    }
+                }
+            }
+            return true;
+        }
+        for (int i = 0; i < nodeCount[node]; i++) {
+            if (!search(nodeSlots[base + i], mode, x, y, mx, my, results, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
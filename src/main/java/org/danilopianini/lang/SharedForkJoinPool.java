@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Lazily created {@link ForkJoinPool} shared by the parallel operations of
+ * this package (Java 7 has no common pool). Its workers are daemon threads.
+ */
+final class SharedForkJoinPool {
+
+    private SharedForkJoinPool() {
+    }
+
+    private static final class Holder {
+        private static final ForkJoinPool POOL = new ForkJoinPool();
+    }
+
+    static ForkJoinPool get() {
+        return Holder.POOL;
+    }
+
+}
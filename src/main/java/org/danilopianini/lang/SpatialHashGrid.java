@@ -0,0 +1,502 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.awt.geom.Rectangle2D;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * A {@link SpatialIndex} hashing elements into square cells of fixed size.
+ * There is no hierarchy to descend: a query inspects directly the cells it
+ * overlaps, which makes this index cheaper than a tree when the density is
+ * roughly uniform and the queries are about the size of a cell. The space is
+ * unbounded, and only the occupied cells are stored, indexed by their packed
+ * integer coordinates in a primitive map. Entries live in primitive array
+ * pools, as in {@link FlatQuadTree}, and can be handled directly through the
+ * handles returned by {@link #insertWithHandle(Object, double, double)}.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public class SpatialHashGrid<E> implements SpatialIndex<E>, Serializable {
+
+    private static final long serialVersionUID = 4021632095587140163L;
+    private static final int NONE = -1;
+    private static final int INITIAL_CELLS = 64;
+    private static final int INITIAL_ENTRIES = 64;
+    private static final float LOAD_FACTOR = 0.5f;
+    private static final long ROW_MASK = 0xFFFFFFFFL;
+    private static final int MIX_SHIFT = 33;
+    private static final long MIX_1 = 0xFF51AFD7ED558CCDL;
+    private static final long MIX_2 = 0xC4CEB9FE1A85EC53L;
+
+    private final double side;
+    private final double inverse;
+    private final TLongIntHashMap cellIndex = new TLongIntHashMap(INITIAL_CELLS, LOAD_FACTOR, Long.MIN_VALUE, NONE);
+    /*
+     * Cell pool: free cells are chained through cellHead
+     */
+    private long[] cellKey = new long[INITIAL_CELLS];
+    private int[] cellHead = new int[INITIAL_CELLS];
+    private int[] cellSize = new int[INITIAL_CELLS];
+    private int cellTop;
+    private int freeCell = NONE;
+    /*
+     * Entry pool: each cell holds a doubly linked list of entries. Free
+     * entries are chained through entryNext.
+     */
+    private double[] entryX = new double[INITIAL_ENTRIES];
+    private double[] entryY = new double[INITIAL_ENTRIES];
+    private Object[] entryElement = new Object[INITIAL_ENTRIES];
+    private int[] entryCell = new int[INITIAL_ENTRIES];
+    private int[] entryNext = new int[INITIAL_ENTRIES];
+    private int[] entryPrev = new int[INITIAL_ENTRIES];
+    private int entryTop;
+    private int freeEntry = NONE;
+    private int size;
+
+    /**
+     * @param cellSide
+     *            the side of the cells. Queries are fastest when the cells
+     *            hold a few elements and are about as large as the queries.
+     */
+    public SpatialHashGrid(final double cellSide) {
+        if (!(cellSide > 0) || Double.isInfinite(cellSide)) {
+            throw new IllegalArgumentException("The cell side must be positive and finite, " + cellSide + " given.");
+        }
+        side = cellSide;
+        inverse = 1 / cellSide;
+    }
+
+    @Override
+    public boolean delete(final E e, final double x, final double y) {
+        return delete(findEntry(e, x, y));
+    }
+
+    @Override
+    public boolean insert(final E e, final double x, final double y) {
+        return insertWithHandle(e, x, y) != NONE;
+    }
+
+    /**
+     * Inserts an element, and returns a handle that can be used to move or
+     * delete it without searching the grid. The handle stays valid until the
+     * element is deleted, after which it may be reused for another element.
+     *
+     * @param e
+     *            The element to add
+     * @param x
+     *            the x position of the element
+     * @param y
+     *            the y position of the element
+     * @return the handle of the inserted element, or -1 if a coordinate is not
+     *         finite
+     */
+    public int insertWithHandle(final E e, final double x, final double y) {
+        if (!isFinite(x) || !isFinite(y)) {
+            return NONE;
+        }
+        final int entry = allocateEntry();
+        entryElement[entry] = e;
+        entryX[entry] = x;
+        entryY[entry] = y;
+        link(entry, cellOf(x, y));
+        size++;
+        return entry;
+    }
+
+    /**
+     * Deletes the element associated to a handle, in constant time.
+     *
+     * @param handle
+     *            the handle returned by
+     *            {@link #insertWithHandle(Object, double, double)}
+     * @return true if the handle referred to an element, which has been
+     *         removed
+     */
+    public boolean delete(final int handle) {
+        if (!isValid(handle)) {
+            return false;
+        }
+        unlink(handle);
+        entryElement[handle] = null;
+        entryCell[handle] = NONE;
+        entryNext[handle] = freeEntry;
+        freeEntry = handle;
+        size--;
+        return true;
+    }
+
+    @Override
+    public boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
+        return move(findEntry(e, sx, sy), fx, fy);
+    }
+
+    /**
+     * Moves the element associated to a handle, in constant time.
+     *
+     * @param handle
+     *            the handle returned by
+     *            {@link #insertWithHandle(Object, double, double)}
+     * @param x
+     *            the final x
+     * @param y
+     *            the final y
+     * @return true if the handle referred to an element and the destination
+     *         is finite
+     */
+    public boolean move(final int handle, final double x, final double y) {
+        if (!isValid(handle) || !isFinite(x) || !isFinite(y)) {
+            return false;
+        }
+        entryX[handle] = x;
+        entryY[handle] = y;
+        final long key = key(column(x), column(y));
+        if (cellKey[entryCell[handle]] != key) {
+            unlink(handle);
+            link(handle, cellOf(x, y));
+        }
+        return true;
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return the element associated to the handle
+     */
+    @SuppressWarnings("unchecked")
+    public E getElement(final int handle) {
+        checkHandle(handle);
+        return (E) entryElement[handle];
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return the x coordinate of the element associated to the handle
+     */
+    public double getX(final int handle) {
+        checkHandle(handle);
+        return entryX[handle];
+    }
+
+    /**
+     * @param handle
+     *            the handle
+     * @return the y coordinate of the element associated to the handle
+     */
+    public double getY(final int handle) {
+        checkHandle(handle);
+        return entryY[handle];
+    }
+
+    @Override
+    public List<E> query(final Rectangle2D range) {
+        final List<E> result = new ArrayList<>();
+        query(range.getMinX(), range.getMinY(), range.getMaxX(), range.getMaxY(), result);
+        return result;
+    }
+
+    @Override
+    public void query(final double minX, final double minY, final double maxX, final double maxY,
+            final Collection<? super E> buffer) {
+        scan(Math.min(minX, maxX), Math.min(minY, maxY), Math.max(minX, maxX), Math.max(minY, maxY), 0, 0,
+                Double.POSITIVE_INFINITY, buffer, null);
+    }
+
+    @Override
+    public boolean query(final double minX, final double minY, final double maxX, final double maxY,
+            final SpatialVisitor<? super E> visitor) {
+        return scan(Math.min(minX, maxX), Math.min(minY, maxY), Math.max(minX, maxX), Math.max(minY, maxY), 0, 0,
+                Double.POSITIVE_INFINITY, null, visitor);
+    }
+
+    @Override
+    public void queryRadius(final double cx, final double cy, final double r, final Collection<? super E> buffer) {
+        scan(cx - r, cy - r, cx + r, cy + r, cx, cy, squared(r), buffer, null);
+    }
+
+    @Override
+    public boolean queryRadius(final double cx, final double cy, final double r, final SpatialVisitor<? super E> visitor) {
+        return scan(cx - r, cy - r, cx + r, cy + r, cx, cy, squared(r), null, visitor);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the side of the cells
+     */
+    public double getCellSide() {
+        return side;
+    }
+
+    /**
+     * @return the number of cells currently holding elements
+     */
+    public int getCellCount() {
+        return cellIndex.size();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[cell side " + side + "] with " + size + " elements in "
+                + getCellCount() + " cells";
+    }
+
+    /*
+     * Cells
+     */
+
+    private static double squared(final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("The radius must be non negative, " + radius + " given.");
+        }
+        return radius * radius;
+    }
+
+    private static boolean isFinite(final double v) {
+        return !Double.isNaN(v) && !Double.isInfinite(v);
+    }
+
+    /**
+     * Monotonic, so that the cells of a range are the ones between the cells
+     * of its corners. Coordinates beyond the int range saturate.
+     */
+    private int column(final double v) {
+        return (int) Math.floor(v * inverse);
+    }
+
+    private static long key(final int column, final int row) {
+        return (long) column << Integer.SIZE | row & ROW_MASK;
+    }
+
+    /**
+     * The map folds the two halves of the keys, so packed coordinates of
+     * nearby cells would collide: keys are scrambled with the (invertible)
+     * MurmurHash3 finalizer before being used in the map.
+     */
+    private static long scramble(final long key) {
+        long h = key;
+        h ^= h >>> MIX_SHIFT;
+        h *= MIX_1;
+        h ^= h >>> MIX_SHIFT;
+        h *= MIX_2;
+        h ^= h >>> MIX_SHIFT;
+        return h;
+    }
+
+    /**
+     * @return the cell of the given point, created if missing
+     */
+    private int cellOf(final double x, final double y) {
+        final long key = key(column(x), column(y));
+        final int existing = cellIndex.get(scramble(key));
+        if (existing != NONE) {
+            return existing;
+        }
+        final int cell;
+        if (freeCell == NONE) {
+            if (cellTop == cellKey.length) {
+                final int capacity = cellTop + Math.max(1, cellTop >> 1);
+                cellKey = Arrays.copyOf(cellKey, capacity);
+                cellHead = Arrays.copyOf(cellHead, capacity);
+                cellSize = Arrays.copyOf(cellSize, capacity);
+            }
+            cell = cellTop++;
+        } else {
+            cell = freeCell;
+            freeCell = cellHead[cell];
+        }
+        cellKey[cell] = key;
+        cellHead[cell] = NONE;
+        cellSize[cell] = 0;
+        cellIndex.put(scramble(key), cell);
+        return cell;
+    }
+
+    private void link(final int entry, final int cell) {
+        final int head = cellHead[cell];
+        entryCell[entry] = cell;
+        entryPrev[entry] = NONE;
+        entryNext[entry] = head;
+        if (head != NONE) {
+            entryPrev[head] = entry;
+        }
+        cellHead[cell] = entry;
+        cellSize[cell]++;
+    }
+
+    /**
+     * Removes an entry from its cell, releasing the cell if it gets empty.
+     */
+    private void unlink(final int entry) {
+        final int cell = entryCell[entry];
+        final int prev = entryPrev[entry];
+        final int next = entryNext[entry];
+        if (prev == NONE) {
+            cellHead[cell] = next;
+        } else {
+            entryNext[prev] = next;
+        }
+        if (next != NONE) {
+            entryPrev[next] = prev;
+        }
+        if (--cellSize[cell] == 0) {
+            cellIndex.remove(scramble(cellKey[cell]));
+            cellHead[cell] = freeCell;
+            freeCell = cell;
+        }
+    }
+
+    /*
+     * Entries
+     */
+
+    private int allocateEntry() {
+        if (freeEntry != NONE) {
+            final int entry = freeEntry;
+            freeEntry = entryNext[entry];
+            return entry;
+        }
+        if (entryTop == entryX.length) {
+            final int capacity = entryTop + Math.max(1, entryTop >> 1);
+            entryX = Arrays.copyOf(entryX, capacity);
+            entryY = Arrays.copyOf(entryY, capacity);
+            entryElement = Arrays.copyOf(entryElement, capacity);
+            entryCell = Arrays.copyOf(entryCell, capacity);
+            entryNext = Arrays.copyOf(entryNext, capacity);
+            entryPrev = Arrays.copyOf(entryPrev, capacity);
+        }
+        return entryTop++;
+    }
+
+    private boolean isValid(final int handle) {
+        return handle >= 0 && handle < entryTop && entryCell[handle] != NONE;
+    }
+
+    private void checkHandle(final int handle) {
+        if (!isValid(handle)) {
+            throw new IllegalArgumentException("Invalid handle: " + handle);
+        }
+    }
+
+    @SuppressFBWarnings("FE_FLOATING_POINT_EQUALITY")
+    private int findEntry(final E e, final double x, final double y) {
+        if (!isFinite(x) || !isFinite(y)) {
+            return NONE;
+        }
+        final int cell = cellIndex.get(scramble(key(column(x), column(y))));
+        if (cell == NONE) {
+            return NONE;
+        }
+        for (int entry = cellHead[cell]; entry != NONE; entry = entryNext[entry]) {
+            if (entryX[entry] == x && entryY[entry] == y && Objects.equals(e, entryElement[entry])) {
+                return entry;
+            }
+        }
+        return NONE;
+    }
+
+    /*
+     * Queries
+     */
+
+    /**
+     * Feeds the elements within the rectangle and the circle either to the
+     * buffer or to the visitor. Rectangle queries use an infinite circle.
+     * If the rectangle covers more cells than the occupied ones, the
+     * occupied cells are scanned instead of the covered ones.
+     */
+    private boolean scan(final double x, final double y, final double mx, final double my,
+            final double cx, final double cy, final double rSq,
+            final Collection<? super E> buffer, final SpatialVisitor<? super E> visitor) {
+        if (size == 0 || !(x <= mx) || !(y <= my)) {
+            return true;
+        }
+        final int c0 = column(x);
+        final int c1 = column(mx);
+        final int r0 = column(y);
+        final int r1 = column(my);
+        final double covered = ((double) c1 - c0 + 1) * ((double) r1 - r0 + 1);
+        if (covered > cellIndex.size()) {
+            for (int cell = 0; cell < cellTop; cell++) {
+                if (cellSize[cell] > 0) {
+                    final int column = (int) (cellKey[cell] >> Integer.SIZE);
+                    final int row = (int) cellKey[cell];
+                    if (column >= c0 && column <= c1 && row >= r0 && row <= r1
+                            && !scanCell(cell, x, y, mx, my, cx, cy, rSq, buffer, visitor)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        for (long column = c0; column <= c1; column++) {
+            for (long row = r0; row <= r1; row++) {
+                if (minDistanceSq((int) column, (int) row, cx, cy) <= rSq) {
+                    final int cell = cellIndex.get(scramble(key((int) column, (int) row)));
+                    if (cell != NONE && !scanCell(cell, x, y, mx, my, cx, cy, rSq, buffer, visitor)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private double minDistanceSq(final int column, final int row, final double cx, final double cy) {
+        final double dx = Math.max(0, Math.max(lower(column) - cx, cx - upper(column)));
+        final double dy = Math.max(0, Math.max(lower(row) - cy, cy - upper(row)));
+        return dx * dx + dy * dy;
+    }
+
+    /*
+     * The first and last cells along an axis also hold the saturated
+     * coordinates, hence they extend to infinity
+     */
+
+    private double lower(final int column) {
+        return column == Integer.MIN_VALUE ? Double.NEGATIVE_INFINITY : column * side;
+    }
+
+    private double upper(final int column) {
+        return column == Integer.MAX_VALUE ? Double.POSITIVE_INFINITY : (column + 1.0) * side;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean scanCell(final int cell, final double x, final double y, final double mx, final double my,
+            final double cx, final double cy, final double rSq,
+            final Collection<? super E> buffer, final SpatialVisitor<? super E> visitor) {
+        for (int entry = cellHead[cell]; entry != NONE; entry = entryNext[entry]) {
+            final double ex = entryX[entry];
+            final double ey = entryY[entry];
+            final double dx = ex - cx;
+            final double dy = ey - cy;
+            if (ex >= x && ex <= mx && ey >= y && ey <= my && dx * dx + dy * dy <= rSq) {
+                final E element = (E) entryElement[entry];
+                if (visitor == null) {
+                    buffer.add(element);
+                } else if (!visitor.visit(element, ex, ey)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A bidimensional index of point-like elements, offering the same operations
+ * of {@link QuadTree}, so that implementations can be switched freely.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public interface SpatialIndex<E> {
+
+    /**
+     * Deletes an element from the index.
+     *
+     * @param e
+     *            The element to delete
+     * @param x
+     *            the x position of the element
+     * @param y
+     *            the y position of the element
+     * @return true if the element is found and removed
+     */
+    boolean delete(E e, double x, double y);
+
+    /**
+     * Inserts an element in the index.
+     *
+     * @param e
+     *            The element to add
+     * @param x
+     *            the x position of the element
+     * @param y
+     *            the y position of the element
+     * @return true if the element is correctly inserted, false otherwise (e.g.
+     *         because the element is out of the indexed space)
+     */
+    boolean insert(E e, double x, double y);
+
+    /**
+     * If an element is moved, updates the index accordingly.
+     *
+     * @param e
+     *            the element
+     * @param sx
+     *            the start x
+     * @param sy
+     *            the start y
+     * @param fx
+     *            the final x
+     * @param fy
+     *            the final y
+     * @return true if the element is found and no error occurred
+     */
+    boolean move(E e, double sx, double sy, double fx, double fy);
+
+    /**
+     * @param range
+     *            the range where to retrieve the objects (bounds included)
+     * @return a list of the objects in the range
+     */
+    List<E> query(Rectangle2D range);
+
+    /**
+     * Collects the elements within the given bounds (included) into a caller
+     * supplied buffer, which can be reused across queries. Swapped corners
+     * are normalized.
+     *
+     * @param minX
+     *            minimum x
+     * @param minY
+     *            minimum y
+     * @param maxX
+     *            maximum x
+     * @param maxY
+     *            maximum y
+     * @param buffer
+     *            the collection where the results are added
+     */
+    void query(double minX, double minY, double maxX, double maxY, Collection<? super E> buffer);
+
+    /**
+     * Feeds the elements within the given bounds (included) to a visitor.
+     * Swapped corners are normalized.
+     *
+     * @param minX
+     *            minimum x
+     * @param minY
+     *            minimum y
+     * @param maxX
+     *            maximum x
+     * @param maxY
+     *            maximum y
+     * @param visitor
+     *            the visitor
+     * @return false if the visitor stopped the query, true otherwise
+     */
+    boolean query(double minX, double minY, double maxX, double maxY, SpatialVisitor<? super E> visitor);
+
+    /**
+     * Collects the elements within the given distance (included) from a
+     * point into a caller supplied buffer, which can be reused across queries.
+     *
+     * @param cx
+     *            the x coordinate of the center
+     * @param cy
+     *            the y coordinate of the center
+     * @param r
+     *            the radius
+     * @param buffer
+     *            the collection where the results are added
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    void queryRadius(double cx, double cy, double r, Collection<? super E> buffer);
+
+    /**
+     * Feeds the elements within the given distance (included) from a point to
+     * a visitor.
+     *
+     * @param cx
+     *            the x coordinate of the center
+     * @param cy
+     *            the y coordinate of the center
+     * @param r
+     *            the radius
+     * @param visitor
+     *            the visitor
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    boolean queryRadius(double cx, double cy, double r, SpatialVisitor<? super E> visitor);
+
+    /**
+     * @return the number of elements currently indexed
+     */
+    int size();
+
+}
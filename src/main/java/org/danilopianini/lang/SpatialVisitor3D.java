@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+/**
+ * Callback receiving the results of an {@link Octree} query one by one, so
+ * that no result collection needs to be allocated.
+ *
+ * @param <E>
+ *            the type of the indexed elements
+ */
+public interface SpatialVisitor3D<E> {
+
+    /**
+     * @param element
+     *            the element matching the query
+     * @param x
+     *            the x position of the element
+     * @param y
+     *            the y position of the element
+     * @param z
+     *            the z position of the element
+     * @return true if the query should go on, false to stop it
+     */
+    boolean visit(E element, double x, double y, double z);
+
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.util.Random;
+
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.SpatialVisitor;
+
+/**
+ * Compares the throughput of a sequential loop of range queries, one per
+ * sensor in random order, with {@link FlatQuadTree#queryBatch(double[],
+ * boolean)}, both sequential and parallel. The loop hands each result to a
+ * visitor, which is the cheapest way of consuming results one query at a
+ * time. Arguments: number of elements, number of queries, query side.
+ */
+public final class BatchQueryBenchmark {
+
+    private static final int DEFAULT_N = 1_000_000;
+    private static final int DEFAULT_QUERIES = 50_000;
+    private static final double DEFAULT_SIDE = 20;
+    private static final int PER_QUAD = 16;
+    private static final int ROUNDS = 5;
+    private static final double WORLD = 10_000;
+
+    private BatchQueryBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            elements, queries, query side
+     */
+    public static void main(final String... args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        final int queries = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_QUERIES;
+        final double side = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_SIDE;
+        final Random rnd = new Random(0);
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final Integer[] elements = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = rnd.nextDouble() * WORLD;
+            ys[i] = rnd.nextDouble() * WORLD;
+            elements[i] = i;
+        }
+        final FlatQuadTree<Integer> tree = FlatQuadTree.bulkLoad(0, 0, WORLD, WORLD, PER_QUAD, xs, ys, elements,
+                true);
+        final double[] boxes = new double[queries * 4];
+        for (int q = 0; q < queries; q++) {
+            final int b = q * 4;
+            boxes[b] = rnd.nextDouble() * WORLD;
+            boxes[b + 1] = rnd.nextDouble() * WORLD;
+            boxes[b + 2] = boxes[b] + side;
+            boxes[b + 3] = boxes[b + 1] + side;
+        }
+        final Counter counter = new Counter();
+        for (int round = 0; round < ROUNDS; round++) {
+            counter.count = 0;
+            long time = System.nanoTime();
+            for (int q = 0; q < queries; q++) {
+                final int b = q * 4;
+                tree.query(boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3], counter);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("Sequential loop", queries, counter.count, "found", time);
+            BenchmarkUtils.report("Sequential loop", queries, queries / (time / 1e9) / 1e6, "Mq/s", time);
+            for (final boolean parallel : new boolean[] { false, true }) {
+                time = System.nanoTime();
+                final FlatQuadTree.BatchResults results = tree.queryBatch(boxes, parallel);
+                time = System.nanoTime() - time;
+                final String subject = parallel ? "Parallel batch" : "Sequential batch";
+                BenchmarkUtils.report(subject, queries, results.getTotalCount(), "found", time);
+                BenchmarkUtils.report(subject, queries, queries / (time / 1e9) / 1e6, "Mq/s", time);
+                BenchmarkUtils.keep(results);
+            }
+        }
+    }
+
+    private static final class Counter implements SpatialVisitor<Integer> {
+        private long count;
+
+        @Override
+        public boolean visit(final Integer element, final double x, final double y) {
+            count++;
+            return true;
+        }
+    }
+
+}
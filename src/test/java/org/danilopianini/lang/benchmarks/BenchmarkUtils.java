@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.util.Locale;
+
+/**
+ * Utilities shared by the benchmarks. Benchmarks are plain main classes, and
+ * are not run by the test suite.
+ */
+public final class BenchmarkUtils {
+
+    private static final int GC_ROUNDS = 5;
+    private static final long GC_PAUSE = 100;
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static volatile Object sink;
+
+    private BenchmarkUtils() {
+    }
+
+    /**
+     * Runs the garbage collector a few times, and returns the heap in use.
+     *
+     * @return the bytes currently used in heap
+     */
+    public static long usedMemory() {
+        final Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < GC_ROUNDS; i++) {
+            System.gc();
+            try {
+                Thread.sleep(GC_PAUSE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Prevents the JIT from considering an object as dead.
+     *
+     * @param o
+     *            the object to keep
+     */
+    public static void keep(final Object o) {
+        sink = o;
+    }
+
+    /**
+     * @return the last object passed to {@link #keep(Object)}
+     */
+    public static Object kept() {
+        return sink;
+    }
+
+    /**
+     * Prints a result line.
+     *
+     * @param subject
+     *            what has been measured
+     * @param n
+     *            the size of the problem
+     * @param value
+     *            the measured value
+     * @param unit
+     *            the unit of the measured value
+     * @param nanos
+     *            the time taken, in nanoseconds
+     */
+    public static void report(final String subject, final int n, final double value, final String unit, final long nanos) {
+        System.out.println(String.format(Locale.US, "%-32s n=%-10d %12.2f %-8s %10.1f ms",
+                subject, n, value, unit, nanos / NANOS_PER_MILLI));
+    }
+
+}
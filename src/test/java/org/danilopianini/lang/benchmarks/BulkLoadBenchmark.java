@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.util.Random;
+
+import org.danilopianini.lang.FlatQuadTree;
+
+/**
+ * Compares the construction of a {@link FlatQuadTree} by repeated insertion
+ * with {@link FlatQuadTree#bulkLoad}, sequential and parallel. Argument: the
+ * number of entries.
+ */
+public final class BulkLoadBenchmark {
+
+    private static final int DEFAULT_N = 2_000_000;
+    private static final int PER_QUAD = 16;
+    private static final int ROUNDS = 5;
+    private static final double WORLD = 10_000;
+
+    private BulkLoadBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            entries
+     */
+    public static void main(final String... args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        final Random rnd = new Random(0);
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final Integer[] elements = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = rnd.nextDouble() * WORLD;
+            ys[i] = rnd.nextDouble() * WORLD;
+            elements[i] = i;
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            long time = System.nanoTime();
+            final FlatQuadTree<Integer> inserted = new FlatQuadTree<>(0, 0, WORLD, WORLD, PER_QUAD);
+            for (int i = 0; i < n; i++) {
+                inserted.insert(elements[i], xs[i], ys[i]);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("repeated insert", n, inserted.getNodeCount(), "nodes", time);
+            for (final boolean parallel : new boolean[] { false, true }) {
+                time = System.nanoTime();
+                final FlatQuadTree<Integer> loaded = FlatQuadTree.bulkLoad(0, 0, WORLD, WORLD, PER_QUAD, xs, ys, elements, parallel);
+                time = System.nanoTime() - time;
+                BenchmarkUtils.report(parallel ? "bulk load (fork/join)" : "bulk load", n, loaded.getNodeCount(), "nodes", time);
+            }
+        }
+    }
+
+}
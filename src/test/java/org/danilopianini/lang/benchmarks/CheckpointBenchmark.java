@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.QuadTree;
+
+/**
+ * Compares size and time of checkpointing through Java serialization the
+ * default form of {@link QuadTree}, a graph of nodes, lists and entries,
+ * with the flat, iterative form of {@link FlatQuadTree}. Uniform and
+ * clustered points are checkpointed, as well as a short sequence of points
+ * converging to the origin, which builds a very deep tree. Arguments: number
+ * of entries.
+ */
+public final class CheckpointBenchmark {
+
+    private static final int DEFAULT_N = 1_000_000;
+    private static final int PER_QUAD = 16;
+    private static final int ROUNDS = 3;
+    private static final double WORLD = 10_000;
+    private static final double CLUSTER = 1e-9;
+    private static final double MB = 1024 * 1024;
+    private static final int DEEP = 1070;
+    private static final double RATIO = 0.5;
+
+    private CheckpointBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            entries
+     * @throws IOException
+     *             if serialization fails
+     * @throws ClassNotFoundException
+     *             if deserialization fails
+     */
+    @SuppressWarnings("deprecation")
+    public static void main(final String... args) throws IOException, ClassNotFoundException {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        for (final boolean clustered : new boolean[] { false, true }) {
+            final Random rnd = new Random(0);
+            final FlatQuadTree<Integer> flat = new FlatQuadTree<>(0, 0, WORLD, WORLD, PER_QUAD);
+            final QuadTree<Integer> old = new QuadTree<>(0, 0, WORLD, WORLD, PER_QUAD);
+            final double scale = clustered ? CLUSTER : WORLD;
+            for (int i = 0; i < n; i++) {
+                final double x = rnd.nextDouble() * scale;
+                final double y = rnd.nextDouble() * scale;
+                flat.insert(i, x, y);
+                old.insert(i, x, y);
+            }
+            final String data = clustered ? " clustered" : " uniform";
+            for (int round = 0; round < ROUNDS; round++) {
+                checkpoint("FlatQuadTree" + data, n, flat);
+                checkpoint("QuadTree" + data, n, old);
+            }
+        }
+        final FlatQuadTree<Integer> flat = new FlatQuadTree<>(0, 0, WORLD, WORLD, 1);
+        final QuadTree<Integer> old = new QuadTree<>(0, 0, WORLD, WORLD, 1);
+        double position = WORLD;
+        for (int i = 0; i < DEEP; i++) {
+            flat.insert(i, position, position);
+            old.insert(i, position, position);
+            position *= RATIO;
+        }
+        checkpoint("FlatQuadTree deep", DEEP, flat);
+        checkpoint("QuadTree deep", DEEP, old);
+    }
+
+    private static void checkpoint(final String subject, final int n, final Object tree)
+            throws IOException, ClassNotFoundException {
+        try {
+            long time = System.nanoTime();
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(tree);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report(subject + " write", n, bytes.size() / MB, "MB", time);
+            time = System.nanoTime();
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                BenchmarkUtils.keep(in.readObject());
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report(subject + " read", n, bytes.size() / MB, "MB", time);
+        } catch (StackOverflowError e) { // NOPMD
+            BenchmarkUtils.report(subject + " stack overflow", n, 0, "MB", 0);
+        }
+    }
+
+}
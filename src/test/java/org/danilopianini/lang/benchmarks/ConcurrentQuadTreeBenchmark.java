@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.danilopianini.lang.ConcurrentQuadTree;
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.SpatialIndex;
+import org.danilopianini.lang.SpatialVisitor;
+
+/**
+ * Measures the throughput of a simulation-like workload (each thread moves
+ * its own entities by a small step, then queries around each of them) from
+ * one to N threads, for a {@link ConcurrentQuadTree} and for a
+ * {@link FlatQuadTree} behind a single global lock. Arguments: maximum number
+ * of threads (defaults to the available processors), entities.
+ */
+public final class ConcurrentQuadTreeBenchmark {
+
+    private static final int DEFAULT_N = 200_000;
+    private static final int STEPS = 5;
+    private static final int PER_QUAD = 16;
+    private static final double WORLD = 10_000;
+    private static final double SPEED = 10;
+    private static final double RANGE = 50;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private ConcurrentQuadTreeBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            maximum threads, entities
+     * @throws InterruptedException
+     *             if interrupted
+     */
+    public static void main(final String... args) throws InterruptedException {
+        final int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int n = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_N;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run("ConcurrentQuadTree", new ConcurrentQuadTree<Integer>(0, 0, WORLD, WORLD, PER_QUAD), threads, n);
+            run("FlatQuadTree + global lock", new GlobalLock<>(new FlatQuadTree<Integer>(0, 0, WORLD, WORLD, PER_QUAD)), threads, n);
+        }
+    }
+
+    private static void run(final String name, final SpatialIndex<Integer> index, final int threads, final int n)
+            throws InterruptedException {
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final Random init = new Random(0);
+        for (int i = 0; i < n; i++) {
+            xs[i] = init.nextDouble() * WORLD;
+            ys[i] = init.nextDouble() * WORLD;
+            index.insert(i, xs[i], ys[i]);
+        }
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long time = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int from = t * n / threads;
+            final int to = (t + 1) * n / threads;
+            new Thread() {
+                @Override
+                public void run() {
+                    final Random rnd = new Random(from);
+                    final List<Integer> buffer = new ArrayList<>();
+                    for (int step = 0; step < STEPS; step++) {
+                        for (int i = from; i < to; i++) {
+                            final double nx = Math.max(0, Math.min(WORLD, xs[i] + (rnd.nextDouble() - 0.5) * SPEED));
+                            final double ny = Math.max(0, Math.min(WORLD, ys[i] + (rnd.nextDouble() - 0.5) * SPEED));
+                            index.move(i, xs[i], ys[i], nx, ny);
+                            xs[i] = nx;
+                            ys[i] = ny;
+                            buffer.clear();
+                            index.query(nx - RANGE, ny - RANGE, nx + RANGE, ny + RANGE, buffer);
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        final long elapsed = System.nanoTime() - time;
+        BenchmarkUtils.report(name + " x" + threads, n, (double) STEPS * n * NANOS_PER_SECOND / elapsed, "ops/s", elapsed);
+    }
+
+    /**
+     * A {@link SpatialIndex} guarded by a single lock.
+     */
+    private static final class GlobalLock<E> implements SpatialIndex<E> {
+        private final SpatialIndex<E> index;
+
+        GlobalLock(final SpatialIndex<E> idx) {
+            index = idx;
+        }
+
+        @Override
+        public synchronized boolean delete(final E e, final double x, final double y) {
+            return index.delete(e, x, y);
+        }
+
+        @Override
+        public synchronized boolean insert(final E e, final double x, final double y) {
+            return index.insert(e, x, y);
+        }
+
+        @Override
+        public synchronized boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
+            return index.move(e, sx, sy, fx, fy);
+        }
+
+        @Override
+        public synchronized List<E> query(final Rectangle2D range) {
+            return index.query(range);
+        }
+
+        @Override
+        public synchronized void query(final double minX, final double minY, final double maxX, final double maxY,
+                final Collection<? super E> buffer) {
+            index.query(minX, minY, maxX, maxY, buffer);
+        }
+
+        @Override
+        public synchronized boolean query(final double minX, final double minY, final double maxX, final double maxY,
+                final SpatialVisitor<? super E> visitor) {
+            return index.query(minX, minY, maxX, maxY, visitor);
+        }
+
+        @Override
+        public synchronized void queryRadius(final double cx, final double cy, final double r,
+                final Collection<? super E> buffer) {
+            index.queryRadius(cx, cy, r, buffer);
+        }
+
+        @Override
+        public synchronized boolean queryRadius(final double cx, final double cy, final double r,
+                final SpatialVisitor<? super E> visitor) {
+            return index.queryRadius(cx, cy, r, visitor);
+        }
+
+        @Override
+        public synchronized int size() {
+            return index.size();
+        }
+    }
+
+}
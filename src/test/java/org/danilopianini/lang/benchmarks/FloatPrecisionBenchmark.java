@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.util.Random;
+
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.FloatQuadTree;
+import org.danilopianini.lang.SpatialIndex;
+import org.danilopianini.lang.SpatialVisitor;
+
+/**
+ * Compares the heap retained by {@link FlatQuadTree} and {@link FloatQuadTree}
+ * (both trimmed), and the time they take for radius queries and moves.
+ * Elements are shared, so that only the index structure is measured.
+ * Arguments: number of entries, number of queries, query radius. Measuring
+ * 10M entries requires a large heap (e.g. -Xmx4g).
+ */
+public final class FloatPrecisionBenchmark {
+
+    private static final int DEFAULT_N = 10_000_000;
+    private static final int DEFAULT_QUERIES = 1_000_000;
+    private static final double DEFAULT_RADIUS = 5;
+    private static final int PER_QUAD = 16;
+    private static final int ROUNDS = 3;
+    private static final double WORLD = 10_000;
+    private static final double MB = 1024 * 1024;
+
+    private FloatPrecisionBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            entries, queries, radius
+     */
+    public static void main(final String... args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        final int queries = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_QUERIES;
+        final double r = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_RADIUS;
+        final Random rnd = new Random(0);
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final Integer[] elements = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = rnd.nextDouble() * WORLD;
+            ys[i] = rnd.nextDouble() * WORLD;
+            elements[i] = i;
+        }
+        final double[] cx = new double[queries];
+        final double[] cy = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            cx[i] = rnd.nextDouble() * WORLD;
+            cy[i] = rnd.nextDouble() * WORLD;
+        }
+        long before = BenchmarkUtils.usedMemory();
+        long time = System.nanoTime();
+        final FlatQuadTree<Integer> flat = new FlatQuadTree<>(0, 0, WORLD, WORLD, PER_QUAD);
+        final int[] flatHandles = new int[n];
+        for (int i = 0; i < n; i++) {
+            flatHandles[i] = flat.insertWithHandle(elements[i], xs[i], ys[i]);
+        }
+        flat.trimToSize();
+        time = System.nanoTime() - time;
+        BenchmarkUtils.report("FlatQuadTree", n, (BenchmarkUtils.usedMemory() - before) / MB, "MB", time);
+        before = BenchmarkUtils.usedMemory();
+        time = System.nanoTime();
+        final FloatQuadTree<Integer> single = new FloatQuadTree<>(0, 0, WORLD, WORLD, PER_QUAD);
+        final int[] singleHandles = new int[n];
+        for (int i = 0; i < n; i++) {
+            singleHandles[i] = single.insertWithHandle(elements[i], xs[i], ys[i]);
+        }
+        single.trimToSize();
+        time = System.nanoTime() - time;
+        BenchmarkUtils.report("FloatQuadTree", n, (BenchmarkUtils.usedMemory() - before) / MB, "MB", time);
+        final Counter counter = new Counter();
+        for (int round = 0; round < ROUNDS; round++) {
+            report("FlatQuadTree radius", flat, n, cx, cy, r, counter);
+            report("FloatQuadTree radius", single, n, cx, cy, r, counter);
+            time = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                flat.move(flatHandles[i], xs[i] + 1, ys[i]);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("FlatQuadTree move", n, n, "moves", time);
+            time = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                single.move(singleHandles[i], xs[i] + 1, ys[i]);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("FloatQuadTree move", n, n, "moves", time);
+            for (int i = 0; i < n; i++) {
+                xs[i] = xs[i] + 1 > WORLD ? 0 : xs[i] + 1;
+            }
+        }
+    }
+
+    private static void report(final String subject, final SpatialIndex<Integer> index, final int n,
+            final double[] cx, final double[] cy, final double r, final Counter counter) {
+        counter.count = 0;
+        long time = System.nanoTime();
+        for (int i = 0; i < cx.length; i++) {
+            index.queryRadius(cx[i], cy[i], r, counter);
+        }
+        time = System.nanoTime() - time;
+        BenchmarkUtils.report(subject, n, counter.count, "found", time);
+    }
+
+    private static final class Counter implements SpatialVisitor<Integer> {
+        private long count;
+
+        @Override
+        public boolean visit(final Integer element, final double x, final double y) {
+            count++;
+            return true;
+        }
+    }
+
+}
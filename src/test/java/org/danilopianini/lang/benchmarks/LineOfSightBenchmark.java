@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.util.Random;
+
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.SpatialVisitor;
+
+/**
+ * Compares line-of-sight checks on {@link FlatQuadTree}, implemented by
+ * querying the bounding box of the segment and filtering the candidates, with
+ * segment queries, which only walk the nodes crossed by the segment. Both the
+ * search of all the elements close to the segment and the occlusion test,
+ * which stops at the first one, are measured. Arguments: number of elements,
+ * number of segments, maximum segment length, width of the segments.
+ */
+public final class LineOfSightBenchmark {
+
+    private static final int DEFAULT_N = 1_000_000;
+    private static final int DEFAULT_SEGMENTS = 20_000;
+    private static final double DEFAULT_LENGTH = 2_000;
+    private static final double DEFAULT_WIDTH = 0.5;
+    private static final int PER_QUAD = 16;
+    private static final int ROUNDS = 3;
+    private static final double WORLD = 10_000;
+
+    private LineOfSightBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            elements, segments, maximum length, width
+     */
+    public static void main(final String... args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        final int segments = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SEGMENTS;
+        final double length = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_LENGTH;
+        final double width = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_WIDTH;
+        final Random rnd = new Random(0);
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final Integer[] elements = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = rnd.nextDouble() * WORLD;
+            ys[i] = rnd.nextDouble() * WORLD;
+            elements[i] = i;
+        }
+        final FlatQuadTree<Integer> tree = FlatQuadTree.bulkLoad(0, 0, WORLD, WORLD, PER_QUAD, xs, ys, elements,
+                true);
+        final double[] lines = new double[segments * 4];
+        for (int s = 0; s < segments; s++) {
+            final int b = s * 4;
+            final double angle = rnd.nextDouble() * 2 * Math.PI;
+            final double l = rnd.nextDouble() * length;
+            lines[b] = rnd.nextDouble() * WORLD;
+            lines[b + 1] = rnd.nextDouble() * WORLD;
+            lines[b + 2] = lines[b] + Math.cos(angle) * l;
+            lines[b + 3] = lines[b + 1] + Math.sin(angle) * l;
+        }
+        final Filter filter = new Filter(width);
+        final Counter counter = new Counter();
+        for (int round = 0; round < ROUNDS; round++) {
+            filter.found = 0;
+            filter.tested = 0;
+            long time = System.nanoTime();
+            for (int s = 0; s < segments; s++) {
+                final int b = s * 4;
+                filter.set(lines[b], lines[b + 1], lines[b + 2], lines[b + 3], false);
+                tree.query(Math.min(lines[b], lines[b + 2]) - width, Math.min(lines[b + 1], lines[b + 3]) - width,
+                        Math.max(lines[b], lines[b + 2]) + width, Math.max(lines[b + 1], lines[b + 3]) + width, filter);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("Bounding box query", segments, filter.found, "found", time);
+            BenchmarkUtils.report("Bounding box query", segments, filter.tested, "tested", time);
+            counter.count = 0;
+            time = System.nanoTime();
+            for (int s = 0; s < segments; s++) {
+                final int b = s * 4;
+                tree.querySegment(lines[b], lines[b + 1], lines[b + 2], lines[b + 3], width, counter);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("Segment query", segments, counter.count, "found", time);
+            filter.found = 0;
+            filter.tested = 0;
+            time = System.nanoTime();
+            for (int s = 0; s < segments; s++) {
+                final int b = s * 4;
+                filter.set(lines[b], lines[b + 1], lines[b + 2], lines[b + 3], true);
+                tree.query(Math.min(lines[b], lines[b + 2]) - width, Math.min(lines[b + 1], lines[b + 3]) - width,
+                        Math.max(lines[b], lines[b + 2]) + width, Math.max(lines[b + 1], lines[b + 3]) + width, filter);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("Bounding box occlusion", segments, filter.found, "occluded", time);
+            long occluded = 0;
+            time = System.nanoTime();
+            for (int s = 0; s < segments; s++) {
+                final int b = s * 4;
+                if (tree.firstOnSegment(lines[b], lines[b + 1], lines[b + 2], lines[b + 3], width) != null) {
+                    occluded++;
+                }
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("Segment occlusion", segments, occluded, "occluded", time);
+        }
+    }
+
+    /**
+     * Keeps the candidates closer than the width to the current segment.
+     */
+    private static final class Filter implements SpatialVisitor<Integer> {
+        private final double widthSq;
+        private double x;
+        private double y;
+        private double dx;
+        private double dy;
+        private boolean stop;
+        private long found;
+        private long tested;
+
+        private Filter(final double width) {
+            widthSq = width * width;
+        }
+
+        private void set(final double x1, final double y1, final double x2, final double y2, final boolean first) {
+            x = x1;
+            y = y1;
+            dx = x2 - x1;
+            dy = y2 - y1;
+            stop = first;
+        }
+
+        @Override
+        public boolean visit(final Integer element, final double ex, final double ey) {
+            tested++;
+            final double lengthSq = dx * dx + dy * dy;
+            final double t = lengthSq > 0
+                    ? Math.max(0, Math.min(1, ((ex - x) * dx + (ey - y) * dy) / lengthSq)) : 0;
+            final double ox = ex - x - t * dx;
+            final double oy = ey - y - t * dy;
+            if (ox * ox + oy * oy <= widthSq) {
+                found++;
+                return !stop;
+            }
+            return true;
+        }
+    }
+
+    private static final class Counter implements SpatialVisitor<Integer> {
+        private long count;
+
+        @Override
+        public boolean visit(final Integer element, final double x, final double y) {
+            count++;
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.util.Random;
+
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.SpatialVisitor;
+
+/**
+ * Measures the update throughput of {@link FlatQuadTree} for agents moving at
+ * different speeds, with increasing looseness, along with the cost of radius
+ * queries on the resulting trees. Each agent bounces around the world with a
+ * fixed random heading; the speed is given in units per step, and leaves are
+ * a few tens of units wide with the default arguments. Arguments: number of
+ * agents, number of steps, number of queries per step, query radius.
+ */
+public final class LooseQuadTreeBenchmark {
+
+    private static final int DEFAULT_N = 1_000_000;
+    private static final int DEFAULT_STEPS = 10;
+    private static final int DEFAULT_QUERIES = 20_000;
+    private static final double DEFAULT_RADIUS = 10;
+    private static final double[] SPEEDS = { 0.1, 1, 10, 100 };
+    private static final double[] LOOSENESS = { 0, 0.125, 0.25, 0.5, 1 };
+    private static final int PER_QUAD = 16;
+    private static final double WORLD = 10_000;
+
+    private LooseQuadTreeBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            agents, steps, queries per step, query radius
+     */
+    public static void main(final String... args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        final int steps = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
+        final int queries = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_QUERIES;
+        final double r = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_RADIUS;
+        final Random rnd = new Random(0);
+        final double[] startX = new double[n];
+        final double[] startY = new double[n];
+        final double[] heading = new double[n];
+        final Integer[] elements = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            startX[i] = rnd.nextDouble() * WORLD;
+            startY[i] = rnd.nextDouble() * WORLD;
+            heading[i] = rnd.nextDouble() * 2 * Math.PI;
+            elements[i] = i;
+        }
+        final double[] cx = new double[queries];
+        final double[] cy = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            cx[i] = rnd.nextDouble() * WORLD;
+            cy[i] = rnd.nextDouble() * WORLD;
+        }
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final double[] vx = new double[n];
+        final double[] vy = new double[n];
+        final Counter counter = new Counter();
+        for (final double speed : SPEEDS) {
+            for (final double looseness : LOOSENESS) {
+                final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, WORLD, WORLD, PER_QUAD);
+                tree.setLooseness(looseness);
+                final int[] handles = new int[n];
+                for (int i = 0; i < n; i++) {
+                    xs[i] = startX[i];
+                    ys[i] = startY[i];
+                    vx[i] = Math.cos(heading[i]) * speed;
+                    vy[i] = Math.sin(heading[i]) * speed;
+                    handles[i] = tree.insertWithHandle(elements[i], xs[i], ys[i]);
+                }
+                long moveTime = 0;
+                long queryTime = 0;
+                counter.count = 0;
+                for (int step = 0; step < steps; step++) {
+                    advance(xs, ys, vx, vy);
+                    long time = System.nanoTime();
+                    tree.moveAll(handles, xs, ys, false);
+                    moveTime += System.nanoTime() - time;
+                    time = System.nanoTime();
+                    for (int q = 0; q < queries; q++) {
+                        tree.queryRadius(cx[q], cy[q], r, counter);
+                    }
+                    queryTime += System.nanoTime() - time;
+                }
+                final String subject = "v=" + speed + " loose=" + looseness;
+                BenchmarkUtils.report(subject + " move", n, (double) n * steps / moveTime * 1e3, "M/s", moveTime);
+                BenchmarkUtils.report(subject + " query", n, counter.count, "found", queryTime);
+                BenchmarkUtils.keep(tree);
+            }
+        }
+    }
+
+    /**
+     * Moves the agents one step, bouncing on the borders of the world.
+     */
+    private static void advance(final double[] xs, final double[] ys, final double[] vx, final double[] vy) {
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] += vx[i];
+            ys[i] += vy[i];
+            if (xs[i] < 0 || xs[i] > WORLD) {
+                vx[i] = -vx[i];
+                xs[i] = Math.max(0, Math.min(WORLD, xs[i]));
+            }
+            if (ys[i] < 0 || ys[i] > WORLD) {
+                vy[i] = -vy[i];
+                ys[i] = Math.max(0, Math.min(WORLD, ys[i]));
+            }
+        }
+    }
+
+    private static final class Counter implements SpatialVisitor<Integer> {
+        private long count;
+
+        @Override
+        public boolean visit(final Integer element, final double x, final double y) {
+            count++;
+            return true;
+        }
+    }
+
+}
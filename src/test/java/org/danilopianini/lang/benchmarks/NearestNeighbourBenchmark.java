@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.danilopianini.lang.FlatQuadTree;
+
+/**
+ * Compares {@link FlatQuadTree#kNearest(double, double, int)} with the
+ * approach of issuing growing rectangle queries and sorting the results.
+ * Arguments: number of entries, number of queries, k.
+ */
+public final class NearestNeighbourBenchmark {
+
+    private static final int DEFAULT_N = 1_000_000;
+    private static final int DEFAULT_QUERIES = 100_000;
+    private static final int DEFAULT_K = 10;
+    private static final int PER_QUAD = 16;
+    private static final int ROUNDS = 3;
+    private static final double WORLD = 10_000;
+
+    private NearestNeighbourBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            entries, queries, k
+     */
+    public static void main(final String... args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        final int queries = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_QUERIES;
+        final int k = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_K;
+        final Random rnd = new Random(0);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, WORLD, WORLD, PER_QUAD);
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = rnd.nextDouble() * WORLD;
+            ys[i] = rnd.nextDouble() * WORLD;
+            tree.insert(i, xs[i], ys[i]);
+        }
+        final double[] qx = new double[queries];
+        final double[] qy = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            qx[i] = rnd.nextDouble() * WORLD;
+            qy[i] = rnd.nextDouble() * WORLD;
+        }
+        /*
+         * Initial half side of the rectangles: the one expected to contain k
+         * elements on uniform data.
+         */
+        final double initialHalfSide = Math.sqrt(k * WORLD * WORLD / n) / 2;
+        for (int round = 0; round < ROUNDS; round++) {
+            long checksum = 0;
+            long time = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                checksum += tree.kNearest(qx[i], qy[i], k).get(k - 1);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("kNearest", n, checksum, "checksum", time);
+            checksum = 0;
+            time = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                checksum += rectangles(tree, xs, ys, qx[i], qy[i], k, initialHalfSide).get(k - 1);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("growing rectangles + sort", n, checksum, "checksum", time);
+        }
+    }
+
+    private static List<Integer> rectangles(final FlatQuadTree<Integer> tree, final double[] xs, final double[] ys,
+            final double x, final double y, final int k, final double initialHalfSide) {
+        double halfSide = initialHalfSide;
+        while (true) {
+            final List<Integer> candidates = tree.query(
+                    new Rectangle2D.Double(x - halfSide, y - halfSide, 2 * halfSide, 2 * halfSide));
+            if (candidates.size() >= k) {
+                Collections.sort(candidates, new Comparator<Integer>() {
+                    @Override
+                    public int compare(final Integer a, final Integer b) {
+                        return Double.compare(distSq(xs[a], ys[a], x, y), distSq(xs[b], ys[b], x, y));
+                    }
+                });
+                /*
+                 * The result is exact only if the k-th element is within the
+                 * circle inscribed in the rectangle.
+                 */
+                final int last = candidates.get(k - 1);
+                if (distSq(xs[last], ys[last], x, y) <= halfSide * halfSide) {
+                    return candidates.subList(0, k);
+                }
+            }
+            halfSide *= 2;
+        }
+    }
+
+    private static double distSq(final double x1, final double y1, final double x2, final double y2) {
+        final double dx = x1 - x2;
+        final double dy = y1 - y2;
+        return dx * dx + dy * dy;
+    }
+
+}
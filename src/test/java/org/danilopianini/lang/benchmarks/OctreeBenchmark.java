@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.util.Random;
+
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.Octree;
+import org.danilopianini.lang.SpatialVisitor;
+import org.danilopianini.lang.SpatialVisitor3D;
+
+/**
+ * Compares box and sphere queries on an {@link Octree} with the approach of
+ * indexing the projection on the xy plane in a {@link FlatQuadTree} and
+ * filtering the results on z. Arguments: number of entries, number of
+ * queries, query half side.
+ */
+public final class OctreeBenchmark {
+
+    private static final int DEFAULT_N = 1_000_000;
+    private static final int DEFAULT_QUERIES = 100_000;
+    private static final double DEFAULT_HALF_SIDE = 100;
+    private static final int PER_NODE = 16;
+    private static final int ROUNDS = 3;
+    private static final double WORLD = 10_000;
+
+    private OctreeBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            entries, queries, query half side
+     */
+    public static void main(final String... args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        final int queries = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_QUERIES;
+        final double h = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_HALF_SIDE;
+        final Random rnd = new Random(0);
+        final double[] zs = new double[n];
+        final Octree<Integer> octree = new Octree<>(0, 0, 0, WORLD, WORLD, WORLD, PER_NODE);
+        final FlatQuadTree<Integer> projected = new FlatQuadTree<>(0, 0, WORLD, WORLD, PER_NODE);
+        for (int i = 0; i < n; i++) {
+            final double x = rnd.nextDouble() * WORLD;
+            final double y = rnd.nextDouble() * WORLD;
+            zs[i] = rnd.nextDouble() * WORLD;
+            octree.insert(i, x, y, zs[i]);
+            projected.insert(i, x, y);
+        }
+        final double[][] centers = new double[queries][];
+        for (int i = 0; i < queries; i++) {
+            centers[i] = new double[] { rnd.nextDouble() * WORLD, rnd.nextDouble() * WORLD, rnd.nextDouble() * WORLD };
+        }
+        final Counter3D octreeCounter = new Counter3D();
+        final ZFilter filter = new ZFilter(zs);
+        for (int round = 0; round < ROUNDS; round++) {
+            octreeCounter.count = 0;
+            long time = System.nanoTime();
+            for (final double[] c : centers) {
+                octree.query(c[0] - h, c[1] - h, c[2] - h, c[0] + h, c[1] + h, c[2] + h, octreeCounter);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("octree box", n, octreeCounter.count, "found", time);
+            filter.count = 0;
+            time = System.nanoTime();
+            for (final double[] c : centers) {
+                filter.set(c[2] - h, c[2] + h, c[2], Double.POSITIVE_INFINITY);
+                projected.query(c[0] - h, c[1] - h, c[0] + h, c[1] + h, filter);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("quadtree xy + z filter box", n, filter.count, "found", time);
+            octreeCounter.count = 0;
+            time = System.nanoTime();
+            for (final double[] c : centers) {
+                octree.querySphere(c[0], c[1], c[2], h, octreeCounter);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("octree sphere", n, octreeCounter.count, "found", time);
+            filter.count = 0;
+            time = System.nanoTime();
+            for (final double[] c : centers) {
+                /*
+                 * The xy distance is checked by the circle query, z by the filter
+                 */
+                filter.set(c[2] - h, c[2] + h, c[2], h * h);
+                projected.queryRadius(c[0], c[1], h, new SphereFilter(filter, c[0], c[1]));
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("quadtree xy + z filter sphere", n, filter.count, "found", time);
+        }
+    }
+
+    private static final class Counter3D implements SpatialVisitor3D<Integer> {
+        private long count;
+
+        @Override
+        public boolean visit(final Integer element, final double x, final double y, final double z) {
+            count++;
+            return true;
+        }
+    }
+
+    private static final class ZFilter implements SpatialVisitor<Integer> {
+        private final double[] zs;
+        private double minZ;
+        private double maxZ;
+        private double cz;
+        private double rSq;
+        private long count;
+
+        ZFilter(final double[] z) {
+            zs = z;
+        }
+
+        void set(final double min, final double max, final double center, final double radiusSq) {
+            minZ = min;
+            maxZ = max;
+            cz = center;
+            rSq = radiusSq;
+        }
+
+        @Override
+        public boolean visit(final Integer element, final double x, final double y) {
+            final double z = zs[element];
+            if (z >= minZ && z <= maxZ) {
+                count++;
+            }
+            return true;
+        }
+
+        boolean accept(final double dxySq, final int element) {
+            final double dz = zs[element] - cz;
+            if (dxySq + dz * dz <= rSq) {
+                count++;
+            }
+            return true;
+        }
+    }
+
+    private static final class SphereFilter implements SpatialVisitor<Integer> {
+        private final ZFilter filter;
+        private final double cx;
+        private final double cy;
+
+        SphereFilter(final ZFilter f, final double x, final double y) {
+            filter = f;
+            cx = x;
+            cy = y;
+        }
+
+        @Override
+        public boolean visit(final Integer element, final double x, final double y) {
+            final double dx = x - cx;
+            final double dy = y - cy;
+            return filter.accept(dx * dx + dy * dy, element);
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.util.Random;
+
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.QuadTree;
+
+/**
+ * Compares the heap retained by {@link QuadTree} and {@link FlatQuadTree}
+ * when indexing uniformly distributed points. Sizes can be passed as
+ * arguments, by default 1M and 10M entries are measured. The flat tree is
+ * measured both as built and after {@link FlatQuadTree#trimToSize()}.
+ * Measuring 10M entries requires a large heap (e.g. -Xmx5g).
+ */
+public final class QuadTreeMemoryBenchmark {
+
+    private static final int[] DEFAULT_SIZES = { 1_000_000, 10_000_000 };
+    private static final int PER_QUAD = 16;
+    private static final double WORLD = 10_000;
+    private static final double MB = 1024 * 1024;
+
+    private QuadTreeMemoryBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            the number of entries to test with
+     */
+    @SuppressWarnings("deprecation")
+    public static void main(final String... args) {
+        final int[] sizes = new int[args.length == 0 ? DEFAULT_SIZES.length : args.length];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = args.length == 0 ? DEFAULT_SIZES[i] : Integer.parseInt(args[i]);
+        }
+        for (final int n : sizes) {
+            final double[] xs = new double[n];
+            final double[] ys = new double[n];
+            final Integer[] elements = new Integer[n];
+            final Random rnd = new Random(n);
+            for (int i = 0; i < n; i++) {
+                xs[i] = rnd.nextDouble() * WORLD;
+                ys[i] = rnd.nextDouble() * WORLD;
+                elements[i] = i;
+            }
+            long before = BenchmarkUtils.usedMemory();
+            long time = System.nanoTime();
+            final FlatQuadTree<Integer> flat = new FlatQuadTree<>(0, 0, WORLD, WORLD, PER_QUAD);
+            for (int i = 0; i < n; i++) {
+                flat.insert(elements[i], xs[i], ys[i]);
+            }
+            time = System.nanoTime() - time;
+            final long flatBytes = BenchmarkUtils.usedMemory() - before;
+            BenchmarkUtils.report("FlatQuadTree", n, flatBytes / MB, "MB", time);
+            time = System.nanoTime();
+            flat.trimToSize();
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("FlatQuadTree (trimmed)", n, (BenchmarkUtils.usedMemory() - before) / MB, "MB", time);
+            BenchmarkUtils.keep(flat);
+            before = BenchmarkUtils.usedMemory();
+            time = System.nanoTime();
+            final QuadTree<Integer> old = new QuadTree<>(0, 0, WORLD, WORLD, PER_QUAD);
+            for (int i = 0; i < n; i++) {
+                old.insert(elements[i], xs[i], ys[i]);
+            }
+            time = System.nanoTime() - time;
+            final long oldBytes = BenchmarkUtils.usedMemory() - before;
+            BenchmarkUtils.report("QuadTree", n, oldBytes / MB, "MB", time);
+            BenchmarkUtils.keep(old);
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.util.Random;
+
+import org.danilopianini.lang.BoundingBoxVisitor;
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.RTree;
+import org.danilopianini.lang.SpatialVisitor;
+
+/**
+ * Compares window queries over boxes of varying extent. The {@link RTree} is
+ * built both by insertion and by bulk loading; the {@link FlatQuadTree}
+ * indexes the box centers, and queries are padded by the largest half extent
+ * and then filtered, which is the usual workaround for extended objects in a
+ * point index. The number of candidates discarded by the filter is reported.
+ * Arguments: number of boxes, number of queries, largest box extent.
+ */
+public final class RTreeBenchmark {
+
+    private static final int DEFAULT_N = 1_000_000;
+    private static final int DEFAULT_QUERIES = 200_000;
+    private static final double DEFAULT_EXTENT = 50;
+    private static final double WINDOW = 20;
+    private static final int PER_QUAD = 16;
+    private static final int ROUNDS = 3;
+    private static final double WORLD = 10_000;
+    /*
+     * Most boxes are small, a few are large: extents follow a power law
+     */
+    private static final double SKEW = 4;
+
+    private RTreeBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            boxes, queries, largest extent
+     */
+    public static void main(final String... args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        final int queries = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_QUERIES;
+        final double extent = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_EXTENT;
+        final Random rnd = new Random(0);
+        final double[] bounds = new double[n * 4];
+        final Integer[] elements = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            final double x = rnd.nextDouble() * WORLD;
+            final double y = rnd.nextDouble() * WORLD;
+            bounds[i * 4] = x;
+            bounds[i * 4 + 1] = y;
+            bounds[i * 4 + 2] = x + Math.pow(rnd.nextDouble(), SKEW) * extent;
+            bounds[i * 4 + 3] = y + Math.pow(rnd.nextDouble(), SKEW) * extent;
+            elements[i] = i;
+        }
+        final double[] qx = new double[queries];
+        final double[] qy = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            qx[i] = rnd.nextDouble() * WORLD;
+            qy[i] = rnd.nextDouble() * WORLD;
+        }
+        long time = System.nanoTime();
+        final RTree<Integer> inserted = new RTree<>();
+        for (int i = 0; i < n; i++) {
+            inserted.insert(elements[i], bounds[i * 4], bounds[i * 4 + 1], bounds[i * 4 + 2], bounds[i * 4 + 3]);
+        }
+        time = System.nanoTime() - time;
+        BenchmarkUtils.report("RTree insert", n, inserted.getNodeCount(), "nodes", time);
+        time = System.nanoTime();
+        final RTree<Integer> packed = RTree.bulkLoad(bounds, elements, inserted.getMaxEntries());
+        time = System.nanoTime() - time;
+        BenchmarkUtils.report("RTree bulkLoad", n, packed.getNodeCount(), "nodes", time);
+        time = System.nanoTime();
+        final FlatQuadTree<Integer> points = new FlatQuadTree<>(0, 0, WORLD + extent, WORLD + extent, PER_QUAD);
+        for (int i = 0; i < n; i++) {
+            points.insert(elements[i], (bounds[i * 4] + bounds[i * 4 + 2]) / 2,
+                    (bounds[i * 4 + 1] + bounds[i * 4 + 3]) / 2);
+        }
+        time = System.nanoTime() - time;
+        BenchmarkUtils.report("FlatQuadTree insert", n, points.size(), "centers", time);
+        final BoxCounter boxes = new BoxCounter();
+        final PaddedCounter padded = new PaddedCounter(bounds);
+        for (int round = 0; round < ROUNDS; round++) {
+            boxes.count = 0;
+            time = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                inserted.query(qx[i], qy[i], qx[i] + WINDOW, qy[i] + WINDOW, boxes);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("RTree (inserted) query", n, boxes.count, "found", time);
+            boxes.count = 0;
+            time = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                packed.query(qx[i], qy[i], qx[i] + WINDOW, qy[i] + WINDOW, boxes);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("RTree (packed) query", n, boxes.count, "found", time);
+            padded.count = 0;
+            padded.discarded = 0;
+            time = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                padded.set(qx[i], qy[i], qx[i] + WINDOW, qy[i] + WINDOW);
+                points.query(qx[i] - extent / 2, qy[i] - extent / 2, qx[i] + WINDOW + extent / 2,
+                        qy[i] + WINDOW + extent / 2, padded);
+            }
+            time = System.nanoTime() - time;
+            BenchmarkUtils.report("FlatQuadTree padded query", n, padded.count, "found", time);
+            BenchmarkUtils.report("FlatQuadTree padded query", n, padded.discarded, "discarded", time);
+        }
+    }
+
+    private static final class BoxCounter implements BoundingBoxVisitor<Integer> {
+        private long count;
+
+        @Override
+        public boolean visit(final Integer element, final double minX, final double minY, final double maxX,
+                final double maxY) {
+            count++;
+            return true;
+        }
+    }
+
+    private static final class PaddedCounter implements SpatialVisitor<Integer> {
+        private final double[] bounds;
+        private double minX;
+        private double minY;
+        private double maxX;
+        private double maxY;
+        private long count;
+        private long discarded;
+
+        private PaddedCounter(final double[] bounds) {
+            this.bounds = bounds;
+        }
+
+        private void set(final double x, final double y, final double mx, final double my) {
+            minX = x;
+            minY = y;
+            maxX = mx;
+            maxY = my;
+        }
+
+        @Override
+        public boolean visit(final Integer element, final double x, final double y) {
+            final int b = element * 4;
+            if (bounds[b] <= maxX && bounds[b + 2] >= minX && bounds[b + 1] <= maxY && bounds[b + 3] >= minY) {
+                count++;
+            } else {
+                discarded++;
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.PairVisitor;
+import org.danilopianini.lang.SpatialVisitor;
+
+/**
+ * Compares the computation of all the neighbourhoods within a radius with one
+ * radius query per element against the dual tree self-join of
+ * {@link FlatQuadTree}. Arguments: number of entries, radius.
+ */
+public final class SelfJoinBenchmark {
+
+    private static final int DEFAULT_N = 1_000_000;
+    private static final double DEFAULT_RADIUS = 10;
+    private static final int PER_NODE = 16;
+    private static final int ROUNDS = 3;
+    private static final double WORLD = 10_000;
+
+    private SelfJoinBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            entries, radius
+     */
+    public static void main(final String... args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        final double r = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_RADIUS;
+        final Random rnd = new Random(0);
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, WORLD, WORLD, PER_NODE);
+        for (int i = 0; i < n; i++) {
+            xs[i] = rnd.nextDouble() * WORLD;
+            ys[i] = rnd.nextDouble() * WORLD;
+            tree.insert(i, xs[i], ys[i]);
+        }
+        final Counter counter = new Counter();
+        final PairCounter pairs = new PairCounter();
+        for (int round = 0; round < ROUNDS; round++) {
+            counter.count = 0;
+            long time = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                tree.queryRadius(xs[i], ys[i], r, counter);
+            }
+            time = System.nanoTime() - time;
+            /*
+             * Each pair is found twice, and each element finds itself
+             */
+            BenchmarkUtils.report("query per element", n, (counter.count - n) / 2, "pairs", time);
+            for (final boolean parallel : new boolean[] { false, true }) {
+                pairs.count.set(0);
+                time = System.nanoTime();
+                tree.pairsWithin(r, pairs, parallel);
+                time = System.nanoTime() - time;
+                BenchmarkUtils.report("self-join visitor" + (parallel ? " parallel" : ""), n, pairs.count.get(),
+                        "pairs", time);
+                time = System.nanoTime();
+                final FlatQuadTree.Neighbourhoods neighbourhoods = tree.neighbourhoods(r, parallel);
+                time = System.nanoTime() - time;
+                BenchmarkUtils.report("self-join adjacency" + (parallel ? " parallel" : ""), n,
+                        neighbourhoods.getPairCount(), "pairs", time);
+                BenchmarkUtils.keep(neighbourhoods);
+            }
+        }
+    }
+
+    private static final class Counter implements SpatialVisitor<Integer> {
+        private long count;
+
+        @Override
+        public boolean visit(final Integer element, final double x, final double y) {
+            count++;
+            return true;
+        }
+    }
+
+    private static final class PairCounter implements PairVisitor<Integer> {
+        private final AtomicLong count = new AtomicLong();
+
+        @Override
+        public void visit(final Integer first, final Integer second) {
+            count.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.LinearQuadTree;
+import org.danilopianini.lang.SpatialHashGrid;
+import org.danilopianini.lang.SpatialIndex;
+import org.danilopianini.lang.SpatialVisitor;
+
+/**
+ * Runs the same workload on every {@link SpatialIndex} implementation:
+ * insertion of uniformly distributed points, a simulation step moving every
+ * point a little, range queries and radius queries. Arguments: number of
+ * entries, number of queries, query radius.
+ */
+public final class SpatialIndexBenchmark {
+
+    private static final int DEFAULT_N = 1_000_000;
+    private static final int DEFAULT_QUERIES = 100_000;
+    private static final double DEFAULT_RADIUS = 20;
+    private static final int PER_QUAD = 16;
+    private static final int ROUNDS = 3;
+    private static final double WORLD = 10_000;
+    private static final double STEP = 1;
+    /*
+     * Insertion into a sorted array is quadratic: the linear quadtree is only
+     * fed a fraction of the elements
+     */
+    private static final int LINEAR_FRACTION = 25;
+
+    private SpatialIndexBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            entries, queries, query radius
+     */
+    public static void main(final String... args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        final int queries = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_QUERIES;
+        final double radius = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_RADIUS;
+        final Random rnd = new Random(0);
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final double[] nxs = new double[n];
+        final double[] nys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = rnd.nextDouble() * WORLD;
+            ys[i] = rnd.nextDouble() * WORLD;
+            nxs[i] = Math.max(0, Math.min(WORLD, xs[i] + (rnd.nextDouble() - 0.5) * STEP));
+            nys[i] = Math.max(0, Math.min(WORLD, ys[i] + (rnd.nextDouble() - 0.5) * STEP));
+        }
+        final double[] qx = new double[queries];
+        final double[] qy = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            qx[i] = rnd.nextDouble() * WORLD;
+            qy[i] = rnd.nextDouble() * WORLD;
+        }
+        /*
+         * Cells as large as the queries, as suggested for the grid
+         */
+        final double cell = 2 * radius;
+        for (int round = 0; round < ROUNDS; round++) {
+            final List<SpatialIndex<Integer>> indexes = new ArrayList<>();
+            indexes.add(new FlatQuadTree<Integer>(0, 0, WORLD, WORLD, PER_QUAD));
+            indexes.add(new LinearQuadTree<Integer>(0, 0, WORLD, WORLD));
+            indexes.add(new SpatialHashGrid<Integer>(cell));
+            for (final SpatialIndex<Integer> index : indexes) {
+                final String name = index.getClass().getSimpleName();
+                final int inserted = n / (index instanceof LinearQuadTree ? LINEAR_FRACTION : 1);
+                long time = System.nanoTime();
+                for (int i = 0; i < inserted; i++) {
+                    index.insert(i, xs[i], ys[i]);
+                }
+                time = System.nanoTime() - time;
+                BenchmarkUtils.report(name + " insert", inserted, inserted, "elements", time);
+                time = System.nanoTime();
+                for (int i = 0; i < inserted; i++) {
+                    index.move(i, xs[i], ys[i], nxs[i], nys[i]);
+                }
+                time = System.nanoTime() - time;
+                BenchmarkUtils.report(name + " move", inserted, inserted, "elements", time);
+                final Counter counter = new Counter();
+                time = System.nanoTime();
+                for (int i = 0; i < queries; i++) {
+                    index.query(qx[i] - radius, qy[i] - radius, qx[i] + radius, qy[i] + radius, counter);
+                }
+                time = System.nanoTime() - time;
+                BenchmarkUtils.report(name + " range", inserted, counter.count, "found", time);
+                counter.count = 0;
+                time = System.nanoTime();
+                for (int i = 0; i < queries; i++) {
+                    index.queryRadius(qx[i], qy[i], radius, counter);
+                }
+                time = System.nanoTime() - time;
+                BenchmarkUtils.report(name + " radius", inserted, counter.count, "found", time);
+            }
+        }
+    }
+
+    private static final class Counter implements SpatialVisitor<Integer> {
+        private long count;
+
+        @Override
+        public boolean visit(final Integer element, final double x, final double y) {
+            count++;
+            return true;
+        }
+    }
+
+}
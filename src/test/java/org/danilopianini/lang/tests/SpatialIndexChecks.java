@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.danilopianini.lang.SpatialIndex;
+import org.danilopianini.lang.SpatialVisitor;
+
+/**
+ * Checks {@link SpatialIndex} queries against a linear scan.
+ */
+final class SpatialIndexChecks {
+
+    private static final int QUERIES = 200;
+    private static final double MAX_QUERY = 20;
+
+    private SpatialIndexChecks() {
+    }
+
+    static <T extends Comparable<? super T>> List<T> sorted(final List<T> list) {
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * Runs random rectangle and radius queries within [0, size]^2, including
+     * rectangles with swapped corners. The i-th element of the index must be
+     * the integer i, positioned in (xs[i], ys[i]); NaN coordinates mark
+     * elements not in the index.
+     */
+    static void checkQueries(final Random rnd, final SpatialIndex<Integer> index, final double size,
+            final double[] xs, final double[] ys) {
+        for (int q = 0; q < QUERIES; q++) {
+            final Rectangle2D range = new Rectangle2D.Double(
+                    rnd.nextDouble() * size, rnd.nextDouble() * size,
+                    rnd.nextDouble() * MAX_QUERY, rnd.nextDouble() * MAX_QUERY);
+            final List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < xs.length; i++) {
+                if (xs[i] >= range.getMinX() && xs[i] <= range.getMaxX() && ys[i] >= range.getMinY() && ys[i] <= range.getMaxY()) {
+                    expected.add(i);
+                }
+            }
+            final List<Integer> actual = index.query(range);
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+            actual.clear();
+            index.query(range.getMaxX(), range.getMinY(), range.getMinX(), range.getMaxY(), actual);
+            assertEquals(expected, sorted(actual));
+            actual.clear();
+            index.query(range.getMinX(), range.getMaxY(), range.getMaxX(), range.getMinY(), new SpatialVisitor<Integer>() {
+                @Override
+                public boolean visit(final Integer element, final double x, final double y) {
+                    return actual.add(element);
+                }
+            });
+            assertEquals(expected, sorted(actual));
+            final double cx = rnd.nextDouble() * size;
+            final double cy = rnd.nextDouble() * size;
+            final double r = rnd.nextDouble() * MAX_QUERY;
+            expected.clear();
+            for (int i = 0; i < xs.length; i++) {
+                if (Math.hypot(xs[i] - cx, ys[i] - cy) <= r) {
+                    expected.add(i);
+                }
+            }
+            actual.clear();
+            index.queryRadius(cx, cy, r, actual);
+            assertEquals(expected, sorted(actual));
+            actual.clear();
+            index.queryRadius(cx, cy, r, new SpatialVisitor<Integer>() {
+                @Override
+                public boolean visit(final Integer element, final double x, final double y) {
+                    return actual.add(element);
+                }
+            });
+            assertEquals(expected, sorted(actual));
+        }
+        checkNegativeRadius(index);
+    }
+
+    /**
+     * Both radius queries must reject negative radii.
+     */
+    private static void checkNegativeRadius(final SpatialIndex<Integer> index) {
+        final int size = index.size();
+        try {
+            index.queryRadius(0, 0, -1, new ArrayList<Integer>());
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertEquals(size, index.size());
+        }
+        try {
+            index.queryRadius(0, 0, -1, new SpatialVisitor<Integer>() {
+                @Override
+                public boolean visit(final Integer element, final double x, final double y) {
+                    return true;
+                }
+            });
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertEquals(size, index.size());
+        }
+    }
+
+}
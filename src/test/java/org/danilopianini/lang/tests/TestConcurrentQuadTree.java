@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.danilopianini.lang.ConcurrentQuadTree;
+import org.junit.Test;
+
+/**
+ */
+public class TestConcurrentQuadTree {
+
+    private static final int WRITERS = 8;
+    private static final int READERS = 4;
+    private static final int PER_WRITER = 500;
+    private static final int STEPS = 200;
+    private static final int PER_QUAD = 8;
+    private static final int STRIPES = 4;
+    private static final double SIZE = 100;
+    private static final double STEP = 5;
+
+    /**
+     * Writers move their own elements around while readers query the whole
+     * space: readers must always see every element exactly once, and in the
+     * end all the elements must be at their last position.
+     *
+     * @throws InterruptedException
+     *             if interrupted
+     */
+    @Test
+    public void testStress() throws InterruptedException {
+        final ConcurrentQuadTree<Integer> tree = new ConcurrentQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD, STRIPES);
+        final double[] xs = new double[WRITERS * PER_WRITER];
+        final double[] ys = new double[WRITERS * PER_WRITER];
+        final Random init = new Random(0);
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = init.nextDouble() * SIZE;
+            ys[i] = init.nextDouble() * SIZE;
+            assertTrue(tree.insert(i, xs[i], ys[i]));
+        }
+        final CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        final CountDownLatch readersDone = new CountDownLatch(READERS);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int first = w * PER_WRITER;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final Random rnd = new Random(first);
+                        for (int step = 0; step < STEPS; step++) {
+                            for (int i = first; i < first + PER_WRITER; i++) {
+                                final double nx = clamp(xs[i] + (rnd.nextDouble() - 0.5) * STEP);
+                                final double ny = clamp(ys[i] + (rnd.nextDouble() - 0.5) * STEP);
+                                if (!tree.move(i, xs[i], ys[i], nx, ny)) {
+                                    throw new IllegalStateException("Element " + i + " lost");
+                                }
+                                xs[i] = nx;
+                                ys[i] = ny;
+                            }
+                        }
+                    } catch (RuntimeException | Error e) { // NOPMD
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            }.start();
+        }
+        for (int r = 0; r < READERS; r++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final List<Integer> buffer = new ArrayList<>(xs.length);
+                        while (writersDone.getCount() > 0) {
+                            buffer.clear();
+                            tree.query(0, 0, SIZE, SIZE, buffer);
+                            assertEquals(xs.length, buffer.size());
+                            assertEquals(xs.length, new HashSet<>(buffer).size());
+                        }
+                    } catch (RuntimeException | Error e) { // NOPMD
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        readersDone.countDown();
+                    }
+                }
+            }.start();
+        }
+        writersDone.await();
+        readersDone.await();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(xs.length, tree.size());
+        final List<Integer> here = new ArrayList<>();
+        for (int i = 0; i < xs.length; i++) {
+            here.clear();
+            tree.query(xs[i], ys[i], xs[i], ys[i], here);
+            assertTrue(here.contains(i));
+        }
+        SpatialIndexChecks.checkQueries(init, tree, SIZE, xs, ys);
+    }
+
+    private static double clamp(final double v) {
+        return Math.max(0, Math.min(SIZE, v));
+    }
+
+}
@@ -0,0 +1,1234 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.danilopianini.lang.FlatQuadTree;
+import org.danilopianini.lang.FlatQuadTree.Neighbourhoods;
+import org.danilopianini.lang.PairVisitor;
+import org.danilopianini.lang.SpatialVisitor;
+import org.junit.Test;
+
+/**
+ */
+public class TestFlatQuadTree {
+
+    private static final int ELEMENTS = 5000;
+    private static final int PER_QUAD = 8;
+    private static final int QUERIES = 200;
+    private static final double SIZE = 100;
+    private static final int SIDE = 100;
+    private static final double MAX_QUERY = 20;
+    private static final long SEED = 0;
+
+    /**
+     * Inserts, moves and deletes random points, and checks queries against a
+     * linear scan.
+     */
+    @Test
+    public void testAgainstLinearScan() {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            assertTrue(tree.insert(i, xs[i], ys[i]));
+        }
+        assertEquals(ELEMENTS, tree.size());
+        checkQueries(rnd, tree, xs, ys);
+        for (int i = 0; i < ELEMENTS; i++) {
+            final double nx = rnd.nextBoolean() ? rnd.nextDouble() * SIZE : xs[i];
+            final double ny = rnd.nextDouble() * SIZE;
+            assertTrue(tree.move(i, xs[i], ys[i], nx, ny));
+            xs[i] = nx;
+            ys[i] = ny;
+        }
+        checkQueries(rnd, tree, xs, ys);
+        for (int i = 0; i < ELEMENTS; i += 2) {
+            assertTrue(tree.delete(i, xs[i], ys[i]));
+            assertFalse(tree.delete(i, xs[i], ys[i]));
+            xs[i] = Double.NaN;
+            ys[i] = Double.NaN;
+        }
+        assertEquals(ELEMENTS / 2, tree.size());
+        checkQueries(rnd, tree, xs, ys);
+    }
+
+    /**
+     * Bulk loaded trees must behave as trees built by insertion.
+     */
+    @Test
+    public void testBulkLoad() {
+        for (final boolean parallel : new boolean[] { false, true }) {
+            final Random rnd = new Random(SEED);
+            final double[] xs = new double[ELEMENTS];
+            final double[] ys = new double[ELEMENTS];
+            final Integer[] elements = new Integer[ELEMENTS];
+            for (int i = 0; i < ELEMENTS; i++) {
+                /*
+                 * Some duplicates, some points out of bounds
+                 */
+                xs[i] = i % PER_QUAD == 0 ? SIZE / 2 : rnd.nextDouble() * (SIZE + 1);
+                ys[i] = i % PER_QUAD == 0 ? SIZE / 2 : rnd.nextDouble() * SIZE;
+                elements[i] = i;
+            }
+            final FlatQuadTree<Integer> tree = FlatQuadTree.bulkLoad(0, 0, SIZE, SIZE, PER_QUAD, xs, ys, elements, parallel);
+            for (int i = 0; i < ELEMENTS; i++) {
+                if (xs[i] > SIZE) {
+                    xs[i] = Double.NaN;
+                    ys[i] = Double.NaN;
+                }
+            }
+            checkQueries(rnd, tree, xs, ys);
+            for (int i = 0; i < ELEMENTS; i++) {
+                if (!Double.isNaN(xs[i])) {
+                    final double nx = rnd.nextDouble() * SIZE;
+                    assertTrue(tree.move(i, xs[i], ys[i], nx, ys[i]));
+                    xs[i] = nx;
+                }
+            }
+            checkQueries(rnd, tree, xs, ys);
+        }
+    }
+
+    /**
+     * Points lying exactly on split lines, with bounds that are not powers of
+     * two, must be placed correctly by the bulk loader.
+     */
+    @Test
+    public void testBulkLoadOnSplitLines() {
+        final Random rnd = new Random(SEED);
+        final double minX = 0.1;
+        final double maxX = 0.7;
+        final double minY = -3.3;
+        final double maxY = 17.1;
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        final Integer[] elements = new Integer[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            double x0 = minX;
+            double x1 = maxX;
+            double y0 = minY;
+            double y1 = maxY;
+            for (int level = rnd.nextInt(PER_QUAD * 2); level > 0; level--) {
+                final double cx = (x0 + x1) / 2;
+                final double cy = (y0 + y1) / 2;
+                if (rnd.nextBoolean()) {
+                    x0 = cx;
+                } else {
+                    x1 = cx;
+                }
+                if (rnd.nextBoolean()) {
+                    y0 = cy;
+                } else {
+                    y1 = cy;
+                }
+            }
+            xs[i] = (x0 + x1) / 2;
+            ys[i] = (y0 + y1) / 2;
+            elements[i] = i;
+        }
+        final FlatQuadTree<Integer> tree = FlatQuadTree.bulkLoad(minX, minY, maxX, maxY, 2, xs, ys, elements, false);
+        assertEquals(ELEMENTS, tree.size());
+        final List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < ELEMENTS; i++) {
+            found.clear();
+            tree.query(xs[i], ys[i], xs[i], ys[i], found);
+            assertTrue(found.contains(i));
+            assertTrue(tree.delete(i, xs[i], ys[i]));
+        }
+        assertEquals(0, tree.size());
+    }
+
+    /**
+     * Emptied subtrees must be merged back, both eagerly and on compaction,
+     * without invalidating handles.
+     */
+    @Test
+    public void testCollapse() {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        final int[] handles = new int[ELEMENTS];
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            handles[i] = tree.insertWithHandle(i, xs[i], ys[i]);
+        }
+        final int full = tree.getNodeCount();
+        for (int i = PER_QUAD; i < ELEMENTS; i++) {
+            assertTrue(tree.delete(handles[i]));
+            xs[i] = Double.NaN;
+            ys[i] = Double.NaN;
+        }
+        assertEquals(full, tree.getNodeCount());
+        final FlatQuadTree.Compaction report = tree.compact();
+        assertEquals(1, tree.getNodeCount());
+        assertEquals(full - 1, report.getReclaimedNodes());
+        assertTrue(report.getReclaimedBytes() > 0);
+        assertEquals(0, tree.compact().getReclaimedBytes());
+        checkQueries(rnd, tree, xs, ys);
+        tree.setAutoCollapse(true);
+        for (int i = PER_QUAD; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            handles[i] = tree.insertWithHandle(i, xs[i], ys[i]);
+        }
+        for (int i = 0; i < ELEMENTS; i++) {
+            /*
+             * Everyone into a corner: all the other subtrees must disappear
+             */
+            xs[i] = rnd.nextDouble();
+            ys[i] = rnd.nextDouble();
+            assertTrue(tree.move(handles[i], xs[i], ys[i]));
+            assertEquals(Integer.valueOf(i), tree.getElement(handles[i]));
+        }
+        checkQueries(rnd, tree, xs, ys);
+        final int clustered = tree.getNodeCount();
+        tree.compact();
+        assertTrue(tree.getNodeCount() <= clustered);
+        checkQueries(rnd, tree, xs, ys);
+        for (int i = 0; i < ELEMENTS; i++) {
+            assertTrue(tree.delete(handles[i]));
+        }
+        assertEquals(1, tree.getNodeCount());
+    }
+
+    /**
+     * Batched moves must leave the tree as if the elements were moved one by
+     * one, both by handle and by element.
+     */
+    @Test
+    public void testMoveAll() {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        tree.setAutoCollapse(true);
+        final int[] handles = new int[ELEMENTS];
+        final Integer[] elements = new Integer[ELEMENTS];
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            elements[i] = i;
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            handles[i] = tree.insertWithHandle(i, xs[i], ys[i]);
+        }
+        for (final boolean parallel : new boolean[] { false, true }) {
+            final double[] nx = new double[ELEMENTS];
+            final double[] ny = new double[ELEMENTS];
+            for (int i = 0; i < ELEMENTS; i++) {
+                /*
+                 * Mostly small steps, some long jumps
+                 */
+                final double step = i % PER_QUAD == 0 ? SIZE : 1;
+                nx[i] = Math.max(0, Math.min(SIZE, xs[i] + (rnd.nextDouble() - 0.5) * step));
+                ny[i] = Math.max(0, Math.min(SIZE, ys[i] + (rnd.nextDouble() - 0.5) * step));
+            }
+            nx[0] = -1;
+            assertEquals(ELEMENTS - 1, tree.moveAll(handles, nx, ny, parallel));
+            nx[0] = xs[0];
+            ny[0] = ys[0];
+            checkQueries(rnd, tree, nx, ny);
+            for (int i = 0; i < ELEMENTS; i++) {
+                xs[i] = Math.max(0, Math.min(SIZE, nx[i] + rnd.nextDouble() - 0.5));
+                ys[i] = Math.max(0, Math.min(SIZE, ny[i] + rnd.nextDouble() - 0.5));
+            }
+            assertEquals(ELEMENTS, tree.moveAll(elements, nx, ny, xs, ys, parallel));
+            checkQueries(rnd, tree, xs, ys);
+        }
+        final int handle = handles[1];
+        assertEquals(2, tree.moveAll(new int[] { handle, handle, -1 }, new double[] { 1, 2, 3 },
+                new double[] { 1, 2, 3 }, false));
+        assertEquals(2, tree.getX(handle), 0);
+        assertEquals(ELEMENTS, tree.size());
+    }
+
+    /**
+     * The self-join must report each pair within the radius exactly once,
+     * both sequentially and in parallel.
+     */
+    @Test
+    public void testPairsWithin() {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        final int[] handles = new int[ELEMENTS];
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            /*
+             * Some points on a grid, to have duplicates and points on the
+             * split lines
+             */
+            xs[i] = i % PER_QUAD == 0 ? rnd.nextInt(SIDE) : rnd.nextDouble() * SIZE;
+            ys[i] = i % PER_QUAD == 0 ? rnd.nextInt(SIDE) : rnd.nextDouble() * SIZE;
+            handles[i] = tree.insertWithHandle(i, xs[i], ys[i]);
+        }
+        for (int i = 0; i < ELEMENTS; i += PER_QUAD + 1) {
+            assertTrue(tree.delete(handles[i]));
+            xs[i] = Double.NaN;
+        }
+        final double radius = 2;
+        final List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < ELEMENTS; i++) {
+            for (int j = i + 1; j < ELEMENTS; j++) {
+                final double dx = xs[i] - xs[j];
+                final double dy = ys[i] - ys[j];
+                if (dx * dx + dy * dy <= radius * radius) {
+                    expected.add((long) i << Integer.SIZE | j);
+                }
+            }
+        }
+        Collections.sort(expected);
+        for (final boolean parallel : new boolean[] { false, true }) {
+            final List<Long> found = Collections.synchronizedList(new ArrayList<Long>());
+            tree.pairsWithin(radius, new PairVisitor<Integer>() {
+                @Override
+                public void visit(final Integer first, final Integer second) {
+                    found.add((long) Math.min(first, second) << Integer.SIZE | Math.max(first, second));
+                }
+            }, parallel);
+            Collections.sort(found);
+            assertEquals(expected, found);
+            final Neighbourhoods neighbourhoods = tree.neighbourhoods(radius, parallel);
+            assertEquals(expected.size(), neighbourhoods.getPairCount());
+            final List<Long> adjacent = new ArrayList<>();
+            for (int i = 0; i < ELEMENTS; i++) {
+                for (int k = 0; k < neighbourhoods.degree(handles[i]); k++) {
+                    final int j = tree.getElement(neighbourhoods.neighbour(handles[i], k));
+                    if (i < j) {
+                        adjacent.add((long) i << Integer.SIZE | j);
+                    }
+                }
+            }
+            Collections.sort(adjacent);
+            assertEquals(expected, adjacent);
+        }
+        assertEquals(countCoincident(xs, ys), tree.neighbourhoods(0, true).getPairCount());
+    }
+
+    private static int countCoincident(final double[] xs, final double[] ys) {
+        int count = 0;
+        for (int i = 0; i < xs.length; i++) {
+            for (int j = i + 1; j < xs.length; j++) {
+                if (xs[i] == xs[j] && ys[i] == ys[j]) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Serialized trees must answer queries the same and keep their handles,
+     * however deep they are.
+     *
+     * @throws IOException
+     *             if serialization fails
+     * @throws ClassNotFoundException
+     *             if deserialization fails
+     */
+    @Test
+    public void testSerialization() throws IOException, ClassNotFoundException {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        tree.setAutoExpand(true);
+        final int[] handles = new int[ELEMENTS];
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            /*
+             * A few out of the initial bounds, and a cluster of coincident
+             * points, which makes a very deep tree
+             */
+            xs[i] = i % 2 == 0 ? 1 : rnd.nextDouble() * SIZE * 2;
+            ys[i] = i % 2 == 0 ? 1 : rnd.nextDouble() * SIZE;
+            handles[i] = tree.insertWithHandle(i, xs[i], ys[i]);
+        }
+        for (int i = 0; i < ELEMENTS; i += 4) {
+            assertTrue(tree.delete(handles[i]));
+            xs[i] = Double.NaN;
+            ys[i] = Double.NaN;
+        }
+        final FlatQuadTree<Integer> copy = copy(tree);
+        assertEquals(tree.size(), copy.size());
+        assertEquals(tree.getNodeCount(), copy.getNodeCount());
+        assertTrue(copy.isAutoExpand());
+        checkQueries(rnd, copy, xs, ys);
+        for (int i = 1; i < ELEMENTS; i += 2) {
+            assertEquals(Integer.valueOf(i), copy.getElement(handles[i]));
+            assertTrue(copy.move(handles[i], ys[i], xs[i]));
+            final double swap = xs[i];
+            xs[i] = ys[i];
+            ys[i] = swap;
+        }
+        /*
+         * Free slots are preserved as well
+         */
+        final int reused = copy.insertWithHandle(0, xs[1], ys[1]);
+        assertEquals(0, Arrays.binarySearch(handles, reused) % 4);
+        assertTrue(copy.delete(reused));
+        checkQueries(rnd, copy, xs, ys);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(final T object) throws IOException, ClassNotFoundException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+
+    /**
+     * Auto-expanding trees must accept any finite point, and shrink back.
+     */
+    @Test
+    public void testAutoExpand() {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, 1, 1, PER_QUAD);
+        tree.setAutoExpand(true);
+        final int[] handles = new int[ELEMENTS];
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = (rnd.nextDouble() - 0.5) * SIZE * SIZE;
+            ys[i] = (rnd.nextDouble() - 0.5) * SIZE;
+            handles[i] = tree.insertWithHandle(i, xs[i], ys[i]);
+            assertTrue(handles[i] >= 0);
+        }
+        assertFalse(tree.insert(-1, Double.NaN, 0));
+        checkQueries(rnd, tree, xs, ys);
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = SIZE * SIZE * SIZE + rnd.nextDouble();
+            ys[i] = SIZE * SIZE * SIZE + rnd.nextDouble();
+            assertTrue(tree.move(handles[i], xs[i], ys[i]));
+        }
+        assertTrue(tree.shrink() > 0);
+        assertTrue(tree.query(new Rectangle2D.Double(0, 0, 1, 1)).isEmpty());
+        checkQueries(rnd, tree, xs, ys);
+        for (int i = 0; i < ELEMENTS; i++) {
+            assertTrue(tree.delete(i, xs[i], ys[i]));
+        }
+        tree.setAutoExpand(false);
+        assertEquals(0, tree.size());
+    }
+
+    /**
+     * Out of bounds points must be rejected, points on the bounds accepted.
+     */
+    @Test
+    public void testBounds() {
+        final FlatQuadTree<String> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, 1);
+        assertFalse(tree.insert("out", -1, 0));
+        assertTrue(tree.insert("corner", SIZE, SIZE));
+        assertTrue(tree.insert("center", SIZE / 2, SIZE / 2));
+        assertTrue(tree.insert("origin", 0, 0));
+        assertFalse(tree.move("corner", SIZE, SIZE, SIZE + 1, SIZE));
+        assertEquals(Collections.singletonList("corner"), tree.query(new Rectangle2D.Double(SIZE, SIZE, 0, 0)));
+        assertEquals(Collections.singletonList("center"), tree.query(new Rectangle2D.Double(SIZE / 2, SIZE / 2, 0, 0)));
+    }
+
+    /**
+     * Handles must allow moving and deleting without knowing the position.
+     */
+    @Test
+    public void testHandles() {
+        final FlatQuadTree<String> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, 2);
+        final int a = tree.insertWithHandle("a", 1, 1);
+        final int b = tree.insertWithHandle("b", 2, 2);
+        final int c = tree.insertWithHandle("c", SIZE - 1, SIZE - 1);
+        assertEquals(-1, tree.insertWithHandle("out", SIZE + 1, 0));
+        assertTrue(tree.move(a, 1.5, 1.5));
+        assertEquals(1.5, tree.getX(a), 0);
+        assertEquals("a", tree.getElement(a));
+        assertTrue(tree.move(b, SIZE - 2, SIZE - 2));
+        assertEquals(Arrays.asList("b", "c"), SpatialIndexChecks.sorted(tree.query(new Rectangle2D.Double(SIZE / 2, SIZE / 2, SIZE, SIZE))));
+        assertFalse(tree.move(c, -1, 0));
+        assertTrue(tree.delete(c));
+        assertFalse(tree.delete(c));
+        assertFalse(tree.move(c, 1, 1));
+        assertEquals(2, tree.size());
+        assertTrue(tree.delete("b", SIZE - 2, SIZE - 2));
+        assertEquals(Collections.singletonList("a"), tree.query(new Rectangle2D.Double(0, 0, SIZE, SIZE)));
+    }
+
+    /**
+     * Nearest neighbour queries must match a full sort by distance.
+     */
+    @Test
+    public void testNearest() {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            tree.insert(i, xs[i], ys[i]);
+        }
+        for (int q = 0; q < QUERIES; q++) {
+            final double x = rnd.nextDouble() * SIZE;
+            final double y = rnd.nextDouble() * SIZE;
+            final int k = 1 + rnd.nextInt(PER_QUAD * 2);
+            final double radius = rnd.nextDouble() * MAX_QUERY / 2;
+            final List<Integer> all = byDistance(xs, ys, x, y);
+            assertEquals(all.subList(0, k), tree.kNearest(x, y, k));
+            assertEquals(all.get(0), tree.nearest(x, y));
+            final List<Integer> inRadius = new ArrayList<>();
+            for (final Integer i : all.subList(0, k)) {
+                if (Math.hypot(xs[i] - x, ys[i] - y) <= radius) {
+                    inRadius.add(i);
+                }
+            }
+            assertEquals(inRadius, tree.kNearest(x, y, k, radius));
+        }
+        assertEquals(null, new FlatQuadTree<Integer>(0, 0, SIZE, SIZE, 1).nearest(0, 0));
+    }
+
+    /**
+     * Visitors must be able to stop queries early.
+     */
+    @Test
+    public void testVisitorStop() {
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, 2);
+        for (int i = 0; i < ELEMENTS; i++) {
+            tree.insert(i, i % SIDE, i / SIDE);
+        }
+        final List<Integer> found = new ArrayList<>();
+        final SpatialVisitor<Integer> firstThree = new SpatialVisitor<Integer>() {
+            @Override
+            public boolean visit(final Integer element, final double x, final double y) {
+                found.add(element);
+                return found.size() < 3;
+            }
+        };
+        assertFalse(tree.query(0, 0, SIZE, SIZE, firstThree));
+        assertEquals(3, found.size());
+        found.clear();
+        assertTrue(tree.query(0, 0, 1, 0, firstThree));
+        assertEquals(2, found.size());
+    }
+
+    /**
+     * Coincident points can not be separated: they must pile up in a leaf at
+     * the maximum depth, rather than growing the tree forever.
+     */
+    @Test
+    public void testCoincidentPoints() {
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        final double x = SIZE / 3;
+        final int[] handles = new int[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            handles[i] = tree.insertWithHandle(i, x, x);
+        }
+        assertTrue(tree.getNodeCount() <= 1 + 4 * tree.getMaxDepth());
+        final List<Integer> found = new ArrayList<>();
+        tree.query(x, x, x, x, found);
+        assertEquals(ELEMENTS, found.size());
+        for (int i = 0; i < ELEMENTS; i += 2) {
+            assertTrue(tree.delete(handles[i]));
+        }
+        assertTrue(tree.delete(1, x, x));
+        assertEquals(ELEMENTS / 2 - 1, tree.size());
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> flat = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD, 0);
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            flat.insert(i, xs[i], ys[i]);
+        }
+        assertEquals(1, flat.getNodeCount());
+        checkQueries(rnd, flat, xs, ys);
+    }
+
+    /**
+     * Statistics must be consistent with the tree contents, and expose
+     * degenerate trees.
+     */
+    @Test
+    public void testStatistics() {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD, PER_QUAD);
+        FlatQuadTree.Statistics stats = tree.getStatistics();
+        assertEquals(1, stats.getLeafCount());
+        assertEquals(1, stats.getLeafCount(0));
+        assertEquals(0, stats.getDepth());
+        for (int i = 0; i < ELEMENTS; i++) {
+            tree.insert(i, rnd.nextDouble() * SIZE, rnd.nextDouble() * SIZE);
+        }
+        stats = tree.getStatistics();
+        assertEquals(tree.getNodeCount(), stats.getNodeCount());
+        assertEquals((stats.getNodeCount() - 1) / 4 * 3 + 1, stats.getLeafCount());
+        int leaves = 0;
+        int elements = 0;
+        for (int k = 0; k <= PER_QUAD; k++) {
+            leaves += stats.getLeafCount(k);
+            elements += k * stats.getLeafCount(k);
+        }
+        assertEquals(stats.getLeafCount(), leaves);
+        assertEquals(ELEMENTS, elements);
+        assertEquals(0, stats.getOverflowLeafCount());
+        assertTrue(stats.getMeanElementDepth() > 0 && stats.getMeanElementDepth() <= stats.getDepth());
+        final FlatQuadTree.QueryIterator<Integer> all = tree.queryIterator(0, 0, SIZE, SIZE);
+        while (all.hasNext()) {
+            all.next();
+        }
+        assertEquals(stats.getNodeCount(), all.getVisitedNodes());
+        assertEquals(ELEMENTS, all.getTestedEntries());
+        for (int i = 0; i < ELEMENTS; i++) {
+            tree.insert(i, SIZE / 3, SIZE / 3);
+        }
+        stats = tree.getStatistics();
+        assertEquals(1, stats.getOverflowLeafCount());
+        assertEquals(1, stats.getCappedOverflowLeafCount());
+        assertEquals(PER_QUAD, stats.getDepth());
+        /*
+         * A split creates one level: close points may all end up in a child
+         */
+        final FlatQuadTree<Integer> pending = new FlatQuadTree<>(0, 0, SIZE, SIZE, 1);
+        pending.insert(0, 1, 1);
+        pending.insert(1, 2, 2);
+        stats = pending.getStatistics();
+        assertEquals(1, stats.getOverflowLeafCount());
+        assertEquals(0, stats.getCappedOverflowLeafCount());
+    }
+
+    /**
+     * Lazy iterators must return the same elements, in the same order, of the
+     * queries filling a collection.
+     */
+    @Test
+    public void testQueryIterator() {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        final int[] handles = new int[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            handles[i] = tree.insertWithHandle(i, rnd.nextDouble() * SIZE, rnd.nextDouble() * SIZE);
+        }
+        final List<Integer> expected = new ArrayList<>();
+        final List<Integer> found = new ArrayList<>();
+        for (int q = 0; q < QUERIES; q++) {
+            final double x = rnd.nextDouble() * SIZE;
+            final double y = rnd.nextDouble() * SIZE;
+            final double side = rnd.nextDouble() * MAX_QUERY;
+            expected.clear();
+            tree.query(x, y, x + side, y + side, expected);
+            found.clear();
+            for (final FlatQuadTree.QueryIterator<Integer> it = tree.queryIterator(x, y, x + side, y + side); it.hasNext();) {
+                final Integer element = it.next();
+                assertEquals(handles[element], it.getHandle());
+                assertTrue(it.getX() >= x && it.getX() <= x + side && it.getY() >= y && it.getY() <= y + side);
+                found.add(element);
+            }
+            assertEquals(expected, found);
+            expected.clear();
+            tree.queryRadius(x, y, side, expected);
+            found.clear();
+            for (final Iterator<Integer> it = tree.queryRadiusIterator(x, y, side); it.hasNext();) {
+                found.add(it.next());
+            }
+            assertEquals(expected, found);
+        }
+        final Iterator<Integer> all = tree.queryIterator(0, 0, SIZE, SIZE);
+        assertTrue(all.hasNext());
+        all.next();
+        assertTrue(all.hasNext());
+        final Iterator<Integer> none = tree.queryRadiusIterator(-SIZE, -SIZE, 1);
+        assertFalse(none.hasNext());
+        try {
+            none.next();
+            fail();
+        } catch (final NoSuchElementException e) {
+            assertFalse(none.hasNext());
+        }
+    }
+
+    /**
+     * Counts and aggregates must match the reduction of the query results,
+     * through insertions, batch moves, root growth, deletions, value changes,
+     * compaction and serialization.
+     */
+    @Test
+    public void testCountAndAggregate() throws IOException, ClassNotFoundException {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        tree.setAutoCollapse(true);
+        tree.setAutoExpand(true);
+        final int[] handles = new int[ELEMENTS];
+        final double[] values = new double[ELEMENTS];
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            if (i == ELEMENTS / 2) {
+                tree.setAggregation(FlatQuadTree.Aggregation.SUM);
+            }
+            values[i] = rnd.nextInt(PER_QUAD);
+            handles[i] = tree.insertWithHandle(i, rnd.nextDouble() * SIZE, rnd.nextDouble() * SIZE, values[i]);
+        }
+        checkAggregates(rnd, tree, values);
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE * 2;
+            ys[i] = tree.getY(handles[i]) + rnd.nextDouble() - 0.5;
+        }
+        assertEquals(ELEMENTS, tree.moveAll(handles, xs, ys, true));
+        checkAggregates(rnd, tree, values);
+        for (int i = 0; i < ELEMENTS; i += 2) {
+            assertTrue(tree.delete(handles[i]));
+            values[i] = Double.NaN;
+        }
+        for (int i = 1; i < ELEMENTS; i += 4) {
+            values[i] = -values[i];
+            tree.setValue(handles[i], values[i]);
+            assertEquals(values[i], tree.getValue(handles[i]), 0);
+        }
+        checkAggregates(rnd, tree, values);
+        tree.setAggregation(FlatQuadTree.Aggregation.MIN);
+        checkAggregates(rnd, tree, values);
+        tree.compact();
+        tree.setAggregation(FlatQuadTree.Aggregation.MAX);
+        checkAggregates(rnd, copy(tree), values);
+        tree.setAggregation(new Magnitude());
+        checkAggregates(rnd, copy(tree), values);
+        assertEquals(ELEMENTS / 2, tree.count(-SIZE, -SIZE, SIZE * 3, SIZE * 3));
+        tree.setAggregation(null);
+        try {
+            tree.aggregate(0, 0, SIZE, SIZE);
+            fail();
+        } catch (final IllegalStateException e) {
+            assertEquals(ELEMENTS / 2, tree.countRadius(0, 0, SIZE * 3));
+        }
+    }
+
+    /**
+     * Loose trees must answer as strict ones while elements drift out of the
+     * strict bounds of their leaves, and when the looseness is reduced.
+     */
+    @Test
+    public void testLooseness() throws IOException, ClassNotFoundException {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        tree.setLooseness(1);
+        tree.setAutoCollapse(true);
+        tree.setAggregation(FlatQuadTree.Aggregation.SUM);
+        final int[] handles = new int[ELEMENTS];
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        final double[] values = new double[ELEMENTS];
+        /*
+         * Half of the elements are inserted after the others drifted, so
+         * that leaves holding drifted elements get split
+         */
+        for (int i = 0; i < ELEMENTS / 2; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            values[i] = 1;
+            handles[i] = tree.insertWithHandle(i, xs[i], ys[i], 1);
+        }
+        for (int step = 0; step < PER_QUAD; step++) {
+            for (int i = 0; i < ELEMENTS / 2; i++) {
+                xs[i] = Math.max(0, Math.min(SIZE, xs[i] + rnd.nextDouble() - 0.5));
+                ys[i] = Math.max(0, Math.min(SIZE, ys[i] + rnd.nextDouble() - 0.5));
+            }
+            assertEquals(ELEMENTS / 2, tree.moveAll(Arrays.copyOf(handles, ELEMENTS / 2),
+                    Arrays.copyOf(xs, ELEMENTS / 2), Arrays.copyOf(ys, ELEMENTS / 2), step % 2 == 0));
+        }
+        for (int i = ELEMENTS / 2; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            values[i] = 1;
+            handles[i] = tree.insertWithHandle(i, xs[i], ys[i], 1);
+        }
+        checkQueries(rnd, tree, xs, ys);
+        checkAggregates(rnd, tree, values);
+        for (int i = 0; i < ELEMENTS; i += 2) {
+            assertTrue(tree.delete(i, xs[i], ys[i]));
+            xs[i] = Double.NaN;
+            values[i] = Double.NaN;
+        }
+        checkQueries(rnd, copy(tree), xs, ys);
+        checkAggregates(rnd, tree, values);
+        tree.setLooseness(0);
+        checkQueries(rnd, tree, xs, ys);
+        checkAggregates(rnd, tree, values);
+        for (int i = 1; i < ELEMENTS; i += 2) {
+            assertTrue(tree.move(handles[i], xs[i], ys[i]));
+            assertTrue(tree.delete(handles[i]));
+        }
+        assertEquals(0, tree.size());
+        try {
+            tree.setLooseness(-1);
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertEquals(0, tree.getLooseness(), 0);
+        }
+    }
+
+    /**
+     * Toroidal trees must answer as a linear scan with periodic distances,
+     * with queries crossing the borders and elements moved past them.
+     */
+    @Test
+    public void testToroidal() {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        tree.setAggregation(FlatQuadTree.Aggregation.SUM);
+        final int[] handles = new int[ELEMENTS];
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            handles[i] = tree.insertWithHandle(i, xs[i], ys[i], 1);
+        }
+        tree.setToroidal(true);
+        assertTrue(tree.isToroidal());
+        assertEquals(-1, tree.insertWithHandle(-1, Double.NaN, 0));
+        assertEquals(-1, tree.insertWithHandle(-1, Double.POSITIVE_INFINITY, 0));
+        checkToroidal(rnd, tree, xs, ys);
+        final double[] lastX = Arrays.copyOf(xs, ELEMENTS);
+        final double[] lastY = Arrays.copyOf(ys, ELEMENTS);
+        for (int i = 0; i < ELEMENTS; i++) {
+            /*
+             * Elements jump anywhere, even several periods away
+             */
+            final double x = xs[i] + (rnd.nextDouble() - 0.5) * SIZE * 4;
+            final double y = ys[i] + (rnd.nextDouble() - 0.5) * SIZE * 4;
+            if (i % 2 == 0) {
+                assertTrue(tree.move(handles[i], x, y));
+            } else {
+                assertTrue(tree.move(i, xs[i], ys[i], x, y));
+            }
+            lastX[i] = x;
+            lastY[i] = y;
+            xs[i] = periodic(x);
+            ys[i] = periodic(y);
+        }
+        checkToroidal(rnd, tree, xs, ys);
+        /*
+         * Elements are found by the position they were last moved to
+         */
+        assertTrue(tree.delete(0, lastX[0], lastY[0]));
+        assertTrue(tree.move(1, lastX[1], lastY[1], lastX[1] + SIZE / 2, lastY[1]));
+        tree.insertWithHandle(ELEMENTS, SIZE, SIZE);
+        assertEquals(1, tree.count(0, 0, 0, 0));
+        try {
+            tree.setAutoExpand(true);
+            fail();
+        } catch (final IllegalStateException e) {
+            assertFalse(tree.isAutoExpand());
+        }
+        tree.setToroidal(false);
+        assertEquals(0, tree.count(-SIZE, -SIZE, -1, -1));
+    }
+
+    /**
+     * Batches of queries, run sequentially or in parallel, must find the same
+     * elements of the single queries, in the order of the queries.
+     */
+    @Test
+    public void testQueryBatch() {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        for (int i = 0; i < ELEMENTS; i++) {
+            tree.insert(i, rnd.nextDouble() * SIZE, rnd.nextDouble() * SIZE);
+        }
+        final double[] boxes = new double[QUERIES * 4];
+        for (int q = 0; q < QUERIES; q++) {
+            final int b = q * 4;
+            /*
+             * Some queries are empty, some cover the whole tree
+             */
+            final double side = q % 10 == 0 ? SIZE * 2 : rnd.nextDouble() * MAX_QUERY;
+            boxes[b] = rnd.nextDouble() * SIZE - side / 2;
+            boxes[b + 1] = rnd.nextDouble() * SIZE - side / 2;
+            boxes[b + 2] = boxes[b] + (q % 7 == 0 ? -1 : side);
+            boxes[b + 3] = boxes[b + 1] + side;
+        }
+        for (final boolean parallel : new boolean[] { false, true }) {
+            final FlatQuadTree.BatchResults results = tree.queryBatch(boxes, parallel);
+            assertEquals(QUERIES, results.getQueryCount());
+            int total = 0;
+            final List<Integer> expected = new ArrayList<>();
+            final List<Integer> found = new ArrayList<>();
+            for (int q = 0; q < QUERIES; q++) {
+                final int b = q * 4;
+                expected.clear();
+                tree.query(boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3], expected);
+                found.clear();
+                for (int i = 0; i < results.count(q); i++) {
+                    found.add(tree.getElement(results.handle(q, i)));
+                }
+                assertEquals(SpatialIndexChecks.sorted(expected), SpatialIndexChecks.sorted(found));
+                total += found.size();
+            }
+            assertEquals(total, results.getTotalCount());
+            assertEquals(ELEMENTS, results.count(10));
+            assertEquals(0, results.count(7));
+        }
+        assertEquals(0, tree.queryBatch(new double[0], true).getTotalCount());
+        try {
+            tree.queryBatch(new double[3], false);
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertEquals(QUERIES, tree.queryBatch(boxes, false).getQueryCount());
+        }
+    }
+
+    /**
+     * Segment and ray queries must find the elements close to the line, in
+     * order along the line, as a linear scan does.
+     */
+    @Test
+    public void testSegmentQueries() {
+        final Random rnd = new Random(SEED);
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        tree.setLooseness(0.5);
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        final int[] handles = new int[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            handles[i] = tree.insertWithHandle(i, xs[i], ys[i]);
+        }
+        /*
+         * Drifted elements lie out of the strict bounds of their leaves
+         */
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = Math.max(0, Math.min(SIZE, xs[i] + rnd.nextDouble() - 0.5));
+            ys[i] = Math.max(0, Math.min(SIZE, ys[i] + rnd.nextDouble() - 0.5));
+            assertTrue(tree.move(handles[i], xs[i], ys[i]));
+        }
+        for (int q = 0; q < QUERIES; q++) {
+            final double x = rnd.nextDouble() * SIZE * 1.5 - SIZE / 4;
+            final double y = rnd.nextDouble() * SIZE * 1.5 - SIZE / 4;
+            /*
+             * Some lines are axis parallel, some segments are points
+             */
+            final double dx = q % 5 == 0 ? 0 : (rnd.nextDouble() - 0.5) * SIZE;
+            final double dy = q % 7 == 0 ? 0 : (rnd.nextDouble() - 0.5) * SIZE;
+            final double width = rnd.nextDouble() * 2;
+            final List<Integer> segment = new ArrayList<>();
+            tree.querySegment(x, y, x + dx, y + dy, width, segment);
+            checkTrace(xs, ys, x, y, dx, dy, 1, width, segment);
+            checkFirst(xs, ys, x, y, dx, dy, 1, segment, tree.firstOnSegment(x, y, x + dx, y + dy, width));
+            final List<Integer> ray = new ArrayList<>();
+            assertTrue(tree.queryRay(x, y, dx, dy, width, new SpatialVisitor<Integer>() {
+                @Override
+                public boolean visit(final Integer element, final double ex, final double ey) {
+                    assertEquals(xs[element], ex, 0);
+                    return ray.add(element);
+                }
+            }));
+            checkTrace(xs, ys, x, y, dx, dy, Double.POSITIVE_INFINITY, width, ray);
+            checkFirst(xs, ys, x, y, dx, dy, Double.POSITIVE_INFINITY, ray, tree.firstOnRay(x, y, dx, dy, width));
+            final List<Integer> stopped = new ArrayList<>();
+            assertEquals(ray.isEmpty(), tree.queryRay(x, y, dx, dy, width, new SpatialVisitor<Integer>() {
+                @Override
+                public boolean visit(final Integer element, final double ex, final double ey) {
+                    stopped.add(element);
+                    return false;
+                }
+            }));
+            assertEquals(Math.min(1, ray.size()), stopped.size());
+        }
+        try {
+            tree.querySegment(0, 0, 1, 1, -1, new ArrayList<Integer>());
+            fail();
+        } catch (final IllegalArgumentException e) {
+            tree.setToroidal(true);
+        }
+        try {
+            tree.firstOnRay(0, 0, 1, 1, 1);
+            fail();
+        } catch (final IllegalStateException e) {
+            assertTrue(tree.isToroidal());
+        }
+    }
+
+    /*
+     * Checks the elements found along the line against a linear scan, and
+     * their order along the line
+     */
+    private static void checkTrace(final double[] xs, final double[] ys, final double x, final double y,
+            final double dx, final double dy, final double tMax, final double width, final List<Integer> found) {
+        final List<Integer> expected = new ArrayList<>();
+        double last = 0;
+        for (int i = 0; i < xs.length; i++) {
+            if (Math.hypot(xs[i] - x - position(xs[i], ys[i], x, y, dx, dy, tMax) * dx,
+                    ys[i] - y - position(xs[i], ys[i], x, y, dx, dy, tMax) * dy) <= width) {
+                expected.add(i);
+            }
+        }
+        for (final Integer element : found) {
+            final double t = position(xs[element], ys[element], x, y, dx, dy, tMax);
+            assertTrue(t >= last);
+            last = t;
+        }
+        assertEquals(expected, SpatialIndexChecks.sorted(new ArrayList<>(found)));
+    }
+
+    /*
+     * Several elements may share the first position, e.g. those projected
+     * before the start of the line
+     */
+    private static void checkFirst(final double[] xs, final double[] ys, final double x, final double y,
+            final double dx, final double dy, final double tMax, final List<Integer> found, final Integer first) {
+        if (found.isEmpty()) {
+            assertEquals(null, first);
+        } else {
+            assertTrue(found.contains(first));
+            assertEquals(position(xs[found.get(0)], ys[found.get(0)], x, y, dx, dy, tMax),
+                    position(xs[first], ys[first], x, y, dx, dy, tMax), 0);
+        }
+    }
+
+    private static double position(final double ex, final double ey, final double x, final double y,
+            final double dx, final double dy, final double tMax) {
+        final double lengthSq = dx * dx + dy * dy;
+        return lengthSq > 0 ? Math.max(0, Math.min(tMax, ((ex - x) * dx + (ey - y) * dy) / lengthSq)) : 0;
+    }
+
+    /**
+     * Negative radii must be rejected rather than taken as their absolute
+     * value.
+     */
+    @Test
+    public void testNegativeRadius() {
+        final FlatQuadTree<Integer> tree = new FlatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        tree.setAggregation(FlatQuadTree.Aggregation.SUM);
+        tree.insert(0, 1, 1);
+        final List<Runnable> calls = Arrays.<Runnable>asList(new Runnable() {
+            @Override
+            public void run() {
+                tree.queryRadius(1, 1, -1, new ArrayList<Integer>());
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                tree.countRadius(1, 1, -1);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                tree.aggregateRadius(1, 1, -1);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                tree.queryRadiusIterator(1, 1, -1);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                tree.nearest(1, 1, -1);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                tree.kNearest(1, 1, 1, Double.NaN);
+            }
+        });
+        for (final Runnable call : calls) {
+            try {
+                call.run();
+                fail();
+            } catch (final IllegalArgumentException e) {
+                assertEquals(1, tree.countRadius(1, 1, 0));
+            }
+        }
+    }
+
+    private static double periodic(final double v) {
+        final double result = v % SIZE;
+        return result < 0 ? result + SIZE : result;
+    }
+
+    private static double periodicDistance(final double x1, final double y1, final double x2, final double y2) {
+        final double dx = Math.abs(periodic(x1) - periodic(x2));
+        final double dy = Math.abs(periodic(y1) - periodic(y2));
+        return Math.hypot(Math.min(dx, SIZE - dx), Math.min(dy, SIZE - dy));
+    }
+
+    private static boolean periodicRange(final double v, final double min, final double max) {
+        return max - min >= SIZE || periodic(v - min) <= max - min;
+    }
+
+    /*
+     * Elements i with NaN as xs[i] are deleted
+     */
+    private static void checkToroidal(final Random rnd, final FlatQuadTree<Integer> tree, final double[] xs,
+            final double[] ys) {
+        final List<Integer> found = new ArrayList<>();
+        final List<Integer> expected = new ArrayList<>();
+        for (int q = 0; q < QUERIES; q++) {
+            /*
+             * Queries are centered anywhere, even out of the bounds, and some
+             * are larger than the space
+             */
+            final double x = (rnd.nextDouble() * 3 - 1) * SIZE;
+            final double y = (rnd.nextDouble() * 3 - 1) * SIZE;
+            final double side = rnd.nextDouble() * SIZE * (q % 10 == 0 ? 2 : 0.5);
+            expected.clear();
+            for (int i = 0; i < xs.length; i++) {
+                if (!Double.isNaN(xs[i]) && periodicRange(xs[i], x, x + side) && periodicRange(ys[i], y, y + side)) {
+                    expected.add(i);
+                }
+            }
+            found.clear();
+            tree.query(x, y, x + side, y + side, found);
+            assertEquals(expected, SpatialIndexChecks.sorted(found));
+            assertEquals(expected.size(), tree.count(x, y, x + side, y + side));
+            assertEquals(expected.size(), tree.aggregate(x, y, x + side, y + side), 0);
+            found.clear();
+            for (final Iterator<Integer> it = tree.queryIterator(x, y, x + side, y + side); it.hasNext();) {
+                found.add(it.next());
+            }
+            assertEquals(expected, SpatialIndexChecks.sorted(found));
+            final double r = side / 2;
+            expected.clear();
+            for (int i = 0; i < xs.length; i++) {
+                if (!Double.isNaN(xs[i]) && periodicDistance(xs[i], ys[i], x, y) <= r) {
+                    expected.add(i);
+                }
+            }
+            found.clear();
+            tree.queryRadius(x, y, r, found);
+            assertEquals(expected, SpatialIndexChecks.sorted(found));
+            assertEquals(expected.size(), tree.countRadius(x, y, r));
+            found.clear();
+            for (final Iterator<Integer> it = tree.queryRadiusIterator(x, y, r); it.hasNext();) {
+                found.add(it.next());
+            }
+            assertEquals(expected, SpatialIndexChecks.sorted(found));
+            final List<Integer> nearest = tree.kNearest(x, y, PER_QUAD, Double.POSITIVE_INFINITY);
+            final double[] distances = new double[xs.length];
+            int alive = 0;
+            for (int i = 0; i < xs.length; i++) {
+                if (!Double.isNaN(xs[i])) {
+                    distances[alive++] = periodicDistance(xs[i], ys[i], x, y);
+                }
+            }
+            final double[] sorted = Arrays.copyOf(distances, alive);
+            Arrays.sort(sorted);
+            assertEquals(PER_QUAD, nearest.size());
+            for (int i = 0; i < PER_QUAD; i++) {
+                assertEquals(sorted[i], periodicDistance(xs[nearest.get(i)], ys[nearest.get(i)], x, y), 1e-9);
+            }
+        }
+        final double radius = SIZE / SIDE;
+        final List<String> pairs = new ArrayList<>();
+        for (int i = 0; i < xs.length; i++) {
+            for (int j = i + 1; j < xs.length; j++) {
+                if (!Double.isNaN(xs[i]) && !Double.isNaN(xs[j])
+                        && periodicDistance(xs[i], ys[i], xs[j], ys[j]) <= radius) {
+                    pairs.add(i + "-" + j);
+                }
+            }
+        }
+        final List<String> visited = Collections.synchronizedList(new ArrayList<String>());
+        tree.pairsWithin(radius, new PairVisitor<Integer>() {
+            @Override
+            public void visit(final Integer first, final Integer second) {
+                visited.add(Math.min(first, second) + "-" + Math.max(first, second));
+            }
+        }, true);
+        Collections.sort(pairs);
+        Collections.sort(visited);
+        assertEquals(pairs, visited);
+    }
+
+    private static void checkAggregates(final Random rnd, final FlatQuadTree<Integer> tree, final double[] values) {
+        final FlatQuadTree.Aggregation aggregation = tree.getAggregation();
+        final List<Integer> found = new ArrayList<>();
+        for (int q = 0; q < QUERIES; q++) {
+            final double x = rnd.nextDouble() * SIZE;
+            final double y = rnd.nextDouble() * SIZE;
+            final double side = rnd.nextDouble() * SIZE;
+            found.clear();
+            tree.query(x, y, x + side, y + side, found);
+            assertEquals(found.size(), tree.count(x, y, x + side, y + side));
+            assertEquals(reduce(aggregation, found, values), tree.aggregate(x, y, x + side, y + side), 0);
+            found.clear();
+            tree.queryRadius(x, y, side, found);
+            assertEquals(found.size(), tree.countRadius(x, y, side));
+            assertEquals(reduce(aggregation, found, values), tree.aggregateRadius(x, y, side), 0);
+        }
+    }
+
+    private static double reduce(final FlatQuadTree.Aggregation aggregation, final List<Integer> elements,
+            final double[] values) {
+        double result = aggregation.identity();
+        for (final Integer element : elements) {
+            assertFalse(Double.isNaN(values[element]));
+            result = aggregation.combine(result, values[element]);
+        }
+        return result;
+    }
+
+    /**
+     * Largest absolute value, to check user-provided aggregations.
+     */
+    private static final class Magnitude implements FlatQuadTree.Aggregation {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public double identity() {
+            return 0;
+        }
+
+        @Override
+        public double combine(final double a, final double b) {
+            return Math.max(Math.abs(a), Math.abs(b));
+        }
+    }
+
+    private static List<Integer> byDistance(final double[] xs, final double[] ys, final double x, final double y) {
+        final List<Integer> all = new ArrayList<>(xs.length);
+        for (int i = 0; i < xs.length; i++) {
+            all.add(i);
+        }
+        Collections.sort(all, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return Double.compare(Math.hypot(xs[a] - x, ys[a] - y), Math.hypot(xs[b] - x, ys[b] - y));
+            }
+        });
+        return all;
+    }
+
+    private static void checkQueries(final Random rnd, final FlatQuadTree<Integer> tree, final double[] xs, final double[] ys) {
+        SpatialIndexChecks.checkQueries(rnd, tree, SIZE, xs, ys);
+    }
+
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.danilopianini.lang.FloatQuadTree;
+import org.junit.Test;
+
+/**
+ */
+public class TestFloatQuadTree {
+
+    private static final int ELEMENTS = 5000;
+    private static final int PER_QUAD = 8;
+    private static final double SIZE = 100;
+    private static final long SEED = 5;
+
+    /**
+     * Inserts, moves and deletes random points, and checks queries against a
+     * linear scan of the rounded positions.
+     */
+    @Test
+    public void testAgainstLinearScan() {
+        final Random rnd = new Random(SEED);
+        final FloatQuadTree<Integer> tree = new FloatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        final int[] handles = new int[ELEMENTS];
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            handles[i] = tree.insertWithHandle(i, xs[i], ys[i]);
+            xs[i] = (float) xs[i];
+            ys[i] = (float) ys[i];
+            assertEquals(xs[i], tree.getX(handles[i]), 0);
+        }
+        assertFalse(tree.insert(-1, SIZE + 1, 0));
+        assertEquals(ELEMENTS, tree.size());
+        SpatialIndexChecks.checkQueries(rnd, tree, SIZE, xs, ys);
+        for (int i = 0; i < ELEMENTS; i++) {
+            final double nx = rnd.nextBoolean() ? rnd.nextDouble() * SIZE : xs[i] + rnd.nextDouble() - 0.5;
+            final double ny = Math.max(0, Math.min(SIZE, ys[i] + rnd.nextDouble() - 0.5));
+            /*
+             * Elements are found by their position before rounding, too
+             */
+            if (i % 2 == 0) {
+                assertTrue(tree.move(i, xs[i], ys[i], nx, ny) || nx < 0 || nx > SIZE);
+            } else {
+                assertTrue(tree.move(handles[i], nx, ny) || nx < 0 || nx > SIZE);
+            }
+            if (nx >= 0 && nx <= SIZE) {
+                xs[i] = (float) nx;
+                ys[i] = (float) ny;
+            }
+        }
+        SpatialIndexChecks.checkQueries(rnd, tree, SIZE, xs, ys);
+        for (int i = 0; i < ELEMENTS; i += 2) {
+            assertTrue(tree.delete(i, xs[i], ys[i]));
+            assertFalse(tree.delete(i, xs[i], ys[i]));
+            assertFalse(tree.delete(handles[i]));
+            xs[i] = Double.NaN;
+            ys[i] = Double.NaN;
+        }
+        assertEquals(ELEMENTS / 2, tree.size());
+        SpatialIndexChecks.checkQueries(rnd, tree, SIZE, xs, ys);
+        for (int i = 1; i < ELEMENTS; i += 2) {
+            assertTrue(tree.delete(handles[i]));
+        }
+        assertEquals(0, tree.size());
+    }
+
+    /**
+     * Positions that collapse to the same float must pile up in a leaf at the
+     * maximum depth.
+     */
+    @Test
+    public void testCoincidentAfterRounding() {
+        final FloatQuadTree<Integer> tree = new FloatQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        final double x = SIZE / 3;
+        for (int i = 0; i < ELEMENTS; i++) {
+            assertTrue(tree.insert(i, x + i * Math.ulp(x), x));
+        }
+        assertTrue(tree.getNodeCount() <= 1 + 4 * tree.getMaxDepth());
+        final List<Integer> found = new ArrayList<>();
+        tree.query(x - 1, x - 1, x + 1, x + 1, found);
+        assertEquals(ELEMENTS, found.size());
+        for (int i = 0; i < ELEMENTS; i++) {
+            assertTrue(tree.delete(i, x + i * Math.ulp(x), x));
+        }
+        assertEquals(0, tree.size());
+    }
+
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.danilopianini.lang.LinearQuadTree;
+import org.junit.Test;
+
+/**
+ */
+public class TestLinearQuadTree {
+
+    private static final int ELEMENTS = 5000;
+    private static final double SIZE = 100;
+    private static final long SEED = 1;
+
+    /**
+     * Inserts, moves and deletes random points, and checks queries against a
+     * linear scan.
+     */
+    @Test
+    public void testAgainstLinearScan() {
+        final Random rnd = new Random(SEED);
+        final LinearQuadTree<Integer> tree = new LinearQuadTree<>(0, 0, SIZE, SIZE);
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            assertTrue(tree.insert(i, xs[i], ys[i]));
+        }
+        assertFalse(tree.insert(-1, SIZE + 1, 0));
+        assertFalse(tree.insert(-1, Double.NaN, 0));
+        assertEquals(ELEMENTS, tree.size());
+        SpatialIndexChecks.checkQueries(rnd, tree, SIZE, xs, ys);
+        for (int i = 0; i < ELEMENTS; i++) {
+            /*
+             * Half of the moves are tiny, and likely stay in the same cell
+             */
+            final double nx = rnd.nextBoolean() ? rnd.nextDouble() * SIZE : xs[i] + Math.ulp(SIZE);
+            final double ny = rnd.nextBoolean() ? rnd.nextDouble() * SIZE : ys[i];
+            assertTrue(tree.move(i, xs[i], ys[i], nx, ny));
+            xs[i] = nx;
+            ys[i] = ny;
+        }
+        SpatialIndexChecks.checkQueries(rnd, tree, SIZE, xs, ys);
+        for (int i = 0; i < ELEMENTS; i += 2) {
+            assertTrue(tree.delete(i, xs[i], ys[i]));
+            assertFalse(tree.delete(i, xs[i], ys[i]));
+            xs[i] = Double.NaN;
+            ys[i] = Double.NaN;
+        }
+        assertEquals(ELEMENTS / 2, tree.size());
+        tree.trimToSize();
+        SpatialIndexChecks.checkQueries(rnd, tree, SIZE, xs, ys);
+    }
+
+    /**
+     * Bulk loaded trees must contain the same elements, bounds included.
+     */
+    @Test
+    public void testBulkLoad() {
+        final Random rnd = new Random(SEED);
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        final Integer[] elements = new Integer[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            elements[i] = i;
+            xs[i] = i % 2 == 0 ? rnd.nextDouble() * SIZE : Math.floor(rnd.nextDouble() * 4) * SIZE / 4;
+            ys[i] = rnd.nextDouble() * SIZE;
+        }
+        xs[0] = SIZE * 2;
+        for (final boolean parallel : new boolean[] { false, true }) {
+            final LinearQuadTree<Integer> tree = LinearQuadTree.bulkLoad(0, 0, SIZE, SIZE, xs, ys, elements, parallel);
+            assertEquals(ELEMENTS - 1, tree.size());
+            final double[] expected = Arrays.copyOf(xs, ELEMENTS);
+            expected[0] = Double.NaN;
+            SpatialIndexChecks.checkQueries(rnd, tree, SIZE, expected, ys);
+            assertEquals(ELEMENTS - 1, tree.query(new Rectangle2D.Double(0, 0, SIZE, SIZE)).size());
+            assertTrue(tree.insert(0, SIZE, SIZE));
+            assertEquals(1, tree.query(new Rectangle2D.Double(SIZE, SIZE, 0, 0)).size());
+        }
+    }
+
+}
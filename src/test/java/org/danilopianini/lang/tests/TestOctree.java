@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.danilopianini.lang.Octree;
+import org.danilopianini.lang.SpatialVisitor3D;
+import org.junit.Test;
+
+/**
+ */
+public class TestOctree {
+
+    private static final int ELEMENTS = 5000;
+    private static final int PER_OCTANT = 8;
+    private static final int QUERIES = 200;
+    private static final int K = 5;
+    private static final double SIZE = 100;
+    private static final double MAX_QUERY = 30;
+    private static final long SEED = 2;
+
+    /**
+     * Inserts, moves and deletes random points, and checks queries against a
+     * linear scan.
+     */
+    @Test
+    public void testAgainstLinearScan() {
+        final Random rnd = new Random(SEED);
+        final Octree<Integer> tree = new Octree<>(0, 0, 0, SIZE, SIZE, SIZE, PER_OCTANT);
+        assertNull(tree.nearest(0, 0, 0));
+        final double[][] points = new double[ELEMENTS][];
+        for (int i = 0; i < ELEMENTS; i++) {
+            points[i] = randomPoint(rnd);
+            assertTrue(tree.insert(i, points[i][0], points[i][1], points[i][2]));
+        }
+        assertFalse(tree.insert(-1, 0, 0, SIZE + 1));
+        assertEquals(ELEMENTS, tree.size());
+        checkQueries(rnd, tree, points);
+        for (int i = 0; i < ELEMENTS; i++) {
+            final double[] p = randomPoint(rnd);
+            assertTrue(tree.move(i, points[i][0], points[i][1], points[i][2], p[0], p[1], p[2]));
+            points[i] = p;
+        }
+        checkQueries(rnd, tree, points);
+        for (int i = 0; i < ELEMENTS; i += 2) {
+            assertTrue(tree.delete(i, points[i][0], points[i][1], points[i][2]));
+            assertFalse(tree.delete(i, points[i][0], points[i][1], points[i][2]));
+            points[i] = null;
+        }
+        assertEquals(ELEMENTS / 2, tree.size());
+        checkQueries(rnd, tree, points);
+    }
+
+    private static double[] randomPoint(final Random rnd) {
+        return new double[] { rnd.nextDouble() * SIZE, rnd.nextDouble() * SIZE, rnd.nextDouble() * SIZE };
+    }
+
+    private static double distance(final double[] p, final double[] q) {
+        final double dx = p[0] - q[0];
+        final double dy = p[1] - q[1];
+        final double dz = p[2] - q[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private static void checkQueries(final Random rnd, final Octree<Integer> tree, final double[][] points) {
+        for (int q = 0; q < QUERIES; q++) {
+            final double[] min = randomPoint(rnd);
+            final double[] max = new double[min.length];
+            for (int d = 0; d < min.length; d++) {
+                max[d] = min[d] + rnd.nextDouble() * MAX_QUERY;
+            }
+            final List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < points.length; i++) {
+                final double[] p = points[i];
+                if (p != null && p[0] >= min[0] && p[0] <= max[0] && p[1] >= min[1] && p[1] <= max[1]
+                        && p[2] >= min[2] && p[2] <= max[2]) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(expected, SpatialIndexChecks.sorted(tree.query(min[0], min[1], min[2], max[0], max[1], max[2])));
+            final double[] c = randomPoint(rnd);
+            final double r = rnd.nextDouble() * MAX_QUERY;
+            expected.clear();
+            for (int i = 0; i < points.length; i++) {
+                if (points[i] != null && distance(points[i], c) <= r) {
+                    expected.add(i);
+                }
+            }
+            final List<Integer> actual = new ArrayList<>();
+            tree.querySphere(c[0], c[1], c[2], r, actual);
+            assertEquals(expected, SpatialIndexChecks.sorted(actual));
+            actual.clear();
+            tree.querySphere(c[0], c[1], c[2], r, new SpatialVisitor3D<Integer>() {
+                @Override
+                public boolean visit(final Integer element, final double x, final double y, final double z) {
+                    return actual.add(element);
+                }
+            });
+            assertEquals(expected, SpatialIndexChecks.sorted(actual));
+            final List<Integer> nearest = tree.kNearest(c[0], c[1], c[2], K);
+            assertEquals(K, nearest.size());
+            assertEquals(nearest, tree.kNearest(c[0], c[1], c[2], K, Double.POSITIVE_INFINITY));
+            assertEquals(nearest.get(0), tree.nearest(c[0], c[1], c[2]));
+            final double closest = distance(points[nearest.get(0)], c);
+            assertEquals(nearest.get(0), tree.nearest(c[0], c[1], c[2], closest + 1e-9));
+            if (closest > 0) {
+                assertNull(tree.nearest(c[0], c[1], c[2], closest / 2));
+            }
+            double previous = 0;
+            for (final int i : nearest) {
+                final double d = distance(points[i], c);
+                assertTrue(d >= previous);
+                previous = d;
+            }
+            for (int i = 0; i < points.length; i++) {
+                if (points[i] != null && !nearest.contains(i)) {
+                    assertTrue(distance(points[i], c) >= previous);
+                }
+            }
+        }
+    }
+
+    /**
+     * Coincident points must pile up in a leaf at the maximum depth.
+     */
+    @Test
+    public void testCoincidentPoints() {
+        final Octree<Integer> tree = new Octree<>(0, 0, 0, SIZE, SIZE, SIZE, PER_OCTANT);
+        final double x = SIZE / 3;
+        for (int i = 0; i < ELEMENTS; i++) {
+            assertTrue(tree.insert(i, x, x, x));
+        }
+        assertTrue(tree.getNodeCount() <= 1 + 8 * tree.getMaxDepth());
+        assertEquals(ELEMENTS, tree.query(x, x, x, x, x, x).size());
+        assertTrue(tree.delete(0, x, x, x));
+        assertEquals(ELEMENTS - 1, tree.size());
+    }
+
+    /**
+     * Radius queries must reject negative radii.
+     */
+    @Test
+    public void testNegativeRadius() {
+        final Octree<Integer> tree = new Octree<>(0, 0, 0, SIZE, SIZE, SIZE, PER_OCTANT);
+        tree.insert(0, 1, 1, 1);
+        final List<Runnable> calls = Arrays.<Runnable>asList(new Runnable() {
+            @Override
+            public void run() {
+                tree.querySphere(1, 1, 1, -1, new ArrayList<Integer>());
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                tree.querySphere(1, 1, 1, -1, new SpatialVisitor3D<Integer>() {
+                    @Override
+                    public boolean visit(final Integer element, final double x, final double y, final double z) {
+                        return true;
+                    }
+                });
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                tree.nearest(1, 1, 1, -1);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                tree.kNearest(1, 1, 1, K, -1);
+            }
+        });
+        for (final Runnable call : calls) {
+            try {
+                call.run();
+                fail();
+            } catch (final IllegalArgumentException e) {
+                assertEquals(Integer.valueOf(0), tree.nearest(1, 1, 1, 0));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.danilopianini.lang.PersistentQuadTree;
+import org.junit.Test;
+
+/**
+ */
+public class TestPersistentQuadTree {
+
+    private static final int ELEMENTS = 5000;
+    private static final int DUPLICATES = 200_000;
+    private static final int PER_QUAD = 8;
+    private static final int READERS = 3;
+    private static final int STEPS = 20;
+    private static final double SIZE = 100;
+    private static final long SEED = 4;
+
+    /**
+     * Inserts, moves and deletes random points, and checks that queries on
+     * the tree and on its snapshots match a linear scan of the corresponding
+     * versions.
+     */
+    @Test
+    public void testSnapshots() {
+        final Random rnd = new Random(SEED);
+        final PersistentQuadTree<Integer> tree = new PersistentQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            assertTrue(tree.insert(i, xs[i], ys[i]));
+        }
+        assertFalse(tree.insert(-1, SIZE + 1, 0));
+        final PersistentQuadTree<Integer> inserted = tree.snapshot();
+        final double[] insertedXs = xs.clone();
+        final double[] insertedYs = ys.clone();
+        for (int i = 0; i < ELEMENTS; i++) {
+            final double nx = rnd.nextDouble() * SIZE;
+            final double ny = rnd.nextBoolean() ? rnd.nextDouble() * SIZE : ys[i];
+            assertTrue(tree.move(i, xs[i], ys[i], nx, ny));
+            xs[i] = nx;
+            ys[i] = ny;
+        }
+        final PersistentQuadTree<Integer> moved = tree.snapshot();
+        final double[] movedXs = xs.clone();
+        final double[] movedYs = ys.clone();
+        for (int i = 0; i < ELEMENTS; i += 2) {
+            assertTrue(tree.delete(i, xs[i], ys[i]));
+            assertFalse(tree.delete(i, xs[i], ys[i]));
+            xs[i] = Double.NaN;
+            ys[i] = Double.NaN;
+        }
+        assertEquals(ELEMENTS / 2, tree.size());
+        SpatialIndexChecks.checkQueries(rnd, tree, SIZE, xs, ys);
+        assertEquals(ELEMENTS, inserted.size());
+        SpatialIndexChecks.checkQueries(rnd, inserted, SIZE, insertedXs, insertedYs);
+        assertEquals(ELEMENTS, moved.size());
+        SpatialIndexChecks.checkQueries(rnd, moved, SIZE, movedXs, movedYs);
+        /*
+         * Snapshots are independent trees
+         */
+        assertTrue(moved.delete(1, movedXs[1], movedYs[1]));
+        assertEquals(ELEMENTS / 2, tree.size());
+        assertEquals(Arrays.asList(1), tree.query(new Rectangle2D.Double(xs[1], ys[1], 0, 0)));
+        for (int i = 1; i < ELEMENTS; i += 2) {
+            assertTrue(tree.delete(i, xs[i], ys[i]));
+        }
+        assertEquals(0, tree.size());
+    }
+
+    /**
+     * Coincident points must pile up in a leaf at the maximum depth, without
+     * deepening the paths copied by each write.
+     */
+    @Test
+    public void testCoincidentPoints() {
+        final PersistentQuadTree<Integer> tree = new PersistentQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD, 2);
+        final double x = SIZE / 3;
+        for (int i = 0; i < ELEMENTS; i++) {
+            assertTrue(tree.insert(i, x, x));
+        }
+        final PersistentQuadTree<Integer> snapshot = tree.snapshot();
+        assertEquals(2, snapshot.getMaxDepth());
+        assertTrue(tree.delete(0, x, x));
+        assertEquals(ELEMENTS - 1, tree.query(new Rectangle2D.Double(x, x, 0, 0)).size());
+        assertEquals(ELEMENTS, snapshot.size());
+    }
+
+    /**
+     * Coincident points are chained in buckets: each insertion copies a single
+     * bucket, deletions copy the buckets up to the one holding the element,
+     * and long chains survive serialization.
+     *
+     * @throws IOException
+     *             if serialization fails
+     * @throws ClassNotFoundException
+     *             if deserialization fails
+     */
+    @Test
+    public void testManyCoincidentPoints() throws IOException, ClassNotFoundException {
+        final PersistentQuadTree<Integer> tree = new PersistentQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD, 2);
+        final double x = SIZE / 3;
+        for (int i = 0; i < DUPLICATES; i++) {
+            assertTrue(tree.insert(i, x, x));
+        }
+        final PersistentQuadTree<Integer> snapshot = tree.snapshot();
+        assertTrue(tree.delete(DUPLICATES / 2, x, x));
+        assertTrue(tree.delete(0, x, x));
+        assertTrue(tree.delete(DUPLICATES - 1, x, x));
+        assertFalse(tree.delete(0, x, x));
+        assertFalse(tree.delete(1, x, x + 1));
+        final List<Integer> found = new ArrayList<>();
+        tree.queryRadius(x, x, 0, found);
+        assertEquals(DUPLICATES - 3, found.size());
+        assertEquals(DUPLICATES - 3, new HashSet<>(found).size());
+        assertFalse(found.contains(DUPLICATES / 2));
+        assertEquals(DUPLICATES, snapshot.query(new Rectangle2D.Double(x, x, 0, 0)).size());
+        final PersistentQuadTree<Integer> copy = copy(tree);
+        assertEquals(DUPLICATES - 3, copy.size());
+        assertTrue(copy.insert(DUPLICATES, x, x));
+        assertTrue(copy.delete(1, x, x));
+        assertEquals(DUPLICATES - 3, copy.query(new Rectangle2D.Double(x, x, 0, 0)).size());
+        assertEquals(DUPLICATES - 3, tree.size());
+    }
+
+    /**
+     * Readers query without locks while the writer moves elements: every
+     * query must see all the elements exactly once.
+     *
+     * @throws InterruptedException
+     *             if interrupted
+     */
+    @Test
+    public void testConcurrentReaders() throws InterruptedException {
+        final Random rnd = new Random(SEED);
+        final PersistentQuadTree<Integer> tree = new PersistentQuadTree<>(0, 0, SIZE, SIZE, PER_QUAD);
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            tree.insert(i, xs[i], ys[i]);
+        }
+        final CountDownLatch writerDone = new CountDownLatch(1);
+        final CountDownLatch readersDone = new CountDownLatch(READERS);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int r = 0; r < READERS; r++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final List<Integer> buffer = new ArrayList<>(ELEMENTS);
+                        while (writerDone.getCount() > 0) {
+                            buffer.clear();
+                            tree.query(0, 0, SIZE, SIZE, buffer);
+                            assertEquals(ELEMENTS, buffer.size());
+                            assertEquals(ELEMENTS, new HashSet<>(buffer).size());
+                        }
+                    } catch (RuntimeException | Error e) { // NOPMD
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        readersDone.countDown();
+                    }
+                }
+            }.start();
+        }
+        for (int step = 0; step < STEPS; step++) {
+            for (int i = 0; i < ELEMENTS; i++) {
+                final double nx = rnd.nextDouble() * SIZE;
+                final double ny = rnd.nextDouble() * SIZE;
+                assertTrue(tree.move(i, xs[i], ys[i], nx, ny));
+                xs[i] = nx;
+                ys[i] = ny;
+            }
+        }
+        writerDone.countDown();
+        readersDone.await();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        SpatialIndexChecks.checkQueries(rnd, tree, SIZE, xs, ys);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(final T object) throws IOException, ClassNotFoundException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.danilopianini.lang.BoundingBoxVisitor;
+import org.danilopianini.lang.RTree;
+import org.junit.Test;
+
+/**
+ */
+public class TestRTree {
+
+    private static final int ELEMENTS = 3000;
+    private static final int QUERIES = 200;
+    private static final int MAX_ENTRIES = 6;
+    private static final int K = 10;
+    private static final double SIZE = 100;
+    private static final double MAX_EXTENT = 5;
+    private static final long SEED = 11;
+
+    /**
+     * Inserts, moves and deletes random boxes, and checks all the queries
+     * against a linear scan.
+     */
+    @Test
+    public void testAgainstLinearScan() {
+        final Random rnd = new Random(SEED);
+        final RTree<Integer> tree = new RTree<>(MAX_ENTRIES);
+        final double[] boxes = randomBoxes(rnd);
+        final int[] handles = new int[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            final int b = i * 4;
+            /*
+             * Corners are swapped on purpose, half of the times
+             */
+            handles[i] = i % 2 == 0
+                    ? tree.insert(i, boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3])
+                    : tree.insert(i, boxes[b + 2], boxes[b + 3], boxes[b], boxes[b + 1]);
+        }
+        assertEquals(-1, tree.insert(-1, Double.NaN, 0, 1, 1));
+        assertEquals(ELEMENTS, tree.size());
+        assertEquals(boxes[2], tree.getBounds(handles[0]).getMaxX(), 0);
+        check(rnd, tree, boxes);
+        for (int i = 0; i < ELEMENTS; i++) {
+            final int b = i * 4;
+            final double w = boxes[b + 2] - boxes[b];
+            final double h = boxes[b + 3] - boxes[b + 1];
+            /*
+             * Small jitters usually stay within the leaf, jumps do not
+             */
+            final double shift = rnd.nextBoolean() ? rnd.nextDouble() * SIZE : rnd.nextDouble() - 0.5;
+            boxes[b] = (boxes[b] + shift) % SIZE;
+            boxes[b + 1] = (boxes[b + 1] + shift) % SIZE;
+            boxes[b + 2] = boxes[b] + w;
+            boxes[b + 3] = boxes[b + 1] + h;
+            assertTrue(tree.move(handles[i], boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3]));
+        }
+        check(rnd, tree, boxes);
+        for (int i = 0; i < ELEMENTS; i += 2) {
+            final int b = i * 4;
+            if (i % 4 == 0) {
+                assertTrue(tree.delete(handles[i]));
+            } else {
+                assertTrue(tree.delete(i, boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3]));
+            }
+            assertFalse(tree.delete(handles[i]));
+            boxes[b] = Double.NaN;
+        }
+        assertEquals(ELEMENTS / 2, tree.size());
+        check(rnd, tree, boxes);
+        for (int i = 1; i < ELEMENTS; i += 2) {
+            assertTrue(tree.delete(handles[i]));
+        }
+        assertEquals(0, tree.size());
+        assertEquals(1, tree.getHeight());
+        assertNull(tree.nearest(0, 0));
+        assertTrue(tree.query(new Rectangle2D.Double(0, 0, SIZE, SIZE)).isEmpty());
+    }
+
+    /**
+     * Checks that a bulk loaded tree answers as a linear scan, and keeps
+     * working with further updates.
+     */
+    @Test
+    public void testBulkLoad() {
+        final Random rnd = new Random(SEED);
+        final double[] boxes = randomBoxes(rnd);
+        final Integer[] elements = new Integer[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            elements[i] = i;
+        }
+        final RTree<Integer> tree = RTree.bulkLoad(boxes, elements, MAX_ENTRIES);
+        assertEquals(ELEMENTS, tree.size());
+        assertEquals(Integer.valueOf(K), tree.getElement(K));
+        check(rnd, tree, boxes);
+        final double[] more = Arrays.copyOf(boxes, boxes.length + 4);
+        more[ELEMENTS * 4 + 2] = 1;
+        more[ELEMENTS * 4 + 3] = 1;
+        assertEquals(ELEMENTS, tree.insert(ELEMENTS, 0, 0, 1, 1));
+        for (int i = 0; i < ELEMENTS; i += 3) {
+            assertTrue(tree.delete(i));
+            more[i * 4] = Double.NaN;
+        }
+        check(rnd, tree, more);
+        assertEquals(0, RTree.bulkLoad(new double[0], new Integer[0], MAX_ENTRIES).size());
+    }
+
+    private static double[] randomBoxes(final Random rnd) {
+        final double[] boxes = new double[ELEMENTS * 4];
+        for (int i = 0; i < ELEMENTS; i++) {
+            final int b = i * 4;
+            boxes[b] = rnd.nextDouble() * SIZE;
+            boxes[b + 1] = rnd.nextDouble() * SIZE;
+            /*
+             * Some boxes are degenerate, i.e. points
+             */
+            boxes[b + 2] = boxes[b] + (i % 5 == 0 ? 0 : rnd.nextDouble() * MAX_EXTENT);
+            boxes[b + 3] = boxes[b + 1] + (i % 5 == 0 ? 0 : rnd.nextDouble() * MAX_EXTENT);
+        }
+        return boxes;
+    }
+
+    /*
+     * Elements i with NaN as boxes[4 * i] are deleted
+     */
+    private static void check(final Random rnd, final RTree<Integer> tree, final double[] boxes) {
+        final int n = boxes.length / 4;
+        for (int q = 0; q < QUERIES; q++) {
+            final double x = rnd.nextDouble() * SIZE;
+            final double y = rnd.nextDouble() * SIZE;
+            final double mx = x + rnd.nextDouble() * SIZE / 4;
+            final double my = y + rnd.nextDouble() * SIZE / 4;
+            final List<Integer> intersecting = new ArrayList<>();
+            final List<Integer> within = new ArrayList<>();
+            final List<Integer> containing = new ArrayList<>();
+            final List<Integer> point = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                final int b = i * 4;
+                if (!Double.isNaN(boxes[b])) {
+                    if (boxes[b] <= mx && boxes[b + 2] >= x && boxes[b + 1] <= my && boxes[b + 3] >= y) {
+                        intersecting.add(i);
+                    }
+                    if (boxes[b] >= x && boxes[b + 2] <= mx && boxes[b + 1] >= y && boxes[b + 3] <= my) {
+                        within.add(i);
+                    }
+                    if (boxes[b] <= x && boxes[b + 2] >= mx && boxes[b + 1] <= y && boxes[b + 3] >= my) {
+                        containing.add(i);
+                    }
+                    if (boxes[b] <= x && boxes[b + 2] >= x && boxes[b + 1] <= y && boxes[b + 3] >= y) {
+                        point.add(i);
+                    }
+                }
+            }
+            assertEquals(intersecting, SpatialIndexChecks.sorted(tree.query(
+                    new Rectangle2D.Double(x, y, mx - x, my - y))));
+            final List<Integer> visited = new ArrayList<>();
+            assertTrue(tree.query(x, y, mx, my, new BoundingBoxVisitor<Integer>() {
+                @Override
+                public boolean visit(final Integer element, final double minX, final double minY,
+                        final double maxX, final double maxY) {
+                    assertEquals(boxes[element * 4 + 2], maxX, 0);
+                    return visited.add(element);
+                }
+            }));
+            assertEquals(intersecting, SpatialIndexChecks.sorted(visited));
+            final List<Integer> result = new ArrayList<>();
+            tree.queryWithin(x, y, mx, my, result);
+            assertEquals(within, SpatialIndexChecks.sorted(result));
+            result.clear();
+            tree.queryContaining(x, y, mx, my, result);
+            assertEquals(containing, SpatialIndexChecks.sorted(result));
+            result.clear();
+            tree.queryContaining(x, y, x, y, result);
+            assertEquals(point, SpatialIndexChecks.sorted(result));
+            /*
+             * Swapped query corners are normalized
+             */
+            result.clear();
+            tree.query(mx, my, x, y, result);
+            assertEquals(intersecting, SpatialIndexChecks.sorted(result));
+            result.clear();
+            tree.queryWithin(mx, y, x, my, result);
+            assertEquals(within, SpatialIndexChecks.sorted(result));
+            result.clear();
+            tree.queryContaining(x, my, mx, y, result);
+            assertEquals(containing, SpatialIndexChecks.sorted(result));
+            checkNearest(tree, boxes, x, y);
+        }
+    }
+
+    private static void checkNearest(final RTree<Integer> tree, final double[] boxes, final double x,
+            final double y) {
+        final int n = boxes.length / 4;
+        final double[] distances = new double[n];
+        int alive = 0;
+        for (int i = 0; i < n; i++) {
+            final int b = i * 4;
+            if (!Double.isNaN(boxes[b])) {
+                final double dx = Math.max(0, Math.max(boxes[b] - x, x - boxes[b + 2]));
+                final double dy = Math.max(0, Math.max(boxes[b + 1] - y, y - boxes[b + 3]));
+                distances[alive++] = Math.sqrt(dx * dx + dy * dy);
+            }
+        }
+        final double[] expected = Arrays.copyOf(distances, alive);
+        Arrays.sort(expected);
+        final List<Integer> nearest = tree.kNearest(x, y, K, Double.POSITIVE_INFINITY);
+        assertEquals(Math.min(K, alive), nearest.size());
+        for (int i = 0; i < nearest.size(); i++) {
+            final int b = nearest.get(i) * 4;
+            final double dx = Math.max(0, Math.max(boxes[b] - x, x - boxes[b + 2]));
+            final double dy = Math.max(0, Math.max(boxes[b + 1] - y, y - boxes[b + 3]));
+            assertEquals(expected[i], Math.sqrt(dx * dx + dy * dy), 1e-9);
+        }
+        if (alive > 0) {
+            assertEquals(nearest.get(0), tree.nearest(x, y));
+        }
+        try {
+            tree.kNearest(x, y, K, -1);
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertEquals(nearest, tree.kNearest(x, y, K, Double.POSITIVE_INFINITY));
+        }
+    }
+
+}
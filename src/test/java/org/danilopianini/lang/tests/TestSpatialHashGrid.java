@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.danilopianini.lang.SpatialHashGrid;
+import org.junit.Test;
+
+/**
+ */
+public class TestSpatialHashGrid {
+
+    private static final int ELEMENTS = 5000;
+    private static final double SIZE = 100;
+    private static final double CELL = 3;
+    private static final long SEED = 3;
+
+    /**
+     * Inserts, moves and deletes random points, and checks queries against a
+     * linear scan.
+     */
+    @Test
+    public void testAgainstLinearScan() {
+        final Random rnd = new Random(SEED);
+        final SpatialHashGrid<Integer> grid = new SpatialHashGrid<>(CELL);
+        final int[] handles = new int[ELEMENTS];
+        final double[] xs = new double[ELEMENTS];
+        final double[] ys = new double[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = rnd.nextDouble() * SIZE;
+            ys[i] = rnd.nextDouble() * SIZE;
+            handles[i] = grid.insertWithHandle(i, xs[i], ys[i]);
+            assertTrue(handles[i] >= 0);
+        }
+        assertFalse(grid.insert(-1, Double.NaN, 0));
+        assertEquals(ELEMENTS, grid.size());
+        SpatialIndexChecks.checkQueries(rnd, grid, SIZE, xs, ys);
+        for (int i = 0; i < ELEMENTS; i++) {
+            final double nx = rnd.nextBoolean() ? rnd.nextDouble() * SIZE : xs[i] + rnd.nextDouble() - 0.5;
+            final double ny = rnd.nextDouble() * SIZE;
+            if (i % 2 == 0) {
+                assertTrue(grid.move(i, xs[i], ys[i], nx, ny));
+            } else {
+                assertTrue(grid.move(handles[i], nx, ny));
+            }
+            xs[i] = nx;
+            ys[i] = ny;
+        }
+        SpatialIndexChecks.checkQueries(rnd, grid, SIZE, xs, ys);
+        for (int i = 0; i < ELEMENTS; i += 2) {
+            assertTrue(grid.delete(i, xs[i], ys[i]));
+            assertFalse(grid.delete(i, xs[i], ys[i]));
+            assertFalse(grid.delete(handles[i]));
+            xs[i] = Double.NaN;
+            ys[i] = Double.NaN;
+        }
+        assertEquals(ELEMENTS / 2, grid.size());
+        SpatialIndexChecks.checkQueries(rnd, grid, SIZE, xs, ys);
+        /*
+         * Queries much larger than the occupied space, and negative cells
+         */
+        assertEquals(ELEMENTS / 2, grid.query(new Rectangle2D.Double(-Double.MAX_VALUE / 2, -Double.MAX_VALUE / 2,
+                Double.MAX_VALUE, Double.MAX_VALUE)).size());
+        assertTrue(grid.insert(-1, -CELL / 2, -CELL * 2));
+        assertEquals(1, grid.query(new Rectangle2D.Double(-CELL, -CELL * 2, CELL, CELL)).size());
+    }
+
+    /**
+     * Cells must be released as soon as they get empty.
+     */
+    @Test
+    public void testCells() {
+        final SpatialHashGrid<String> grid = new SpatialHashGrid<>(1);
+        final int a = grid.insertWithHandle("a", 0.5, 0.5);
+        grid.insert("b", 0.7, 0.2);
+        assertEquals(1, grid.getCellCount());
+        assertTrue(grid.move(a, -0.5, 0.5));
+        assertEquals(2, grid.getCellCount());
+        assertEquals("a", grid.getElement(a));
+        assertTrue(grid.delete("b", 0.7, 0.2));
+        assertEquals(1, grid.getCellCount());
+        assertTrue(grid.delete(a));
+        assertEquals(0, grid.getCellCount());
+        assertEquals(0, grid.size());
+    }
+
+    /**
+     * Coordinates whose cell index does not fit in an int saturate to the
+     * extreme cells, which must still be found by radius queries.
+     */
+    @Test
+    public void testLargeCoordinates() {
+        final SpatialHashGrid<String> grid = new SpatialHashGrid<>(1);
+        final double far = 3e9;
+        grid.insert("far", far, 0.5);
+        grid.insert("-far", -far, 0.5);
+        for (int i = 0; i < 10; i++) {
+            grid.insert(Integer.toString(i), i / 10.0, i / 10.0);
+        }
+        final List<String> found = new ArrayList<>();
+        grid.queryRadius(far, 0.5, 1, found);
+        assertEquals(Arrays.asList("far"), found);
+        found.clear();
+        grid.queryRadius(-far, 0.5, 1, found);
+        assertEquals(Arrays.asList("-far"), found);
+        found.clear();
+        grid.query(far - 1, 0, far + 1, 1, found);
+        assertEquals(Arrays.asList("far"), found);
+        found.clear();
+        grid.queryRadius(Integer.MAX_VALUE, 0.5, 1, found);
+        assertTrue(found.isEmpty());
+    }
+
+}